@@ -110,10 +110,12 @@ public class FilterProcessor {
 
     /**
      * Runs all "route" filters. These filters route calls to an origin.
+     * Route filters are skipped if the response was already served from the response cache.
      *
      * @throws ZuulException if an exception occurs.
      */
     public void route() throws ZuulException {
+        if (RequestContext.getCurrentContext().isResponseFromCache()) return;
         try {
             runFilters("route");
         } catch (ZuulException e) {
@@ -331,6 +333,18 @@ public class FilterProcessor {
             }
         }
 
+        @Test
+        public void testRouteSkippedForCachedResponse() throws Throwable {
+            FilterProcessor processor = spy(new FilterProcessor());
+            RequestContext.getCurrentContext().setResponseFromCache(true);
+            try {
+                processor.route();
+                verify(processor, never()).runFilters("route");
+            } finally {
+                RequestContext.getCurrentContext().unset();
+            }
+        }
+
         @Test
         public void testRouteProcessHttpException() {
             HttpServletRequest request = mock(HttpServletRequest.class);
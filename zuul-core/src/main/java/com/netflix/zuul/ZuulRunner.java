@@ -16,9 +16,12 @@
 package com.netflix.zuul;
 
 import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.context.RequestDeadline;
 import com.netflix.zuul.exception.ZuulException;
 import com.netflix.zuul.http.HttpServletRequestWrapper;
 import com.netflix.zuul.http.HttpServletResponseWrapper;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import com.netflix.zuul.origin.SpeculativeConnector;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,7 +33,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.PrintWriter;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 
@@ -78,6 +83,7 @@ public class ZuulRunner {
         }
 
         ctx.setResponse(new HttpServletResponseWrapper(servletResponse));
+        RequestDeadline.start(ctx, servletRequest);
     }
 
     /**
@@ -95,6 +101,11 @@ public class ZuulRunner {
      * @throws ZuulException
      */
     public void route() throws ZuulException {
+        // no point sending to the origin a request the client has stopped waiting for
+        RequestContext ctx = RequestContext.getCurrentContext();
+        RequestDeadline.check(ctx);
+        // a speculative connect that hasn't started by now would only race the route filter's own
+        SpeculativeConnector.settle(ctx);
         FilterProcessor.getInstance().route();
     }
 
@@ -169,5 +180,26 @@ public class ZuulRunner {
                 e.printStackTrace();
             }
         }
+
+        @Test
+        public void testRouteFailsPastTheDeadline() throws Exception {
+            MonitoringHelper.initMocks();
+            ZuulRunner runner = new ZuulRunner();
+            RequestContext context = new RequestContext();
+            try {
+                FilterProcessor.setProcessor(processor);
+                RequestContext.testSetCurrentContext(context);
+                context.setDeadlineNanos(System.nanoTime() - 1);
+                try {
+                    runner.route();
+                    fail();
+                } catch (ZuulException e) {
+                    assertEquals(504, e.nStatusCode);
+                }
+                verify(processor, never()).route();
+            } finally {
+                RequestContext.testSetCurrentContext(null);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parsed Cache-Control directives, and the freshness rules of a shared cache.
+ */
+public class CacheControl {
+
+    private boolean noStore;
+    private boolean noCache;
+    private boolean isPrivate;
+    private boolean isPublic;
+    private boolean mustRevalidate;
+    private long maxAge = -1;
+    private long sMaxAge = -1;
+    private long staleWhileRevalidate = -1;
+
+    /**
+     * @param header a Cache-Control header value, or several joined with ",". May be null
+     * @return the parsed directives
+     */
+    public static CacheControl parse(String header) {
+        CacheControl cc = new CacheControl();
+        if (header == null) return cc;
+        for (String directive : header.split(",")) {
+            String name = directive;
+            String value = null;
+            int eq = directive.indexOf('=');
+            if (eq != -1) {
+                name = directive.substring(0, eq);
+                value = directive.substring(eq + 1).trim();
+                if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+                    value = value.substring(1, value.length() - 1);
+                }
+            }
+            name = name.trim().toLowerCase();
+
+            if (name.equals("no-store")) cc.noStore = true;
+            else if (name.equals("no-cache")) cc.noCache = true;
+            else if (name.equals("private")) cc.isPrivate = true;
+            else if (name.equals("public")) cc.isPublic = true;
+            else if (name.equals("must-revalidate") || name.equals("proxy-revalidate")) cc.mustRevalidate = true;
+            else if (name.equals("max-age")) cc.maxAge = seconds(value);
+            else if (name.equals("s-maxage")) cc.sMaxAge = seconds(value);
+            else if (name.equals("stale-while-revalidate")) cc.staleWhileRevalidate = seconds(value);
+        }
+        return cc;
+    }
+
+    private static long seconds(String value) {
+        if (value == null) return -1;
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * computes how long a response stays fresh in a shared cache: s-maxage, then max-age, then Expires minus Date.
+     *
+     * @param expires the Expires header, may be null
+     * @param date    the Date header, may be null
+     * @param now     current time in milliseconds, used when there is no Date header
+     * @return the freshness lifetime in milliseconds, 0 if the response is stale on arrival or has no explicit lifetime
+     */
+    public long freshnessLifetime(String expires, String date, long now) {
+        if (sMaxAge >= 0) return sMaxAge * 1000;
+        if (maxAge >= 0) return maxAge * 1000;
+        if (expires != null) {
+            long expiresAt = parseDate(expires);
+            if (expiresAt < 0) return 0;
+            long dateAt = (date == null) ? -1 : parseDate(date);
+            return Math.max(0, expiresAt - (dateAt < 0 ? now : dateAt));
+        }
+        return 0;
+    }
+
+    /**
+     * @param value an HTTP-date
+     * @return milliseconds since the epoch, -1 if value can't be parsed
+     */
+    static long parseDate(String value) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date.getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    public boolean isPrivate() {
+        return isPrivate;
+    }
+
+    public boolean isPublic() {
+        return isPublic;
+    }
+
+    public boolean isMustRevalidate() {
+        return mustRevalidate;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public long getSMaxAge() {
+        return sMaxAge;
+    }
+
+    /**
+     * @return seconds a stale response may be served while it is revalidated, 0 if not allowed
+     */
+    public long getStaleWhileRevalidate() {
+        return (mustRevalidate || staleWhileRevalidate < 0) ? 0 : staleWhileRevalidate;
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void parsesDirectives() {
+            CacheControl cc = parse("public, max-age=60, s-maxage=\"120\", stale-while-revalidate=30");
+            assertTrue(cc.isPublic());
+            assertFalse(cc.isNoStore());
+            assertEquals(60, cc.getMaxAge());
+            assertEquals(120, cc.getSMaxAge());
+            assertEquals(30, cc.getStaleWhileRevalidate());
+            assertEquals(120000, cc.freshnessLifetime(null, null, 0));
+
+            cc = parse("Private, No-Store, max-age=bad");
+            assertTrue(cc.isPrivate());
+            assertTrue(cc.isNoStore());
+            assertEquals(-1, cc.getMaxAge());
+        }
+
+        @Test
+        public void mustRevalidateDisallowsStale() {
+            assertEquals(0, parse("max-age=10, must-revalidate, stale-while-revalidate=30").getStaleWhileRevalidate());
+        }
+
+        @Test
+        public void usesExpiresWithoutMaxAge() {
+            CacheControl cc = parse(null);
+            assertEquals(30000, cc.freshnessLifetime("Thu, 01 Jan 2015 00:00:30 GMT", "Thu, 01 Jan 2015 00:00:00 GMT", 0));
+            assertEquals(0, cc.freshnessLifetime("0", null, 0));
+            assertEquals(0, cc.freshnessLifetime(null, null, 0));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.zuul.constants.ZuulHeaders;
+import com.netflix.zuul.context.RequestContext;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+/**
+ * Builds response cache keys.
+ * The primary key is the method, the route (route host or route VIP), the request URI and the query string with its
+ * parameters sorted. When the origin answers with Vary, the variant key adds the values of the varying request headers.
+ */
+public class CacheKey {
+
+    /**
+     * @param context
+     * @return the primary cache key for the current request, or null if the request has no route yet
+     */
+    public static String primary(RequestContext context) {
+        HttpServletRequest request = context.getRequest();
+        URL routeHost = context.getRouteHost();
+        Object route = (routeHost != null) ? routeHost : context.get("routeVIP");
+        if (route == null) return null;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(request.getMethod()).append(' ').append(route).append(request.getRequestURI());
+        String query = normalizeQuery(request.getQueryString());
+        if (query.length() > 0) sb.append('?').append(query);
+        return sb.toString();
+    }
+
+    /**
+     * @param primary the primary key
+     * @param vary    names of the request headers the origin varies on; may be null or empty
+     * @param request
+     * @return the key of the variant of primary that matches request
+     */
+    public static String variant(String primary, List<String> vary, HttpServletRequest request) {
+        if (vary == null || vary.isEmpty()) return primary;
+        StringBuilder sb = new StringBuilder(primary);
+        for (String name : vary) {
+            String value = request.getHeader(name);
+            sb.append('|').append(name).append('=').append(value == null ? "" : value.trim());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * parses a Vary header into the lower cased names to key on.
+     * Accept-Encoding is left out: route filters always ask the origin for gzip and the send filter transcodes per
+     * client, so one stored variant serves every Accept-Encoding.
+     *
+     * @param vary Vary header value, may be null
+     * @return header names, or null if the response varies on "*" and can't be cached
+     */
+    public static List<String> parseVary(String vary) {
+        if (vary == null) return Collections.emptyList();
+        List<String> names = new ArrayList<String>();
+        for (String name : vary.split(",")) {
+            name = name.trim().toLowerCase();
+            if (name.equals("*")) return null;
+            if (name.length() == 0 || name.equals(ZuulHeaders.ACCEPT_ENCODING) || names.contains(name)) continue;
+            names.add(name);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    static String normalizeQuery(String query) {
+        if (query == null || query.length() == 0) return "";
+        String[] params = query.split("&");
+        Arrays.sort(params);
+        StringBuilder sb = new StringBuilder(query.length());
+        for (String param : params) {
+            if (param.length() == 0) continue;
+            if (sb.length() > 0) sb.append('&');
+            sb.append(param);
+        }
+        return sb.toString();
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class UnitTest {
+
+        @Mock
+        HttpServletRequest request;
+
+        @Test
+        public void primaryKeySortsQuery() throws Exception {
+            RequestContext context = new RequestContext();
+            context.setRequest(request);
+            context.setRouteHost(new URL("http://origin"));
+            when(request.getMethod()).thenReturn("GET");
+            when(request.getRequestURI()).thenReturn("/a");
+            when(request.getQueryString()).thenReturn("b=2&a=1&&c");
+
+            assertEquals("GET http://origin/a?a=1&b=2&c", primary(context));
+        }
+
+        @Test
+        public void variantKeyUsesVaryHeaders() {
+            when(request.getHeader("accept-language")).thenReturn("en");
+            List<String> vary = parseVary("Accept-Encoding, Accept-Language");
+            assertEquals(Arrays.asList("accept-language"), vary);
+            String en = variant("GET /a", vary, request);
+
+            when(request.getHeader("accept-language")).thenReturn("fr");
+            assertFalse(en.equals(variant("GET /a", vary, request)));
+            assertEquals("GET /a", variant("GET /a", parseVary("accept-encoding"), request));
+            assertNull(parseVary("Accept-Language, *"));
+        }
+    }
+}
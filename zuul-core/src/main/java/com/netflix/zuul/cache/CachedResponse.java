@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.util.Pair;
+import com.netflix.zuul.stream.ByteBufferInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A response held in the ResponseCache: status, headers and the body bytes as received from the origin.
+ * Responses held by the MappedResponseStore keep their body in a region of a memory-mapped segment file instead of
+ * a heap array.
+ * An entry is fresh until its freshness lifetime runs out, then may still be served stale for its
+ * stale-while-revalidate window while one request at a time is let through to the origin to refresh it.
+ */
+public class CachedResponse {
+
+    private final int status;
+    private final List<Pair<String, String>> headers;
+    private final byte[] body;
+    private final ByteBuffer mappedBody;
+    private final boolean gzipped;
+    private final long storedAt;
+    private final long freshUntil;
+    private final long staleUntil;
+    private final AtomicLong revalidatingSince = new AtomicLong();
+
+    /**
+     * @param status        origin status code
+     * @param headers       response headers to send to clients
+     * @param body          body bytes as received from the origin
+     * @param gzipped       true if body is gzip encoded
+     * @param storedAt      time the response was received, in milliseconds
+     * @param freshFor      freshness lifetime in milliseconds
+     * @param staleFor      how long after going stale it may still be served while revalidating, in milliseconds
+     */
+    public CachedResponse(int status, List<Pair<String, String>> headers, byte[] body, boolean gzipped,
+                          long storedAt, long freshFor, long staleFor) {
+        this(status, headers, body, null, gzipped, storedAt, freshFor, staleFor);
+    }
+
+    /**
+     * @param mappedBody region of a mapped segment holding the body, between its position and limit
+     */
+    public CachedResponse(int status, List<Pair<String, String>> headers, ByteBuffer mappedBody, boolean gzipped,
+                          long storedAt, long freshFor, long staleFor) {
+        this(status, headers, null, mappedBody.asReadOnlyBuffer(), gzipped, storedAt, freshFor, staleFor);
+    }
+
+    private CachedResponse(int status, List<Pair<String, String>> headers, byte[] body, ByteBuffer mappedBody,
+                           boolean gzipped, long storedAt, long freshFor, long staleFor) {
+        this.status = status;
+        this.headers = Collections.unmodifiableList(new ArrayList<Pair<String, String>>(headers));
+        this.body = body;
+        this.mappedBody = mappedBody;
+        this.gzipped = gzipped;
+        this.storedAt = storedAt;
+        this.freshUntil = storedAt + freshFor;
+        this.staleUntil = freshUntil + staleFor;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public List<Pair<String, String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the body bytes, or null if the body is held in a mapped segment
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getBodyLength() {
+        return (body != null) ? body.length : mappedBody.remaining();
+    }
+
+    /**
+     * @return a new stream over the body. A mapped body is read straight from the mapped region.
+     */
+    public InputStream openBody() {
+        return (body != null) ? new ByteArrayInputStream(body) : new ByteBufferInputStream(mappedBody);
+    }
+
+    public boolean isGzipped() {
+        return gzipped;
+    }
+
+    public long getStoredAt() {
+        return storedAt;
+    }
+
+    /**
+     * @return a copy of this response with its body at another mapped region, used when the body is moved
+     */
+    CachedResponse withMappedBody(ByteBuffer region) {
+        return new CachedResponse(status, headers, null, region.asReadOnlyBuffer(), gzipped, storedAt,
+                freshUntil - storedAt, staleUntil - freshUntil);
+    }
+
+    public boolean isFresh(long now) {
+        return now < freshUntil;
+    }
+
+    /**
+     * @return true if the response is fresh or within its stale-while-revalidate window
+     */
+    public boolean isServable(long now) {
+        return now < staleUntil;
+    }
+
+    /**
+     * @return the Age of the response in seconds
+     */
+    public long age(long now) {
+        return Math.max(0, (now - storedAt) / 1000);
+    }
+
+    /**
+     * claims the revalidation of a stale response. Only one caller gets it per lease period; others keep being
+     * served the stale response.
+     *
+     * @param now
+     * @param leaseMillis how long a claim holds before another request may try, in case the revalidation fails
+     * @return true if the caller should revalidate with the origin
+     */
+    public boolean tryRevalidate(long now, long leaseMillis) {
+        long since = revalidatingSince.get();
+        if (since != 0 && now - since < leaseMillis) return false;
+        return revalidatingSince.compareAndSet(since, now);
+    }
+
+    /**
+     * @return approximate number of heap bytes the entry holds
+     */
+    public int weight() {
+        int weight = ((body != null) ? body.length : 0) + 64;
+        for (Pair<String, String> header : headers) {
+            weight += 32 + 2 * (header.first().length() + (header.second() == null ? 0 : header.second().length()));
+        }
+        return weight;
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void freshThenStaleThenExpired() {
+            CachedResponse response = new CachedResponse(200, new ArrayList<Pair<String, String>>(), new byte[10], false, 1000, 5000, 2000);
+            assertTrue(response.isFresh(5999));
+            assertFalse(response.isFresh(6000));
+            assertTrue(response.isServable(7999));
+            assertFalse(response.isServable(8000));
+            assertEquals(4, response.age(5999));
+        }
+
+        @Test
+        public void oneRevalidationPerLease() {
+            CachedResponse response = new CachedResponse(200, new ArrayList<Pair<String, String>>(), new byte[0], false, 0, 0, 10000);
+            assertTrue(response.tryRevalidate(100, 1000));
+            assertFalse(response.tryRevalidate(200, 1000));
+            assertTrue(response.tryRevalidate(1100, 1000));
+        }
+
+        @Test
+        public void opensMappedBody() throws Exception {
+            ByteBuffer region = ByteBuffer.wrap("xxbodyxx".getBytes());
+            region.position(2).limit(6);
+            CachedResponse response = new CachedResponse(200, new ArrayList<Pair<String, String>>(), region, false, 0, 1000, 0);
+            assertEquals(4, response.getBodyLength());
+            assertEquals(64, response.weight());
+
+            byte[] b = new byte[8];
+            assertEquals(4, response.openBody().read(b));
+            assertEquals(4, response.openBody().read(b));
+            assertEquals("body", new String(b, 0, 4));
+        }
+    }
+}
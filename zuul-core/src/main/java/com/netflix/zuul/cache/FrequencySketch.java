@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Count-min sketch of 4 bit counters estimating how often keys were requested, used by the ResponseCache to decide
+ * whether a new entry is worth evicting an existing one (TinyLFU admission). Each key has a counter in 4 rows of the
+ * table; its frequency is the smallest of them. After 10 increments per counter on average, all counters are halved
+ * so the estimate follows recent popularity.
+ */
+class FrequencySketch {
+
+    private static final long[] SEED = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param counters approximate number of distinct keys to track
+     */
+    FrequencySketch(int counters) {
+        int length = Integer.highestOneBit(Math.max(counters, 64) - 1) << 1;
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+    }
+
+    /**
+     * @return the estimated number of times key was incremented, at most 15
+     */
+    synchronized int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    synchronized void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) reset();
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void countsAndSaturates() {
+            FrequencySketch sketch = new FrequencySketch(512);
+            assertEquals(0, sketch.frequency("a"));
+            for (int i = 0; i < 3; i++) sketch.increment("a");
+            assertEquals(3, sketch.frequency("a"));
+            for (int i = 0; i < 30; i++) sketch.increment("a");
+            assertEquals(15, sketch.frequency("a"));
+        }
+
+        @Test
+        public void agesCounters() {
+            FrequencySketch sketch = new FrequencySketch(64);
+            for (int i = 0; i < 8; i++) sketch.increment("hot");
+            for (int i = 0; i < 10 * 64; i++) sketch.increment("k" + i);
+            assertTrue(sketch.frequency("hot") < 8);
+        }
+    }
+}
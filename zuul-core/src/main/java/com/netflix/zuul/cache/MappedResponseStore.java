@@ -0,0 +1,507 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.annotations.Monitor;
+import com.netflix.servo.monitor.Monitors;
+import com.netflix.util.Pair;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.monitoring.CounterFactory;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Disk tier of the response cache for bodies too large to keep on the heap.
+ * <p/>
+ * Bodies are appended to segment files that are memory-mapped when created; only the index, the status and the
+ * headers are kept on the heap. Cached bodies are served straight from the mapped regions, so they are neither copied
+ * into the heap nor seen by the garbage collector. When the store grows beyond zuul.cache.disk.max-bytes the oldest
+ * segment is dropped with all its entries. A background thread removes expired entries and compacts segments that
+ * are mostly dead by copying their live bodies to the current segment and deleting the file.
+ * <p/>
+ * The index is not persisted; segment files left by a previous run are deleted on startup.
+ * Disabled unless zuul.cache.disk.enabled is true.
+ */
+public class MappedResponseStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedResponseStore.class);
+
+    static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_CACHE_DISK_ENABLED, false);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    // segments with less than this share of live bytes are compacted
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static MappedResponseStore INSTANCE;
+
+    static final class Segment {
+        final long id;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer map;
+        int writeOffset;
+        long liveBytes;
+        boolean closed;
+
+        Segment(long id, File file, int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(capacity);
+                this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                raf.close();
+                file.delete();
+                throw e;
+            }
+        }
+
+        int capacity() {
+            return map.capacity();
+        }
+
+        ByteBuffer region(int offset, int length) {
+            ByteBuffer region = map.duplicate();
+            region.limit(offset + length).position(offset);
+            return region.slice();
+        }
+
+        /**
+         * closes and deletes the file. Regions handed out earlier stay readable until they are garbage collected,
+         * since the mapping outlives the file.
+         */
+        void close() {
+            closed = true;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.warn("unable to close " + file, e);
+            }
+            if (!file.delete()) LOG.warn("unable to delete " + file);
+        }
+    }
+
+    static final class Entry {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final CachedResponse response;
+
+        Entry(Segment segment, int offset, int length, CachedResponse response) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.response = response;
+        }
+    }
+
+    /**
+     * space reserved in a segment for one body. The body is written as it streams from the origin and becomes visible
+     * on commit. A writer that is never committed leaves dead bytes for compaction to reclaim.
+     */
+    public final class Writer {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final ByteBuffer target;
+
+        Writer(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.target = segment.region(offset, length);
+        }
+
+        /**
+         * @return false if the bytes do not fit in the reserved space
+         */
+        public boolean write(byte[] b, int off, int len) {
+            if (len > target.remaining()) return false;
+            target.put(b, off, len);
+            return true;
+        }
+
+        /**
+         * @return true once all the reserved bytes are written
+         */
+        public boolean isComplete() {
+            return !target.hasRemaining();
+        }
+
+        /**
+         * @return the mapped region holding the body
+         */
+        public ByteBuffer body() {
+            return segment.region(offset, length);
+        }
+
+        /**
+         * stores response under key. response should hold body() as its body.
+         */
+        public void commit(String key, CachedResponse response) {
+            if (!isComplete()) return;
+            MappedResponseStore.this.commit(key, new Entry(segment, offset, length, response));
+        }
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment active;
+    private long nextSegmentId;
+
+    private Thread compactor;
+    private volatile boolean running = true;
+
+    /**
+     * @param dir          directory for the segment files
+     * @param segmentBytes size of each segment file, which is also the largest body that can be stored
+     * @param maxBytes     total size of the segment files
+     */
+    public MappedResponseStore(File dir, int segmentBytes, long maxBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IllegalArgumentException("unable to create " + dir);
+        File[] stale = dir.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the shared MappedResponseStore, or null if zuul.cache.disk.enabled is false
+     */
+    public static MappedResponseStore getInstanceIfEnabled() {
+        return ENABLED.get() ? getInstance() : null;
+    }
+
+    /**
+     * @return the shared MappedResponseStore, configured by the zuul.cache.disk properties
+     */
+    public static synchronized MappedResponseStore getInstance() {
+        if (INSTANCE == null) {
+            DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+            String dir = properties.getStringProperty(ZuulConstants.ZUUL_CACHE_DISK_DIR,
+                    new File(System.getProperty("java.io.tmpdir"), "zuul-cache").getPath()).get();
+            INSTANCE = new MappedResponseStore(new File(dir),
+                    properties.getIntProperty(ZuulConstants.ZUUL_CACHE_DISK_SEGMENT_BYTES, 64 * 1024 * 1024).get(),
+                    properties.getLongProperty(ZuulConstants.ZUUL_CACHE_DISK_MAX_BYTES, 4L * 1024 * 1024 * 1024).get());
+            INSTANCE.startCompactor(properties.getLongProperty(ZuulConstants.ZUUL_CACHE_DISK_COMPACTION_INTERVAL_MILLIS, 30000).get());
+            try {
+                Monitors.registerObject("zuul.mappedResponseStore", INSTANCE);
+            } catch (Throwable t) {
+                LOG.warn("unable to register mapped response store monitors", t);
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @param key
+     * @param now current time in milliseconds
+     * @return the stored response if it is fresh or may be served stale, else null
+     */
+    public CachedResponse get(String key, long now) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            count("ZUUL::CACHE:DISK_MISS");
+            return null;
+        }
+        if (!entry.response.isServable(now)) {
+            remove(key, entry);
+            count("ZUUL::CACHE:DISK_MISS");
+            return null;
+        }
+        count(entry.response.isFresh(now) ? "ZUUL::CACHE:DISK_HIT" : "ZUUL::CACHE:DISK_STALE_HIT");
+        return entry.response;
+    }
+
+    /**
+     * reserves space for a body of length bytes
+     *
+     * @return a Writer for the body, or null if it can't be stored
+     */
+    public synchronized Writer begin(int length) {
+        if (length <= 0 || length > segmentBytes || !running) return null;
+        try {
+            if (active == null || active.capacity() - active.writeOffset < length) roll();
+        } catch (IOException e) {
+            LOG.warn("unable to create a cache segment in " + dir, e);
+            return null;
+        }
+        Writer writer = new Writer(active, active.writeOffset, length);
+        active.writeOffset += length;
+        return writer;
+    }
+
+    public synchronized void invalidate(String key) {
+        Entry entry = index.remove(key);
+        if (entry != null) entry.segment.liveBytes -= entry.length;
+    }
+
+    private synchronized void commit(String key, Entry entry) {
+        // the segment was dropped while the body was written
+        if (entry.segment.closed) return;
+        entry.segment.liveBytes += entry.length;
+        Entry old = index.put(key, entry);
+        if (old != null) old.segment.liveBytes -= old.length;
+        count("ZUUL::CACHE:DISK_STORE");
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (index.remove(key, entry)) entry.segment.liveBytes -= entry.length;
+    }
+
+    private void roll() throws IOException {
+        long id = nextSegmentId++;
+        active = new Segment(id, new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX), segmentBytes);
+        segments.add(active);
+        while (segments.size() > maxSegments) {
+            drop(segments.get(0));
+            count("ZUUL::CACHE:DISK_EVICTION");
+        }
+    }
+
+    private void drop(Segment segment) {
+        if (!segments.remove(segment)) return;
+        for (Map.Entry<String, Entry> e : index.entrySet()) {
+            if (e.getValue().segment == segment) index.remove(e.getKey(), e.getValue());
+        }
+        segment.close();
+    }
+
+    /**
+     * removes expired entries, then compacts segments other than the current one whose live bytes fell below half
+     * of their written bytes
+     *
+     * @param now current time in milliseconds
+     */
+    public void compact(long now) {
+        for (Map.Entry<String, Entry> e : index.entrySet()) {
+            if (!e.getValue().response.isServable(now)) remove(e.getKey(), e.getValue());
+        }
+
+        List<Segment> candidates = new ArrayList<Segment>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment != active && segment.liveBytes < segment.writeOffset * COMPACTION_THRESHOLD) {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        for (Segment segment : candidates) {
+            for (Map.Entry<String, Entry> e : index.entrySet()) {
+                Entry entry = e.getValue();
+                if (entry.segment == segment) move(e.getKey(), entry);
+            }
+            synchronized (this) {
+                drop(segment);
+            }
+            count("ZUUL::CACHE:DISK_COMPACTION");
+        }
+    }
+
+    private void move(String key, Entry entry) {
+        Writer writer = begin(entry.length);
+        if (writer == null) return;
+        writer.target.put(entry.segment.region(entry.offset, entry.length));
+        Entry moved = new Entry(writer.segment, writer.offset, writer.length, entry.response.withMappedBody(writer.body()));
+        synchronized (this) {
+            if (entry.segment.closed || moved.segment.closed || !index.replace(key, entry, moved)) return;
+            entry.segment.liveBytes -= entry.length;
+            moved.segment.liveBytes += moved.length;
+        }
+    }
+
+    void startCompactor(final long intervalMillis) {
+        compactor = new Thread("MappedResponseStoreCompactor") {
+            public void run() {
+                while (running) {
+                    try {
+                        sleep(intervalMillis);
+                        compact(System.currentTimeMillis());
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Throwable t) {
+                        LOG.error("response store compaction failed", t);
+                    }
+                }
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * stops the compactor and deletes all segment files
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (compactor != null) compactor.interrupt();
+        index.clear();
+        for (Segment segment : segments) segment.close();
+        segments.clear();
+        active = null;
+    }
+
+    @Monitor(name = "entries", type = DataSourceType.GAUGE)
+    public int getEntries() {
+        return index.size();
+    }
+
+    @Monitor(name = "segments", type = DataSourceType.GAUGE)
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    @Monitor(name = "liveBytes", type = DataSourceType.GAUGE)
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for (Segment segment : segments) live += segment.liveBytes;
+        return live;
+    }
+
+    private static void count(String name) {
+        CounterFactory.instance().increment(name);
+    }
+
+    public static class UnitTest {
+
+        File dir;
+        MappedResponseStore store;
+
+        @Before
+        public void before() throws IOException {
+            MonitoringHelper.initMocks();
+            dir = File.createTempFile("zuul-cache", "");
+            dir.delete();
+            store = new MappedResponseStore(dir, 1000, 3000);
+        }
+
+        @After
+        public void after() {
+            store.shutdown();
+            dir.delete();
+        }
+
+        static byte[] body(int size, char c) {
+            byte[] body = new byte[size];
+            Arrays.fill(body, (byte) c);
+            return body;
+        }
+
+        void put(String key, byte[] body, long freshFor) {
+            Writer writer = store.begin(body.length);
+            assertTrue(writer.write(body, 0, body.length));
+            writer.commit(key, new CachedResponse(200, new ArrayList<Pair<String, String>>(), writer.body(), false, 0, freshFor, 0));
+        }
+
+        static String read(CachedResponse response) throws IOException {
+            InputStream in = response.openBody();
+            byte[] b = new byte[response.getBodyLength()];
+            int n = 0;
+            while (n < b.length) n += in.read(b, n, b.length - n);
+            return new String(b);
+        }
+
+        @Test
+        public void storesAndServesFromMappedSegment() throws IOException {
+            put("a", "hello".getBytes(), 60000);
+            CachedResponse response = store.get("a", 1000);
+            assertNotNull(response);
+            assertNull(response.getBody());
+            assertEquals("hello", read(response));
+            assertNull(store.get("a", 60000));
+            assertEquals(0, store.getLiveBytes());
+        }
+
+        @Test
+        public void incompleteBodyIsNotStored() {
+            Writer writer = store.begin(10);
+            writer.write(new byte[5], 0, 5);
+            writer.commit("a", new CachedResponse(200, new ArrayList<Pair<String, String>>(), writer.body(), false, 0, 60000, 0));
+            assertFalse(writer.write(new byte[6], 0, 6));
+            assertNull(store.get("a", 0));
+            assertNull(store.begin(1001));
+        }
+
+        @Test
+        public void dropsOldestSegmentWhenFull() {
+            put("a", body(600, 'a'), 60000);
+            put("b", body(600, 'b'), 60000);
+            put("c", body(600, 'c'), 60000);
+            put("d", body(600, 'd'), 60000);
+            assertEquals(3, store.getSegments());
+            assertNull(store.get("a", 0));
+            assertNotNull(store.get("d", 0));
+            assertEquals(3, dir.listFiles().length);
+        }
+
+        @Test
+        public void compactionMovesLiveBodies() throws IOException {
+            put("a", body(300, 'a'), 60000);
+            put("b", body(300, 'b'), 1000);
+            put("c", body(300, 'c'), 1000);
+            put("d", body(600, 'd'), 60000);
+            assertEquals(2, store.getSegments());
+
+            store.compact(5000);
+            assertEquals(1, store.getSegments());
+            assertEquals(1, dir.listFiles().length);
+            assertEquals(900, store.getLiveBytes());
+            assertNull(store.get("b", 5000));
+            assertEquals(new String(body(300, 'a')), read(store.get("a", 5000)));
+            assertEquals(new String(body(600, 'd')), read(store.get("d", 5000)));
+        }
+    }
+}
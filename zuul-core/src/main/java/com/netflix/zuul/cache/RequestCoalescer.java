@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.util.Pair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tracks origin requests in flight by cache key so identical requests can wait for one of them (the leader) instead
+ * of all going to the origin. The leader publishes a replayable copy of its response, or nothing if the response
+ * can't be shared; waiting requests then go to the origin themselves.
+ */
+public class RequestCoalescer {
+
+    private static final RequestCoalescer INSTANCE = new RequestCoalescer();
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * an origin request in flight
+     */
+    public final class Flight {
+        private final String key;
+        private final long startedAt;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String responseKey;
+        private volatile CachedResponse response;
+
+        Flight(String key, long startedAt) {
+            this.key = key;
+            this.startedAt = startedAt;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * publishes the leader's response and releases the waiting requests
+         *
+         * @param responseKey cache key of the response, taking the Vary headers of the response into account
+         * @param response    the response, or null if it can't be shared
+         */
+        public void complete(String responseKey, CachedResponse response) {
+            if (done.getCount() == 0) return;
+            this.responseKey = responseKey;
+            this.response = response;
+            flights.remove(key, this);
+            done.countDown();
+        }
+
+        /**
+         * waits for the leader's response
+         *
+         * @return the response, or null if it can't be shared or was not published within timeoutMillis
+         */
+        public CachedResponse await(long timeoutMillis) {
+            try {
+                if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return response;
+        }
+
+        /**
+         * @return the cache key of the published response; a waiting request may only use the response if its own
+         *         key under the response's Vary headers is the same
+         */
+        public String getResponseKey() {
+            return responseKey;
+        }
+    }
+
+    public static RequestCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * makes the caller the leader for key unless a request for key is already in flight. A flight older than
+     * abandonAfterMillis is taken over, in case its leader never completed it.
+     *
+     * @param key
+     * @param now                current time in milliseconds
+     * @param abandonAfterMillis
+     * @return the new Flight if the caller is the leader, or null if it should wait for the flight in progress
+     */
+    public Flight tryLead(String key, long now, long abandonAfterMillis) {
+        Flight flight = new Flight(key, now);
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) return flight;
+        if (now - existing.startedAt >= abandonAfterMillis && flights.replace(key, existing, flight)) {
+            existing.complete(null, null);
+            return flight;
+        }
+        return null;
+    }
+
+    /**
+     * @return the flight in progress for key, or null
+     */
+    public Flight get(String key) {
+        return flights.get(key);
+    }
+
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    public static class UnitTest {
+
+        static CachedResponse response() {
+            return new CachedResponse(200, new ArrayList<Pair<String, String>>(), "body".getBytes(), false, 0, 0, 0);
+        }
+
+        @Test
+        public void followersGetLeadersResponse() {
+            RequestCoalescer coalescer = new RequestCoalescer();
+            Flight leader = coalescer.tryLead("k", 0, 1000);
+            assertNotNull(leader);
+            assertNull(coalescer.tryLead("k", 10, 1000));
+
+            Flight followed = coalescer.get("k");
+            assertSame(leader, followed);
+            CachedResponse response = response();
+            leader.complete("k", response);
+            assertSame(response, followed.await(10));
+            assertEquals("k", followed.getResponseKey());
+            assertEquals(0, coalescer.getInFlight());
+        }
+
+        @Test
+        public void waitIsBounded() {
+            RequestCoalescer coalescer = new RequestCoalescer();
+            Flight leader = coalescer.tryLead("k", 0, 1000);
+            assertNull(leader.await(10));
+        }
+
+        @Test
+        public void abandonedFlightIsTakenOver() {
+            RequestCoalescer coalescer = new RequestCoalescer();
+            Flight first = coalescer.tryLead("k", 0, 1000);
+            Flight second = coalescer.tryLead("k", 1000, 1000);
+            assertNotNull(second);
+            assertNull(first.await(0));
+            assertSame(second, coalescer.get("k"));
+        }
+    }
+}
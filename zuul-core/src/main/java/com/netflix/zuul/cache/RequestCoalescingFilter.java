@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.util.Pair;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.monitoring.CounterFactory;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * "pre" filter that coalesces identical GET requests to the origin. Requests are identical if they have the same
+ * cache key: method, route, URI, sorted query and the request headers the origin's responses vary on.
+ * <p/>
+ * The first request for a key becomes the leader and goes to the origin. Requests arriving while it is in flight
+ * wait up to zuul.coalesce.wait-millis for the RequestCoalescingPublishFilter to publish the leader's response, and
+ * are then served a copy of it as if it came from the cache. If the response can't be stored by a shared cache (see
+ * RequestCoalescingPublishFilter), is larger than zuul.coalesce.max-body-bytes, or the wait times out, they go to the
+ * origin themselves.
+ * <p/>
+ * Runs after the ResponseCacheLookupFilter, so only cache misses are coalesced. Requests with Authorization or Cookie
+ * are not coalesced, as the origin may answer them for their user only. Disabled unless zuul.coalesce.enabled is true.
+ */
+public class RequestCoalescingFilter extends ZuulFilter {
+
+    /**
+     * RequestContext key holding the RequestCoalescer.Flight of a leader request
+     */
+    public static final String FLIGHT_KEY = "coalescedFlight";
+
+    static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_COALESCE_ENABLED, false);
+    static final DynamicLongProperty WAIT_MILLIS =
+            DynamicPropertyFactory.getInstance().getLongProperty(ZuulConstants.ZUUL_COALESCE_WAIT_MILLIS, 3000);
+
+    private final ResponseCache cache;
+    private final RequestCoalescer coalescer;
+
+    public RequestCoalescingFilter() {
+        this(ResponseCache.getInstance(), RequestCoalescer.getInstance());
+    }
+
+    public RequestCoalescingFilter(ResponseCache cache, RequestCoalescer coalescer) {
+        this.cache = cache;
+        this.coalescer = coalescer;
+    }
+
+    @Override
+    public String filterType() {
+        return "pre";
+    }
+
+    @Override
+    public int filterOrder() {
+        return 1001;
+    }
+
+    @Override
+    public boolean shouldFilter() {
+        return ENABLED.get() && isCoalescable(RequestContext.getCurrentContext());
+    }
+
+    /**
+     * @return true for a GET going to the origin without credentials
+     */
+    static boolean isCoalescable(RequestContext context) {
+        HttpServletRequest request = context.getRequest();
+        return context.sendZuulResponse()
+                && !context.isResponseFromCache()
+                && "GET".equalsIgnoreCase(request.getMethod())
+                && request.getHeader("Authorization") == null
+                && request.getHeader("Cookie") == null;
+    }
+
+    @Override
+    public Object run() {
+        RequestContext context = RequestContext.getCurrentContext();
+        HttpServletRequest request = context.getRequest();
+
+        String primaryKey = CacheKey.primary(context);
+        if (primaryKey == null) return null;
+        String key = CacheKey.variant(primaryKey, cache.getVary(primaryKey), request);
+
+        long waitMillis = WAIT_MILLIS.get();
+        RequestCoalescer.Flight flight = coalescer.tryLead(key, System.currentTimeMillis(), waitMillis);
+        if (flight != null) {
+            context.set(FLIGHT_KEY, flight);
+            CounterFactory.instance().increment("ZUUL::COALESCE:LEADER");
+            return null;
+        }
+
+        flight = coalescer.get(key);
+        if (flight == null) return null;
+        CachedResponse response = flight.await(waitMillis);
+        if (response == null) {
+            CounterFactory.instance().increment("ZUUL::COALESCE:FALLBACK");
+            return null;
+        }
+        // the origin's response varies on headers this request may not share with the leader's
+        List<String> vary = cache.getVary(primaryKey);
+        if (!CacheKey.variant(primaryKey, vary, request).equals(flight.getResponseKey())) {
+            CounterFactory.instance().increment("ZUUL::COALESCE:FALLBACK");
+            return null;
+        }
+
+        ResponseCacheLookupFilter.serve(context, response, System.currentTimeMillis(), "COALESCED");
+        CounterFactory.instance().increment("ZUUL::COALESCE:FOLLOWER");
+        return null;
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class UnitTest {
+
+        @Mock
+        HttpServletRequest request;
+        @Mock
+        HttpServletResponse response;
+
+        ResponseCache cache;
+        RequestCoalescer coalescer;
+
+        @Before
+        public void before() throws Exception {
+            MonitoringHelper.initMocks();
+            when(request.getMethod()).thenReturn("GET");
+            when(request.getRequestURI()).thenReturn("/a");
+            cache = new ResponseCache(1 << 20);
+            coalescer = new RequestCoalescer();
+        }
+
+        private RequestContext newContext() throws Exception {
+            RequestContext context = new RequestContext();
+            context.setRequest(request);
+            context.setResponse(response);
+            context.setRouteHost(new URL("http://origin"));
+            RequestContext.testSetCurrentContext(context);
+            return context;
+        }
+
+        private static byte[] drain(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+
+        @Test
+        public void followerIsServedLeadersResponse() throws Exception {
+            final byte[] body = "origin body".getBytes();
+            RequestContext leader = newContext();
+            new RequestCoalescingFilter(cache, coalescer).run();
+            assertNotNull(leader.get(FLIGHT_KEY));
+
+            final AtomicReference<RequestContext> follower = new AtomicReference<RequestContext>();
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        follower.set(newContext());
+                        new RequestCoalescingFilter(cache, coalescer).run();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            thread.start();
+            while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(5);
+            }
+
+            RequestContext.testSetCurrentContext(leader);
+            leader.setResponseStatusCode(200);
+            leader.addOriginResponseHeader("Content-Type", "text/plain");
+            leader.addOriginResponseHeader("Cache-Control", "max-age=60");
+            leader.addZuulResponseHeader("Content-Type", "text/plain");
+            leader.setResponseDataStream(new ByteArrayInputStream(body));
+            new RequestCoalescingPublishFilter(cache).run();
+            assertArrayEquals(body, drain(leader.getResponseDataStream()));
+            thread.join(1000);
+
+            RequestContext served = follower.get();
+            assertTrue(served.isResponseFromCache());
+            assertEquals(200, served.getResponseStatusCode());
+            assertTrue(served.getZuulResponseHeaders().contains(new Pair<String, String>("X-Zuul-Cache", "COALESCED")));
+            assertArrayEquals(body, drain(served.getResponseDataStream()));
+            assertEquals(0, coalescer.getInFlight());
+        }
+
+        @Test
+        public void followerFallsBackWhenResponseIsNotShareable() throws Exception {
+            RequestContext leader = newContext();
+            new RequestCoalescingFilter(cache, coalescer).run();
+            RequestCoalescer.Flight flight = (RequestCoalescer.Flight) leader.get(FLIGHT_KEY);
+
+            leader.setResponseStatusCode(200);
+            leader.addOriginResponseHeader("Set-Cookie", "a=b");
+            leader.setResponseDataStream(new ByteArrayInputStream("x".getBytes()));
+            new RequestCoalescingPublishFilter(cache).run();
+
+            assertEquals(null, flight.await(0));
+            RequestContext follower = newContext();
+            new RequestCoalescingFilter(cache, coalescer).run();
+            assertFalse(follower.isResponseFromCache());
+            assertNotNull(follower.get(FLIGHT_KEY));
+        }
+
+        @Test
+        public void followerFallsBackWhenResponseHasNoFreshnessLifetime() throws Exception {
+            for (String cacheControl : new String[]{null, "no-cache, max-age=60"}) {
+                coalescer = new RequestCoalescer();
+                RequestContext leader = newContext();
+                new RequestCoalescingFilter(cache, coalescer).run();
+                RequestCoalescer.Flight flight = (RequestCoalescer.Flight) leader.get(FLIGHT_KEY);
+
+                leader.setResponseStatusCode(200);
+                if (cacheControl != null) leader.addOriginResponseHeader("Cache-Control", cacheControl);
+                leader.setResponseDataStream(new ByteArrayInputStream("x".getBytes()));
+                new RequestCoalescingPublishFilter(cache).run();
+
+                assertNull(flight.await(0));
+            }
+        }
+
+        @Test
+        public void requestsWithDifferentCookiesGoToTheOriginThemselves() throws Exception {
+            RequestCoalescingFilter filter = new RequestCoalescingFilter(cache, coalescer);
+            when(request.getHeader("Cookie")).thenReturn("session=1");
+            RequestContext leader = newContext();
+            if (isCoalescable(leader)) filter.run();
+
+            // the origin answers the leader for its user, without Cache-Control
+            leader.setResponseStatusCode(200);
+            leader.addZuulResponseHeader("Content-Type", "text/plain");
+            leader.setResponseDataStream(new ByteArrayInputStream("account of session 1".getBytes()));
+            RequestCoalescingPublishFilter publish = new RequestCoalescingPublishFilter(cache);
+            if (publish.shouldFilter()) publish.run();
+
+            HttpServletRequest other = mock(HttpServletRequest.class);
+            when(other.getMethod()).thenReturn("GET");
+            when(other.getRequestURI()).thenReturn("/a");
+            when(other.getHeader("Cookie")).thenReturn("session=2");
+            RequestContext follower = newContext();
+            follower.setRequest(other);
+            if (isCoalescable(follower)) filter.run();
+
+            assertNull(leader.get(FLIGHT_KEY));
+            assertFalse(follower.isResponseFromCache());
+            assertNull(follower.getResponseDataStream());
+            assertEquals(0, coalescer.getInFlight());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.util.Pair;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.context.RequestContext;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.netflix.zuul.cache.ResponseCacheStoreFilter.header;
+
+/**
+ * "post" filter completing the flight of a request that led a coalesced group (see RequestCoalescingFilter). The
+ * leader's body is captured while it streams to its client and published to the waiting requests once complete.
+ * Only responses a shared cache may store are published: not private, no-store or no-cache, without Set-Cookie, and
+ * with an explicit freshness lifetime. If the response can't be shared or the body is larger than
+ * zuul.coalesce.max-body-bytes, the flight is completed without a response right away so the waiting requests go to
+ * the origin.
+ * <p/>
+ * Runs before the ResponseCacheStoreFilter and the send filter, and also after a failed route, so a flight is
+ * always completed.
+ */
+public class RequestCoalescingPublishFilter extends ZuulFilter {
+
+    private static final DynamicIntProperty MAX_BODY_BYTES =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_COALESCE_MAX_BODY_BYTES, 1024 * 1024);
+
+    private final ResponseCache cache;
+
+    public RequestCoalescingPublishFilter() {
+        this(ResponseCache.getInstance());
+    }
+
+    public RequestCoalescingPublishFilter(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public String filterType() {
+        return "post";
+    }
+
+    @Override
+    public int filterOrder() {
+        return 4;
+    }
+
+    @Override
+    public boolean shouldFilter() {
+        return RequestContext.getCurrentContext().get(RequestCoalescingFilter.FLIGHT_KEY) != null;
+    }
+
+    @Override
+    public Object run() {
+        RequestContext context = RequestContext.getCurrentContext();
+        final RequestCoalescer.Flight flight = (RequestCoalescer.Flight) context.remove(RequestCoalescingFilter.FLIGHT_KEY);
+        HttpServletRequest request = context.getRequest();
+        List<Pair<String, String>> originHeaders = context.getOriginResponseHeaders();
+        InputStream stream = context.getResponseDataStream();
+        Long contentLength = context.getOriginContentLength();
+        int maxBodyBytes = MAX_BODY_BYTES.get();
+
+        List<String> vary = CacheKey.parseVary(header(originHeaders, "Vary"));
+        String primaryKey = CacheKey.primary(context);
+        if (stream == null || vary == null || primaryKey == null
+                || (contentLength != null && contentLength > maxBodyBytes)
+                || ResponseCacheStoreFilter.sharedFreshnessLifetime(request, originHeaders,
+                        CacheControl.parse(header(originHeaders, "Cache-Control")), System.currentTimeMillis()) <= 0) {
+            flight.complete(null, null);
+            return null;
+        }
+
+        cache.putVary(primaryKey, vary);
+        final String key = CacheKey.variant(primaryKey, vary, request);
+        final int status = context.getResponseStatusCode();
+        final List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>(context.getZuulResponseHeaders());
+        final boolean gzipped = context.getResponseGZipped();
+
+        context.setResponseDataStream(new ResponseCacheStoreFilter.HeapCapturingInputStream(stream, maxBodyBytes) {
+            @Override
+            void onComplete(byte[] body) {
+                flight.complete(key, new CachedResponse(status, headers, body, gzipped, System.currentTimeMillis(), 0, 0));
+            }
+
+            @Override
+            void onAbandon() {
+                flight.complete(null, null);
+            }
+        });
+        return null;
+    }
+}
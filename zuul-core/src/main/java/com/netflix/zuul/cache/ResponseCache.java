@@ -0,0 +1,432 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.annotations.Monitor;
+import com.netflix.servo.monitor.Monitors;
+import com.netflix.util.Pair;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.monitoring.CounterFactory;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * In-memory cache of origin responses bounded by a byte budget.
+ * <p/>
+ * Eviction follows W-TinyLFU: new entries go into a small LRU window (1% of the budget). Entries leaving the window
+ * are admitted to the main space only if a FrequencySketch says their key is requested more often than the entry
+ * they would evict. The main space is a segmented LRU: entries start on probation and move to the protected segment
+ * (80% of the main space) when they are read again. This keeps one-off responses from flushing popular ones.
+ * <p/>
+ * Reads are lock free; reordering on a read is skipped if another thread holds the lock. Hits, misses, stale hits,
+ * evictions and rejected entries are counted through the CounterFactory. Bytes, entries and hit ratio of the shared
+ * instance are published as servo gauges.
+ */
+public class ResponseCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
+
+    private static final int MAX_VARY_INDEX = 100000;
+
+    private static ResponseCache INSTANCE;
+
+    enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    static final class Node {
+        final String key;
+        final CachedResponse value;
+        final int weight;
+        Segment segment = Segment.WINDOW;
+
+        Node(String key, CachedResponse value) {
+            this.key = key;
+            this.value = value;
+            this.weight = value.weight();
+        }
+    }
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+
+    private final ConcurrentHashMap<String, Node> data = new ConcurrentHashMap<String, Node>();
+    private final ConcurrentHashMap<String, List<String>> varyIndex = new ConcurrentHashMap<String, List<String>>();
+    private final LinkedHashMap<String, Node> window = new LinkedHashMap<String, Node>();
+    private final LinkedHashMap<String, Node> probation = new LinkedHashMap<String, Node>();
+    private final LinkedHashMap<String, Node> protectedSegment = new LinkedHashMap<String, Node>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param maxBytes byte budget of the cache
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.mainMax = maxBytes - windowMax;
+        this.protectedMax = mainMax * 8 / 10;
+        // sized for entries of about 4k
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(64, maxBytes / 4096)));
+    }
+
+    /**
+     * @return the shared ResponseCache, sized by zuul.cache.max-bytes
+     */
+    public static synchronized ResponseCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new ResponseCache(DynamicPropertyFactory.getInstance().getLongProperty(ZuulConstants.ZUUL_CACHE_MAX_BYTES, 64 * 1024 * 1024).get());
+            try {
+                Monitors.registerObject("zuul.responseCache", INSTANCE);
+            } catch (Throwable t) {
+                LOG.warn("unable to register response cache monitors", t);
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * looks up a response. Counts as a request for key whether it hits or not.
+     *
+     * @param key
+     * @param now current time in milliseconds
+     * @return the cached response if it is fresh or may be served stale, else null
+     */
+    public CachedResponse get(String key, long now) {
+        sketch.increment(key);
+        Node node = data.get(key);
+        if (node == null) {
+            miss();
+            return null;
+        }
+        if (!node.value.isServable(now)) {
+            remove(node);
+            miss();
+            return null;
+        }
+
+        if (lock.tryLock()) {
+            try {
+                onAccess(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        hits.incrementAndGet();
+        count(node.value.isFresh(now) ? "ZUUL::CACHE:HIT" : "ZUUL::CACHE:STALE_HIT");
+        return node.value;
+    }
+
+    /**
+     * stores a response, replacing any entry for key. The entry may be dropped right away if it is larger than the
+     * main space, or if its key is not requested often enough to displace the entries it would evict.
+     *
+     * @param key
+     * @param response
+     */
+    public void put(String key, CachedResponse response) {
+        Node node = new Node(key, response);
+        if (node.weight > mainMax) {
+            count("ZUUL::CACHE:REJECTED");
+            return;
+        }
+
+        lock.lock();
+        try {
+            Node old = data.put(key, node);
+            if (old != null) unlink(old);
+            window.put(key, node);
+            windowBytes += node.weight;
+            bytes.addAndGet(node.weight);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(String key) {
+        lock.lock();
+        try {
+            Node node = data.remove(key);
+            if (node != null) unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(Node node) {
+        lock.lock();
+        try {
+            if (data.remove(node.key, node)) unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param primaryKey
+     * @return the request header names responses for primaryKey vary on, or null if none are known
+     */
+    public List<String> getVary(String primaryKey) {
+        return varyIndex.get(primaryKey);
+    }
+
+    public void putVary(String primaryKey, List<String> vary) {
+        if (vary == null || vary.isEmpty()) {
+            varyIndex.remove(primaryKey);
+            return;
+        }
+        // the index is small compared to the entries; start over rather than track it per entry
+        if (varyIndex.size() >= MAX_VARY_INDEX) varyIndex.clear();
+        varyIndex.put(primaryKey, vary);
+    }
+
+    private void onAccess(Node node) {
+        if (data.get(node.key) != node) return;
+        switch (node.segment) {
+            case WINDOW:
+                window.remove(node.key);
+                window.put(node.key, node);
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                probationBytes -= node.weight;
+                node.segment = Segment.PROTECTED;
+                protectedSegment.put(node.key, node);
+                protectedBytes += node.weight;
+                while (protectedBytes > protectedMax && protectedSegment.size() > 1) {
+                    Node demoted = first(protectedSegment);
+                    protectedSegment.remove(demoted.key);
+                    protectedBytes -= demoted.weight;
+                    demoted.segment = Segment.PROBATION;
+                    probation.put(demoted.key, demoted);
+                    probationBytes += demoted.weight;
+                }
+                break;
+            case PROTECTED:
+                protectedSegment.remove(node.key);
+                protectedSegment.put(node.key, node);
+                break;
+        }
+    }
+
+    private void evict() {
+        while (windowBytes > windowMax && !window.isEmpty()) {
+            Node candidate = first(window);
+            window.remove(candidate.key);
+            windowBytes -= candidate.weight;
+            candidate.segment = Segment.PROBATION;
+            probation.put(candidate.key, candidate);
+            probationBytes += candidate.weight;
+            admit(candidate);
+        }
+    }
+
+    /**
+     * makes room in the main space for candidate, or evicts candidate if it is requested less than the victim
+     */
+    private void admit(Node candidate) {
+        while (probationBytes + protectedBytes > mainMax) {
+            Node victim = first(probation);
+            if (victim == candidate) victim = second(probation);
+            if (victim == null) victim = first(protectedSegment);
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                evict(candidate);
+                return;
+            }
+            evict(victim);
+        }
+    }
+
+    private void evict(Node node) {
+        data.remove(node.key, node);
+        unlink(node);
+        count("ZUUL::CACHE:EVICTION");
+    }
+
+    private void unlink(Node node) {
+        LinkedHashMap<String, Node> segment = segmentOf(node);
+        if (segment.get(node.key) != node) return;
+        segment.remove(node.key);
+        switch (node.segment) {
+            case WINDOW:
+                windowBytes -= node.weight;
+                break;
+            case PROBATION:
+                probationBytes -= node.weight;
+                break;
+            case PROTECTED:
+                protectedBytes -= node.weight;
+                break;
+        }
+        bytes.addAndGet(-node.weight);
+    }
+
+    private LinkedHashMap<String, Node> segmentOf(Node node) {
+        switch (node.segment) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedSegment;
+        }
+    }
+
+    private void miss() {
+        misses.incrementAndGet();
+        count("ZUUL::CACHE:MISS");
+    }
+
+    private static void count(String name) {
+        CounterFactory.instance().increment(name);
+    }
+
+    private static Node first(LinkedHashMap<String, Node> segment) {
+        Iterator<Node> it = segment.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static Node second(LinkedHashMap<String, Node> segment) {
+        Iterator<Node> it = segment.values().iterator();
+        if (!it.hasNext()) return null;
+        it.next();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @Monitor(name = "bytes", type = DataSourceType.GAUGE)
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Monitor(name = "entries", type = DataSourceType.GAUGE)
+    public int getEntries() {
+        return data.size();
+    }
+
+    @Monitor(name = "hitRatio", type = DataSourceType.GAUGE)
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public static class UnitTest {
+
+        @Before
+        public void before() {
+            MonitoringHelper.initMocks();
+        }
+
+        static CachedResponse response(int size) {
+            return new CachedResponse(200, new ArrayList<Pair<String, String>>(), new byte[size], false, 0, 60000, 0);
+        }
+
+        @Test
+        public void storesAndExpires() {
+            ResponseCache cache = new ResponseCache(1 << 20);
+            CachedResponse response = response(100);
+            cache.put("a", response);
+            assertSame(response, cache.get("a", 1000));
+            assertEquals(response.weight(), cache.getBytes());
+            assertNull(cache.get("a", 60000));
+            assertEquals(0, cache.getBytes());
+            assertEquals(0.5, cache.getHitRatio(), 0.001);
+        }
+
+        @Test
+        public void staysWithinBudget() {
+            ResponseCache cache = new ResponseCache(100000);
+            for (int i = 0; i < 1000; i++) {
+                cache.get("k" + i, 0);
+                cache.put("k" + i, response(1000));
+            }
+            assertEquals(true, cache.getBytes() <= 100000);
+            assertEquals(true, cache.getEntries() > 50);
+        }
+
+        @Test
+        public void keepsFrequentEntriesOverOneOffs() {
+            ResponseCache cache = new ResponseCache(100000);
+            for (int i = 0; i < 80; i++) {
+                cache.get("hot" + i, 0);
+                cache.put("hot" + i, response(1000));
+            }
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 80; i++) cache.get("hot" + i, 0);
+            }
+            for (int i = 0; i < 1000; i++) {
+                cache.get("cold" + i, 0);
+                cache.put("cold" + i, response(1000));
+            }
+            int hot = 0;
+            for (int i = 0; i < 80; i++) {
+                if (cache.get("hot" + i, 0) != null) hot++;
+            }
+            assertEquals(true, hot > 70);
+        }
+
+        @Test
+        public void rejectsOversizedEntries() {
+            ResponseCache cache = new ResponseCache(1000);
+            cache.put("big", response(5000));
+            assertNull(cache.get("big", 0));
+        }
+
+        @Test
+        public void indexesVary() {
+            ResponseCache cache = new ResponseCache(1000);
+            List<String> vary = new ArrayList<String>();
+            vary.add("accept-language");
+            cache.putVary("GET /a", vary);
+            assertNotNull(cache.getVary("GET /a"));
+            cache.putVary("GET /a", null);
+            assertNull(cache.getVary("GET /a"));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.util.Pair;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.monitoring.CounterFactory;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * "pre" filter that serves GET requests from the ResponseCache. It runs after the routing filters have chosen the
+ * route host or VIP, since the route is part of the cache key. On a hit it fills in the response status, headers and
+ * body in the RequestContext and flags the response as served from cache, so the "route" filters are skipped and the
+ * send filter writes the cached body.
+ * <p/>
+ * A stale response within its stale-while-revalidate window is served to every request but one, which is let through
+ * to the origin; the ResponseCacheStoreFilter then replaces the entry with the fresh response.
+ * <p/>
+ * Responses not found in the heap cache are looked up in the MappedResponseStore, whose bodies are streamed to the
+ * client from the mapped segment files.
+ * <p/>
+ * Disabled unless zuul.cache.enabled is true.
+ */
+public class ResponseCacheLookupFilter extends ZuulFilter {
+
+    /**
+     * RequestContext key holding the primary cache key, set for requests the ResponseCacheStoreFilter may store
+     */
+    public static final String CACHE_KEY = "responseCacheKey";
+
+    static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_CACHE_ENABLED, false);
+    private static final DynamicLongProperty REVALIDATE_LEASE_MILLIS =
+            DynamicPropertyFactory.getInstance().getLongProperty(ZuulConstants.ZUUL_CACHE_REVALIDATE_LEASE_MILLIS, 10000);
+
+    private final ResponseCache cache;
+    private final MappedResponseStore store;
+
+    public ResponseCacheLookupFilter() {
+        this(ResponseCache.getInstance(), null);
+    }
+
+    /**
+     * @param cache
+     * @param store disk tier, or null to use the shared one when zuul.cache.disk.enabled is true
+     */
+    public ResponseCacheLookupFilter(ResponseCache cache, MappedResponseStore store) {
+        this.cache = cache;
+        this.store = store;
+    }
+
+    @Override
+    public String filterType() {
+        return "pre";
+    }
+
+    @Override
+    public int filterOrder() {
+        return 1000;
+    }
+
+    @Override
+    public boolean shouldFilter() {
+        RequestContext context = RequestContext.getCurrentContext();
+        return ENABLED.get() && context.sendZuulResponse() && "GET".equalsIgnoreCase(context.getRequest().getMethod());
+    }
+
+    @Override
+    public Object run() {
+        RequestContext context = RequestContext.getCurrentContext();
+        HttpServletRequest request = context.getRequest();
+
+        CacheControl cacheControl = CacheControl.parse(request.getHeader("Cache-Control"));
+        if (cacheControl.isNoStore()) return null;
+
+        String primaryKey = CacheKey.primary(context);
+        if (primaryKey == null) return null;
+        context.set(CACHE_KEY, primaryKey);
+
+        // the client wants a response from the origin; it may still be stored
+        if (cacheControl.isNoCache() || "no-cache".equalsIgnoreCase(request.getHeader("Pragma"))) return null;
+
+        long now = System.currentTimeMillis();
+        String key = CacheKey.variant(primaryKey, cache.getVary(primaryKey), request);
+        CachedResponse response = cache.get(key, now);
+        if (response == null) {
+            MappedResponseStore diskTier = (store != null) ? store : MappedResponseStore.getInstanceIfEnabled();
+            if (diskTier != null) response = diskTier.get(key, now);
+        }
+        if (response == null) return null;
+
+        boolean fresh = response.isFresh(now);
+        if (!fresh && response.tryRevalidate(now, REVALIDATE_LEASE_MILLIS.get())) {
+            CounterFactory.instance().increment("ZUUL::CACHE:REVALIDATE");
+            return null;
+        }
+
+        serve(context, response, now, fresh ? "HIT" : "STALE");
+        return null;
+    }
+
+    /**
+     * fills in the RequestContext from response and flags it as served from cache
+     *
+     * @param cacheStatus value of the X-Zuul-Cache header: HIT, STALE or COALESCED
+     */
+    static void serve(RequestContext context, CachedResponse response, long now, String cacheStatus) {
+        context.setResponseFromCache(true);
+        context.setResponseStatusCode(response.getStatus());
+        context.setResponseGZipped(response.isGzipped());
+        context.setOriginContentLength((long) response.getBodyLength());
+        for (Pair<String, String> header : response.getHeaders()) {
+            context.addOriginResponseHeader(header.first(), header.second());
+            context.addZuulResponseHeader(header.first(), header.second());
+        }
+        context.addZuulResponseHeader("Age", String.valueOf(response.age(now)));
+        context.addZuulResponseHeader("X-Zuul-Cache", cacheStatus);
+        if ("STALE".equals(cacheStatus)) context.addZuulResponseHeader("Warning", "110 - \"Response is Stale\"");
+        context.setResponseDataStream(response.openBody());
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class UnitTest {
+
+        @Mock
+        HttpServletRequest request;
+        @Mock
+        HttpServletResponse response;
+
+        ResponseCache cache;
+        ResponseCacheLookupFilter filter;
+
+        @Before
+        public void before() throws Exception {
+            MonitoringHelper.initMocks();
+            RequestContext context = new RequestContext();
+            context.setRequest(request);
+            context.setResponse(response);
+            context.setRouteHost(new URL("http://origin"));
+            RequestContext.testSetCurrentContext(context);
+
+            when(request.getMethod()).thenReturn("GET");
+            when(request.getRequestURI()).thenReturn("/a");
+
+            cache = new ResponseCache(1 << 20);
+            filter = new ResponseCacheLookupFilter(cache, null);
+        }
+
+        static CachedResponse cached(long storedAt, long freshFor, long staleFor) {
+            List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+            headers.add(new Pair<String, String>("Content-Type", "text/plain"));
+            return new CachedResponse(200, headers, "cached".getBytes(), false, storedAt, freshFor, staleFor);
+        }
+
+        @Test
+        public void servesFreshHit() {
+            cache.put("GET http://origin/a", cached(System.currentTimeMillis(), 60000, 0));
+            filter.run();
+
+            RequestContext context = RequestContext.getCurrentContext();
+            assertTrue(context.isResponseFromCache());
+            assertEquals(200, context.getResponseStatusCode());
+            assertEquals(Long.valueOf(6), context.getOriginContentLength());
+            assertTrue(context.getZuulResponseHeaders().contains(new Pair<String, String>("X-Zuul-Cache", "HIT")));
+        }
+
+        @Test
+        public void letsOneRequestRevalidateStaleEntry() {
+            cache.put("GET http://origin/a", cached(System.currentTimeMillis() - 2000, 1000, 60000));
+
+            filter.run();
+            assertFalse(RequestContext.getCurrentContext().isResponseFromCache());
+            assertEquals("GET http://origin/a", RequestContext.getCurrentContext().get(CACHE_KEY));
+
+            RequestContext.getCurrentContext().setResponseFromCache(false);
+            filter.run();
+            assertTrue(RequestContext.getCurrentContext().isResponseFromCache());
+            assertTrue(RequestContext.getCurrentContext().getZuulResponseHeaders().contains(new Pair<String, String>("X-Zuul-Cache", "STALE")));
+        }
+
+        @Test
+        public void bypassesOnNoStore() {
+            cache.put("GET http://origin/a", cached(System.currentTimeMillis(), 60000, 0));
+            when(request.getHeader("Cache-Control")).thenReturn("no-store");
+            filter.run();
+
+            assertFalse(RequestContext.getCurrentContext().isResponseFromCache());
+            assertNull(RequestContext.getCurrentContext().get(CACHE_KEY));
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.cache;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.util.Pair;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import com.netflix.zuul.stream.ContentEncoder;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * "post" filter that stores cacheable origin responses in the ResponseCache.
+ * A response is stored if the ResponseCacheLookupFilter marked the request as cacheable, its status is cacheable, and
+ * its Cache-Control/Expires headers give it a freshness lifetime for a shared cache (no no-store, private, no-cache
+ * or Set-Cookie; responses to requests with Authorization need public, s-maxage or must-revalidate).
+ * <p/>
+ * The body is not read here: the response stream is wrapped so the bytes are captured while the send filter streams
+ * them to the client, and the entry is stored once the whole body has been read. Bodies larger than
+ * zuul.cache.max-entry-bytes go to the MappedResponseStore if it is enabled and the origin sent a Content-Length;
+ * they are written straight into the mapped segment rather than buffered on the heap. Otherwise they are not stored.
+ * <p/>
+ * Runs before the other "post" filters so the stored headers are the ones the route filters set, not decorations
+ * added for this particular request.
+ */
+public class ResponseCacheStoreFilter extends ZuulFilter {
+
+    private static final Set<Integer> CACHEABLE_STATUS = new HashSet<Integer>(Arrays.asList(200, 203, 300, 301, 404, 410));
+
+    private static final DynamicIntProperty MAX_ENTRY_BYTES =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_CACHE_MAX_ENTRY_BYTES, 1024 * 1024);
+
+    private final ResponseCache cache;
+    private final MappedResponseStore store;
+
+    public ResponseCacheStoreFilter() {
+        this(ResponseCache.getInstance(), null);
+    }
+
+    /**
+     * @param cache
+     * @param store disk tier, or null to use the shared one when zuul.cache.disk.enabled is true
+     */
+    public ResponseCacheStoreFilter(ResponseCache cache, MappedResponseStore store) {
+        this.cache = cache;
+        this.store = store;
+    }
+
+    @Override
+    public String filterType() {
+        return "post";
+    }
+
+    @Override
+    public int filterOrder() {
+        return 5;
+    }
+
+    @Override
+    public boolean shouldFilter() {
+        RequestContext context = RequestContext.getCurrentContext();
+        return ResponseCacheLookupFilter.ENABLED.get()
+                && context.get(ResponseCacheLookupFilter.CACHE_KEY) != null
+                && !context.isResponseFromCache()
+                && context.sendZuulResponse()
+                && context.getResponseDataStream() != null
+                && CACHEABLE_STATUS.contains(context.getResponseStatusCode());
+    }
+
+    @Override
+    public Object run() {
+        final RequestContext context = RequestContext.getCurrentContext();
+        HttpServletRequest request = context.getRequest();
+        List<Pair<String, String>> originHeaders = context.getOriginResponseHeaders();
+
+        CacheControl cacheControl = CacheControl.parse(header(originHeaders, "Cache-Control"));
+        final long now = System.currentTimeMillis();
+        final long freshFor = sharedFreshnessLifetime(request, originHeaders, cacheControl, now);
+        if (freshFor <= 0) return null;
+
+        final List<String> vary = CacheKey.parseVary(header(originHeaders, "Vary"));
+        if (vary == null) return null;
+
+        int maxEntryBytes = MAX_ENTRY_BYTES.get();
+        Long contentLength = context.getOriginContentLength();
+        MappedResponseStore.Writer writer = null;
+        if (contentLength != null && contentLength > maxEntryBytes) {
+            MappedResponseStore diskTier = (store != null) ? store : MappedResponseStore.getInstanceIfEnabled();
+            if (diskTier == null || contentLength > Integer.MAX_VALUE) return null;
+            writer = diskTier.begin(contentLength.intValue());
+            if (writer == null) return null;
+        }
+
+        final String primaryKey = (String) context.get(ResponseCacheLookupFilter.CACHE_KEY);
+        final String key = CacheKey.variant(primaryKey, vary, request);
+        final int status = context.getResponseStatusCode();
+        final List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>(context.getZuulResponseHeaders());
+        final boolean gzipped = context.getResponseGZipped();
+        final long staleFor = cacheControl.getStaleWhileRevalidate() * 1000;
+
+        if (writer != null) {
+            final MappedResponseStore.Writer target = writer;
+            context.setResponseDataStream(new CapturingInputStream(context.getResponseDataStream()) {
+                @Override
+                boolean capture(byte[] b, int off, int len) {
+                    return target.write(b, off, len);
+                }
+
+                @Override
+                void onComplete() {
+                    if (!target.isComplete()) return;
+                    cache.putVary(primaryKey, vary);
+                    target.commit(key, new CachedResponse(status, headers, target.body(), gzipped, now, freshFor, staleFor));
+                }
+            });
+            return null;
+        }
+
+        context.setResponseDataStream(new HeapCapturingInputStream(context.getResponseDataStream(), maxEntryBytes) {
+            @Override
+            void onComplete(byte[] body) {
+                cache.putVary(primaryKey, vary);
+                cache.put(key, new CachedResponse(status, headers, body, gzipped, now, freshFor, staleFor));
+            }
+        });
+        return null;
+    }
+
+    /**
+     * @return how long a shared cache may serve the response without revalidating it; 0 if it may not store it at
+     *         all, as it isn't shareable, is no-cache or has no explicit freshness lifetime
+     */
+    static long sharedFreshnessLifetime(HttpServletRequest request, List<Pair<String, String>> originHeaders,
+                                        CacheControl cacheControl, long now) {
+        if (!isShareable(request, originHeaders, cacheControl) || cacheControl.isNoCache()) return 0;
+        return Math.max(0, cacheControl.freshnessLifetime(header(originHeaders, "Expires"), header(originHeaders, "Date"), now));
+    }
+
+    /**
+     * @return false if the response may not be given to other clients: it sets a cookie, is private or no-store, or
+     *         answers a request with Authorization without being marked public, s-maxage or must-revalidate
+     */
+    static boolean isShareable(HttpServletRequest request, List<Pair<String, String>> originHeaders, CacheControl cacheControl) {
+        if (header(originHeaders, "Set-Cookie") != null) return false;
+        if (cacheControl.isNoStore() || cacheControl.isPrivate()) return false;
+        return request.getHeader("Authorization") == null ||
+                cacheControl.isPublic() || cacheControl.getSMaxAge() >= 0 || cacheControl.isMustRevalidate();
+    }
+
+    /**
+     * @return the values of all headers called name joined with ",", or null if there is none
+     */
+    static String header(List<Pair<String, String>> headers, String name) {
+        StringBuilder sb = null;
+        for (Pair<String, String> header : headers) {
+            if (!header.first().equalsIgnoreCase(name)) continue;
+            if (sb == null) {
+                sb = new StringBuilder();
+            } else {
+                sb.append(',');
+            }
+            sb.append(header.second());
+        }
+        return (sb == null) ? null : sb.toString();
+    }
+
+    /**
+     * hands the bytes read through it to capture(), and calls onComplete() once the end of the stream is reached.
+     * Capturing stops if capture() returns false, the stream is skipped or it is closed early; onAbandon() is called
+     * instead of onComplete() then.
+     * <p/>
+     * On close(), up to DRAIN_LIMIT bytes still unread are read and captured first: a gzip decoder stops after the
+     * trailer without ever reading the end of the stream, and a body decoded for a client without gzip would
+     * otherwise never complete.
+     */
+    abstract static class CapturingInputStream extends FilterInputStream {
+
+        static final int DRAIN_LIMIT = 8192;
+
+        private final byte[] single = new byte[1];
+        private boolean capturing = true;
+
+        CapturingInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * @return false to stop capturing
+         */
+        abstract boolean capture(byte[] b, int off, int len);
+
+        abstract void onComplete();
+
+        void onAbandon() {
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete();
+            } else if (capturing) {
+                single[0] = (byte) b;
+                if (!capture(single, 0, 1)) abandon();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                complete();
+            } else if (capturing && !capture(b, off, n)) {
+                abandon();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            abandon();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                abandon();
+                super.close();
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void drain() {
+            byte[] buffer = new byte[512];
+            int left = DRAIN_LIMIT;
+            try {
+                while (capturing && left > 0) {
+                    int n = read(buffer, 0, Math.min(buffer.length, left));
+                    if (n == -1) return;
+                    left -= n;
+                }
+            } catch (IOException e) {
+                // the body is incomplete; abandoned by close()
+            }
+        }
+
+        private void complete() {
+            if (!capturing) return;
+            capturing = false;
+            onComplete();
+        }
+
+        private void abandon() {
+            if (!capturing) return;
+            capturing = false;
+            onAbandon();
+        }
+    }
+
+    /**
+     * captures the body into a heap buffer, up to a limit
+     */
+    abstract static class HeapCapturingInputStream extends CapturingInputStream {
+
+        private final int limit;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        HeapCapturingInputStream(InputStream in, int limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        abstract void onComplete(byte[] body);
+
+        @Override
+        boolean capture(byte[] b, int off, int len) {
+            captured.write(b, off, len);
+            if (captured.size() <= limit) return true;
+            captured = null;
+            return false;
+        }
+
+        @Override
+        void onComplete() {
+            byte[] body = captured.toByteArray();
+            captured = null;
+            onComplete(body);
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class UnitTest {
+
+        @Mock
+        HttpServletRequest request;
+        @Mock
+        HttpServletResponse response;
+
+        ResponseCache cache;
+
+        @Before
+        public void before() throws Exception {
+            MonitoringHelper.initMocks();
+            when(request.getMethod()).thenReturn("GET");
+            when(request.getRequestURI()).thenReturn("/a");
+            cache = new ResponseCache(1 << 20);
+        }
+
+        private RequestContext newContext() throws Exception {
+            RequestContext context = new RequestContext();
+            context.setRequest(request);
+            context.setResponse(response);
+            context.setRouteHost(new URL("http://origin"));
+            RequestContext.testSetCurrentContext(context);
+            return context;
+        }
+
+        private void originResponse(RequestContext context, String cacheControl, byte[] body) {
+            context.setResponseStatusCode(200);
+            context.setResponseGZipped(false);
+            context.addOriginResponseHeader("Cache-Control", cacheControl);
+            context.addZuulResponseHeader("Cache-Control", cacheControl);
+            context.setResponseDataStream(new ByteArrayInputStream(body));
+        }
+
+        private static byte[] drain(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[3];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+
+        @Test
+        public void storesThenServesFromCache() throws Exception {
+            byte[] body = "origin body".getBytes();
+
+            RequestContext context = newContext();
+            new ResponseCacheLookupFilter(cache, null).run();
+            assertNotNull(context.get(ResponseCacheLookupFilter.CACHE_KEY));
+            originResponse(context, "max-age=60", body);
+            new ResponseCacheStoreFilter(cache, null).run();
+            assertArrayEquals(body, drain(context.getResponseDataStream()));
+
+            context = newContext();
+            new ResponseCacheLookupFilter(cache, null).run();
+            assertEquals(true, context.isResponseFromCache());
+            assertArrayEquals(body, drain(context.getResponseDataStream()));
+            assertEquals("max-age=60", header(context.getZuulResponseHeaders(), "Cache-Control"));
+        }
+
+        @Test
+        public void doesNotStorePrivateResponses() throws Exception {
+            RequestContext context = newContext();
+            new ResponseCacheLookupFilter(cache, null).run();
+            originResponse(context, "private, max-age=60", "x".getBytes());
+            new ResponseCacheStoreFilter(cache, null).run();
+            drain(context.getResponseDataStream());
+
+            assertNull(cache.get("GET http://origin/a", System.currentTimeMillis()));
+        }
+
+        @Test
+        public void storesLargeBodiesInMappedStore() throws Exception {
+            File dir = File.createTempFile("zuul-cache", "");
+            dir.delete();
+            MappedResponseStore store = new MappedResponseStore(dir, 2 << 20, 8 << 20);
+            try {
+                byte[] body = new byte[(2 << 20) + 1];
+                Arrays.fill(body, (byte) 'x');
+
+                RequestContext context = newContext();
+                new ResponseCacheLookupFilter(cache, store).run();
+                originResponse(context, "max-age=60", body);
+                context.setOriginContentLength((long) body.length);
+                new ResponseCacheStoreFilter(cache, store).run();
+                drain(context.getResponseDataStream());
+                assertEquals(0, store.getEntries());
+
+                body = new byte[MAX_ENTRY_BYTES.get() + 1];
+                Arrays.fill(body, (byte) 'y');
+                context = newContext();
+                new ResponseCacheLookupFilter(cache, store).run();
+                originResponse(context, "max-age=60", body);
+                context.setOriginContentLength((long) body.length);
+                new ResponseCacheStoreFilter(cache, store).run();
+                assertArrayEquals(body, drain(context.getResponseDataStream()));
+                assertEquals(0, cache.getEntries());
+                assertEquals(1, store.getEntries());
+
+                context = newContext();
+                new ResponseCacheLookupFilter(cache, store).run();
+                assertEquals(true, context.isResponseFromCache());
+                assertEquals(Long.valueOf(body.length), context.getOriginContentLength());
+                assertArrayEquals(body, drain(context.getResponseDataStream()));
+            } finally {
+                store.shutdown();
+                dir.delete();
+            }
+        }
+
+        @Test
+        public void storesGzippedBodyDecodedForTheClient() throws Exception {
+            byte[] body = "origin body origin body origin body".getBytes();
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+            gzip.write(body);
+            gzip.close();
+
+            RequestContext context = newContext();
+            new ResponseCacheLookupFilter(cache, null).run();
+            originResponse(context, "max-age=60", gzipped.toByteArray());
+            context.setResponseGZipped(true);
+            new ResponseCacheStoreFilter(cache, null).run();
+            // the send filter decodes for a client that doesn't accept gzip, reading up to the gzip trailer only
+            InputStream decoded = ContentEncoder.decode(context.getResponseDataStream());
+            assertArrayEquals(body, drain(decoded));
+            decoded.close();
+
+            CachedResponse stored = cache.get("GET http://origin/a", System.currentTimeMillis());
+            assertNotNull(stored);
+            assertTrue(stored.isGzipped());
+            assertArrayEquals(gzipped.toByteArray(), stored.getBody());
+        }
+
+        @Test
+        public void abandonsALongBodyClosedEarly() throws IOException {
+            final List<byte[]> stored = new ArrayList<byte[]>();
+            InputStream in = new HeapCapturingInputStream(new ByteArrayInputStream(new byte[2 * CapturingInputStream.DRAIN_LIMIT]), 1 << 20) {
+                @Override
+                void onComplete(byte[] body) {
+                    stored.add(body);
+                }
+            };
+            in.read(new byte[10]);
+            in.close();
+            assertEquals(0, stored.size());
+        }
+
+        @Test
+        public void capturesUpToLimit() throws IOException {
+            final List<byte[]> stored = new ArrayList<byte[]>();
+            drain(new HeapCapturingInputStream(new ByteArrayInputStream(new byte[10]), 5) {
+                @Override
+                void onComplete(byte[] body) {
+                    stored.add(body);
+                }
+            });
+            assertEquals(0, stored.size());
+        }
+    }
+}
@@ -39,6 +39,16 @@ public class ZuulConstants {
     public static final String ZUUL_AUTODETECT_BACKEND_VIPS = "zuul.autodetect-backend-vips";
     public static final String ZUUL_RIBBON_NAMESPACE = "zuul.ribbon.namespace";
     public static final String ZUUL_RIBBON_VIPADDRESS_TEMPLATE = "zuul.ribbon.vipAddress.template";
+    public static final String ZUUL_RIBBON_HEDGE_ENABLED = "zuul.ribbon.hedge.enabled";
+    public static final String ZUUL_RIBBON_HEDGE_PERCENTILE = "zuul.ribbon.hedge.percentile";
+    public static final String ZUUL_RIBBON_HEDGE_MIN_DELAY_MILLIS = "zuul.ribbon.hedge.min-delay-millis";
+    public static final String ZUUL_RIBBON_HEDGE_BUDGET_PERCENT = "zuul.ribbon.hedge.budget-percent";
+    public static final String ZUUL_RIBBON_LB_DECAY_MILLIS = "zuul.ribbon.lb.decay-millis";
+    public static final String ZUUL_RIBBON_LB_SLOW_START_MILLIS = "zuul.ribbon.lb.slow-start-millis";
+    public static final String ZUUL_LIMITER_ENABLED = "zuul.limiter.enabled";
+    public static final String ZUUL_LIMITER_INITIAL_LIMIT = "zuul.limiter.initial-limit";
+    public static final String ZUUL_LIMITER_MIN_LIMIT = "zuul.limiter.min-limit";
+    public static final String ZUUL_LIMITER_MAX_LIMIT = "zuul.limiter.max-limit";
     public static final String ZUUL_CASSANDRA_CACHE_MAX_SIZE = "zuul.cassandra.cache.max-size";
     public static final String ZUUL_HTTPCLIENT = "zuul.httpClient.";
     public static final String ZUUL_USE_ACTIVE_FILTERS = "zuul.use.active.filters";
@@ -60,13 +70,81 @@ public class ZuulConstants {
     public static final String ZUUL_ROUTER_ALT_ROUTE_HOST = "zuul.router.alt.route.host";
     public static final String ZUUL_ROUTER_ALT_ROUTE_PERMYRIAD = "zuul.router.alt.route.permyriad";
     public static final String ZUUL_ROUTER_ALT_ROUTE_MAXLIMIT = "zuul.router.alt.route.maxlimit";
+    public static final String ZUUL_ROUTER_SPLIT = "zuul.router.split.";
+    public static final String ZUUL_ROUTER_SPLIT_ROUTES = "zuul.router.split.routes";
+    public static final String ZUUL_ROUTER_SPLIT_TARGETS = "zuul.router.split.targets";
+    public static final String ZUUL_ROUTER_SPLIT_STICKY_HEADER = "zuul.router.split.sticky-header";
+    public static final String ZUUL_DEADLINE_DEFAULT_MILLIS = "zuul.deadline.default-millis";
+    public static final String ZUUL_DEADLINE_HEADER = "zuul.deadline.header";
+    public static final String ZUUL_DEADLINE_HEADER_ENABLED = "zuul.deadline.header.enabled";
+    public static final String ZUUL_RETRY_ENABLED = "zuul.retry.enabled";
+    public static final String ZUUL_RETRY_MAX_ATTEMPTS = "zuul.retry.max-attempts";
+    public static final String ZUUL_RETRY_BUDGET_PERCENT = "zuul.retry.budget-percent";
+    public static final String ZUUL_RETRY_BODY_BUFFER_BYTES = "zuul.retry.body-buffer-bytes";
+    public static final String ZUUL_OUTLIER_ENABLED = "zuul.outlier.enabled";
+    public static final String ZUUL_OUTLIER_CONSECUTIVE_FAILURES = "zuul.outlier.consecutive-failures";
+    public static final String ZUUL_OUTLIER_INTERVAL_MILLIS = "zuul.outlier.interval-millis";
+    public static final String ZUUL_OUTLIER_MIN_REQUESTS = "zuul.outlier.min-requests";
+    public static final String ZUUL_OUTLIER_LATENCY_FACTOR = "zuul.outlier.latency-factor";
+    public static final String ZUUL_OUTLIER_BASE_EJECTION_MILLIS = "zuul.outlier.base-ejection-millis";
+    public static final String ZUUL_OUTLIER_MAX_EJECTION_PERCENT = "zuul.outlier.max-ejection-percent";
+    public static final String ZUUL_HOSTGROUP = "zuul.hostgroup.";
+    public static final String ZUUL_HOSTGROUP_NAMES = "zuul.hostgroup.names";
+    public static final String ZUUL_HOSTGROUP_HEALTH_PATH = "zuul.hostgroup.health-path";
+    public static final String ZUUL_HOSTGROUP_PROBE_INTERVAL_MILLIS = "zuul.hostgroup.probe-interval-millis";
+    public static final String ZUUL_HOSTGROUP_PROBE_TIMEOUT_MILLIS = "zuul.hostgroup.probe-timeout-millis";
     public static final String ZUUL_NIWS_DEFAULTCLIENT = "zuul.niws.defaultClient";
     public static final String ZUUL_DEFAULT_HOST = "zuul.default.host";
     public static final String ZUUL_HOST_SOCKET_TIMEOUT_MILLIS = "zuul.host.socket-timeout-millis";
     public static final String ZUUL_HOST_CONNECT_TIMEOUT_MILLIS = "zuul.host.connect-timeout-millis";
+    public static final String ZUUL_HOST_MAX_CONNECTIONS = "zuul.host.max-connections";
+    public static final String ZUUL_HOST_ASYNC_ENABLED = "zuul.host.async.enabled";
+    public static final String ZUUL_HOST_ASYNC_IO_THREADS = "zuul.host.async.io-threads";
+    public static final String ZUUL_HOST_ASYNC_BUFFER_SIZE = "zuul.host.async.buffer-size";
+    public static final String ZUUL_HOST_POOL_MIN_PER_ROUTE = "zuul.host.pool.min-connections-per-route";
+    public static final String ZUUL_HOST_POOL_MAX_PER_ROUTE = "zuul.host.pool.max-connections-per-route";
+    public static final String ZUUL_POOL_MAINTENANCE_INTERVAL_MILLIS = "zuul.pool.maintenance.interval-millis";
+    public static final String ZUUL_POOL_IDLE_TIMEOUT_MILLIS = "zuul.pool.idle-timeout-millis";
+    public static final String ZUUL_PREWARM_ENABLED = "zuul.prewarm.enabled";
+    public static final String ZUUL_PREWARM_HOSTS = "zuul.prewarm.hosts";
+    public static final String ZUUL_PREWARM_CONNECTIONS_PER_HOST = "zuul.prewarm.connections-per-host";
+    public static final String ZUUL_PREWARM_TIMEOUT_MILLIS = "zuul.prewarm.timeout-millis";
+    public static final String ZUUL_SPECULATIVE_CONNECT_ENABLED = "zuul.speculative-connect.enabled";
+    public static final String ZUUL_SPECULATIVE_CONNECT_TIMEOUT_MILLIS = "zuul.speculative-connect.timeout-millis";
+    public static final String ZUUL_DNS_CACHE_ENABLED = "zuul.dns.cache.enabled";
+    public static final String ZUUL_DNS_CACHE_TTL_MILLIS = "zuul.dns.cache.ttl-millis";
+    public static final String ZUUL_DNS_CACHE_STALE_MILLIS = "zuul.dns.cache.stale-millis";
+    public static final String ZUUL_STATS_MAX_HOSTS = "zuul.stats.max-hosts";
+    public static final String ZUUL_STATS_MAX_PROTOCOLS = "zuul.stats.max-protocols";
+    public static final String ZUUL_STATS_MAX_ROUTES = "zuul.stats.max-routes";
+    public static final String ZUUL_STATS_MAX_ERROR_ROUTES = "zuul.stats.max-error-routes";
+    public static final String ZUUL_STATS_KEY_IDLE_MILLIS = "zuul.stats.key-idle-millis";
     public static final String ZUUL_INCLUDE_DEBUG_HEADER = "zuul.include-debug-header";
     public static final String ZUUL_INITIAL_STREAM_BUFFER_SIZE = "zuul.initial-stream-buffer-size";
     public static final String ZUUL_SET_CONTENT_LENGTH = "zuul.set-content-length";
+    public static final String ZUUL_RESPONSE_BUFFER_MAX_SIZE = "zuul.response.buffer.max-size";
+    public static final String ZUUL_RESPONSE_BUFFER_POOL_SIZE = "zuul.response.buffer.pool-size";
+    public static final String ZUUL_RESPONSE_FLUSH_POLICY = "zuul.response.flush.policy";
+    public static final String ZUUL_RESPONSE_FLUSH_BYTES = "zuul.response.flush.bytes";
+    public static final String ZUUL_RESPONSE_FLUSH_MILLIS = "zuul.response.flush.millis";
+    public static final String ZUUL_RESPONSE_CHANNEL_TRANSFER_ENABLED = "zuul.response.channel-transfer.enabled";
+    public static final String ZUUL_RESPONSE_GZIP_ENABLED = "zuul.response.gzip.enabled";
+    public static final String ZUUL_RESPONSE_GZIP_MIN_SIZE = "zuul.response.gzip.min-size";
+    public static final String ZUUL_RESPONSE_GZIP_MIME_TYPES = "zuul.response.gzip.mime-types";
+    public static final String ZUUL_RESPONSE_GZIP_LEVEL = "zuul.response.gzip.level";
+    public static final String ZUUL_RESPONSE_CODEC_POOL_SIZE = "zuul.response.codec.pool-size";
+    public static final String ZUUL_CACHE_ENABLED = "zuul.cache.enabled";
+    public static final String ZUUL_CACHE_MAX_BYTES = "zuul.cache.max-bytes";
+    public static final String ZUUL_CACHE_MAX_ENTRY_BYTES = "zuul.cache.max-entry-bytes";
+    public static final String ZUUL_CACHE_REVALIDATE_LEASE_MILLIS = "zuul.cache.revalidate-lease-millis";
+    public static final String ZUUL_CACHE_DISK_ENABLED = "zuul.cache.disk.enabled";
+    public static final String ZUUL_CACHE_DISK_DIR = "zuul.cache.disk.dir";
+    public static final String ZUUL_CACHE_DISK_MAX_BYTES = "zuul.cache.disk.max-bytes";
+    public static final String ZUUL_CACHE_DISK_SEGMENT_BYTES = "zuul.cache.disk.segment-bytes";
+    public static final String ZUUL_CACHE_DISK_COMPACTION_INTERVAL_MILLIS = "zuul.cache.disk.compaction-interval-millis";
+    public static final String ZUUL_COALESCE_ENABLED = "zuul.coalesce.enabled";
+    public static final String ZUUL_COALESCE_WAIT_MILLIS = "zuul.coalesce.wait-millis";
+    public static final String ZUUL_COALESCE_MAX_BODY_BYTES = "zuul.coalesce.max-body-bytes";
     public static final String ZUUL_DEBUGFILTERS_DISABLED = "zuul.debugFilters.disabled";
     public static final String ZUUL_DEBUG_VIP = "zuul.debug.vip";
     public static final String ZUUL_DEBUG_HOST = "zuul.debug.host";
@@ -16,7 +16,9 @@
 package com.netflix.zuul.context;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import java.io.InputStream;
@@ -29,6 +31,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -42,7 +45,10 @@ import org.slf4j.LoggerFactory;
 
 import com.netflix.util.Pair;
 import com.netflix.zuul.constants.ZuulHeaders;
+import com.netflix.zuul.origin.SpeculativeConnector;
+import com.netflix.zuul.stream.FlushPolicy;
 import com.netflix.zuul.util.DeepCopy;
+import com.netflix.zuul.util.HTTPRequestUtils;
 
 /**
  * The Request Context holds request, response,  state information and data for ZuulFilters to access and share.
@@ -282,12 +288,13 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
     }
 
     /**
-     * sets routeHost
+     * sets routeHost, and starts connecting to it ahead of the route filter if speculative connects are on
      *
      * @param routeHost a URL
      */
     public void setRouteHost(URL routeHost) {
         set("routeHost", routeHost);
+        SpeculativeConnector.onRouteHost(this, routeHost);
     }
 
     /**
@@ -297,6 +304,39 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
         return (URL) get("routeHost");
     }
 
+    /**
+     * sets the time by which the request must be answered
+     *
+     * @param deadlineNanos a System.nanoTime() value
+     */
+    public void setDeadlineNanos(long deadlineNanos) {
+        set("deadlineNanos", deadlineNanos);
+    }
+
+    /**
+     * @return the deadline of the request as a System.nanoTime() value, or null if it has none
+     */
+    public Long getDeadlineNanos() {
+        return (Long) get("deadlineNanos");
+    }
+
+    /**
+     * @return the milliseconds left until the deadline, 0 once it has passed, or Long.MAX_VALUE if there is none
+     */
+    public long getRemainingMillis() {
+        Long deadline = getDeadlineNanos();
+        if (deadline == null) return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * @return true if the request has a deadline and it has passed
+     */
+    public boolean isDeadlineExceeded() {
+        Long deadline = getDeadlineNanos();
+        return deadline != null && deadline - System.nanoTime() <= 0;
+    }
+
     /**
      * appends filter name and status to the filter execution history for the
      * current request
@@ -369,6 +409,22 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
         return (InputStream) get("responseDataStream");
     }
 
+    /**
+     * @return true if the response was served from the response cache, in which case "route" filters are skipped
+     */
+    public boolean isResponseFromCache() {
+        return getBoolean("responseFromCache", false);
+    }
+
+    /**
+     * sets the responseFromCache flag
+     *
+     * @param fromCache
+     */
+    public void setResponseFromCache(boolean fromCache) {
+        set("responseFromCache", Boolean.valueOf(fromCache));
+    }
+
     /**
      * If this value is true then the response should be sent to the client.
      *
@@ -508,6 +564,22 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
         }
     }
 
+    /**
+     * sets the policy used to flush the response body to the client. Overrides the configured zuul.response.flush.policy
+     *
+     * @param policy
+     */
+    public void setResponseFlushPolicy(FlushPolicy policy) {
+        set("responseFlushPolicy", policy);
+    }
+
+    /**
+     * @return the FlushPolicy set for this response, or null to use the default for the response's content type
+     */
+    public FlushPolicy getResponseFlushPolicy() {
+        return (FlushPolicy) get("responseFlushPolicy");
+    }
+
     /**
      * @return true if the request body is chunked
      */
@@ -524,17 +596,18 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
     }
 
     /**
-     * @return true is the client request can accept gzip encoding. Checks the "accept-encoding" header
+     * @return true is the client request can accept gzip encoding. Checks the "accept-encoding" header, honoring q-values
      */
     public boolean isGzipRequested() {
         final String requestEncoding = this.getRequest().getHeader(ZuulHeaders.ACCEPT_ENCODING);
-        return requestEncoding != null && requestEncoding.toLowerCase().contains("gzip");
+        return HTTPRequestUtils.getInstance().acceptsEncoding(requestEncoding, "gzip");
     }
 
     /**
      * unsets the threadLocal context. Done at the end of the request.
      */
     public void unset() {
+        SpeculativeConnector.settle(this);
         threadLocal.remove();
     }
 
@@ -699,6 +772,15 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
             context.setResponseStatusCode(100);
             assertEquals(context.getResponseStatusCode(), 100);
 
+            assertEquals(Long.MAX_VALUE, context.getRemainingMillis());
+            assertFalse(context.isDeadlineExceeded());
+            context.setDeadlineNanos(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+            assertTrue(context.getRemainingMillis() > 9000);
+            assertFalse(context.isDeadlineExceeded());
+            context.setDeadlineNanos(System.nanoTime() - 1);
+            assertEquals(0, context.getRemainingMillis());
+            assertTrue(context.isDeadlineExceeded());
+
         }
 
     }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.context;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.exception.ZuulException;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+/**
+ * The time budget of a request, from its arrival to the last byte of the origin's response head.
+ * <p/>
+ * The deadline is zuul.deadline.default-millis after the request arrives, or sooner when the client sends a shorter
+ * budget in the zuul.deadline.header header (in milliseconds; honored unless zuul.deadline.header.enabled is false).
+ * Without either the request has no deadline and every stage keeps its own timeout.
+ * <p/>
+ * Once the deadline passes, the request is failed with a 504 before it is routed, origin timeouts are cut to what is
+ * left of the budget, and the budget left is sent on to the origin in the same header so it can stop working on a
+ * request the client no longer waits for.
+ */
+public class RequestDeadline {
+
+    public static final int STATUS = 504;
+    public static final String ERROR_CAUSE = "DEADLINE_EXCEEDED";
+
+    private static final DynamicIntProperty DEFAULT_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_DEADLINE_DEFAULT_MILLIS, 0);
+    private static final DynamicStringProperty HEADER =
+            DynamicPropertyFactory.getInstance().getStringProperty(ZuulConstants.ZUUL_DEADLINE_HEADER, "X-Zuul-Timeout-Millis");
+    private static final DynamicBooleanProperty HEADER_ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_DEADLINE_HEADER_ENABLED, true);
+
+    /**
+     * sets the deadline of a request that has just arrived
+     */
+    public static void start(RequestContext context, HttpServletRequest request) {
+        long budget = budgetMillis(DEFAULT_MILLIS.get(), HEADER_ENABLED.get() ? request.getHeader(HEADER.get()) : null);
+        if (budget > 0) context.setDeadlineNanos(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget));
+    }
+
+    /**
+     * @return the shorter of the configured budget and the client's, or 0 for none
+     */
+    static long budgetMillis(long configured, String header) {
+        long budget = Math.max(0, configured);
+        if (header == null) return budget;
+        try {
+            long asked = Long.parseLong(header.trim());
+            // a client that has no time left still gets its answer, a 504, rather than the full budget
+            asked = Math.max(1, asked);
+            return (budget == 0) ? asked : Math.min(budget, asked);
+        } catch (NumberFormatException e) {
+            return budget;
+        }
+    }
+
+    /**
+     * @throws ZuulException if the request's deadline has passed
+     */
+    public static void check(RequestContext context) throws ZuulException {
+        if (context.isDeadlineExceeded()) {
+            throw new ZuulException("request deadline exceeded", STATUS, ERROR_CAUSE);
+        }
+    }
+
+    /**
+     * @return the timeout to use for an origin call of the current request: the configured one, or what is left of
+     *         the budget if that is less, and at least 1ms so that the call times out rather than waits forever
+     */
+    public static int capTimeout(int timeoutMillis) {
+        long remaining = RequestContext.getCurrentContext().getRemainingMillis();
+        if (remaining >= timeoutMillis) return timeoutMillis;
+        return (int) Math.max(1, remaining);
+    }
+
+    /**
+     * @return the name of the header the budget is received and sent in
+     */
+    public static String getHeaderName() {
+        return HEADER.get();
+    }
+
+    /**
+     * @return the value of the header telling the origin what is left of the current request's budget, or null if
+     *         it has no deadline
+     */
+    public static String getHeaderValue() {
+        RequestContext context = RequestContext.getCurrentContext();
+        if (context.getDeadlineNanos() == null) return null;
+        return String.valueOf(Math.max(1, context.getRemainingMillis()));
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class UnitTest {
+
+        @Mock
+        HttpServletRequest request;
+
+        RequestContext context;
+
+        @Before
+        public void before() {
+            context = new RequestContext();
+            RequestContext.testSetCurrentContext(context);
+        }
+
+        @After
+        public void after() {
+            RequestContext.testSetCurrentContext(null);
+        }
+
+        @Test
+        public void budgetIsTheShorterOfConfigAndHeader() {
+            assertEquals(0, budgetMillis(0, null));
+            assertEquals(500, budgetMillis(500, null));
+            assertEquals(200, budgetMillis(0, "200"));
+            assertEquals(200, budgetMillis(500, " 200 "));
+            assertEquals(500, budgetMillis(500, "2000"));
+            assertEquals(500, budgetMillis(500, "soon"));
+            assertEquals(1, budgetMillis(500, "-5"));
+        }
+
+        @Test
+        public void noDeadlineWithoutConfigOrHeader() throws Exception {
+            start(context, request);
+            assertNull(context.getDeadlineNanos());
+            assertNull(getHeaderValue());
+            assertEquals(1000, capTimeout(1000));
+            check(context);
+        }
+
+        @Test
+        public void startsFromTheHeader() {
+            when(request.getHeader(getHeaderName())).thenReturn("300");
+            start(context, request);
+            assertTrue(context.getRemainingMillis() <= 300);
+            assertTrue(context.getRemainingMillis() > 200);
+            assertTrue(Long.parseLong(getHeaderValue()) <= 300);
+            assertTrue(capTimeout(10000) <= 300);
+            assertEquals(100, capTimeout(100));
+        }
+
+        @Test
+        public void failsOnceExceeded() {
+            MonitoringHelper.initMocks();
+            context.setDeadlineNanos(System.nanoTime() - 1);
+            assertEquals(1, capTimeout(1000));
+            assertEquals("1", getHeaderValue());
+            try {
+                check(context);
+                fail();
+            } catch (ZuulException e) {
+                assertEquals(STATUS, e.nStatusCode);
+                assertEquals(ERROR_CAUSE, e.errorCause);
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.annotations.Monitor;
+import com.netflix.servo.annotations.MonitorTags;
+import com.netflix.servo.monitor.Monitors;
+import com.netflix.servo.tag.BasicTag;
+import com.netflix.servo.tag.BasicTagList;
+import com.netflix.servo.tag.TagList;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Housekeeping of the origin connection pools, on one scheduler thread for all of them.
+ * <p/>
+ * Every zuul.pool.maintenance.interval-millis, each registered pool closes the connections that have expired and those
+ * that sat idle for longer than zuul.pool.idle-timeout-millis, and then runs its own maintenance, such as resizing.
+ * Leased, available and pending connections and the connections evicted are published per pool as servo monitors
+ * under zuul.connectionPool, tagged with the pool's name.
+ */
+public class ConnectionPoolMaintenance {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPoolMaintenance.class);
+
+    private static final DynamicIntProperty INTERVAL_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_POOL_MAINTENANCE_INTERVAL_MILLIS, 5000);
+    private static final DynamicIntProperty IDLE_TIMEOUT_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_POOL_IDLE_TIMEOUT_MILLIS, 60000);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConnectionPoolMaintenance-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final ConnectionPoolMaintenance INSTANCE = new ConnectionPoolMaintenance(true);
+
+    private final ConcurrentHashMap<String, PoolMonitor> pools = new ConcurrentHashMap<String, PoolMonitor>();
+    private final boolean publishMetrics;
+    private ScheduledExecutorService scheduler;
+
+    ConnectionPoolMaintenance(boolean publishMetrics) {
+        this.publishMetrics = publishMetrics;
+    }
+
+    /**
+     * @return the maintenance of all pools, scheduled from the first call on
+     */
+    public static ConnectionPoolMaintenance getInstance() {
+        INSTANCE.start();
+        return INSTANCE;
+    }
+
+    private synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintain(IDLE_TIMEOUT_MILLIS.get());
+                } finally {
+                    scheduler.schedule(this, Math.max(100, INTERVAL_MILLIS.get()), TimeUnit.MILLISECONDS);
+                }
+            }
+        }, Math.max(100, INTERVAL_MILLIS.get()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * adds a pool to maintain, replacing the one registered under the same name before, e.g. by a reloaded filter
+     */
+    public void register(String name, Pool pool) {
+        PoolMonitor monitor = pools.get(name);
+        if (monitor == null) {
+            monitor = new PoolMonitor(name);
+            PoolMonitor existing = pools.putIfAbsent(name, monitor);
+            if (existing != null) {
+                monitor = existing;
+            } else if (publishMetrics) {
+                try {
+                    Monitors.registerObject("zuul.connectionPool." + name, monitor);
+                } catch (Throwable t) {
+                    LOG.warn("unable to register connection pool monitors for " + name, t);
+                }
+            }
+        }
+        monitor.pool = pool;
+    }
+
+    void maintain(long idleTimeoutMillis) {
+        for (PoolMonitor monitor : pools.values()) {
+            try {
+                monitor.maintain(idleTimeoutMillis);
+            } catch (Throwable t) {
+                LOG.error("error maintaining connection pool " + monitor.name, t);
+            }
+        }
+    }
+
+    PoolMonitor getMonitor(String name) {
+        return pools.get(name);
+    }
+
+    /**
+     * a connection pool, as seen by its maintenance
+     */
+    public abstract static class Pool {
+
+        /**
+         * closes the connections past their keep-alive expiry
+         */
+        protected abstract void closeExpired();
+
+        /**
+         * closes the connections that have been idle for longer than idleMillis
+         */
+        protected abstract void closeIdle(long idleMillis);
+
+        /**
+         * runs after the idle connections were closed; nothing by default
+         */
+        protected void maintain() {
+        }
+
+        public abstract int getLeased();
+
+        public abstract int getAvailable();
+
+        public abstract int getPending();
+    }
+
+    public static class PoolMonitor {
+        final String name;
+
+        @MonitorTags
+        final TagList tags;
+
+        volatile Pool pool;
+        private final AtomicLong evicted = new AtomicLong();
+
+        PoolMonitor(String name) {
+            this.name = name;
+            this.tags = BasicTagList.of(new BasicTag("pool", name));
+        }
+
+        void maintain(long idleTimeoutMillis) {
+            Pool pool = this.pool;
+            if (pool == null) return;
+            // counted from the idle connections that are gone; a lease between the two reads undercounts
+            int before = pool.getAvailable();
+            pool.closeExpired();
+            pool.closeIdle(idleTimeoutMillis);
+            evicted.addAndGet(Math.max(0, before - pool.getAvailable()));
+            pool.maintain();
+        }
+
+        @Monitor(name = "leased", type = DataSourceType.GAUGE)
+        public int getLeased() {
+            Pool pool = this.pool;
+            return (pool == null) ? 0 : pool.getLeased();
+        }
+
+        @Monitor(name = "available", type = DataSourceType.GAUGE)
+        public int getAvailable() {
+            Pool pool = this.pool;
+            return (pool == null) ? 0 : pool.getAvailable();
+        }
+
+        @Monitor(name = "pending", type = DataSourceType.GAUGE)
+        public int getPending() {
+            Pool pool = this.pool;
+            return (pool == null) ? 0 : pool.getPending();
+        }
+
+        @Monitor(name = "evicted", type = DataSourceType.COUNTER)
+        public long getEvicted() {
+            return evicted.get();
+        }
+    }
+
+    public static class UnitTest {
+
+        static class StubPool extends Pool {
+            int leased = 2;
+            int available = 5;
+            int expired = 1;
+            int idle = 2;
+            long idleMillis;
+            int maintained;
+
+            @Override
+            protected void closeExpired() {
+                available -= expired;
+            }
+
+            @Override
+            protected void closeIdle(long idleMillis) {
+                this.idleMillis = idleMillis;
+                available -= idle;
+            }
+
+            @Override
+            protected void maintain() {
+                maintained++;
+            }
+
+            @Override
+            public int getLeased() {
+                return leased;
+            }
+
+            @Override
+            public int getAvailable() {
+                return available;
+            }
+
+            @Override
+            public int getPending() {
+                return 0;
+            }
+        }
+
+        @Test
+        public void evictsExpiredAndIdleConnections() {
+            ConnectionPoolMaintenance maintenance = new ConnectionPoolMaintenance(false);
+            StubPool pool = new StubPool();
+            maintenance.register("host", pool);
+
+            maintenance.maintain(30000);
+            assertEquals(30000, pool.idleMillis);
+            assertEquals(1, pool.maintained);
+            PoolMonitor monitor = maintenance.getMonitor("host");
+            assertEquals(3, monitor.getEvicted());
+            assertEquals(2, monitor.getAvailable());
+            assertEquals(2, monitor.getLeased());
+
+            pool.expired = 0;
+            pool.idle = 0;
+            maintenance.maintain(30000);
+            assertEquals(3, monitor.getEvicted());
+        }
+
+        @Test
+        public void reRegisteringReplacesThePoolAndKeepsTheCounts() {
+            ConnectionPoolMaintenance maintenance = new ConnectionPoolMaintenance(false);
+            maintenance.register("host", new StubPool());
+            maintenance.maintain(1000);
+            PoolMonitor monitor = maintenance.getMonitor("host");
+
+            StubPool reloaded = new StubPool();
+            maintenance.register("host", reloaded);
+            assertSame(monitor, maintenance.getMonitor("host"));
+            maintenance.maintain(1000);
+            assertEquals(1, reloaded.maintained);
+            assertEquals(6, monitor.getEvicted());
+        }
+
+        @Test
+        public void aFailingPoolDoesNotStopTheOthers() {
+            ConnectionPoolMaintenance maintenance = new ConnectionPoolMaintenance(false);
+            maintenance.register("broken", new StubPool() {
+                @Override
+                protected void closeExpired() {
+                    throw new IllegalStateException("shut down");
+                }
+            });
+            StubPool pool = new StubPool();
+            maintenance.register("host", pool);
+            maintenance.maintain(1000);
+            assertEquals(1, pool.maintained);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens keep-alive connections to origins ahead of traffic, so that a freshly started instance doesn't run TCP and
+ * TLS handshakes on its first user requests. Subclasses lease and connect a connection from the pool that routes
+ * requests, and hand it back to that pool; all connections are held until prewarm() ends so each lease opens a new one.
+ * <p/>
+ * Connections are opened in parallel, and prewarm() returns once they are all open or the time budget is spent.
+ * Failures are logged and otherwise ignored: an origin that can't be reached is connected to on demand as before.
+ * <p/>
+ * Off unless zuul.prewarm.enabled is true. zuul.prewarm.hosts lists origin URLs, e.g.
+ * "http://api.example.com,https://auth.example.com:8443".
+ */
+public abstract class ConnectionPrewarmer<C> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPrewarmer.class);
+
+    private static final int MAX_THREADS = 32;
+
+    private static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_PREWARM_ENABLED, false);
+    private static final DynamicStringProperty HOSTS =
+            DynamicPropertyFactory.getInstance().getStringProperty(ZuulConstants.ZUUL_PREWARM_HOSTS, "");
+    private static final DynamicIntProperty CONNECTIONS_PER_HOST =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_PREWARM_CONNECTIONS_PER_HOST, 4);
+    private static final DynamicIntProperty TIMEOUT_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_PREWARM_TIMEOUT_MILLIS, 10000);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConnectionPrewarmer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final List<C> held = new ArrayList<C>();
+    private boolean finished;
+
+    public static boolean isEnabled() {
+        return ENABLED.get();
+    }
+
+    /**
+     * @return the origins in zuul.prewarm.hosts
+     */
+    public static List<URL> getConfiguredHosts() {
+        return parseHosts(HOSTS.get());
+    }
+
+    static List<URL> parseHosts(String hosts) {
+        List<URL> origins = new ArrayList<URL>();
+        if (hosts == null) return origins;
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) continue;
+            try {
+                origins.add(new URL(host));
+            } catch (MalformedURLException e) {
+                LOG.warn("ignoring malformed prewarm host " + host);
+            }
+        }
+        return origins;
+    }
+
+    /**
+     * leases a connection to origin from the pool and connects it
+     *
+     * @param timeoutMillis what is left of the budget, for waiting on the pool and for connecting
+     */
+    protected abstract C open(URL origin, long timeoutMillis) throws Exception;
+
+    /**
+     * returns an open connection to the pool, keeping it alive
+     */
+    protected abstract void release(C connection);
+
+    /**
+     * @return true if the pool holds an open connection to origin that isn't leased; false if it can't tell
+     */
+    protected boolean hasIdleConnection(URL origin) {
+        return false;
+    }
+
+    /**
+     * opens a single connection to origin, unless the pool has an idle one already, and hands it back to the pool
+     *
+     * @return true if a connection was leased and returned to the pool
+     */
+    public boolean connect(URL origin, long timeoutMillis) throws Exception {
+        if (hasIdleConnection(origin)) return false;
+        releaseQuietly(open(origin, timeoutMillis));
+        return true;
+    }
+
+    /**
+     * prewarms zuul.prewarm.connections-per-host connections to each origin within zuul.prewarm.timeout-millis
+     *
+     * @return the number of connections opened
+     */
+    public int prewarm(List<URL> origins) {
+        return prewarm(origins, CONNECTIONS_PER_HOST.get(), TIMEOUT_MILLIS.get());
+    }
+
+    /**
+     * @return the number of connections opened
+     */
+    public int prewarm(List<URL> origins, int connectionsPerOrigin, long budgetMillis) {
+        int total = origins.size() * connectionsPerOrigin;
+        if (total <= 0) return 0;
+
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(total, MAX_THREADS), THREAD_FACTORY);
+        try {
+            for (final URL origin : origins) {
+                for (int i = 0; i < connectionsPerOrigin; i++) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                            if (remaining <= 0) return;
+                            try {
+                                hold(open(origin, remaining));
+                            } catch (Exception e) {
+                                failures.incrementAndGet();
+                                LOG.debug("could not prewarm a connection to " + origin, e);
+                            }
+                        }
+                    });
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<C> opened;
+        synchronized (held) {
+            finished = true;
+            opened = new ArrayList<C>(held);
+            held.clear();
+        }
+        for (C connection : opened) {
+            releaseQuietly(connection);
+        }
+        LOG.info("prewarmed " + opened.size() + " of " + total + " connections to " + origins.size() + " origins in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, " + failures.get() + " failed");
+        return opened.size();
+    }
+
+    private void hold(C connection) {
+        synchronized (held) {
+            if (!finished) {
+                held.add(connection);
+                return;
+            }
+        }
+        // opened after the budget ran out
+        releaseQuietly(connection);
+    }
+
+    private void releaseQuietly(C connection) {
+        try {
+            release(connection);
+        } catch (Exception e) {
+            LOG.debug("error releasing a prewarmed connection", e);
+        }
+    }
+
+    public static class UnitTest {
+
+        static class CountingPrewarmer extends ConnectionPrewarmer<String> {
+            final ConcurrentHashMap<String, AtomicInteger> opened = new ConcurrentHashMap<String, AtomicInteger>();
+            final AtomicInteger open = new AtomicInteger();
+            final AtomicInteger maxOpen = new AtomicInteger();
+            final AtomicInteger released = new AtomicInteger();
+
+            @Override
+            protected String open(URL origin, long timeoutMillis) throws Exception {
+                AtomicInteger count = opened.get(origin.getHost());
+                if (count == null) {
+                    opened.putIfAbsent(origin.getHost(), new AtomicInteger());
+                    count = opened.get(origin.getHost());
+                }
+                count.incrementAndGet();
+                int n = open.incrementAndGet();
+                while (true) {
+                    int max = maxOpen.get();
+                    if (n <= max || maxOpen.compareAndSet(max, n)) break;
+                }
+                return origin.getHost();
+            }
+
+            @Override
+            protected void release(String connection) {
+                open.decrementAndGet();
+                released.incrementAndGet();
+            }
+        }
+
+        @Test
+        public void parsesHosts() {
+            List<URL> hosts = parseHosts(" http://a.example.com , https://b.example.com:8443,,not a url");
+            assertEquals(2, hosts.size());
+            assertEquals("a.example.com", hosts.get(0).getHost());
+            assertEquals(8443, hosts.get(1).getPort());
+            assertEquals(0, parseHosts("").size());
+        }
+
+        @Test
+        public void holdsEveryConnectionUntilAllAreOpen() throws Exception {
+            CountingPrewarmer prewarmer = new CountingPrewarmer();
+            List<URL> origins = Arrays.asList(new URL("http://a.example.com"), new URL("http://b.example.com"));
+
+            assertEquals(6, prewarmer.prewarm(origins, 3, 5000));
+            assertEquals(3, prewarmer.opened.get("a.example.com").get());
+            assertEquals(3, prewarmer.opened.get("b.example.com").get());
+            assertEquals(6, prewarmer.maxOpen.get());
+            assertEquals(6, prewarmer.released.get());
+            assertEquals(0, prewarmer.open.get());
+        }
+
+        @Test
+        public void connectOpensOneConnectionUnlessOneIsIdle() throws Exception {
+            final AtomicInteger idle = new AtomicInteger();
+            CountingPrewarmer prewarmer = new CountingPrewarmer() {
+                @Override
+                protected boolean hasIdleConnection(URL origin) {
+                    return idle.get() > 0;
+                }
+            };
+            URL origin = new URL("http://a.example.com");
+
+            assertTrue(prewarmer.connect(origin, 1000));
+            assertEquals(1, prewarmer.opened.get("a.example.com").get());
+            assertEquals(0, prewarmer.open.get());
+            idle.set(1);
+            assertFalse(prewarmer.connect(origin, 1000));
+            assertEquals(1, prewarmer.opened.get("a.example.com").get());
+        }
+
+        @Test
+        public void ignoresFailures() throws Exception {
+            CountingPrewarmer prewarmer = new CountingPrewarmer() {
+                @Override
+                protected String open(URL origin, long timeoutMillis) throws Exception {
+                    if (origin.getHost().equals("down.example.com")) throw new java.net.ConnectException("refused");
+                    return super.open(origin, timeoutMillis);
+                }
+            };
+            List<URL> origins = Arrays.asList(new URL("http://down.example.com"), new URL("http://up.example.com"));
+
+            assertEquals(2, prewarmer.prewarm(origins, 2, 5000));
+            assertEquals(2, prewarmer.released.get());
+        }
+
+        @Test
+        public void stopsAtTheBudgetAndReleasesLateConnections() throws Exception {
+            final CountDownLatch slow = new CountDownLatch(1);
+            CountingPrewarmer prewarmer = new CountingPrewarmer() {
+                @Override
+                protected String open(URL origin, long timeoutMillis) throws Exception {
+                    if (origin.getHost().equals("slow.example.com")) {
+                        while (true) {
+                            try {
+                                slow.await();
+                                break;
+                            } catch (InterruptedException ignored) {
+                                // a connect that doesn't respond to interrupts
+                            }
+                        }
+                    }
+                    return super.open(origin, timeoutMillis);
+                }
+            };
+            List<URL> origins = Arrays.asList(new URL("http://slow.example.com"), new URL("http://fast.example.com"));
+
+            long start = System.currentTimeMillis();
+            assertEquals(1, prewarmer.prewarm(origins, 1, 200));
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            assertEquals(1, prewarmer.released.get());
+
+            slow.countDown();
+            for (int i = 0; i < 100 && prewarmer.released.get() < 2; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(2, prewarmer.released.get());
+            assertEquals(0, prewarmer.open.get());
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.annotations.Monitor;
+import com.netflix.servo.monitor.Monitors;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Host name resolution for the host routing clients, cached for zuul.dns.cache.ttl-millis and refreshed off the
+ * request path.
+ * <p/>
+ * A request for a name whose entry has expired is answered from the entry while one background lookup refreshes it,
+ * so request threads only block on DNS for names they have never resolved, or whose entry is older than
+ * zuul.dns.cache.stale-millis past its expiry. A failed refresh keeps the entry, so an outage of the name servers
+ * doesn't take down routes that resolved before it. Every call rotates the addresses of a name, so connects spread over
+ * all of its A records while the client can still fall back on the others.
+ * <p/>
+ * The JVM doesn't expose the TTL of the records it resolves, so entries live for the configured TTL. Lookups, their
+ * total time, failures and stale answers are published as servo monitors under zuul.dnsCache. Off unless
+ * zuul.dns.cache.enabled is true; until then names are resolved as before, through the JVM's own cache.
+ */
+public class DnsCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DnsCache.class);
+
+    static final int MAX_ENTRIES = 4096;
+
+    private static final int REFRESH_THREADS = 2;
+    private static final int MAX_QUEUED_REFRESHES = 256;
+
+    private static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_DNS_CACHE_ENABLED, false);
+    private static final DynamicIntProperty TTL_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_DNS_CACHE_TTL_MILLIS, 30000);
+    private static final DynamicIntProperty STALE_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_DNS_CACHE_STALE_MILLIS, 300000);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DnsRefresh-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final DnsCache INSTANCE = new DnsCache(newExecutor());
+
+    static {
+        try {
+            Monitors.registerObject("zuul.dnsCache", INSTANCE);
+        } catch (Throwable t) {
+            LOG.warn("unable to register dns cache monitors", t);
+        }
+    }
+
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupMillis = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong staleAnswers = new AtomicLong();
+
+    DnsCache(Executor executor) {
+        this.executor = executor;
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REFRESHES), THREAD_FACTORY);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED.get();
+    }
+
+    public static DnsCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the addresses of host, starting with a different one on each call if it has several
+     * @throws UnknownHostException if host can't be resolved and has no entry to fall back on
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (!ENABLED.get()) return InetAddress.getAllByName(host);
+        return resolve(host, System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS.get()),
+                TimeUnit.MILLISECONDS.toNanos(STALE_MILLIS.get()));
+    }
+
+    InetAddress[] resolve(String host, long now, long ttlNanos, long staleNanos) throws UnknownHostException {
+        String name = host.toLowerCase(Locale.ROOT);
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            long age = now - entry.resolvedAt;
+            if (age < ttlNanos) return entry.next();
+            if (age < ttlNanos + staleNanos) {
+                staleAnswers.incrementAndGet();
+                refresh(name, entry, now);
+                return entry.next();
+            }
+        }
+        return lookupAndStore(name, now).next();
+    }
+
+    private void refresh(final String name, final Entry entry, final long now) {
+        if (!entry.refreshing.compareAndSet(false, true)) return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookupAndStore(name, now);
+                    } catch (UnknownHostException e) {
+                        LOG.warn("unable to refresh " + name + ", still using " + entry.addresses.length + " addresses resolved before: " + e.getMessage());
+                    } catch (Throwable t) {
+                        LOG.error("error refreshing " + name, t);
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the next request for the name tries again
+            entry.refreshing.set(false);
+        }
+    }
+
+    private Entry lookupAndStore(String name, long now) throws UnknownHostException {
+        long start = System.nanoTime();
+        lookups.incrementAndGet();
+        try {
+            Entry entry = new Entry(lookup(name), now);
+            if (entries.size() < MAX_ENTRIES || entries.containsKey(name)) entries.put(name, entry);
+            return entry;
+        } catch (UnknownHostException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            lookupMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * resolves a name with the JVM's resolver
+     */
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    @Monitor(name = "lookups", type = DataSourceType.COUNTER)
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    @Monitor(name = "lookupMillis", type = DataSourceType.COUNTER)
+    public long getLookupMillis() {
+        return lookupMillis.get();
+    }
+
+    @Monitor(name = "failures", type = DataSourceType.COUNTER)
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Monitor(name = "staleAnswers", type = DataSourceType.COUNTER)
+    public long getStaleAnswers() {
+        return staleAnswers.get();
+    }
+
+    @Monitor(name = "entries", type = DataSourceType.GAUGE)
+    public int getEntries() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long resolvedAt;
+        final AtomicInteger next = new AtomicInteger(ThreadLocalRandom.current().nextInt(1024));
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+
+        InetAddress[] next() {
+            int n = addresses.length;
+            InetAddress[] rotated = new InetAddress[n];
+            if (n == 0) return rotated;
+            int first = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+            for (int i = 0; i < n; i++) rotated[i] = addresses[(first + i) % n];
+            return rotated;
+        }
+    }
+
+    public static class UnitTest {
+
+        private static final long TTL = TimeUnit.SECONDS.toNanos(30);
+        private static final long STALE = TimeUnit.SECONDS.toNanos(300);
+
+        private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        private static InetAddress address(String host, int last) throws UnknownHostException {
+            return InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) last});
+        }
+
+        static class StubDnsCache extends DnsCache {
+            final AtomicInteger lookups = new AtomicInteger();
+            volatile InetAddress[] answer;
+
+            StubDnsCache(Executor executor, InetAddress... answer) {
+                super(executor);
+                this.answer = answer;
+            }
+
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                lookups.incrementAndGet();
+                if (answer == null) throw new UnknownHostException(host);
+                return answer;
+            }
+        }
+
+        @Test
+        public void cachesForTheTtl() throws Exception {
+            InetAddress a = address("api", 1);
+            StubDnsCache cache = new StubDnsCache(DIRECT, a);
+            long now = System.nanoTime();
+            assertSame(a, cache.resolve("API", now, TTL, STALE)[0]);
+            assertSame(a, cache.resolve("api", now + TTL - 1, TTL, STALE)[0]);
+            assertEquals(1, cache.lookups.get());
+            assertEquals(1, cache.getEntries());
+        }
+
+        @Test
+        public void answersExpiredEntriesWhileRefreshingInTheBackground() throws Exception {
+            final List<Runnable> queued = new ArrayList<Runnable>();
+            Executor later = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    queued.add(command);
+                }
+            };
+            InetAddress a = address("api", 1);
+            InetAddress b = address("api", 2);
+            StubDnsCache cache = new StubDnsCache(later, a);
+            long now = System.nanoTime();
+            cache.resolve("api", now, TTL, STALE);
+
+            cache.answer = new InetAddress[]{b};
+            assertSame(a, cache.resolve("api", now + TTL, TTL, STALE)[0]);
+            assertSame(a, cache.resolve("api", now + TTL + 1, TTL, STALE)[0]);
+            assertEquals(1, queued.size());
+            assertEquals(1, cache.lookups.get());
+
+            queued.get(0).run();
+            assertSame(b, cache.resolve("api", now + TTL + 2, TTL, STALE)[0]);
+            assertEquals(2, cache.getStaleAnswers());
+        }
+
+        @Test
+        public void keepsTheEntryWhenARefreshFails() throws Exception {
+            InetAddress a = address("api", 1);
+            StubDnsCache cache = new StubDnsCache(DIRECT, a);
+            long now = System.nanoTime();
+            cache.resolve("api", now, TTL, STALE);
+
+            cache.answer = null;
+            assertSame(a, cache.resolve("api", now + TTL, TTL, STALE)[0]);
+            assertSame(a, cache.resolve("api", now + TTL + STALE - 1, TTL, STALE)[0]);
+            assertEquals(2, cache.getFailures());
+        }
+
+        @Test
+        public void resolvesOnTheRequestPastTheStaleWindow() throws Exception {
+            InetAddress a = address("api", 1);
+            StubDnsCache cache = new StubDnsCache(DIRECT, a);
+            long now = System.nanoTime();
+            cache.resolve("api", now, TTL, STALE);
+
+            cache.answer = null;
+            try {
+                cache.resolve("api", now + TTL + STALE, TTL, STALE);
+                fail();
+            } catch (UnknownHostException expected) {
+            }
+            InetAddress b = address("api", 2);
+            cache.answer = new InetAddress[]{b};
+            assertSame(b, cache.resolve("api", now + TTL + STALE, TTL, STALE)[0]);
+        }
+
+        @Test
+        public void rotatesOverAllRecords() throws Exception {
+            InetAddress[] records = {address("api", 1), address("api", 2), address("api", 3)};
+            StubDnsCache cache = new StubDnsCache(DIRECT, records);
+            long now = System.nanoTime();
+            Set<InetAddress> first = new HashSet<InetAddress>();
+            for (int i = 0; i < 3; i++) {
+                InetAddress[] answer = cache.resolve("api", now, TTL, STALE);
+                assertEquals(3, answer.length);
+                assertEquals(3, new HashSet<InetAddress>(Arrays.asList(answer)).size());
+                first.add(answer[0]);
+            }
+            assertEquals(3, first.size());
+            assertArrayEquals(new InetAddress[]{address("api", 1), address("api", 2), address("api", 3)}, records);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A group of interchangeable origin hosts for host routes, with a health state per member.
+ * <p/>
+ * Members are probed with a GET of the group's health path, and a member is down from its first failed probe, or from
+ * a failed connect to it reported with markDown(), until two probes in a row succeed. Requests are spread round robin
+ * over the members that are up, and a route to a member that is down fails over to one that is up, so no request waits
+ * on a connect to a host known to be dead.
+ */
+public class HostGroup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HostGroup.class);
+
+    // probes in a row it takes to bring a member back up
+    static final int RISE = 2;
+
+    private final String name;
+    private final String healthPath;
+    private final List<Member> members;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param healthPath the path probed on each member, e.g. "/healthcheck"
+     */
+    public HostGroup(String name, List<URL> hosts, String healthPath) {
+        if (hosts.isEmpty()) throw new IllegalArgumentException("host group " + name + " has no hosts");
+        this.name = name;
+        this.healthPath = healthPath.startsWith("/") ? healthPath : "/" + healthPath;
+        List<Member> members = new ArrayList<Member>();
+        for (URL host : hosts) members.add(new Member(host));
+        this.members = Collections.unmodifiableList(members);
+    }
+
+    /**
+     * @return the key hosts are known by: scheme, host and port, with the scheme's default port if there is none
+     */
+    public static String key(String scheme, String host, int port) {
+        scheme = (scheme == null) ? "http" : scheme.toLowerCase();
+        if (port == -1) port = "https".equals(scheme) ? 443 : 80;
+        return scheme + "://" + host.toLowerCase() + ":" + port;
+    }
+
+    static String key(URL url) {
+        return key(url.getProtocol(), url.getHost(), url.getPort());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHealthPath() {
+        return healthPath;
+    }
+
+    public List<URL> getHosts() {
+        List<URL> hosts = new ArrayList<URL>();
+        for (Member member : members) hosts.add(member.url);
+        return hosts;
+    }
+
+    /**
+     * @return true if the host is a member of the group
+     */
+    public boolean contains(URL host) {
+        return member(key(host)) != null;
+    }
+
+    boolean hasMember(String key) {
+        return member(key) != null;
+    }
+
+    /**
+     * @return true unless the host is a member known to be down
+     */
+    public boolean isUp(URL host) {
+        Member member = member(key(host));
+        return member == null || member.up;
+    }
+
+    /**
+     * @return the next member that is up, round robin, or null if all are down
+     */
+    public URL choose() {
+        int n = members.size();
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            Member member = members.get((start + i) % n);
+            if (member.up) return member.url;
+        }
+        return null;
+    }
+
+    /**
+     * @return the host itself unless it is a member that is down, in which case another member that is up, or null
+     *         if all are down
+     */
+    public URL failover(URL host) {
+        Member member = member(key(host));
+        if (member == null || member.up) return host;
+        return choose();
+    }
+
+    /**
+     * takes a member out of the group until probes find it healthy again, e.g. after a connect to it failed
+     */
+    public void markDown(String key) {
+        Member member = member(key);
+        if (member != null) down(member, "connect failed");
+    }
+
+    /**
+     * probes every member that isn't being probed already
+     */
+    void probe(Executor executor, final int timeoutMillis) {
+        for (final Member member : members) {
+            if (!member.probing.compareAndSet(false, true)) continue;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onProbe(member, isHealthy(member.url, timeoutMillis));
+                    } finally {
+                        member.probing.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    boolean isHealthy(URL host, int timeoutMillis) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(host.getProtocol(), host.getHost(), host.getPort(), healthPath).openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            int status = connection.getResponseCode();
+            InputStream body = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                byte[] skip = new byte[1024];
+                while (body.read(skip) != -1) ;
+                body.close();
+            }
+            return status >= 200 && status < 400;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    private void onProbe(Member member, boolean healthy) {
+        if (!healthy) {
+            down(member, "health probe failed");
+            return;
+        }
+        synchronized (member) {
+            if (member.up) return;
+            if (++member.successes < RISE) return;
+            member.up = true;
+        }
+        LOG.info("host " + member.url + " of group " + name + " is up");
+    }
+
+    private void down(Member member, String reason) {
+        synchronized (member) {
+            member.successes = 0;
+            if (!member.up) return;
+            member.up = false;
+        }
+        LOG.warn("host " + member.url + " of group " + name + " is down: " + reason);
+    }
+
+    private Member member(String key) {
+        for (Member member : members) {
+            if (member.key.equals(key)) return member;
+        }
+        return null;
+    }
+
+    private static class Member {
+        final URL url;
+        final String key;
+        final AtomicBoolean probing = new AtomicBoolean();
+        // members are taken to be up until probed
+        volatile boolean up = true;
+        int successes;
+
+        Member(URL url) {
+            this.url = url;
+            this.key = key(url);
+        }
+    }
+
+    public static class UnitTest {
+
+        private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        private HttpServer server;
+        private volatile int status = 200;
+        private URL live;
+        private URL dead;
+
+        @Before
+        public void before() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+            server.createContext("/healthcheck", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    exchange.sendResponseHeaders(status, -1);
+                    exchange.close();
+                }
+            });
+            server.start();
+            live = new URL("http://localhost:" + server.getAddress().getPort());
+            ServerSocket socket = new ServerSocket(0);
+            dead = new URL("http://localhost:" + socket.getLocalPort());
+            socket.close();
+        }
+
+        @After
+        public void after() {
+            server.stop(0);
+        }
+
+        @Test
+        public void choosesMembersRoundRobin() throws Exception {
+            URL a = new URL("http://a.example.com");
+            URL b = new URL("http://b.example.com:8080");
+            HostGroup group = new HostGroup("test", Arrays.asList(a, b), "/healthcheck");
+            // URL.equals resolves host names, so compare their strings
+            Set<String> chosen = new HashSet<String>();
+            chosen.add(group.choose().toString());
+            chosen.add(group.choose().toString());
+            assertEquals(2, chosen.size());
+        }
+
+        @Test
+        public void downMembersAreExcludedAtOnce() throws Exception {
+            URL a = new URL("http://a.example.com");
+            URL b = new URL("http://b.example.com");
+            HostGroup group = new HostGroup("test", Arrays.asList(a, b), "/healthcheck");
+            group.markDown(key("http", "a.example.com", -1));
+            assertFalse(group.isUp(a));
+            for (int i = 0; i < 10; i++) assertSame(b, group.choose());
+            assertSame(b, group.failover(a));
+            assertSame(b, group.failover(b));
+
+            group.markDown(key("HTTP", "B.example.com", 80));
+            assertNull(group.choose());
+            assertNull(group.failover(a));
+        }
+
+        @Test
+        public void hostsOutsideTheGroupAreLeftAlone() throws Exception {
+            URL other = new URL("http://other.example.com");
+            HostGroup group = new HostGroup("test", Collections.singletonList(new URL("http://a.example.com")), "/healthcheck");
+            assertFalse(group.contains(other));
+            assertTrue(group.isUp(other));
+            assertSame(other, group.failover(other));
+        }
+
+        @Test
+        public void probesTakeDeadMembersOut() {
+            HostGroup group = new HostGroup("test", Arrays.asList(live, dead), "healthcheck");
+            group.probe(DIRECT, 500);
+            assertTrue(group.isUp(live));
+            assertFalse(group.isUp(dead));
+            assertEquals(live, group.choose());
+        }
+
+        @Test
+        public void membersComeBackAfterConsecutiveHealthyProbes() {
+            HostGroup group = new HostGroup("test", Collections.singletonList(live), "/healthcheck");
+            status = 503;
+            group.probe(DIRECT, 500);
+            assertFalse(group.isUp(live));
+            status = 200;
+            group.probe(DIRECT, 500);
+            assertFalse(group.isUp(live));
+            group.probe(DIRECT, 500);
+            assertTrue(group.isUp(live));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.exception.ZuulException;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The host groups of the zuul.hostgroup properties, probed in the background and kept up to date as the properties
+ * change.
+ * <p/>
+ * zuul.hostgroup.names lists the groups, zuul.hostgroup.&lt;name&gt;.hosts the URLs of a group, e.g.
+ * "http://api-1.example.com,http://api-2.example.com", and zuul.hostgroup.&lt;name&gt;.health-path the path its members
+ * are probed on, zuul.hostgroup.health-path ("/healthcheck") by default. When zuul.default.host lists more than one
+ * URL, they make up the "default" group. Every zuul.hostgroup.probe-interval-millis, each member is probed with a
+ * timeout of zuul.hostgroup.probe-timeout-millis.
+ * <p/>
+ * Host routing filters resolve() the route host before connecting, and report failed connects with markDown().
+ */
+public class HostGroups {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HostGroups.class);
+
+    public static final String DEFAULT_GROUP = "default";
+    public static final int STATUS = 503;
+    public static final String ERROR_CAUSE = "NO_HEALTHY_HOST";
+
+    private static final DynamicPropertyFactory PROPERTIES = DynamicPropertyFactory.getInstance();
+
+    private static final DynamicStringProperty NAMES = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_HOSTGROUP_NAMES, "");
+    private static final DynamicStringProperty DEFAULT_HOST = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_DEFAULT_HOST, null);
+    private static final DynamicStringProperty HEALTH_PATH =
+            PROPERTIES.getStringProperty(ZuulConstants.ZUUL_HOSTGROUP_HEALTH_PATH, "/healthcheck");
+    private static final DynamicIntProperty PROBE_INTERVAL_MILLIS =
+            PROPERTIES.getIntProperty(ZuulConstants.ZUUL_HOSTGROUP_PROBE_INTERVAL_MILLIS, 2000);
+    private static final DynamicIntProperty PROBE_TIMEOUT_MILLIS =
+            PROPERTIES.getIntProperty(ZuulConstants.ZUUL_HOSTGROUP_PROBE_TIMEOUT_MILLIS, 500);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HostGroupProbe-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final HostGroups INSTANCE = new HostGroups();
+
+    private final Set<String> watched = new HashSet<String>();
+    private final Runnable rebuild = new Runnable() {
+        @Override
+        public void run() {
+            rebuild();
+        }
+    };
+    private volatile Map<String, HostGroup> groups = Collections.emptyMap();
+    private ScheduledExecutorService scheduler;
+    private ExecutorService probes;
+    // read on every call to getInstance(), which the routing filters make per request, so that only the first locks
+    private volatile boolean started;
+
+    HostGroups() {
+    }
+
+    /**
+     * @return the groups of the zuul.hostgroup properties, probed from the first call on
+     */
+    public static HostGroups getInstance() {
+        if (!INSTANCE.started) INSTANCE.start();
+        return INSTANCE;
+    }
+
+    private synchronized void start() {
+        if (started) return;
+        watch(NAMES);
+        watch(DEFAULT_HOST);
+        watch(HEALTH_PATH);
+        rebuild();
+        scheduler = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        probes = Executors.newCachedThreadPool(THREAD_FACTORY);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (HostGroup group : groups.values()) {
+                        group.probe(probes, PROBE_TIMEOUT_MILLIS.get());
+                    }
+                } catch (Throwable t) {
+                    LOG.error("error probing host groups", t);
+                } finally {
+                    scheduler.schedule(this, Math.max(100, PROBE_INTERVAL_MILLIS.get()), TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        started = true;
+    }
+
+    private void watch(DynamicStringProperty property) {
+        if (watched.add(property.getName())) property.addCallback(rebuild);
+    }
+
+    synchronized void rebuild() {
+        Map<String, HostGroup> current = groups;
+        Map<String, HostGroup> built = new HashMap<String, HostGroup>();
+        for (String name : NAMES.get().split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            DynamicStringProperty hosts = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_HOSTGROUP + name + ".hosts", "");
+            DynamicStringProperty healthPath = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_HOSTGROUP + name + ".health-path", null);
+            watch(hosts);
+            watch(healthPath);
+            add(built, current, name, hosts.get(), (healthPath.get() != null) ? healthPath.get() : HEALTH_PATH.get());
+        }
+        String defaultHost = DEFAULT_HOST.get();
+        if (defaultHost != null && defaultHost.contains(",") && !built.containsKey(DEFAULT_GROUP)) {
+            add(built, current, DEFAULT_GROUP, defaultHost, HEALTH_PATH.get());
+        }
+        groups = Collections.unmodifiableMap(built);
+    }
+
+    /**
+     * adds a group, keeping the one built before, and the health it knows of, if its hosts didn't change
+     */
+    private static void add(Map<String, HostGroup> built, Map<String, HostGroup> current, String name, String hosts, String healthPath) {
+        List<URL> urls = parseHosts(hosts);
+        if (urls.isEmpty()) {
+            LOG.warn("host group " + name + " has no hosts");
+            return;
+        }
+        HostGroup existing = current.get(name);
+        if (existing != null && existing.getHosts().toString().equals(urls.toString())
+                && existing.getHealthPath().equals(healthPath.startsWith("/") ? healthPath : "/" + healthPath)) {
+            built.put(name, existing);
+        } else {
+            built.put(name, new HostGroup(name, urls, healthPath));
+        }
+    }
+
+    /**
+     * @return the URLs of a comma separated list, skipping the malformed ones
+     */
+    static List<URL> parseHosts(String spec) {
+        List<URL> urls = new ArrayList<URL>();
+        if (spec == null) return urls;
+        for (String host : spec.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) continue;
+            try {
+                urls.add(new URL(host));
+            } catch (MalformedURLException e) {
+                LOG.warn("ignoring host \"" + host + "\": " + e.getMessage());
+            }
+        }
+        return urls;
+    }
+
+    void setGroups(Map<String, HostGroup> groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * @return the group of a name, or null
+     */
+    public HostGroup get(String name) {
+        return groups.get(name);
+    }
+
+    /**
+     * @return the group a host is a member of, or null
+     */
+    public HostGroup groupOf(String scheme, String host, int port) {
+        String key = HostGroup.key(scheme, host, port);
+        for (HostGroup group : groups.values()) {
+            if (group.hasMember(key)) return group;
+        }
+        return null;
+    }
+
+    /**
+     * @return the host to route to in place of the route host: the host itself unless it is a member of a group that
+     *         is down, in which case another member of the group that is up
+     * @throws ZuulException with a 503 if the host and all other members of its group are down
+     */
+    public URL resolve(URL host) throws ZuulException {
+        if (host == null) return null;
+        for (HostGroup group : groups.values()) {
+            if (!group.contains(host)) continue;
+            URL resolved = group.failover(host);
+            if (resolved == null) {
+                throw new ZuulException("no healthy host in group " + group.getName(), STATUS, ERROR_CAUSE);
+            }
+            return resolved;
+        }
+        return host;
+    }
+
+    /**
+     * takes a host out of its groups until probes find it healthy again; call it when a connect to the host failed
+     */
+    public void markDown(String scheme, String host, int port) {
+        String key = HostGroup.key(scheme, host, port);
+        for (HostGroup group : groups.values()) {
+            group.markDown(key);
+        }
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void startsOnce() {
+            HostGroups groups = getInstance();
+            assertTrue(groups.started);
+            ScheduledExecutorService scheduler = groups.scheduler;
+            assertSame(groups, getInstance());
+            assertSame(scheduler, groups.scheduler);
+        }
+
+        @Test
+        public void parsesHosts() {
+            List<URL> urls = parseHosts(" http://a.example.com, ,nonsense,https://b.example.com:8443/ ");
+            assertEquals(2, urls.size());
+            assertEquals("a.example.com", urls.get(0).getHost());
+            assertEquals(8443, urls.get(1).getPort());
+        }
+
+        @Test
+        public void resolvesDownHostsToAnotherMember() throws Exception {
+            URL a = new URL("http://a.example.com");
+            URL b = new URL("http://b.example.com");
+            URL other = new URL("http://other.example.com");
+            HostGroups groups = new HostGroups();
+            groups.setGroups(Collections.singletonMap("api", new HostGroup("api", Arrays.asList(a, b), "/healthcheck")));
+
+            assertSame(a, groups.resolve(a));
+            assertSame(other, groups.resolve(other));
+            groups.markDown("http", "a.example.com", 80);
+            assertSame(b, groups.resolve(a));
+            assertNull(groups.resolve(null));
+        }
+
+        @Test
+        public void failsFastWhenTheWholeGroupIsDown() throws Exception {
+            MonitoringHelper.initMocks();
+            URL a = new URL("http://a.example.com");
+            HostGroups groups = new HostGroups();
+            groups.setGroups(Collections.singletonMap("api", new HostGroup("api", Collections.singletonList(a), "/healthcheck")));
+            groups.markDown("http", "a.example.com", -1);
+            try {
+                groups.resolve(a);
+                fail();
+            } catch (ZuulException e) {
+                assertEquals(STATUS, e.nStatusCode);
+                assertEquals(ERROR_CAUSE, e.errorCause);
+            }
+        }
+    }
+}
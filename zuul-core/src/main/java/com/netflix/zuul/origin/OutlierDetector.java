@@ -0,0 +1,489 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.annotations.Monitor;
+import com.netflix.servo.annotations.MonitorTags;
+import com.netflix.servo.monitor.Monitors;
+import com.netflix.servo.tag.BasicTag;
+import com.netflix.servo.tag.BasicTagList;
+import com.netflix.servo.tag.TagList;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Passive health checking of the instances of a pool, e.g. the servers of a Ribbon client, from the outcome of the
+ * requests routed to them. An instance is ejected, i.e. taken out of routing for a while, when
+ * <ul>
+ * <li>zuul.outlier.consecutive-failures requests to it in a row failed or got a 5xx, or</li>
+ * <li>over an interval of zuul.outlier.interval-millis, its average latency was more than zuul.outlier.latency-factor
+ * times the median of the pool's instances; only instances with zuul.outlier.min-requests successful requests in the
+ * interval are compared, and only when there are at least three.</li>
+ * </ul>
+ * An ejection lasts zuul.outlier.base-ejection-millis times the number of times the instance was ejected recently, up
+ * to ten times; an interval without ejection lowers that number by one. No more than zuul.outlier.max-ejection-percent
+ * of the instances seen are ejected at once, so a pool of one instance is never ejected.
+ * <p/>
+ * The origins of host routes are pooled by host group, see forHost(). Those outside any group aren't interchangeable,
+ * so their shared pool only ejects on consecutive failures, and never compares their latencies.
+ * <p/>
+ * Requests are counted on per instance atomics; the detector is only locked to end an interval, or to eject.
+ * <p/>
+ * Off unless zuul.outlier.enabled is true. Ejections, the number of ejected instances and their names are published as
+ * servo metrics tagged with the pool's name.
+ */
+public class OutlierDetector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutlierDetector.class);
+
+    /**
+     * the pool of the origins routed to by host outside host groups, and the prefix of those of the groups
+     */
+    public static final String HOST_POOL = "host";
+
+    private static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_OUTLIER_ENABLED, false);
+    private static final DynamicIntProperty CONSECUTIVE_FAILURES =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_OUTLIER_CONSECUTIVE_FAILURES, 5);
+    private static final DynamicIntProperty INTERVAL_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_OUTLIER_INTERVAL_MILLIS, 10000);
+    private static final DynamicIntProperty MIN_REQUESTS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_OUTLIER_MIN_REQUESTS, 20);
+    private static final DynamicIntProperty LATENCY_FACTOR =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_OUTLIER_LATENCY_FACTOR, 3);
+    private static final DynamicIntProperty BASE_EJECTION_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_OUTLIER_BASE_EJECTION_MILLIS, 30000);
+    private static final DynamicIntProperty MAX_EJECTION_PERCENT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_OUTLIER_MAX_EJECTION_PERCENT, 50);
+
+    static final int MIN_HOSTS_FOR_LATENCY = 3;
+    static final int MAX_EJECTION_MULTIPLIER = 10;
+    // latencies this low are all healthy, however they compare
+    static final long MIN_OUTLIER_LATENCY_MILLIS = 10;
+    // instances without requests for this many intervals are forgotten
+    static final int IDLE_INTERVALS = 6;
+
+    private static final ConcurrentHashMap<String, OutlierDetector> DETECTORS = new ConcurrentHashMap<String, OutlierDetector>();
+
+    @MonitorTags
+    final TagList tags;
+
+    private final boolean compareLatency;
+    private final ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<String, HostState>();
+    private final AtomicLong ejections = new AtomicLong();
+
+    // written under the lock only
+    private volatile long intervalStart;
+
+    OutlierDetector(String pool) {
+        this(pool, true);
+    }
+
+    OutlierDetector(String pool, boolean compareLatency) {
+        this.tags = BasicTagList.of(new BasicTag("pool", pool));
+        this.compareLatency = compareLatency;
+        this.intervalStart = System.nanoTime();
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED.get();
+    }
+
+    /**
+     * @return the detector of a pool, created on first use
+     */
+    public static OutlierDetector forPool(String pool) {
+        OutlierDetector detector = DETECTORS.get(pool);
+        if (detector != null) return detector;
+        detector = new OutlierDetector(pool, !HOST_POOL.equals(pool));
+        OutlierDetector existing = DETECTORS.putIfAbsent(pool, detector);
+        if (existing != null) return existing;
+        try {
+            Monitors.registerObject("zuul.outlierDetector." + pool, detector);
+        } catch (Throwable t) {
+            LOG.warn("unable to register outlier monitors for " + pool, t);
+        }
+        return detector;
+    }
+
+    /**
+     * @return the detector of a host route's origin: that of its host group, or that of the hosts outside groups
+     */
+    public static OutlierDetector forHost(String scheme, String host, int port) {
+        HostGroup group = HostGroups.getInstance().groupOf(scheme, host, port);
+        return forPool((group == null) ? HOST_POOL : HOST_POOL + "." + group.getName());
+    }
+
+    public static OutlierDetector forHost(URL host) {
+        return forHost(host.getProtocol(), host.getHost(), host.getPort());
+    }
+
+    /**
+     * @return the name of a host route's origin, as "host" or "host:port" like HttpClient's HttpHost.toHostString()
+     */
+    public static String hostKey(URL url) {
+        return (url.getPort() == -1) ? url.getHost() : url.getHost() + ":" + url.getPort();
+    }
+
+    /**
+     * @return true for the statuses that count as a failure of the instance
+     */
+    public static boolean isFailure(int status) {
+        return status >= 500;
+    }
+
+    /**
+     * @return true if the instance is ejected and should not be routed to
+     */
+    public boolean isEjected(String host) {
+        return isEjected(host, System.nanoTime());
+    }
+
+    boolean isEjected(String host, long now) {
+        HostState state = hosts.get(host);
+        return state != null && state.isEjected(now);
+    }
+
+    /**
+     * records the outcome of a request to an instance
+     *
+     * @param failed        true if the request failed or got a 5xx
+     * @param latencyMillis how long the instance took to answer
+     */
+    public void record(String host, boolean failed, long latencyMillis) {
+        record(host, failed, latencyMillis, System.nanoTime());
+    }
+
+    void record(String host, boolean failed, long latencyMillis, long now) {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            state = new HostState(now);
+            HostState existing = hosts.putIfAbsent(host, state);
+            if (existing != null) state = existing;
+        }
+        if (state.lastRequest != now) state.lastRequest = now;
+        if (failed) {
+            int consecutive = state.consecutiveFailures.incrementAndGet();
+            if (consecutive >= CONSECUTIVE_FAILURES.get()) {
+                eject(host, state, now, "after " + consecutive + " consecutive failures");
+            }
+        } else {
+            if (state.consecutiveFailures.get() != 0) state.consecutiveFailures.set(0);
+            state.successes.incrementAndGet();
+            state.latencyMillis.addAndGet(Math.max(0, latencyMillis));
+        }
+        long interval = TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS.get());
+        if (now - intervalStart >= interval) {
+            synchronized (this) {
+                if (now - intervalStart >= interval) endInterval(now);
+            }
+        }
+    }
+
+    // guarded by this
+    private void endInterval(long now) {
+        // the counts are taken and reset first; requests counted meanwhile go into the next interval
+        Map<String, Double> averages = new HashMap<String, Double>();
+        for (Map.Entry<String, HostState> entry : hosts.entrySet()) {
+            HostState state = entry.getValue();
+            int successes = state.successes.getAndSet(0);
+            long latencyMillis = state.latencyMillis.getAndSet(0);
+            if (successes >= MIN_REQUESTS.get()) averages.put(entry.getKey(), (double) latencyMillis / successes);
+        }
+        if (compareLatency && averages.size() >= MIN_HOSTS_FOR_LATENCY) {
+            List<Double> sorted = new ArrayList<Double>(averages.values());
+            Collections.sort(sorted);
+            double median = sorted.get(sorted.size() / 2);
+            double threshold = Math.max(MIN_OUTLIER_LATENCY_MILLIS, median * LATENCY_FACTOR.get());
+            for (Map.Entry<String, Double> entry : averages.entrySet()) {
+                HostState state = hosts.get(entry.getKey());
+                if (state != null && entry.getValue() > threshold) {
+                    eject(entry.getKey(), state, now, "for an average latency of " + entry.getValue().longValue()
+                            + "ms against a median of " + (long) median + "ms");
+                }
+            }
+        }
+
+        long idle = IDLE_INTERVALS * TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS.get());
+        for (Iterator<HostState> it = hosts.values().iterator(); it.hasNext(); ) {
+            HostState state = it.next();
+            if (!state.isEjected(now)) {
+                if (!state.ejectedInInterval && state.ejections > 0) state.ejections--;
+                if (now - state.lastRequest > idle) {
+                    it.remove();
+                    continue;
+                }
+            }
+            state.ejectedInInterval = false;
+        }
+        intervalStart = now;
+    }
+
+    private synchronized void eject(String host, HostState state, long now, String reason) {
+        if (state.isEjected(now)) return;
+        int ejected = 0;
+        for (HostState other : hosts.values()) {
+            if (other.isEjected(now)) ejected++;
+        }
+        if (ejected + 1 > hosts.size() * Math.min(100, Math.max(0, MAX_EJECTION_PERCENT.get())) / 100) {
+            LOG.debug("not ejecting " + host + " " + reason + ", " + ejected + " of " + hosts.size() + " instances are ejected already");
+            return;
+        }
+        state.ejections = Math.min(MAX_EJECTION_MULTIPLIER, state.ejections + 1);
+        state.ejectedUntil = now + TimeUnit.MILLISECONDS.toNanos((long) BASE_EJECTION_MILLIS.get() * state.ejections);
+        state.ejectedInInterval = true;
+        state.consecutiveFailures.set(0);
+        ejections.incrementAndGet();
+        LOG.warn("ejecting " + host + " " + reason + " until " + (state.ejectedUntil - now) / 1000000 + "ms from now");
+    }
+
+    @Monitor(name = "ejections", type = DataSourceType.COUNTER)
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    @Monitor(name = "ejected", type = DataSourceType.GAUGE)
+    public int getEjectedCount() {
+        return getEjectedHosts().size();
+    }
+
+    @Monitor(name = "ejectedHosts", type = DataSourceType.INFORMATIONAL)
+    public String getEjectedHostNames() {
+        StringBuilder names = new StringBuilder();
+        for (String host : getEjectedHosts()) {
+            if (names.length() > 0) names.append(',');
+            names.append(host);
+        }
+        return names.toString();
+    }
+
+    /**
+     * @return the instances ejected now
+     */
+    public List<String> getEjectedHosts() {
+        long now = System.nanoTime();
+        List<String> ejected = new ArrayList<String>();
+        for (Map.Entry<String, HostState> entry : hosts.entrySet()) {
+            if (entry.getValue().isEjected(now)) ejected.add(entry.getKey());
+        }
+        Collections.sort(ejected);
+        return ejected;
+    }
+
+    /**
+     * what is known of one instance; the counts are updated by the requests, the ejection state under the detector's
+     * lock
+     */
+    static class HostState {
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicLong latencyMillis = new AtomicLong();
+        volatile long lastRequest;
+        int ejections;
+        boolean ejectedInInterval;
+        volatile long ejectedUntil;
+
+        HostState(long now) {
+            this.lastRequest = now;
+        }
+
+        boolean isEjected(long now) {
+            long until = ejectedUntil;
+            return until != 0 && now - until < 0;
+        }
+    }
+
+    public static class UnitTest {
+
+        private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private static OutlierDetector pool(long now, String... hosts) {
+            OutlierDetector detector = new OutlierDetector("test");
+            detector.intervalStart = now;
+            for (String host : hosts) detector.record(host, false, 5, now);
+            return detector;
+        }
+
+        @Test
+        public void ejectsAfterConsecutiveFailures() {
+            long now = System.nanoTime();
+            OutlierDetector detector = pool(now, "a", "b", "c", "d");
+            for (int i = 0; i < 4; i++) detector.record("a", true, 5, now);
+            detector.record("a", false, 5, now);
+            for (int i = 0; i < 4; i++) detector.record("a", true, 5, now);
+            assertFalse(detector.isEjected("a", now));
+            detector.record("a", true, 5, now);
+            assertTrue(detector.isEjected("a", now));
+            assertFalse(detector.isEjected("b", now));
+            assertEquals(1, detector.getEjections());
+        }
+
+        @Test
+        public void ejectionEndsAndBacksOff() {
+            long now = System.nanoTime();
+            OutlierDetector detector = pool(now, "a", "b");
+            for (int i = 0; i < 5; i++) detector.record("a", true, 5, now);
+            assertTrue(detector.isEjected("a", now + 29999 * MS));
+            assertFalse(detector.isEjected("a", now + 30000 * MS));
+
+            now += 30000 * MS;
+            for (int i = 0; i < 5; i++) detector.record("a", true, 5, now);
+            assertTrue(detector.isEjected("a", now + 59999 * MS));
+            assertFalse(detector.isEjected("a", now + 60000 * MS));
+        }
+
+        @Test
+        public void ejectsSlowInstances() {
+            long now = System.nanoTime();
+            OutlierDetector detector = pool(now, "a", "b", "c", "d");
+            for (int i = 0; i < 50; i++) {
+                detector.record("a", false, 5, now);
+                detector.record("b", false, 6, now);
+                detector.record("c", false, 5, now);
+                detector.record("d", false, 50, now);
+            }
+            now += 10000 * MS;
+            detector.record("a", false, 5, now);
+            assertTrue(detector.isEjected("d", now));
+            assertFalse(detector.isEjected("b", now));
+        }
+
+        @Test
+        public void uniformlySlowPoolsAreLeftAlone() {
+            long now = System.nanoTime();
+            OutlierDetector detector = pool(now, "a", "b", "c");
+            for (int i = 0; i < 50; i++) {
+                detector.record("a", false, 100, now);
+                detector.record("b", false, 110, now);
+                detector.record("c", false, 120, now);
+            }
+            now += 10000 * MS;
+            detector.record("a", false, 100, now);
+            assertEquals(0, detector.getEjections());
+        }
+
+        @Test
+        public void capsTheEjectedFraction() {
+            long now = System.nanoTime();
+            OutlierDetector detector = pool(now, "a", "b", "c", "d");
+            for (String host : new String[]{"a", "b", "c", "d"}) {
+                for (int i = 0; i < 5; i++) detector.record(host, true, 5, now);
+            }
+            assertEquals(2, detector.getEjections());
+            assertTrue(detector.isEjected("a", now));
+            assertTrue(detector.isEjected("b", now));
+            assertFalse(detector.isEjected("c", now));
+        }
+
+        @Test
+        public void neverEjectsASingleInstance() {
+            long now = System.nanoTime();
+            OutlierDetector detector = pool(now, "only");
+            for (int i = 0; i < 100; i++) detector.record("only", true, 5, now);
+            assertFalse(detector.isEjected("only", now));
+        }
+
+        @Test
+        public void publishesEjectedHosts() {
+            long now = System.nanoTime();
+            OutlierDetector detector = pool(now, "a", "b", "c", "d");
+            for (int i = 0; i < 5; i++) detector.record("b", true, 5, now);
+            assertEquals("b", detector.getEjectedHostNames());
+            assertEquals(1, detector.getEjectedCount());
+        }
+
+        @Test
+        public void hostsOutsideGroupsAreNotComparedOnLatency() {
+            long now = System.nanoTime();
+            OutlierDetector detector = new OutlierDetector(HOST_POOL, false);
+            detector.intervalStart = now;
+            for (int i = 0; i < 50; i++) {
+                detector.record("a", false, 5, now);
+                detector.record("b", false, 6, now);
+                detector.record("c", false, 5, now);
+                detector.record("slow-by-design", false, 500, now);
+            }
+            now += 10000 * MS;
+            detector.record("a", false, 5, now);
+            assertFalse(detector.isEjected("slow-by-design", now));
+
+            for (int i = 0; i < 5; i++) detector.record("b", true, 5, now);
+            assertTrue(detector.isEjected("b", now));
+        }
+
+        @Test
+        public void poolsHostRoutesByHostGroup() throws Exception {
+            HostGroups groups = HostGroups.getInstance();
+            groups.setGroups(Collections.singletonMap("api", new HostGroup("api",
+                    Arrays.asList(new URL("http://api-1.example.com"), new URL("http://api-2.example.com")), "/healthcheck")));
+            try {
+                assertEquals("host.api", forHost(new URL("http://api-1.example.com")).tags.getValue("pool"));
+                assertEquals("host.api", forHost("http", "API-2.example.com", 80).tags.getValue("pool"));
+                assertEquals(HOST_POOL, forHost(new URL("http://other.example.com")).tags.getValue("pool"));
+            } finally {
+                groups.rebuild();
+            }
+        }
+
+        @Test
+        public void countsRequestsFromManyThreads() throws InterruptedException {
+            final long now = System.nanoTime();
+            final OutlierDetector detector = pool(now, "a", "b", "c");
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 1000; i++) detector.record("a", false, 2, now);
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread t : threads) t.join();
+            assertEquals(4001, detector.hosts.get("a").successes.get());
+            assertEquals(8005, detector.hosts.get("a").latencyMillis.get());
+        }
+
+        @Test
+        public void hostKeysMatchHttpHost() throws Exception {
+            assertEquals("api.example.com", hostKey(new URL("http://api.example.com/path")));
+            assertEquals("api.example.com:8080", hostKey(new URL("http://api.example.com:8080")));
+        }
+    }
+}
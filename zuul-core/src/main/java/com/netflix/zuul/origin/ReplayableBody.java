@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A request body that can be sent more than once, without buffering all of it up front.
+ * <p/>
+ * The client's stream is read as the first attempt sends it, and what is read is kept, up to maxBytes. A later attempt
+ * replays what was kept and then carries on reading the client's stream. A body is replayable for as long as nothing
+ * was read past maxBytes, so a large upload can still be retried if its first attempt failed before sending it, e.g.
+ * on a refused connection. Streams of the body are meant to be read one after the other, not concurrently.
+ */
+public class ReplayableBody {
+
+    private final InputStream source;
+    private final int maxBytes;
+    private byte[] buffer = new byte[0];
+    private int length;
+    private boolean exhausted;
+    private boolean overflowed;
+
+    public ReplayableBody(InputStream source, int maxBytes) {
+        this.source = source;
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @return true if the whole body can still be sent again
+     */
+    public synchronized boolean isReplayable() {
+        return !overflowed;
+    }
+
+    /**
+     * @return a stream of the whole body, from its first byte
+     * @throws IOException if more than maxBytes of it were already sent
+     */
+    public synchronized InputStream newStream() throws IOException {
+        if (overflowed) throw new IOException("request body can't be replayed, more than " + maxBytes + " bytes of it were sent");
+        return new Replay();
+    }
+
+    private synchronized int read(int position, byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position < length && !overflowed) {
+            int n = Math.min(len, length - position);
+            System.arraycopy(buffer, position, b, off, n);
+            return n;
+        }
+        if (exhausted) return -1;
+        int n = source.read(b, off, len);
+        if (n < 0) {
+            exhausted = true;
+            return -1;
+        }
+        keep(b, off, n);
+        return n;
+    }
+
+    private void keep(byte[] b, int off, int n) {
+        if (overflowed) return;
+        if (length + n > maxBytes) {
+            overflowed = true;
+            buffer = null;
+            return;
+        }
+        if (length + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(maxBytes, Math.max(length + n, buffer.length * 2)));
+        }
+        System.arraycopy(b, off, buffer, length, n);
+        length += n;
+    }
+
+    /**
+     * one pass over the body
+     */
+    private class Replay extends InputStream {
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return (n <= 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = ReplayableBody.this.read(position, b, off, len);
+            if (n > 0) position += n;
+            return n;
+        }
+    }
+
+    public static class UnitTest {
+
+        private static byte[] body(int size) {
+            byte[] body = new byte[size];
+            for (int i = 0; i < size; i++) body[i] = (byte) i;
+            return body;
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[100];
+            int n;
+            while ((n = in.read(chunk)) != -1) out.write(chunk, 0, n);
+            return out.toByteArray();
+        }
+
+        @Test
+        public void replaysABodyWithinTheBuffer() throws IOException {
+            byte[] bytes = body(1000);
+            ReplayableBody body = new ReplayableBody(new ByteArrayInputStream(bytes), 1000);
+            assertArrayEquals(bytes, readAll(body.newStream()));
+            assertTrue(body.isReplayable());
+            assertArrayEquals(bytes, readAll(body.newStream()));
+        }
+
+        @Test
+        public void replaysAPartlySentBody() throws IOException {
+            byte[] bytes = body(1000);
+            ReplayableBody body = new ReplayableBody(new ByteArrayInputStream(bytes), 1000);
+            InputStream first = body.newStream();
+            assertEquals(100, first.read(new byte[100]));
+            assertEquals(100, first.read());
+            assertArrayEquals(bytes, readAll(body.newStream()));
+        }
+
+        @Test
+        public void largeBodyIsReplayableUntilItOverflows() throws IOException {
+            byte[] bytes = body(5000);
+            ReplayableBody body = new ReplayableBody(new ByteArrayInputStream(bytes), 1000);
+            body.newStream();
+            assertTrue(body.isReplayable());
+            assertArrayEquals(bytes, readAll(body.newStream()));
+            assertFalse(body.isReplayable());
+            try {
+                body.newStream();
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+
+        @Test
+        public void emptyBody() throws IOException {
+            ReplayableBody body = new ReplayableBody(new ByteArrayInputStream(new byte[0]), 0);
+            assertEquals(-1, body.newStream().read());
+            assertEquals(-1, body.newStream().read());
+            assertTrue(body.isReplayable());
+        }
+    }
+}
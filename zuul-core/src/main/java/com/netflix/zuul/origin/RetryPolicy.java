@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.context.RequestContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-route retry state: whether a failed attempt may be sent again, and whether the route can afford it.
+ * <p/>
+ * A request is tried at most zuul.retry.max-attempts times. An attempt that failed before the origin got the request,
+ * e.g. on a refused connection, may be retried whatever its method; one that failed after, or got a 502, 503 or 504,
+ * only if its method is idempotent. A request body is replayed from a ReplayableBody of up to
+ * zuul.retry.body-buffer-bytes, and a request whose body outgrew it isn't retried. Nor is one past its deadline.
+ * <p/>
+ * Retries are paid for from a token bucket: every request adds zuul.retry.budget-percent of a token and every retry
+ * takes one, so when an origin fails outright, retries add no more than that share to its load beyond a small burst.
+ * <p/>
+ * Off unless zuul.retry.enabled is true. Callers pick a different server for each attempt where there is one.
+ */
+public class RetryPolicy {
+
+    private static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_RETRY_ENABLED, false);
+    private static final DynamicIntProperty MAX_ATTEMPTS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RETRY_MAX_ATTEMPTS, 2);
+    private static final DynamicIntProperty BUDGET_PERCENT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RETRY_BUDGET_PERCENT, 10);
+    private static final DynamicIntProperty BODY_BUFFER_BYTES =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RETRY_BODY_BUFFER_BYTES, 65536);
+
+    static final double MAX_TOKENS = 10;
+
+    private static final ConcurrentHashMap<String, RetryPolicy> POLICIES = new ConcurrentHashMap<String, RetryPolicy>();
+
+    private double tokens;
+
+    public static boolean isEnabled() {
+        return ENABLED.get();
+    }
+
+    /**
+     * @return the policy of a route, created on first use
+     */
+    public static RetryPolicy forRoute(String route) {
+        RetryPolicy policy = POLICIES.get(route);
+        if (policy == null) {
+            POLICIES.putIfAbsent(route, new RetryPolicy());
+            policy = POLICIES.get(route);
+        }
+        return policy;
+    }
+
+    /**
+     * @return true for the methods that can be sent twice with the same effect as once
+     */
+    public static boolean isIdempotent(String verb) {
+        if (verb == null) return true;
+        String v = verb.toUpperCase();
+        return v.equals("GET") || v.equals("HEAD") || v.equals("OPTIONS") || v.equals("PUT") || v.equals("DELETE")
+                || v.equals("TRACE");
+    }
+
+    /**
+     * @param reachedOrigin false if the attempt is known to have failed before the origin received the request
+     * @return true if a request that failed this way may be sent again
+     */
+    public static boolean isRetriableFailure(String verb, boolean reachedOrigin) {
+        return !reachedOrigin || isIdempotent(verb);
+    }
+
+    /**
+     * @return true if a request answered with this status may be sent again
+     */
+    public static boolean isRetriableStatus(String verb, int status) {
+        return (status == 502 || status == 503 || status == 504) && isIdempotent(verb);
+    }
+
+    /**
+     * @return a request body that retries can replay, or null if there is none
+     */
+    public static ReplayableBody replayable(InputStream body) {
+        return (body == null) ? null : new ReplayableBody(body, BODY_BUFFER_BYTES.get());
+    }
+
+    /**
+     * credits the retry budget for a request on the route
+     */
+    public void onRequest() {
+        onRequest(BUDGET_PERCENT.get());
+    }
+
+    synchronized void onRequest(int budgetPercent) {
+        double share = Math.min(100, Math.max(0, budgetPercent)) / 100.0;
+        tokens = Math.min(MAX_TOKENS, tokens + share);
+    }
+
+    /**
+     * @param attempts the attempts made so far
+     * @param body     the request body, or null if it has none
+     * @return true if another attempt may be made, in which case it is charged to the budget
+     */
+    public boolean canRetry(int attempts, ReplayableBody body) {
+        return canRetry(attempts, MAX_ATTEMPTS.get(), body);
+    }
+
+    boolean canRetry(int attempts, int maxAttempts, ReplayableBody body) {
+        if (attempts >= maxAttempts) return false;
+        if (body != null && !body.isReplayable()) return false;
+        if (RequestContext.getCurrentContext().isDeadlineExceeded()) return false;
+        return tryAcquireRetry();
+    }
+
+    synchronized boolean tryAcquireRetry() {
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    public static class UnitTest {
+
+        @Before
+        public void before() {
+            RequestContext.testSetCurrentContext(new RequestContext());
+        }
+
+        @After
+        public void after() {
+            RequestContext.testSetCurrentContext(null);
+        }
+
+        private static RetryPolicy funded() {
+            RetryPolicy policy = new RetryPolicy();
+            for (int i = 0; i < 100; i++) policy.onRequest(100);
+            return policy;
+        }
+
+        @Test
+        public void retriesUnsentRequestsOfAnyMethod() {
+            assertTrue(isRetriableFailure("POST", false));
+            assertFalse(isRetriableFailure("POST", true));
+            assertTrue(isRetriableFailure("GET", true));
+            assertTrue(isRetriableFailure("delete", true));
+        }
+
+        @Test
+        public void retriesOverloadedStatusesOfIdempotentMethods() {
+            assertTrue(isRetriableStatus("GET", 503));
+            assertTrue(isRetriableStatus("PUT", 502));
+            assertFalse(isRetriableStatus("POST", 503));
+            assertFalse(isRetriableStatus("GET", 500));
+            assertFalse(isRetriableStatus("GET", 200));
+        }
+
+        @Test
+        public void boundsTheAttempts() {
+            RetryPolicy policy = funded();
+            assertTrue(policy.canRetry(1, 3, null));
+            assertTrue(policy.canRetry(2, 3, null));
+            assertFalse(policy.canRetry(3, 3, null));
+        }
+
+        @Test
+        public void budgetLimitsRetriesToAShareOfRequests() {
+            RetryPolicy policy = new RetryPolicy();
+            int retries = 0;
+            for (int i = 0; i < 1000; i++) {
+                policy.onRequest(10);
+                if (policy.canRetry(1, 2, null)) retries++;
+            }
+            assertEquals(100, retries, 1);
+        }
+
+        @Test
+        public void budgetBurstIsCapped() {
+            RetryPolicy policy = funded();
+            int retries = 0;
+            while (policy.canRetry(1, 2, null)) retries++;
+            assertEquals((int) MAX_TOKENS, retries);
+        }
+
+        @Test
+        public void doesNotRetryABodyThatCannotBeReplayed() throws Exception {
+            RetryPolicy policy = funded();
+            ReplayableBody body = new ReplayableBody(new ByteArrayInputStream(new byte[100]), 10);
+            assertTrue(policy.canRetry(1, 2, body));
+            InputStream in = body.newStream();
+            while (in.read() != -1) ;
+            assertFalse(policy.canRetry(1, 2, body));
+        }
+
+        @Test
+        public void doesNotRetryPastTheDeadline() {
+            RetryPolicy policy = funded();
+            RequestContext.getCurrentContext().setDeadlineNanos(System.nanoTime() - 1);
+            assertFalse(policy.canRetry(1, 2, null));
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.exception.ZuulException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connects to the origin of a host route while the rest of the pre filters run, so that a cold route doesn't pay for
+ * the TCP and TLS handshakes after them.
+ * <p/>
+ * When a pre filter sets the route host, a connection to it (or to the member of its host group it fails over to) is
+ * leased from the routing filter's pool in the background, connected, and handed straight back to the pool, where the
+ * route filter's own lease finds it. Nothing is held for the request, so a request that a later filter answers itself
+ * leaves behind an idle pooled connection, which expires like any other. A connect still queued when the route stage
+ * starts, or when the request ends, is cancelled, since the route filter connects on its own by then.
+ * <p/>
+ * There is at most one speculative connect per origin at a time, none for an origin the pool has an idle connection
+ * to, and connects that find every thread busy are dropped. Off unless zuul.speculative-connect.enabled is true and the
+ * host routing filter has registered its pool with setPrewarmer().
+ */
+public class SpeculativeConnector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpeculativeConnector.class);
+
+    static final String CONTEXT_KEY = "speculativeConnect";
+
+    private static final int MAX_THREADS = 8;
+    private static final int MAX_QUEUED = 64;
+
+    private static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_SPECULATIVE_CONNECT_ENABLED, false);
+    private static final DynamicIntProperty TIMEOUT_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_SPECULATIVE_CONNECT_TIMEOUT_MILLIS, 1000);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SpeculativeConnect-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final ThreadPoolExecutor EXECUTOR = newExecutor();
+
+    private static volatile SpeculativeConnector instance;
+
+    private final ConnectionPrewarmer<?> prewarmer;
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+
+    SpeculativeConnector(ConnectionPrewarmer<?> prewarmer, Executor executor) {
+        this.prewarmer = prewarmer;
+        this.executor = executor;
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED), THREAD_FACTORY, new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * registers the pool of the host routing filter; speculative connects open connections with this prewarmer
+     */
+    public static void setPrewarmer(ConnectionPrewarmer<?> prewarmer) {
+        instance = (prewarmer == null) ? null : new SpeculativeConnector(prewarmer, EXECUTOR);
+    }
+
+    static void setInstance(SpeculativeConnector connector) {
+        instance = connector;
+    }
+
+    /**
+     * starts connecting to the route host of a request, if speculative connects are on; called as the host is set
+     */
+    public static void onRouteHost(RequestContext context, URL host) {
+        SpeculativeConnector connector = instance;
+        if (connector == null || host == null || !ENABLED.get()) return;
+        connector.start(context, host);
+    }
+
+    /**
+     * cancels the request's speculative connect if it hasn't started; the route filter connects on its own from now
+     */
+    public static void settle(RequestContext context) {
+        Object pending = context.remove(CONTEXT_KEY);
+        if (pending instanceof Future) ((Future<?>) pending).cancel(false);
+    }
+
+    void start(RequestContext context, URL host) {
+        final URL origin;
+        try {
+            origin = HostGroups.getInstance().resolve(host);
+        } catch (ZuulException e) {
+            // the route filter fails the request
+            return;
+        }
+        final String key = HostGroup.key(origin);
+        if (inFlight.putIfAbsent(key, Boolean.TRUE) != null) return;
+        final long timeoutMillis = TIMEOUT_MILLIS.get();
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prewarmer.connect(origin, timeoutMillis);
+                } catch (Exception e) {
+                    LOG.debug("speculative connect to " + origin + " failed", e);
+                } finally {
+                    inFlight.remove(key);
+                }
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                // cancelled or dropped before it ran
+                if (isCancelled()) inFlight.remove(key);
+            }
+        };
+        settle(context);
+        context.put(CONTEXT_KEY, task);
+        executor.execute(task);
+    }
+
+    public static class UnitTest {
+
+        private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        private static final Executor NEVER = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        };
+
+        static class CountingPrewarmer extends ConnectionPrewarmer<String> {
+            final AtomicInteger opened = new AtomicInteger();
+            final AtomicInteger released = new AtomicInteger();
+            volatile boolean idle;
+
+            @Override
+            protected boolean hasIdleConnection(URL origin) {
+                return idle;
+            }
+
+            @Override
+            protected String open(URL origin, long timeoutMillis) throws Exception {
+                opened.incrementAndGet();
+                return origin.getHost();
+            }
+
+            @Override
+            protected void release(String connection) {
+                released.incrementAndGet();
+            }
+        }
+
+        private RequestContext context;
+
+        @Before
+        public void before() {
+            context = new RequestContext();
+            RequestContext.testSetCurrentContext(context);
+        }
+
+        @After
+        public void after() {
+            RequestContext.testSetCurrentContext(null);
+            setInstance(null);
+        }
+
+        @Test
+        public void connectsAndReturnsTheConnectionToThePool() throws Exception {
+            CountingPrewarmer prewarmer = new CountingPrewarmer();
+            new SpeculativeConnector(prewarmer, DIRECT).start(context, new URL("http://a.example.com"));
+            assertEquals(1, prewarmer.opened.get());
+            assertEquals(1, prewarmer.released.get());
+        }
+
+        @Test
+        public void skipsOriginsWithAnIdleConnection() throws Exception {
+            CountingPrewarmer prewarmer = new CountingPrewarmer();
+            prewarmer.idle = true;
+            new SpeculativeConnector(prewarmer, DIRECT).start(context, new URL("http://a.example.com"));
+            assertEquals(0, prewarmer.opened.get());
+        }
+
+        @Test
+        public void connectsOnceAtATimePerOrigin() throws Exception {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            CountingPrewarmer prewarmer = new CountingPrewarmer() {
+                @Override
+                protected String open(URL origin, long timeoutMillis) throws Exception {
+                    started.countDown();
+                    release.await();
+                    return super.open(origin, timeoutMillis);
+                }
+            };
+            Executor threads = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    Thread t = new Thread(command);
+                    t.setDaemon(true);
+                    t.start();
+                }
+            };
+            SpeculativeConnector connector = new SpeculativeConnector(prewarmer, threads);
+            connector.start(context, new URL("http://a.example.com"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            connector.start(new RequestContext(), new URL("http://a.example.com:80"));
+            release.countDown();
+            for (int i = 0; i < 100 && !connector.inFlight.isEmpty(); i++) Thread.sleep(10);
+
+            assertEquals(1, prewarmer.opened.get());
+            connector.start(new RequestContext(), new URL("http://a.example.com"));
+            for (int i = 0; i < 100 && prewarmer.opened.get() < 2; i++) Thread.sleep(10);
+            assertEquals(2, prewarmer.opened.get());
+        }
+
+        @Test
+        public void routeStageCancelsAConnectThatHasNotStarted() throws Exception {
+            CountingPrewarmer prewarmer = new CountingPrewarmer();
+            SpeculativeConnector connector = new SpeculativeConnector(prewarmer, NEVER);
+            connector.start(context, new URL("http://a.example.com"));
+            Future<?> pending = (Future<?>) context.get(CONTEXT_KEY);
+
+            settle(context);
+            assertTrue(pending.isCancelled());
+            assertNull(context.get(CONTEXT_KEY));
+            assertTrue(connector.inFlight.isEmpty());
+            assertEquals(0, prewarmer.opened.get());
+        }
+
+        @Test
+        public void doesNothingWhenDisabled() throws Exception {
+            CountingPrewarmer prewarmer = new CountingPrewarmer();
+            setInstance(new SpeculativeConnector(prewarmer, DIRECT));
+            onRouteHost(context, new URL("http://a.example.com"));
+            assertEquals(0, prewarmer.opened.get());
+        }
+    }
+}
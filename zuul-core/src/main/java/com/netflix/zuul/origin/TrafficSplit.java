@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * An immutable weighted choice between targets, picked in constant time with an alias table (Vose's method): each of
+ * the n columns of the table holds a share of one target and the remainder of another, so a pick is one column and one
+ * coin flip, however many targets there are.
+ * <p/>
+ * Random picks use the calling thread's ThreadLocalRandom, so request threads don't contend on a shared Random. Sticky
+ * picks hash a key instead, so the same client keeps getting the same target for as long as the weights don't change.
+ */
+public class TrafficSplit<T> {
+
+    private final List<T> targets;
+    private final long[] weights;
+    private final double[] share;
+    private final int[] alias;
+
+    /**
+     * @param weights the relative weight of each target; targets weighing 0 are never picked
+     * @throws IllegalArgumentException if a weight is negative or all of them are 0
+     */
+    public TrafficSplit(List<T> targets, long[] weights) {
+        if (targets.size() != weights.length) throw new IllegalArgumentException("one weight per target is needed");
+        List<T> kept = new ArrayList<T>();
+        List<Long> keptWeights = new ArrayList<Long>();
+        long total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0) throw new IllegalArgumentException("negative weight " + weights[i] + " for " + targets.get(i));
+            if (weights[i] == 0) continue;
+            kept.add(targets.get(i));
+            keptWeights.add(weights[i]);
+            total += weights[i];
+        }
+        if (total <= 0) throw new IllegalArgumentException("no target has a weight");
+
+        int n = kept.size();
+        this.targets = Collections.unmodifiableList(kept);
+        this.weights = new long[n];
+        this.share = new double[n];
+        this.alias = new int[n];
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            this.weights[i] = keptWeights.get(i);
+            scaled[i] = (double) this.weights[i] * n / total;
+            if (scaled[i] < 1.0) small[smallCount++] = i;
+            else large[largeCount++] = i;
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int s = small[--smallCount];
+            int l = large[--largeCount];
+            share[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+            if (scaled[l] < 1.0) small[smallCount++] = l;
+            else large[largeCount++] = l;
+        }
+        // what is left only differs from 1 by rounding
+        while (largeCount > 0) {
+            int l = large[--largeCount];
+            share[l] = 1.0;
+            alias[l] = l;
+        }
+        while (smallCount > 0) {
+            int s = small[--smallCount];
+            share[s] = 1.0;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * @return the targets that can be picked, in the order they were given
+     */
+    public List<T> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return the weight of the i-th target of getTargets()
+     */
+    public long getWeight(int i) {
+        return weights[i];
+    }
+
+    /**
+     * @return a target picked at random in proportion to the weights
+     */
+    public T pick() {
+        return pick(ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @return the target a key sticks to, or a random one if there is no key
+     */
+    public T pick(String stickyKey) {
+        if (stickyKey == null) return pick();
+        return pick((hash(stickyKey) >>> 11) * 0x1.0p-53);
+    }
+
+    /**
+     * @param u uniformly distributed in [0, 1)
+     */
+    T pick(double u) {
+        int n = targets.size();
+        double x = u * n;
+        int column = Math.min(n - 1, (int) x);
+        return (x - column < share[column]) ? targets.get(column) : targets.get(alias[column]);
+    }
+
+    /**
+     * FNV-1a over the characters, then a 64 bit finalizer so that similar keys land far apart
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static class UnitTest {
+
+        private static int[] count(TrafficSplit<String> split, List<String> targets, int picks) {
+            int[] counts = new int[targets.size()];
+            for (int i = 0; i < picks; i++) {
+                counts[targets.indexOf(split.pick())]++;
+            }
+            return counts;
+        }
+
+        @Test
+        public void picksInProportionToTheWeights() {
+            List<String> targets = Arrays.asList("a", "b", "c", "d");
+            TrafficSplit<String> split = new TrafficSplit<String>(targets, new long[]{5000, 3000, 1990, 10});
+            int[] counts = count(split, targets, 1000000);
+            assertEquals(500000, counts[0], 3000);
+            assertEquals(300000, counts[1], 3000);
+            assertEquals(199000, counts[2], 3000);
+            assertEquals(1000, counts[3], 200);
+        }
+
+        @Test
+        public void tableCoversTheWholeRange() {
+            List<String> targets = Arrays.asList("a", "b", "c");
+            TrafficSplit<String> split = new TrafficSplit<String>(targets, new long[]{1, 1, 2});
+            int[] counts = new int[3];
+            int steps = 4000;
+            for (int i = 0; i < steps; i++) {
+                counts[targets.indexOf(split.pick((double) i / steps))]++;
+            }
+            assertEquals(1000, counts[0]);
+            assertEquals(1000, counts[1]);
+            assertEquals(2000, counts[2]);
+            assertNotNull(split.pick(Math.nextAfter(1.0, 0)));
+        }
+
+        @Test
+        public void neverPicksATargetWithoutWeight() {
+            List<String> targets = Arrays.asList("a", "off", "b");
+            TrafficSplit<String> split = new TrafficSplit<String>(targets, new long[]{1, 0, 1});
+            assertEquals(Arrays.asList("a", "b"), split.getTargets());
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(!"off".equals(split.pick()));
+            }
+        }
+
+        @Test
+        public void singleTarget() {
+            TrafficSplit<String> split = new TrafficSplit<String>(Collections.singletonList("only"), new long[]{7});
+            assertSame("only", split.pick());
+            assertSame("only", split.pick("client"));
+        }
+
+        @Test
+        public void stickyKeysKeepTheirTarget() {
+            List<String> targets = Arrays.asList("a", "b", "c");
+            TrafficSplit<String> split = new TrafficSplit<String>(targets, new long[]{1, 1, 1});
+            TrafficSplit<String> rebuilt = new TrafficSplit<String>(targets, new long[]{1, 1, 1});
+            int[] counts = new int[3];
+            for (int i = 0; i < 30000; i++) {
+                String key = "client-" + i;
+                String target = split.pick(key);
+                assertSame(target, split.pick(key));
+                assertSame(target, rebuilt.pick(key));
+                counts[targets.indexOf(target)]++;
+            }
+            // sequential keys still spread evenly
+            for (int c : counts) assertEquals(10000, c, 500);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void rejectsAllZeroWeights() {
+            new TrafficSplit<String>(Arrays.asList("a", "b"), new long[]{0, 0});
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void rejectsNegativeWeights() {
+            new TrafficSplit<String>(Arrays.asList("a", "b"), new long[]{1, -1});
+        }
+    }
+}
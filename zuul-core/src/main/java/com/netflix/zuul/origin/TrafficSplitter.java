@@ -0,0 +1,345 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.origin;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splits the traffic of routes between weighted targets, each a VIP, a host URL, or the route's own origin.
+ * <p/>
+ * zuul.router.split.targets is the split of every route, and zuul.router.split.[route].targets that of a route listed
+ * in zuul.router.split.routes. A split is a comma separated list of target=weight, where a target containing "://" is
+ * a host, "*" keeps the route's origin and anything else is a VIP, e.g. "api-canary=50,http://api.example.com=50,*=9900".
+ * Weights are relative; by convention they add up to 10000.
+ * <p/>
+ * When zuul.router.split.targets is not set, the alternative route of zuul.router.alt.route.vip (or .host) and
+ * zuul.router.alt.route.permyriad is split off every route as before, unless the permyriad is over
+ * zuul.router.alt.route.maxlimit.
+ * <p/>
+ * The splits are parsed into alias tables whenever one of these properties changes, so choosing a target only reads a
+ * volatile map. With zuul.router.split.sticky-header set, a request carrying that header always gets the same target.
+ */
+public class TrafficSplitter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrafficSplitter.class);
+
+    static final String ANY_ROUTE = "";
+    static final String CURRENT_ROUTE = "*";
+
+    private static final DynamicPropertyFactory PROPERTIES = DynamicPropertyFactory.getInstance();
+
+    private static final DynamicStringProperty ROUTES = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_ROUTER_SPLIT_ROUTES, "");
+    private static final DynamicStringProperty TARGETS = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_ROUTER_SPLIT_TARGETS, null);
+    private static final DynamicStringProperty STICKY_HEADER =
+            PROPERTIES.getStringProperty(ZuulConstants.ZUUL_ROUTER_SPLIT_STICKY_HEADER, null);
+    private static final DynamicStringProperty ALT_VIP = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_VIP, null);
+    private static final DynamicStringProperty ALT_HOST = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_HOST, null);
+    private static final DynamicIntProperty ALT_PERMYRIAD =
+            PROPERTIES.getIntProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_PERMYRIAD, 0);   //0-10000 is 0-100% of traffic
+    private static final DynamicIntProperty ALT_MAXLIMIT = PROPERTIES.getIntProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_MAXLIMIT, 500);
+
+    private static final TrafficSplitter INSTANCE = new TrafficSplitter();
+
+    private final Set<String> watched = new HashSet<String>();
+    private final Runnable rebuild = new Runnable() {
+        @Override
+        public void run() {
+            rebuild();
+        }
+    };
+    private volatile Map<String, TrafficSplit<Target>> splits = Collections.emptyMap();
+
+    TrafficSplitter() {
+    }
+
+    /**
+     * @return the splitter of the zuul.router.split properties, kept up to date as they change
+     */
+    public static TrafficSplitter getInstance() {
+        INSTANCE.start();
+        return INSTANCE;
+    }
+
+    private synchronized void start() {
+        if (!watched.isEmpty()) return;
+        for (DynamicStringProperty property : new DynamicStringProperty[]{ROUTES, TARGETS, ALT_VIP, ALT_HOST}) {
+            watch(property);
+        }
+        ALT_PERMYRIAD.addCallback(rebuild);
+        ALT_MAXLIMIT.addCallback(rebuild);
+        rebuild();
+    }
+
+    private void watch(DynamicStringProperty property) {
+        if (watched.add(property.getName())) property.addCallback(rebuild);
+    }
+
+    synchronized void rebuild() {
+        Map<String, String> specs = new HashMap<String, String>();
+        String targets = TARGETS.get();
+        if (targets == null || targets.trim().isEmpty()) {
+            targets = legacySpec(ALT_VIP.get(), ALT_HOST.get(), ALT_PERMYRIAD.get(), ALT_MAXLIMIT.get());
+        }
+        if (targets != null) specs.put(ANY_ROUTE, targets);
+        for (String route : ROUTES.get().split(",")) {
+            route = normalize(route.trim());
+            if (route.isEmpty()) continue;
+            DynamicStringProperty routeTargets = PROPERTIES.getStringProperty(ZuulConstants.ZUUL_ROUTER_SPLIT + route + ".targets", null);
+            watch(routeTargets);
+            if (routeTargets.get() != null) specs.put(route, routeTargets.get());
+        }
+        splits = build(specs);
+    }
+
+    /**
+     * @param specs the split spec of each route, with ANY_ROUTE for the one of every other route
+     */
+    static Map<String, TrafficSplit<Target>> build(Map<String, String> specs) {
+        Map<String, TrafficSplit<Target>> built = new HashMap<String, TrafficSplit<Target>>();
+        for (Map.Entry<String, String> spec : specs.entrySet()) {
+            TrafficSplit<Target> split = parse(spec.getValue());
+            if (split != null) built.put(spec.getKey(), split);
+        }
+        return Collections.unmodifiableMap(built);
+    }
+
+    /**
+     * @return the split of a spec, or null if it has no target with a weight
+     */
+    static TrafficSplit<Target> parse(String spec) {
+        List<Target> targets = new ArrayList<Target>();
+        List<Long> weights = new ArrayList<Long>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int eq = entry.lastIndexOf('=');
+            try {
+                if (eq <= 0) throw new IllegalArgumentException("no weight");
+                long weight = Long.parseLong(entry.substring(eq + 1).trim());
+                if (weight < 0) throw new IllegalArgumentException("negative weight");
+                targets.add(Target.parse(entry.substring(0, eq).trim()));
+                weights.add(weight);
+            } catch (Exception e) {
+                LOG.warn("ignoring split target \"" + entry + "\": " + e.getMessage());
+            }
+        }
+        long total = 0;
+        long[] w = new long[weights.size()];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = weights.get(i);
+            total += w[i];
+        }
+        if (total <= 0) return null;
+        return new TrafficSplit<Target>(targets, w);
+    }
+
+    /**
+     * @return the split spec of the zuul.router.alt.route properties, or null for no split
+     */
+    static String legacySpec(String vip, String host, int permyriad, int maxLimit) {
+        if (permyriad <= 0 || permyriad > maxLimit) return null;
+        String alternative = (vip != null) ? vip : host;
+        if (alternative == null) return null;
+        int kept = Math.max(0, 10000 - permyriad);
+        return alternative + "=" + permyriad + "," + CURRENT_ROUTE + "=" + kept;
+    }
+
+    static String normalize(String route) {
+        if (route == null) return ANY_ROUTE;
+        return route.endsWith("/") ? route.substring(0, route.length() - 1) : route;
+    }
+
+    void setSplits(Map<String, TrafficSplit<Target>> splits) {
+        this.splits = splits;
+    }
+
+    /**
+     * @return true if some route has a split
+     */
+    public boolean hasSplits() {
+        return !splits.isEmpty();
+    }
+
+    /**
+     * @return the name of the request header that requests stick by, or null
+     */
+    public String getStickyHeader() {
+        return STICKY_HEADER.get();
+    }
+
+    /**
+     * @param route     the route of the request
+     * @param stickyKey a key to always give the same target, or null
+     * @return the target of the request; the current route if the route is not split, or if the target picked is a
+     *         host ejected by the OutlierDetector
+     */
+    public Target choose(String route, String stickyKey) {
+        Map<String, TrafficSplit<Target>> current = splits;
+        TrafficSplit<Target> split = current.get(normalize(route));
+        if (split == null) split = current.get(ANY_ROUTE);
+        if (split == null) return Target.CURRENT;
+        Target target = split.pick(stickyKey);
+        if (target.getHost() != null && OutlierDetector.isEnabled()
+                && OutlierDetector.forHost(target.getHost()).isEjected(OutlierDetector.hostKey(target.getHost()))) {
+            return Target.CURRENT;
+        }
+        return target;
+    }
+
+    /**
+     * where a share of a route's traffic goes: a VIP, a host, or the origin the route already has
+     */
+    public static class Target {
+        static final Target CURRENT = new Target(null, null);
+
+        private final String vip;
+        private final URL host;
+
+        private Target(String vip, URL host) {
+            this.vip = vip;
+            this.host = host;
+        }
+
+        static Target parse(String target) throws MalformedURLException {
+            if (target.isEmpty()) throw new IllegalArgumentException("no target");
+            if (CURRENT_ROUTE.equals(target)) return CURRENT;
+            if (target.contains("://")) return new Target(null, new URL(target));
+            return new Target(target, null);
+        }
+
+        /**
+         * @return true if the request stays on the origin its route already has
+         */
+        public boolean isCurrentRoute() {
+            return vip == null && host == null;
+        }
+
+        public String getVip() {
+            return vip;
+        }
+
+        public URL getHost() {
+            return host;
+        }
+
+        @Override
+        public String toString() {
+            return isCurrentRoute() ? CURRENT_ROUTE : (vip != null) ? vip : host.toString();
+        }
+    }
+
+    public static class UnitTest {
+
+        private static TrafficSplitter splitter(Map<String, String> specs) {
+            TrafficSplitter splitter = new TrafficSplitter();
+            splitter.setSplits(build(specs));
+            return splitter;
+        }
+
+        @Test
+        public void parsesTargets() {
+            TrafficSplit<Target> split = parse(" api-canary=50 , http://api.example.com:8080/?a=b=25,*=9925,bad, x=-1,y=z");
+            List<Target> targets = split.getTargets();
+            assertEquals(3, targets.size());
+            assertEquals("api-canary", targets.get(0).getVip());
+            assertEquals(50, split.getWeight(0));
+            assertEquals("api.example.com", targets.get(1).getHost().getHost());
+            assertEquals("a=b", targets.get(1).getHost().getQuery());
+            assertEquals(25, split.getWeight(1));
+            assertTrue(targets.get(2).isCurrentRoute());
+            assertEquals(9925, split.getWeight(2));
+        }
+
+        @Test
+        public void ignoresSplitsWithoutWeight() {
+            assertNull(parse(""));
+            assertNull(parse("a=0,b=0"));
+        }
+
+        @Test
+        public void translatesTheAlternativeRoute() {
+            assertEquals("alt=100,*=9900", legacySpec("alt", "http://alt.example.com", 100, 500));
+            assertEquals("http://alt.example.com=100,*=9900", legacySpec(null, "http://alt.example.com", 100, 500));
+            assertNull(legacySpec("alt", null, 0, 500));
+            assertNull(legacySpec("alt", null, 1000, 500));
+            assertNull(legacySpec(null, null, 100, 500));
+        }
+
+        @Test
+        public void routeSplitsOverrideTheDefault() {
+            Map<String, String> specs = new HashMap<String, String>();
+            specs.put(ANY_ROUTE, "everything=1");
+            specs.put("api", "api-canary=1");
+            TrafficSplitter splitter = splitter(specs);
+            assertEquals("api-canary", splitter.choose("api/", null).getVip());
+            assertEquals("everything", splitter.choose("other/", null).getVip());
+            assertEquals("everything", splitter.choose(null, null).getVip());
+        }
+
+        @Test
+        public void unsplitRoutesKeepTheirOrigin() {
+            TrafficSplitter splitter = splitter(Collections.singletonMap("api", "api-canary=1"));
+            assertTrue(splitter.hasSplits());
+            assertSame(Target.CURRENT, splitter.choose("other/", null));
+            assertFalse(splitter(Collections.<String, String>emptyMap()).hasSplits());
+        }
+
+        @Test
+        public void splitsByWeight() {
+            TrafficSplitter splitter = splitter(Collections.singletonMap(ANY_ROUTE, "a=100,b=200,*=9700"));
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (int i = 0; i < 100000; i++) {
+                String target = splitter.choose("api/", null).toString();
+                counts.put(target, counts.containsKey(target) ? counts.get(target) + 1 : 1);
+            }
+            assertEquals(1000, counts.get("a"), 200);
+            assertEquals(2000, counts.get("b"), 300);
+            assertEquals(97000, counts.get("*"), 500);
+        }
+
+        @Test
+        public void stickyKeysKeepTheirTarget() {
+            TrafficSplitter splitter = splitter(Collections.singletonMap(ANY_ROUTE, "a=1,b=1,c=1"));
+            for (int i = 0; i < 100; i++) {
+                String key = "esn-" + i;
+                Target target = splitter.choose("api/", key);
+                for (int j = 0; j < 10; j++) assertSame(target, splitter.choose("api/", key));
+            }
+        }
+    }
+}
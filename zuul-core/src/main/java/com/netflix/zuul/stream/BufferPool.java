@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pool of reusable byte[] and direct ByteBuffer buffers for streaming response bodies.
+ * Buffers are grouped in power of two size classes between a minimum and a maximum size, so a buffer can be
+ * picked to fit the origin's Content-Length. Each size class keeps a bounded number of idle buffers; buffers
+ * released to a full class, or with a size that doesn't match a class, are left to the garbage collector.
+ */
+public class BufferPool {
+
+    private static final BufferPool INSTANCE = new BufferPool(
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_INITIAL_STREAM_BUFFER_SIZE, 1024).get(),
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RESPONSE_BUFFER_MAX_SIZE, 65536).get(),
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RESPONSE_BUFFER_POOL_SIZE, 64).get());
+
+    private final int minSize;
+    private final int maxSize;
+    private final int buffersPerClass;
+    private final SizeClass<byte[]>[] classes;
+    private final SizeClass<ByteBuffer>[] directClasses;
+
+    /**
+     * @param minSize         smallest buffer handed out, rounded up to a power of two
+     * @param maxSize         largest buffer handed out, rounded up to a power of two
+     * @param buffersPerClass maximum number of idle buffers kept per size class
+     */
+    public BufferPool(int minSize, int maxSize, int buffersPerClass) {
+        this.minSize = roundUp(Math.max(minSize, 1));
+        this.maxSize = Math.max(this.minSize, roundUp(maxSize));
+        this.buffersPerClass = buffersPerClass;
+
+        int n = Integer.numberOfTrailingZeros(this.maxSize) - Integer.numberOfTrailingZeros(this.minSize) + 1;
+        classes = newSizeClasses(n);
+        directClasses = newSizeClasses(n);
+    }
+
+    // arrays of a generic type can only be created raw
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> SizeClass<T>[] newSizeClasses(int n) {
+        SizeClass<T>[] classes = new SizeClass[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new SizeClass<T>();
+        }
+        return classes;
+    }
+
+    /**
+     * @return the shared BufferPool, sized from the zuul.initial-stream-buffer-size and zuul.response.buffer.* properties
+     */
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * returns a buffer big enough to hold sizeHint bytes, capped to the maximum buffer size.
+     *
+     * @param sizeHint expected number of bytes, eg the origin Content-Length. Values <= 0 mean unknown and get the largest buffer
+     * @return a buffer; should be handed back with release() when done
+     */
+    public byte[] acquire(long sizeHint) {
+        int size = sizeFor(sizeHint);
+        byte[] buffer = classes[indexOf(size)].poll();
+        return (buffer == null) ? new byte[size] : buffer;
+    }
+
+    /**
+     * hands a buffer back to the pool
+     *
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        int size = buffer.length;
+        if (!isPooledSize(size)) return;
+        classes[indexOf(size)].offer(buffer, buffersPerClass);
+    }
+
+    /**
+     * returns a cleared direct ByteBuffer with a capacity big enough to hold sizeHint bytes, capped to the maximum
+     * buffer size. Direct buffers are expensive to allocate, so they should always be handed back with releaseDirect()
+     *
+     * @param sizeHint expected number of bytes. Values <= 0 mean unknown and get the largest buffer
+     * @return a direct ByteBuffer
+     */
+    public ByteBuffer acquireDirect(long sizeHint) {
+        int size = sizeFor(sizeHint);
+        ByteBuffer buffer = directClasses[indexOf(size)].poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * hands a direct buffer back to the pool
+     *
+     * @param buffer
+     */
+    public void releaseDirect(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        int size = buffer.capacity();
+        if (!isPooledSize(size)) return;
+        directClasses[indexOf(size)].offer(buffer, buffersPerClass);
+    }
+
+    /**
+     * @param sizeHint
+     * @return the size of the buffer that acquire(sizeHint) hands out
+     */
+    public int sizeFor(long sizeHint) {
+        if (sizeHint <= 0 || sizeHint >= maxSize) return maxSize;
+        return Math.max(minSize, roundUp((int) sizeHint));
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    private boolean isPooledSize(int size) {
+        return size >= minSize && size <= maxSize && Integer.bitCount(size) == 1;
+    }
+
+    private int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    private static int roundUp(int n) {
+        int highest = Integer.highestOneBit(n);
+        return (highest == n) ? n : highest << 1;
+    }
+
+    private static final class SizeClass<T> {
+        final Queue<T> buffers = new ConcurrentLinkedQueue<T>();
+        final AtomicInteger idle = new AtomicInteger();
+
+        T poll() {
+            T buffer = buffers.poll();
+            if (buffer != null) idle.decrementAndGet();
+            return buffer;
+        }
+
+        void offer(T buffer, int limit) {
+            if (idle.incrementAndGet() > limit) {
+                idle.decrementAndGet();
+                return;
+            }
+            buffers.offer(buffer);
+        }
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void sizesBuffersFromHint() {
+            BufferPool pool = new BufferPool(1024, 65536, 4);
+            assertEquals(1024, pool.sizeFor(10));
+            assertEquals(4096, pool.sizeFor(3000));
+            assertEquals(4096, pool.sizeFor(4096));
+            assertEquals(65536, pool.sizeFor(1000000));
+            assertEquals(65536, pool.sizeFor(-1));
+            assertEquals(65536, pool.acquire(0).length);
+        }
+
+        @Test
+        public void reusesReleasedBuffers() {
+            BufferPool pool = new BufferPool(1024, 65536, 4);
+            byte[] buffer = pool.acquire(2000);
+            pool.release(buffer);
+            assertSame(buffer, pool.acquire(1500));
+            assertNotSame(buffer, pool.acquire(1500));
+        }
+
+        @Test
+        public void boundsIdleBuffersPerClass() {
+            BufferPool pool = new BufferPool(1024, 4096, 1);
+            byte[] first = new byte[1024];
+            byte[] second = new byte[1024];
+            pool.release(first);
+            pool.release(second);
+            pool.release(new byte[1000]);
+            assertSame(first, pool.acquire(1));
+            assertNotSame(second, pool.acquire(1));
+        }
+
+        @Test
+        public void reusesDirectBuffers() {
+            BufferPool pool = new BufferPool(1024, 65536, 4);
+            ByteBuffer buffer = pool.acquireDirect(3000);
+            assertTrue(buffer.isDirect());
+            assertEquals(4096, buffer.capacity());
+
+            buffer.put((byte) 1);
+            pool.releaseDirect(buffer);
+            ByteBuffer again = pool.acquireDirect(4000);
+            assertSame(buffer, again);
+            assertEquals(0, again.position());
+
+            pool.releaseDirect(ByteBuffer.allocate(4096));
+            assertTrue(pool.acquireDirect(4000).isDirect());
+        }
+    }
+}
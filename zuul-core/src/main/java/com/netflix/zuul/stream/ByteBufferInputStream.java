@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * InputStream over a ByteBuffer, for example a region of a memory-mapped file. It is also a ReadableByteChannel,
+ * so the ResponseStreamWriter can move the bytes to a channel without copying them through a heap array.
+ */
+public class ByteBufferInputStream extends InputStream implements ReadableByteChannel {
+
+    private final ByteBuffer buffer;
+    private boolean open = true;
+
+    /**
+     * @param buffer bytes between position and limit are read; the buffer itself is not modified
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) throw new IOException("stream closed");
+        if (!buffer.hasRemaining()) return -1;
+        int n = Math.min(dst.remaining(), buffer.remaining());
+        ByteBuffer chunk = buffer.duplicate();
+        chunk.limit(chunk.position() + n);
+        dst.put(chunk);
+        buffer.position(buffer.position() + n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void readsAsStreamAndChannel() throws IOException {
+            ByteBuffer source = ByteBuffer.wrap("0123456789".getBytes());
+            ByteBufferInputStream in = new ByteBufferInputStream(source);
+
+            assertEquals('0', in.read());
+            byte[] b = new byte[3];
+            assertEquals(3, in.read(b, 0, 3));
+            assertEquals("123", new String(b));
+
+            ByteBuffer dst = ByteBuffer.allocateDirect(4);
+            assertEquals(4, in.read(dst));
+            assertEquals(2, in.available());
+            assertEquals(2, in.read(ByteBuffer.allocate(10)));
+            assertEquals(-1, in.read(b, 0, 3));
+            assertEquals(0, source.position());
+        }
+    }
+}
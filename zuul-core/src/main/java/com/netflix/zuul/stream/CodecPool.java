@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Pool of raw (nowrap) Inflater and Deflater instances used for gzip transcoding.
+ * Inflater and Deflater hold native zlib memory that is only freed by end() or finalization, so allocating one per
+ * response is expensive. Released instances are reset and kept for reuse; instances released to a full pool are ended.
+ */
+public class CodecPool {
+
+    private static final CodecPool INSTANCE = new CodecPool(
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RESPONSE_GZIP_LEVEL, Deflater.DEFAULT_COMPRESSION).get(),
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RESPONSE_CODEC_POOL_SIZE, 64).get());
+
+    private final int level;
+    private final int maxIdle;
+
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger idleInflaters = new AtomicInteger();
+    private final AtomicInteger idleDeflaters = new AtomicInteger();
+
+    /**
+     * @param level   compression level of the Deflaters
+     * @param maxIdle maximum number of idle Inflaters and Deflaters each kept in the pool
+     */
+    public CodecPool(int level, int maxIdle) {
+        this.level = level;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return the shared CodecPool, configured by zuul.response.gzip.level and zuul.response.codec.pool-size
+     */
+    public static CodecPool getInstance() {
+        return INSTANCE;
+    }
+
+    public Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) return new Inflater(true);
+        idleInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    public void releaseInflater(Inflater inflater) {
+        if (inflater == null) return;
+        if (idleInflaters.incrementAndGet() > maxIdle) {
+            idleInflaters.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        inflaters.offer(inflater);
+    }
+
+    public Deflater acquireDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) return new Deflater(level, true);
+        idleDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    public void releaseDeflater(Deflater deflater) {
+        if (deflater == null) return;
+        if (idleDeflaters.incrementAndGet() > maxIdle) {
+            idleDeflaters.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        deflaters.offer(deflater);
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void reusesReleasedCodecs() {
+            CodecPool pool = new CodecPool(Deflater.DEFAULT_COMPRESSION, 2);
+
+            Inflater inflater = pool.acquireInflater();
+            pool.releaseInflater(inflater);
+            assertSame(inflater, pool.acquireInflater());
+
+            Deflater deflater = pool.acquireDeflater();
+            deflater.setInput(new byte[10]);
+            deflater.finish();
+            deflater.deflate(new byte[100]);
+            pool.releaseDeflater(deflater);
+
+            Deflater reused = pool.acquireDeflater();
+            assertSame(deflater, reused);
+            assertEquals(0, reused.getBytesRead());
+        }
+
+        @Test
+        public void endsCodecsReleasedToFullPool() {
+            CodecPool pool = new CodecPool(Deflater.DEFAULT_COMPRESSION, 1);
+            Inflater first = new Inflater(true);
+            Inflater second = new Inflater(true);
+            pool.releaseInflater(first);
+            pool.releaseInflater(second);
+
+            assertSame(first, pool.acquireInflater());
+            assertNotSame(second, pool.acquireInflater());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringSetProperty;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Content-encoding stage between the origin response and the client.
+ * Decides whether a response body is passed through as is, decompressed because the origin sent gzip that the client
+ * does not accept, or compressed because the client accepts gzip and the body is a compressible type of at least
+ * zuul.response.gzip.min-size bytes. Transcoding uses pooled Inflaters and Deflaters from the CodecPool.
+ */
+public class ContentEncoder {
+
+    public enum Action {
+        PASS_THROUGH, DECOMPRESS, COMPRESS
+    }
+
+    private static final DynamicBooleanProperty GZIP_ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_RESPONSE_GZIP_ENABLED, true);
+    private static final DynamicIntProperty GZIP_MIN_SIZE =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RESPONSE_GZIP_MIN_SIZE, 1024);
+    private static final DynamicStringSetProperty GZIP_MIME_TYPES = new DynamicStringSetProperty(
+            ZuulConstants.ZUUL_RESPONSE_GZIP_MIME_TYPES,
+            "text/html,text/plain,text/css,text/xml,text/javascript,application/json,application/javascript,application/xml,image/svg+xml");
+
+    /**
+     * @param originGzipped  true if the origin response is gzip encoded
+     * @param gzipAccepted   true if the client accepts gzip
+     * @param contentType    the response Content-Type, may be null
+     * @param contentLength  the origin Content-Length, null if unknown
+     * @return what to do with the response body
+     */
+    public static Action select(boolean originGzipped, boolean gzipAccepted, String contentType, Long contentLength) {
+        if (originGzipped) {
+            return gzipAccepted ? Action.PASS_THROUGH : Action.DECOMPRESS;
+        }
+        if (gzipAccepted && GZIP_ENABLED.get() && isCompressible(contentType)
+                && (contentLength == null || contentLength >= GZIP_MIN_SIZE.get())) {
+            return Action.COMPRESS;
+        }
+        return Action.PASS_THROUGH;
+    }
+
+    /**
+     * @return true if the body sent to the client depends on its Accept-Encoding, so the response needs
+     * "Vary: Accept-Encoding"
+     */
+    public static boolean variesByAcceptEncoding(boolean originGzipped, String contentType, Long contentLength) {
+        return select(originGzipped, true, contentType, contentLength) != select(originGzipped, false, contentType, contentLength);
+    }
+
+    /**
+     * @param contentType
+     * @return true if contentType, without parameters, is one of zuul.response.gzip.mime-types
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) return false;
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon == -1) ? contentType : contentType.substring(0, semicolon);
+        return GZIP_MIME_TYPES.get().contains(mimeType.trim().toLowerCase());
+    }
+
+    /**
+     * wraps in with a gzip decoder. If in does not start with the gzip magic bytes it is returned unencoded, without
+     * having consumed any bytes.
+     *
+     * @param in a body expected to be gzip encoded
+     * @return the decoded body
+     * @throws IOException
+     */
+    public static InputStream decode(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] magic = new byte[2];
+        int n = 0;
+        int r;
+        while (n < 2 && (r = pushback.read(magic, n, 2 - n)) != -1) {
+            n += r;
+        }
+        if (n > 0) pushback.unread(magic, 0, n);
+        if (n < 2 || magic[0] != (byte) 0x1f || magic[1] != (byte) 0x8b) return pushback;
+        return new PooledGzipInputStream(pushback, CodecPool.getInstance());
+    }
+
+    /**
+     * @param in
+     * @return true if decode(in) returned a decoding stream
+     */
+    public static boolean isDecoding(InputStream in) {
+        return in instanceof PooledGzipInputStream;
+    }
+
+    /**
+     * wraps out with a gzip encoder. The returned stream must be finished or closed to complete the body and return
+     * its Deflater to the pool.
+     *
+     * @param out
+     * @return a gzip encoding stream
+     * @throws IOException
+     */
+    public static PooledGzipOutputStream encode(OutputStream out) throws IOException {
+        return new PooledGzipOutputStream(out, CodecPool.getInstance());
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void selectsAction() {
+            assertEquals(Action.DECOMPRESS, select(true, false, "application/json", 10000L));
+            assertEquals(Action.PASS_THROUGH, select(true, true, "application/json", 10000L));
+            assertEquals(Action.COMPRESS, select(false, true, "application/json; charset=utf-8", 10000L));
+            assertEquals(Action.COMPRESS, select(false, true, "text/html", null));
+            assertEquals(Action.PASS_THROUGH, select(false, true, "application/json", 100L));
+            assertEquals(Action.PASS_THROUGH, select(false, true, "image/png", 10000L));
+            assertEquals(Action.PASS_THROUGH, select(false, false, "text/html", 10000L));
+        }
+
+        @Test
+        public void variesWhenEncodingDependsOnClient() {
+            assertTrue(variesByAcceptEncoding(true, "image/png", null));
+            assertTrue(variesByAcceptEncoding(false, "application/json", 10000L));
+            assertFalse(variesByAcceptEncoding(false, "image/png", 10000L));
+        }
+
+        @Test
+        public void compressibleTypes() {
+            assertTrue(isCompressible("Text/HTML;charset=UTF-8"));
+            assertFalse(isCompressible("text/event-stream"));
+            assertFalse(isCompressible(null));
+        }
+
+        @Test
+        public void decodesOnlyGzip() throws IOException {
+            byte[] body = "body".getBytes("UTF-8");
+
+            InputStream plain = decode(new ByteArrayInputStream(body));
+            assertFalse(isDecoding(plain));
+            assertArrayEquals(body, PooledGzipInputStream.UnitTest.readAll(plain));
+
+            InputStream gzipped = decode(new ByteArrayInputStream(PooledGzipInputStream.UnitTest.gzip(body)));
+            assertTrue(isDecoding(gzipped));
+            assertArrayEquals(body, PooledGzipInputStream.UnitTest.readAll(gzipped));
+            gzipped.close();
+
+            assertEquals(0, PooledGzipInputStream.UnitTest.readAll(decode(new ByteArrayInputStream(new byte[0]))).length);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decides when a response body being streamed to the client is flushed.
+ * <ul>
+ * <li>COMPLETION flushes once, after the whole body has been written. Best for bulk payloads.</li>
+ * <li>BYTES flushes whenever at least <code>threshold</code> bytes were written since the last flush.</li>
+ * <li>TIME flushes whenever <code>threshold</code> milliseconds passed since the last flush, or when the origin has
+ * no more bytes ready, so streaming endpoints (eg text/event-stream) get their events promptly.</li>
+ * </ul>
+ * The default policy is read from zuul.response.flush.policy (COMPLETION, BYTES or TIME) with thresholds from
+ * zuul.response.flush.bytes and zuul.response.flush.millis.
+ */
+public class FlushPolicy {
+
+    public enum Mode {
+        COMPLETION, BYTES, TIME
+    }
+
+    public static final FlushPolicy COMPLETION = new FlushPolicy(Mode.COMPLETION, 0);
+
+    private static final DynamicStringProperty POLICY =
+            DynamicPropertyFactory.getInstance().getStringProperty(ZuulConstants.ZUUL_RESPONSE_FLUSH_POLICY, Mode.COMPLETION.name());
+    private static final DynamicIntProperty FLUSH_BYTES =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RESPONSE_FLUSH_BYTES, 65536);
+    private static final DynamicLongProperty FLUSH_MILLIS =
+            DynamicPropertyFactory.getInstance().getLongProperty(ZuulConstants.ZUUL_RESPONSE_FLUSH_MILLIS, 50);
+
+    private final Mode mode;
+    private final long threshold;
+
+    public FlushPolicy(Mode mode, long threshold) {
+        this.mode = mode;
+        this.threshold = threshold;
+    }
+
+    public static FlushPolicy bytes(long bytes) {
+        return new FlushPolicy(Mode.BYTES, bytes);
+    }
+
+    public static FlushPolicy time(long millis) {
+        return new FlushPolicy(Mode.TIME, millis);
+    }
+
+    /**
+     * @return the policy configured by zuul.response.flush.policy; COMPLETION if the property is missing or invalid
+     */
+    public static FlushPolicy fromConfig() {
+        String policy = POLICY.get();
+        if (policy != null) {
+            policy = policy.trim().toUpperCase();
+            if (Mode.BYTES.name().equals(policy)) return bytes(FLUSH_BYTES.get());
+            if (Mode.TIME.name().equals(policy)) return time(FLUSH_MILLIS.get());
+        }
+        return COMPLETION;
+    }
+
+    /**
+     * picks a policy for a response. Streaming content types are flushed on time so events aren't held back in the
+     * buffer; everything else uses the configured policy.
+     *
+     * @param contentType the origin's Content-Type, may be null
+     * @return a FlushPolicy
+     */
+    public static FlushPolicy forResponse(String contentType) {
+        if (contentType != null && contentType.toLowerCase().startsWith("text/event-stream")) {
+            return time(FLUSH_MILLIS.get());
+        }
+        return fromConfig();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param bytesSinceFlush bytes written since the last flush
+     * @param millisSinceFlush milliseconds since the last flush
+     * @param moreAvailable true if the source has more bytes ready to be read without blocking
+     * @return true if the output should be flushed now
+     */
+    public boolean shouldFlush(long bytesSinceFlush, long millisSinceFlush, boolean moreAvailable) {
+        if (bytesSinceFlush <= 0) return false;
+        switch (mode) {
+            case BYTES:
+                return bytesSinceFlush >= threshold;
+            case TIME:
+                return !moreAvailable || millisSinceFlush >= threshold;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.COMPLETION ? mode.name() : mode.name() + "(" + threshold + ")";
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void completionNeverFlushesEarly() {
+            assertFalse(COMPLETION.shouldFlush(1 << 20, 10000, false));
+        }
+
+        @Test
+        public void bytesFlushesOnThreshold() {
+            FlushPolicy policy = bytes(1000);
+            assertFalse(policy.shouldFlush(999, 10000, false));
+            assertTrue(policy.shouldFlush(1000, 0, true));
+        }
+
+        @Test
+        public void timeFlushesOnThresholdOrWhenIdle() {
+            FlushPolicy policy = time(50);
+            assertFalse(policy.shouldFlush(10, 10, true));
+            assertTrue(policy.shouldFlush(10, 50, true));
+            assertTrue(policy.shouldFlush(10, 0, false));
+            assertFalse(policy.shouldFlush(0, 100, false));
+        }
+
+        @Test
+        public void streamingContentTypeFlushesOnTime() {
+            assertEquals(Mode.TIME, forResponse("text/event-stream; charset=utf-8").getMode());
+            assertEquals(Mode.COMPLETION, forResponse("application/json").getMode());
+        }
+    }
+}
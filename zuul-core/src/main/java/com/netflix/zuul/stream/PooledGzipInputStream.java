@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A gzip decoding InputStream, like GZIPInputStream, that borrows its Inflater from a CodecPool and hands it back on
+ * close() instead of allocating a new one for every stream. Concatenated gzip members are decoded as one stream.
+ */
+public class PooledGzipInputStream extends InflaterInputStream {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final CodecPool pool;
+    private final CRC32 crc = new CRC32();
+    private boolean eos;
+    private boolean released;
+
+    /**
+     * reads the gzip header from in
+     *
+     * @param in   the gzip encoded stream
+     * @param pool pool to borrow the Inflater from
+     * @throws ZipException if in does not start with a gzip header
+     * @throws IOException
+     */
+    public PooledGzipInputStream(InputStream in, CodecPool pool) throws IOException {
+        super(in, pool.acquireInflater(), 8192);
+        this.pool = pool;
+        try {
+            readHeader(in);
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (eos) return -1;
+        int n = super.read(b, off, len);
+        if (n == -1) {
+            if (readTrailer()) {
+                eos = true;
+            } else {
+                return this.read(b, off, len);
+            }
+        } else {
+            crc.update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eos ? 0 : super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        if (released) return;
+        released = true;
+        eos = true;
+        pool.releaseInflater(inf);
+    }
+
+    /**
+     * reads the trailer of the current member and checks it.
+     *
+     * @return true if this was the last member, false if another member follows and decoding continues
+     */
+    private boolean readTrailer() throws IOException {
+        InputStream in = this.in;
+        int remaining = inf.getRemaining();
+        if (remaining > 0) {
+            in = new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), this.in);
+        }
+        if (readUInt(in) != crc.getValue() || readUInt(in) != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+
+        // a concatenated member follows if there are more bytes
+        if (this.in.available() > 0 || remaining > 8) {
+            int headerLength;
+            try {
+                headerLength = readHeader(in);
+            } catch (IOException e) {
+                return true;
+            }
+            inf.reset();
+            int consumed = 8 + headerLength;
+            if (remaining > consumed) {
+                inf.setInput(buf, len - remaining + consumed, remaining - consumed);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of header bytes read
+     */
+    private int readHeader(InputStream in) throws IOException {
+        crc.reset();
+        if (readUShort(in) != 0x8b1f) throw new ZipException("Not in GZIP format");
+        if (readUByte(in) != 8) throw new ZipException("Unsupported compression method");
+        int flags = readUByte(in);
+        skipBytes(in, 6);
+        int n = 10;
+        if ((flags & FEXTRA) == FEXTRA) {
+            int extra = readUShort(in);
+            skipBytes(in, extra);
+            n += extra + 2;
+        }
+        if ((flags & FNAME) == FNAME) {
+            do {
+                n++;
+            } while (readUByte(in) != 0);
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            do {
+                n++;
+            } while (readUByte(in) != 0);
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            skipBytes(in, 2);
+            n += 2;
+        }
+        return n;
+    }
+
+    private static long readUInt(InputStream in) throws IOException {
+        long s = readUShort(in);
+        return ((long) readUShort(in) << 16) | s;
+    }
+
+    private static int readUShort(InputStream in) throws IOException {
+        int b = readUByte(in);
+        return (readUByte(in) << 8) | b;
+    }
+
+    private static int readUByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) throw new EOFException();
+        return b;
+    }
+
+    private static void skipBytes(InputStream in, int n) throws IOException {
+        while (n-- > 0) {
+            readUByte(in);
+        }
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void decodesGzip() throws IOException {
+            byte[] body = "hello hello hello hello".getBytes("UTF-8");
+            CodecPool pool = new CodecPool(6, 2);
+            PooledGzipInputStream in = new PooledGzipInputStream(new ByteArrayInputStream(gzip(body)), pool);
+            assertArrayEquals(body, readAll(in));
+            Inflater inflater = in.inf;
+            in.close();
+            assertSame(inflater, pool.acquireInflater());
+        }
+
+        @Test
+        public void decodesConcatenatedMembers() throws IOException {
+            ByteArrayOutputStream both = new ByteArrayOutputStream();
+            both.write(gzip("first ".getBytes("UTF-8")));
+            both.write(gzip("second".getBytes("UTF-8")));
+            PooledGzipInputStream in = new PooledGzipInputStream(new ByteArrayInputStream(both.toByteArray()), new CodecPool(6, 2));
+            assertArrayEquals("first second".getBytes("UTF-8"), readAll(in));
+            in.close();
+        }
+
+        @Test(expected = ZipException.class)
+        public void rejectsPlainContent() throws IOException {
+            new PooledGzipInputStream(new ByteArrayInputStream("plain".getBytes("UTF-8")), new CodecPool(6, 2));
+        }
+
+        static byte[] gzip(byte[] body) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body);
+            gzip.close();
+            return out.toByteArray();
+        }
+
+        static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[7];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A gzip encoding OutputStream, like GZIPOutputStream, that borrows its Deflater from a CodecPool and hands it back
+ * once the stream is finished. flush() does a zlib sync flush so flushed bytes can be decoded by the client right
+ * away, which keeps FlushPolicy working on compressed responses.
+ * <p/>
+ * finish() completes the gzip member without closing the underlying stream; close() finishes and closes it.
+ */
+public class PooledGzipOutputStream extends DeflaterOutputStream {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final CodecPool pool;
+    private final CRC32 crc = new CRC32();
+    private boolean finished;
+
+    public PooledGzipOutputStream(OutputStream out, CodecPool pool) throws IOException {
+        super(out, pool.acquireDeflater(), 8192, true);
+        this.pool = pool;
+        out.write(HEADER);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("write beyond end of stream");
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        try {
+            def.finish();
+            while (!def.finished()) {
+                int n = def.deflate(buf, 0, buf.length);
+                if (n > 0) out.write(buf, 0, n);
+            }
+            byte[] trailer = new byte[8];
+            writeInt((int) crc.getValue(), trailer, 0);
+            writeInt((int) def.getBytesRead(), trailer, 4);
+            out.write(trailer);
+        } finally {
+            pool.releaseDeflater(def);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (finished) {
+            out.flush();
+        } else {
+            super.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInt(int i, byte[] b, int offset) {
+        b[offset] = (byte) (i & 0xff);
+        b[offset + 1] = (byte) ((i >> 8) & 0xff);
+        b[offset + 2] = (byte) ((i >> 16) & 0xff);
+        b[offset + 3] = (byte) ((i >> 24) & 0xff);
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void encodesGzip() throws IOException {
+            byte[] body = new byte[20000];
+            for (int i = 0; i < body.length; i++) body[i] = (byte) (i % 31);
+
+            CodecPool pool = new CodecPool(6, 2);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PooledGzipOutputStream gzip = new PooledGzipOutputStream(out, pool);
+            gzip.write(body, 0, 10000);
+            gzip.flush();
+            gzip.write(body, 10000, 10000);
+            Deflater deflater = gzip.def;
+            gzip.finish();
+            gzip.finish();
+
+            assertSame(deflater, pool.acquireDeflater());
+            assertArrayEquals(body, PooledGzipInputStream.UnitTest.readAll(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+        }
+    }
+}
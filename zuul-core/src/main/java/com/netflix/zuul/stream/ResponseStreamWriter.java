@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stream;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Copies a response body from the origin to the client using a buffer from the BufferPool.
+ * Reads are accumulated until the buffer is full so the client sees few, large writes, and the output is flushed
+ * according to a FlushPolicy instead of after every write.
+ * <p/>
+ * When both streams expose an NIO channel (the stream implements ReadableByteChannel/WritableByteChannel, or is a
+ * FileInputStream/FileOutputStream) the body is moved channel to channel through a pooled direct buffer, or with
+ * FileChannel.transferTo when the source is a file, so it is not copied through the heap. Otherwise, or when
+ * zuul.response.channel-transfer.enabled is false, the stream path is used.
+ */
+public class ResponseStreamWriter {
+
+    private static final DynamicBooleanProperty CHANNEL_TRANSFER =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_RESPONSE_CHANNEL_TRANSFER_ENABLED, true);
+
+    private static final ResponseStreamWriter INSTANCE = new ResponseStreamWriter(BufferPool.getInstance());
+
+    private final BufferPool pool;
+
+    public ResponseStreamWriter(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public static ResponseStreamWriter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * streams in to out. Neither stream is closed.
+     *
+     * @param in            the response body
+     * @param out           the client output stream
+     * @param contentLength the origin's Content-Length used to size the buffer; null if unknown
+     * @param policy        when to flush out
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public long write(InputStream in, OutputStream out, Long contentLength, FlushPolicy policy) throws IOException {
+        if (policy == null) policy = FlushPolicy.COMPLETION;
+
+        if (CHANNEL_TRANSFER.get()) {
+            ReadableByteChannel source = channelOf(in);
+            WritableByteChannel sink = (source == null) ? null : channelOf(out);
+            if (sink != null) return transfer(in, source, out, sink, contentLength, policy);
+        }
+        return copy(in, out, contentLength, policy);
+    }
+
+    private long copy(InputStream in, OutputStream out, Long contentLength, FlushPolicy policy) throws IOException {
+        boolean timed = policy.getMode() == FlushPolicy.Mode.TIME;
+
+        byte[] buffer = pool.acquire(contentLength == null ? -1 : contentLength);
+        try {
+            long total = 0;
+            long unflushed = 0;
+            long lastFlush = timed ? System.currentTimeMillis() : 0;
+            int pos = 0;
+            int n;
+            while ((n = in.read(buffer, pos, buffer.length - pos)) != -1) {
+                pos += n;
+                boolean moreAvailable = !timed || in.available() > 0;
+                if (pos < buffer.length && moreAvailable) continue;
+
+                out.write(buffer, 0, pos);
+                total += pos;
+                unflushed += pos;
+                pos = 0;
+
+                long now = timed ? System.currentTimeMillis() : 0;
+                if (policy.shouldFlush(unflushed, now - lastFlush, moreAvailable)) {
+                    out.flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+            }
+            if (pos > 0) {
+                out.write(buffer, 0, pos);
+                total += pos;
+            }
+            out.flush();
+            return total;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private long transfer(InputStream in, ReadableByteChannel source, OutputStream out, WritableByteChannel sink,
+                          Long contentLength, FlushPolicy policy) throws IOException {
+        if (source instanceof FileChannel && policy.getMode() == FlushPolicy.Mode.COMPLETION) {
+            FileChannel file = (FileChannel) source;
+            long position = file.position();
+            long total = 0;
+            long n;
+            while ((n = file.transferTo(position + total, file.size() - position - total, sink)) > 0) {
+                total += n;
+            }
+            file.position(position + total);
+            out.flush();
+            return total;
+        }
+
+        boolean timed = policy.getMode() == FlushPolicy.Mode.TIME;
+        ByteBuffer buffer = pool.acquireDirect(contentLength == null ? -1 : contentLength);
+        try {
+            long total = 0;
+            long unflushed = 0;
+            long lastFlush = timed ? System.currentTimeMillis() : 0;
+            while (source.read(buffer) != -1) {
+                boolean moreAvailable = !timed || in.available() > 0;
+                if (buffer.hasRemaining() && moreAvailable) continue;
+
+                buffer.flip();
+                int n = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    sink.write(buffer);
+                }
+                buffer.clear();
+                total += n;
+                unflushed += n;
+
+                long now = timed ? System.currentTimeMillis() : 0;
+                if (policy.shouldFlush(unflushed, now - lastFlush, moreAvailable)) {
+                    out.flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+            }
+            buffer.flip();
+            total += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                sink.write(buffer);
+            }
+            out.flush();
+            return total;
+        } finally {
+            pool.releaseDirect(buffer);
+        }
+    }
+
+    static ReadableByteChannel channelOf(InputStream in) {
+        if (in instanceof ReadableByteChannel) return (ReadableByteChannel) in;
+        if (in instanceof FileInputStream) return ((FileInputStream) in).getChannel();
+        return null;
+    }
+
+    static WritableByteChannel channelOf(OutputStream out) {
+        if (out instanceof WritableByteChannel) return (WritableByteChannel) out;
+        if (out instanceof FileOutputStream) return ((FileOutputStream) out).getChannel();
+        return null;
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void copiesBodyLargerThanBuffer() throws IOException {
+            byte[] body = new byte[10000];
+            for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long written = new ResponseStreamWriter(new BufferPool(1024, 4096, 2))
+                    .write(new ByteArrayInputStream(body), out, null, FlushPolicy.COMPLETION);
+
+            assertEquals(body.length, written);
+            assertArrayEquals(body, out.toByteArray());
+        }
+
+        @Test
+        public void flushesOncePerThreshold() throws IOException {
+            CountingOutputStream out = new CountingOutputStream();
+            new ResponseStreamWriter(new BufferPool(1024, 1024, 2))
+                    .write(new ByteArrayInputStream(new byte[8192]), out, 8192L, FlushPolicy.bytes(4096));
+
+            assertEquals(8, out.writes);
+            // two on the threshold and the final one
+            assertEquals(3, out.flushes);
+        }
+
+        @Test
+        public void completionFlushesOnce() throws IOException {
+            CountingOutputStream out = new CountingOutputStream();
+            new ResponseStreamWriter(new BufferPool(1024, 1024, 2))
+                    .write(new ByteArrayInputStream(new byte[8192]), out, null, FlushPolicy.COMPLETION);
+
+            assertEquals(1, out.flushes);
+        }
+
+        @Test
+        public void transfersFileToFile() throws IOException {
+            byte[] body = new byte[100000];
+            for (int i = 0; i < body.length; i++) body[i] = (byte) (i % 127);
+            File from = tempFile(body);
+            File to = File.createTempFile("zuul-transfer", ".out");
+            to.deleteOnExit();
+
+            FileInputStream in = new FileInputStream(from);
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                long written = new ResponseStreamWriter(new BufferPool(1024, 4096, 2)).write(in, out, null, FlushPolicy.COMPLETION);
+                assertEquals(body.length, written);
+            } finally {
+                in.close();
+                out.close();
+            }
+            assertArrayEquals(body, readFile(to));
+        }
+
+        @Test
+        public void transfersThroughDirectBufferWithFlushPolicy() throws IOException {
+            byte[] body = new byte[8192];
+            for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+            FileInputStream in = new FileInputStream(tempFile(body));
+            ChannelOutputStream out = new ChannelOutputStream();
+            try {
+                long written = new ResponseStreamWriter(new BufferPool(1024, 1024, 2)).write(in, out, (long) body.length, FlushPolicy.bytes(4096));
+                assertEquals(body.length, written);
+            } finally {
+                in.close();
+            }
+            assertArrayEquals(body, out.toByteArray());
+            assertEquals(3, out.flushes);
+        }
+
+        @Test
+        public void fallsBackToStreamsWithoutChannels() {
+            assertNull(channelOf(new ByteArrayInputStream(new byte[0])));
+            assertNull(channelOf(new ByteArrayOutputStream()));
+        }
+
+        private static File tempFile(byte[] content) throws IOException {
+            File file = File.createTempFile("zuul-transfer", ".in");
+            file.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            return file;
+        }
+
+        private static byte[] readFile(File file) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new ResponseStreamWriter(new BufferPool(1024, 1024, 1)).copy(in, out, null, FlushPolicy.COMPLETION);
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        }
+
+        static class ChannelOutputStream extends CountingOutputStream implements WritableByteChannel {
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                byte[] bytes = new byte[n];
+                src.get(bytes);
+                write(bytes, 0, n);
+                return n;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+        }
+
+        static class CountingOutputStream extends ByteArrayOutputStream {
+            int writes;
+            int flushes;
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes++;
+                super.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                flushes++;
+            }
+        }
+    }
+}
@@ -244,6 +244,37 @@ public class HTTPRequestUtils {
         return contentEncoding.contains("gzip");
     }
 
+    /**
+     * return true if an Accept-Encoding header accepts the given content-coding. q-values are honored, so
+     * "gzip;q=0" does not accept gzip, and "*" accepts any coding not explicitly listed.
+     *
+     * @param acceptEncoding the Accept-Encoding header value, may be null
+     * @param coding         a content-coding such as "gzip"
+     * @return true if coding is acceptable with a q-value greater than 0
+     */
+    public boolean acceptsEncoding(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) return false;
+        float wildcard = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String name = parts[0].trim().toLowerCase();
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals(coding) || name.equals("x-" + coding)) return q > 0;
+            if (name.equals("*")) wildcard = q;
+        }
+        return wildcard > 0;
+    }
+
     public static class UnitTest {
 
         @Mock
@@ -281,6 +312,19 @@ public class HTTPRequestUtils {
             assertTrue(HTTPRequestUtils.getInstance().isGzipped("gzip, deflate"));
         }
 
+        @Test
+        public void acceptsEncodingHonorsQValues() {
+            HTTPRequestUtils utils = HTTPRequestUtils.getInstance();
+            assertTrue(utils.acceptsEncoding("gzip", "gzip"));
+            assertTrue(utils.acceptsEncoding("deflate, GZIP;q=0.5", "gzip"));
+            assertTrue(utils.acceptsEncoding("x-gzip", "gzip"));
+            assertTrue(utils.acceptsEncoding("br, *;q=0.1", "gzip"));
+            assertFalse(utils.acceptsEncoding("gzip;q=0", "gzip"));
+            assertFalse(utils.acceptsEncoding("*, gzip;q=0.0", "gzip"));
+            assertFalse(utils.acceptsEncoding("identity", "gzip"));
+            assertFalse(utils.acceptsEncoding(null, "gzip"));
+        }
+
         @Test
         public void testGetQueryParams() {
             when(request.getQueryString()).thenReturn("wsdl");
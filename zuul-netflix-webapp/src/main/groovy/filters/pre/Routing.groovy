@@ -24,6 +24,8 @@ import com.netflix.zuul.constants.ZuulConstants
 import com.netflix.zuul.context.NFRequestContext
 import com.netflix.zuul.context.RequestContext
 import com.netflix.zuul.exception.ZuulException
+import com.netflix.zuul.origin.HostGroup
+import com.netflix.zuul.origin.HostGroups
 
 /**
  * @author Mikey Cohen
@@ -55,6 +57,18 @@ class Routing extends ZuulFilter {
         FilterProcessor.instance.runFilters("static")
     }
 
+    /**
+     * @return the next healthy host of the "default" host group, made of the hosts zuul.default.host lists
+     */
+    URL chooseDefaultHost() {
+        HostGroup group = HostGroups.getInstance().get(HostGroups.DEFAULT_GROUP)
+        URL host = group?.choose()
+        if (host == null) {
+            throw new ZuulException("no healthy host in zuul.default.host", HostGroups.STATUS, HostGroups.ERROR_CAUSE)
+        }
+        return host
+    }
+
     Object run() {
 
         staticRouting() //runs the static Zuul
@@ -63,7 +77,7 @@ class Routing extends ZuulFilter {
         String host = defaultHost.get()
         if (((NFRequestContext) RequestContext.currentContext).routeVIP == null) ((NFRequestContext) RequestContext.currentContext).routeVIP = ZuulApplicationInfo.applicationName
         if (host != null) {
-            final URL targetUrl = new URL(host)
+            final URL targetUrl = host.contains(",") ? chooseDefaultHost() : new URL(host)
             RequestContext.currentContext.setRouteHost(targetUrl);
             ((NFRequestContext) RequestContext.currentContext).routeVIP = null
         }
@@ -15,14 +15,12 @@
  */
 package filters.pre
 
-import com.netflix.config.DynamicIntProperty
-import com.netflix.config.DynamicPropertyFactory
-import com.netflix.config.DynamicStringProperty
 import com.netflix.zuul.ZuulFilter
-import com.netflix.zuul.constants.ZuulConstants
 import com.netflix.zuul.context.NFRequestContext
 import com.netflix.zuul.context.RequestContext
 import com.netflix.zuul.dependency.ribbon.RibbonConfig
+import com.netflix.zuul.origin.TrafficSplit
+import com.netflix.zuul.origin.TrafficSplitter
 import org.junit.Assert
 import org.junit.Before
 import org.junit.Test
@@ -36,19 +34,16 @@ import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 
 /**
+ * Sends shares of a route's traffic to other VIPs or hosts, as split by the zuul.router.split properties
+ * (see TrafficSplitter), or by the zuul.router.alt.route ones when no split is set.
+ *
  * @author Mikey Cohen
  * Date: 7/9/12
  * Time: 1:19 PM
  */
 
 class WeightedLoadBalancer extends ZuulFilter {
-    DynamicStringProperty AltVIP = DynamicPropertyFactory.getInstance().getStringProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_VIP, null)
-    DynamicStringProperty AltHost = DynamicPropertyFactory.getInstance().getStringProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_HOST, null)
-    DynamicIntProperty AltPercent = DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_PERMYRIAD, 0)   //0-10000 is 0-100% of traffic
-    DynamicIntProperty AltPercentMaxLimit = DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_ROUTER_ALT_ROUTE_MAXLIMIT, 500)
-    String envRegion = System.getenv("EC2_REGION");
-
-    Random rand = new Random()
+    TrafficSplitter splitter = TrafficSplitter.getInstance()
 
     String filterType() {
         return "pre"
@@ -60,44 +55,36 @@ class WeightedLoadBalancer extends ZuulFilter {
     }
 
     /**
-     * returns true if a randomValue is less than the zuul.router.alt.route.permyriad property value
+     * returns true if some route is split, for requests that aren't already sent to a host or answered by Zuul
      * @return
      */
     @Override
     boolean shouldFilter() {
-
-
-        if (AltPercent.get() == 0) return false
-        if (AltVIP.get() == null && AltHost.get() == null) return false
-        if (NFRequestContext.currentContext.host != null) return false //host calls are not going to be loaltPad calculated here.
+        if (!splitter.hasSplits()) return false
+        if (RequestContext.currentContext.getRouteHost() != null) return false //host calls are not going to be load balanced here.
         if (RequestContext.currentContext.sendZuulResponse == false) return false;
-        if (AltPercent.get() > AltPercentMaxLimit.get()) return false
-
-        int randomValue = rand.nextInt(10000)
-        return randomValue <= AltPercent.get()
+        return true
     }
 
     @Override
     Object run() {
-        if (AltVIP.get() != null) {
-            (NFRequestContext.currentContext).routeVIP = AltVIP.get()
-            if (NFRequestContext.currentContext.routeVIP.startsWith(RibbonConfig.getApplicationName())) {
-                NFRequestContext.getCurrentContext().zuulToZuul = true // for zuulToZuul load testing
-            }
-            return true
-        }
-        if (AltHost.get() != null) {
-            try {
-                (NFRequestContext.currentContext).host = new URL(AltHost.get())
-                (NFRequestContext.currentContext).routeVIP = null
-
-            } catch (Exception e) {
-                e.printStackTrace()
-                return false;
+        NFRequestContext context = NFRequestContext.currentContext
+        String stickyHeader = splitter.getStickyHeader()
+        String stickyKey = (stickyHeader != null) ? context.getRequest()?.getHeader(stickyHeader) : null
+        TrafficSplitter.Target target = splitter.choose(context.getRoute(), stickyKey)
+        if (target.isCurrentRoute()) return false
+
+        if (target.getVip() != null) {
+            context.setRouteVIP(target.getVip())
+            String application = RibbonConfig.getApplicationName()
+            if (application != null && target.getVip().startsWith(application)) {
+                context.zuulToZuul = true // for zuulToZuul load testing
             }
             return true
         }
-
+        context.setRouteHost(target.getHost())
+        context.setRouteVIP(null)
+        return true
     }
 
     @RunWith(MockitoJUnitRunner.class)
@@ -124,77 +111,91 @@ class WeightedLoadBalancer extends ZuulFilter {
             ctx.response = response
         }
 
+        static WeightedLoadBalancer filterWith(String targets) {
+            TrafficSplitter splitter = Mockito.mock(TrafficSplitter.class)
+            TrafficSplit<TrafficSplitter.Target> split = (targets == null) ? null : TrafficSplitter.parse(targets)
+            Mockito.when(splitter.hasSplits()).thenReturn(split != null)
+            Mockito.when(splitter.choose(Mockito.anyString(), Mockito.anyString())).thenAnswer({
+                split == null ? TrafficSplitter.parse("*=1").pick() : split.pick(it.arguments[1] as String)
+            } as org.mockito.stubbing.Answer)
+            WeightedLoadBalancer weightedLoadBalancer = new WeightedLoadBalancer()
+            weightedLoadBalancer.splitter = splitter
+            return weightedLoadBalancer
+        }
+
         @Test
         public void testFalseRouting() {
-            request = Mockito.mock(HttpServletRequest.class)
-            WeightedLoadBalancer weightedLoadBalancer = new WeightedLoadBalancer()
-            weightedLoadBalancer = Mockito.spy(weightedLoadBalancer)
-            weightedLoadBalancer.AltPercent = Mockito.mock(DynamicIntProperty.class)
-            Mockito.when(weightedLoadBalancer.AltPercent.get()).thenReturn(new Integer(0))
+            WeightedLoadBalancer weightedLoadBalancer = filterWith(null)
             Assert.assertFalse(weightedLoadBalancer.shouldFilter())
         }
 
         @Test
-        public void testMaxLimit() {
-            request = Mockito.mock(HttpServletRequest.class)
-            WeightedLoadBalancer weightedLoadBalancer = new WeightedLoadBalancer()
-            weightedLoadBalancer = Mockito.spy(weightedLoadBalancer)
-            weightedLoadBalancer.AltPercent = DynamicPropertyFactory.getInstance().getIntProperty("y", 10000)
-
-            weightedLoadBalancer.AltVIP = Mockito.mock(DynamicStringProperty.class)
-            Mockito.when(weightedLoadBalancer.AltVIP.get()).thenReturn("test")
+        public void testHostRequestsAreNotSplit() {
+            WeightedLoadBalancer weightedLoadBalancer = filterWith("test=1")
+            RequestContext.currentContext.setRouteHost(new URL("http://www.moldfarm.com"))
             Assert.assertFalse(weightedLoadBalancer.shouldFilter())
         }
 
         @Test
         public void testTrueRouting() {
-            request = Mockito.mock(HttpServletRequest.class)
-            WeightedLoadBalancer weightedLoadBalancer = new WeightedLoadBalancer()
-            weightedLoadBalancer = Mockito.spy(weightedLoadBalancer)
-            weightedLoadBalancer.AltPercent = Mockito.mock(DynamicIntProperty.class)
-            Mockito.when(weightedLoadBalancer.AltPercent.get()).thenReturn(new Integer(10000))
-            weightedLoadBalancer.AltVIP = Mockito.mock(DynamicStringProperty.class)
-            Mockito.when(weightedLoadBalancer.AltVIP.get()).thenReturn("test")
-            weightedLoadBalancer.AltPercentMaxLimit = DynamicPropertyFactory.getInstance().getIntProperty("x", 100000)
+            WeightedLoadBalancer weightedLoadBalancer = filterWith("test=1")
+            NFRequestContext.currentContext.routeVIP = "origin"
+            NFRequestContext.currentContext.route = "api/"
             Assert.assertTrue(weightedLoadBalancer.shouldFilter())
             weightedLoadBalancer.run()
             Assert.assertTrue(NFRequestContext.currentContext.routeVIP == "test")
-            Assert.assertTrue(NFRequestContext.currentContext.host == null)
+            Assert.assertTrue(NFRequestContext.currentContext.getRouteHost() == null)
         }
 
-//        @Test
+        @Test
+        public void testCurrentRouteIsKept() {
+            WeightedLoadBalancer weightedLoadBalancer = filterWith("test=0,*=1")
+            NFRequestContext.currentContext.routeVIP = "origin"
+            NFRequestContext.currentContext.route = "api/"
+            Assert.assertTrue(weightedLoadBalancer.shouldFilter())
+            weightedLoadBalancer.run()
+            Assert.assertTrue(NFRequestContext.currentContext.routeVIP == "origin")
+        }
+
+        @Test
         public void testPercentRouting() {
-            WeightedLoadBalancer weightedLoadBalancer = new WeightedLoadBalancer()
-            weightedLoadBalancer.AltPercent = DynamicPropertyFactory.getInstance().getIntProperty("x", 100)
-            weightedLoadBalancer.AltVIP = DynamicPropertyFactory.getInstance().getStringProperty("y", "test")
-            weightedLoadBalancer.envRegion = "us-east-1"
+            WeightedLoadBalancer weightedLoadBalancer = filterWith("test=100,*=9900")
+            NFRequestContext.currentContext.route = "api/"
 
             int nCount = 0
-
-            for (int i = 0; i < 1000; ++i) {
-                if (weightedLoadBalancer.shouldFilter()) nCount++
+            for (int i = 0; i < 10000; ++i) {
+                NFRequestContext.currentContext.routeVIP = "origin"
+                weightedLoadBalancer.run()
+                if (NFRequestContext.currentContext.routeVIP == "test") nCount++
             }
-            println(nCount)
-            Assert.assertTrue(nCount > 8)
-            Assert.assertTrue(nCount < 20)
+            Assert.assertTrue(nCount > 50)
+            Assert.assertTrue(nCount < 150)
+        }
+
+        @Test
+        public void testStickyRouting() {
+            WeightedLoadBalancer weightedLoadBalancer = filterWith("a=1,b=1,c=1")
+            Mockito.when(weightedLoadBalancer.splitter.getStickyHeader()).thenReturn("X-Client-Id")
+            Mockito.when(request.getHeader("X-Client-Id")).thenReturn("client-42")
+            NFRequestContext.currentContext.route = "api/"
 
+            weightedLoadBalancer.run()
+            String first = NFRequestContext.currentContext.routeVIP
+            for (int i = 0; i < 20; ++i) {
+                weightedLoadBalancer.run()
+                Assert.assertEquals(first, NFRequestContext.currentContext.routeVIP)
+            }
         }
 
         @Test
         public void testTrueHostRouting() {
-            request = Mockito.mock(HttpServletRequest.class)
-            WeightedLoadBalancer weightedLoadBalancer = new WeightedLoadBalancer()
-            weightedLoadBalancer = Mockito.spy(weightedLoadBalancer)
-            weightedLoadBalancer.AltPercent = Mockito.mock(DynamicIntProperty.class)
-            Mockito.when(weightedLoadBalancer.AltPercent.get()).thenReturn(new Integer(10000))
-            weightedLoadBalancer.AltPercentMaxLimit = DynamicPropertyFactory.getInstance().getIntProperty("x", 100000)
-
-            weightedLoadBalancer.AltHost = Mockito.mock(DynamicStringProperty.class)
-            Mockito.when(weightedLoadBalancer.AltHost.get()).thenReturn("http://www.moldfarm.com")
+            WeightedLoadBalancer weightedLoadBalancer = filterWith("http://www.moldfarm.com=1")
+            NFRequestContext.currentContext.routeVIP = "origin"
+            NFRequestContext.currentContext.route = "api/"
             Assert.assertTrue(weightedLoadBalancer.shouldFilter())
             weightedLoadBalancer.run()
             Assert.assertTrue(NFRequestContext.currentContext.routeVIP == null)
-            Assert.assertTrue(NFRequestContext.currentContext.host != null)
+            Assert.assertTrue(NFRequestContext.currentContext.getRouteHost() != null)
         }
 
     }
@@ -23,7 +23,18 @@ import com.netflix.zuul.constants.ZuulConstants
 import com.netflix.zuul.context.Debug
 import com.netflix.zuul.context.NFRequestContext
 import com.netflix.zuul.context.RequestContext
+import com.netflix.zuul.context.RequestDeadline
+import com.netflix.zuul.dependency.ConcurrencyLimitExceededException
+import com.netflix.zuul.dependency.DeadlineExceededException
+import com.netflix.zuul.dependency.httpclient.ClientConnectionPool
+import com.netflix.zuul.dependency.httpclient.ClientConnectionPrewarmer
 import com.netflix.zuul.dependency.httpclient.hystrix.HostCommand
+import com.netflix.zuul.origin.ConnectionPoolMaintenance
+import com.netflix.zuul.origin.ConnectionPrewarmer
+import com.netflix.zuul.origin.DnsCache
+import com.netflix.zuul.origin.HostGroups
+import com.netflix.zuul.origin.SpeculativeConnector
+import com.netflix.zuul.exception.ZuulException
 import com.netflix.zuul.util.HTTPRequestUtils
 import org.apache.http.*
 import org.apache.http.client.HttpClient
@@ -31,13 +42,14 @@ import org.apache.http.client.methods.HttpPost
 import org.apache.http.client.methods.HttpPut
 import org.apache.http.client.params.ClientPNames
 import org.apache.http.conn.ClientConnectionManager
+import org.apache.http.conn.DnsResolver
 import org.apache.http.conn.scheme.PlainSocketFactory
 import org.apache.http.conn.scheme.Scheme
 import org.apache.http.conn.scheme.SchemeRegistry
 import org.apache.http.entity.InputStreamEntity
 import org.apache.http.impl.client.DefaultHttpClient
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager
+import org.apache.http.impl.conn.PoolingClientConnectionManager
 import org.apache.http.message.BasicHeader
 import org.apache.http.message.BasicHttpRequest
 import org.apache.http.message.BasicStatusLine
@@ -65,12 +77,6 @@ class ZuulHostRequest extends ZuulFilter {
     public static final String CONTENT_ENCODING = "Content-Encoding";
 
     private static final Logger LOG = LoggerFactory.getLogger(ZuulHostRequest.class);
-    private static final Runnable CLIENTLOADER = new Runnable() {
-        @Override
-        void run() {
-            loadClient();
-        }
-    }
 
     private static final DynamicIntProperty SOCKET_TIMEOUT =
         DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_SOCKET_TIMEOUT_MILLIS, 10000)
@@ -78,28 +84,29 @@ class ZuulHostRequest extends ZuulFilter {
     private static final DynamicIntProperty CONNECTION_TIMEOUT =
         DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_CONNECT_TIMEOUT_MILLIS, 2000)
 
-
+    private static final DynamicIntProperty MAX_CONNECTIONS =
+        DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_MAX_CONNECTIONS,
+                Integer.parseInt(System.getProperty("zuul.max.host.connections", "200")))
 
     private static final AtomicReference<HttpClient> CLIENT = new AtomicReference<HttpClient>(newClient());
 
-    private static final Timer CONNECTION_MANAGER_TIMER = new Timer(true);
-
-    // cleans expired connections at an interval
     static {
-        SOCKET_TIMEOUT.addCallback(CLIENTLOADER)
-        CONNECTION_TIMEOUT.addCallback(CLIENTLOADER)
-        CONNECTION_MANAGER_TIMER.schedule(new TimerTask() {
+        // the pool limit is changed on the live connection manager so warm connections are kept
+        MAX_CONNECTIONS.addCallback(new Runnable() {
             @Override
             void run() {
-                try {
-                    final HttpClient hc = CLIENT.get();
-                    if (hc == null) return;
-                    hc.getConnectionManager().closeExpiredConnections();
-                } catch (Throwable t) {
-                    LOG.error("error closing expired connections", t);
-                }
+                ((PoolingClientConnectionManager) CLIENT.get().getConnectionManager()).setMaxTotal(MAX_CONNECTIONS.get())
             }
-        }, 30000, 5000)
+        })
+        // expired and idle connections are closed on the scheduler shared by all pools
+        ConnectionPoolMaintenance.getInstance().register("host",
+                new ClientConnectionPool((PoolingClientConnectionManager) CLIENT.get().getConnectionManager()))
+        // the filter is first loaded while StartServer initializes, before the instance reports UP
+        if (ConnectionPrewarmer.isEnabled()) {
+            new ClientConnectionPrewarmer(CLIENT.get().getConnectionManager()).prewarm(ConnectionPrewarmer.getConfiguredHosts())
+        }
+        // pre filters setting the route host connect ahead through this pool when zuul.speculative-connect.enabled
+        SpeculativeConnector.setPrewarmer(new ClientConnectionPrewarmer(CLIENT.get().getConnectionManager()))
     }
 
     public ZuulHostRequest() {
@@ -111,8 +118,14 @@ class ZuulHostRequest extends ZuulFilter {
         schemeRegistry.register(
                 new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
 
-        ClientConnectionManager cm = new ThreadSafeClientConnManager(schemeRegistry);
-        cm.setMaxTotal(Integer.parseInt(System.getProperty("zuul.max.host.connections", "200")));
+        DnsResolver dnsResolver = new DnsResolver() {
+            @Override
+            InetAddress[] resolve(String host) throws UnknownHostException {
+                return DnsCache.getInstance().resolve(host)
+            }
+        }
+        ClientConnectionManager cm = new PoolingClientConnectionManager(schemeRegistry, dnsResolver);
+        cm.setMaxTotal(MAX_CONNECTIONS.get());
         cm.setDefaultMaxPerRoute(Integer.parseInt(System.getProperty("zuul.max.host.connections", "20")));
         return cm;
     }
@@ -131,31 +144,9 @@ class ZuulHostRequest extends ZuulFilter {
         return RequestContext.currentContext.getRouteHost() != null && RequestContext.currentContext.sendZuulResponse()
     }
 
-    private static final void loadClient() {
-        final HttpClient oldClient = CLIENT.get();
-        CLIENT.set(newClient())
-        if (oldClient != null) {
-            CONNECTION_MANAGER_TIMER.schedule(new TimerTask() {
-                @Override
-                void run() {
-                    try {
-                        oldClient.getConnectionManager().shutdown();
-                    } catch (Throwable t) {
-                        LOG.error("error shutting down old connection manager", t);
-                    }
-                }
-            }, 30000);
-        }
-
-    }
-
     private static final HttpClient newClient() {
-        // I could statically cache the connection manager but we will probably want to make some of its properties
-        // dynamic in the near future also
         HttpClient httpclient = new DefaultHttpClient(newConnectionManager());
         HttpParams httpParams = httpclient.getParams();
-        httpParams.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, SOCKET_TIMEOUT.get())
-        httpParams.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, CONNECTION_TIMEOUT.get())
         httpclient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false))
         httpParams.setParameter(ClientPNames.COOKIE_POLICY, org.apache.http.client.params.CookiePolicy.IGNORE_COOKIES);
         httpclient.setRedirectStrategy(new org.apache.http.client.RedirectStrategy() {
@@ -264,6 +255,7 @@ class ZuulHostRequest extends ZuulFilter {
 
         try {
             httpRequest.setHeaders(headers)
+            setTimeouts(httpRequest.getParams())
             HttpResponse zuulResponse = executeHttpRequest(httpclient, httpHost, httpRequest)
             return zuulResponse
 
@@ -277,9 +269,23 @@ class ZuulHostRequest extends ZuulFilter {
 
     }
 
+    /**
+     * request parameters override the client's, so timeout changes apply to the next request without a new client
+     */
+    static void setTimeouts(HttpParams params) {
+        params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, RequestDeadline.capTimeout(SOCKET_TIMEOUT.get()))
+        params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, RequestDeadline.capTimeout(CONNECTION_TIMEOUT.get()))
+    }
+
     HttpResponse executeHttpRequest(HttpClient httpclient, HttpHost httpHost, HttpRequest httpRequest) {
         HostCommand command = new HostCommand(httpclient, httpHost, httpRequest)
-        command.execute();
+        try {
+            command.execute();
+        } catch (ConcurrencyLimitExceededException e) {
+            throw new ZuulException(e, "Concurrency limit exceeded", 503, "CONCURRENCY_LIMIT_EXCEEDED")
+        } catch (DeadlineExceededException e) {
+            throw new ZuulException(e, "Request deadline exceeded", RequestDeadline.STATUS, RequestDeadline.ERROR_CAUSE)
+        }
     }
 
     String getQueryString() {
@@ -288,9 +294,12 @@ class ZuulHostRequest extends ZuulFilter {
         return (query != null) ? "?${query}" : "";
     }
 
+    /**
+     * @return the route host, or another member of its host group if it is down
+     */
     HttpHost getHttpHost() {
         HttpHost httpHost
-        URL host = RequestContext.currentContext.getRouteHost()
+        URL host = HostGroups.getInstance().resolve(RequestContext.currentContext.getRouteHost())
 
         httpHost = new HttpHost(host.getHost(), host.getPort(), host.getProtocol())
 
@@ -344,6 +353,11 @@ class ZuulHostRequest extends ZuulFilter {
             headers.put(it.toLowerCase(),new BasicHeader((String) it, (String) zuulRequestHeaders[it]))
         }
 
+        String budget = RequestDeadline.getHeaderValue()
+        if (budget != null) {
+            headers.put(RequestDeadline.getHeaderName().toLowerCase(), new BasicHeader(RequestDeadline.getHeaderName(), budget))
+        }
+
         if (RequestContext.currentContext.responseGZipped) {
             headers.put("accept-encoding",new BasicHeader("accept-encoding", "deflate, gzip"))
         }
@@ -28,6 +28,9 @@ import com.netflix.zuul.ZuulFilter
 import com.netflix.zuul.context.Debug
 import com.netflix.zuul.context.NFRequestContext
 import com.netflix.zuul.context.RequestContext
+import com.netflix.zuul.context.RequestDeadline
+import com.netflix.zuul.dependency.ConcurrencyLimitExceededException
+import com.netflix.zuul.dependency.DeadlineExceededException
 import com.netflix.zuul.dependency.ribbon.hystrix.RibbonCommand
 import com.netflix.zuul.exception.ZuulException
 import com.netflix.zuul.util.HTTPRequestUtils
@@ -149,6 +152,10 @@ class ZuulNFRequest extends ZuulFilter {
         try {
             HttpResponse response = command.execute();
             return response
+        } catch (ConcurrencyLimitExceededException e) {
+            throw new ZuulException(e, "Concurrency limit exceeded", 503, "CONCURRENCY_LIMIT_EXCEEDED")
+        } catch (DeadlineExceededException e) {
+            throw new ZuulException(e, "Request deadline exceeded", RequestDeadline.STATUS, RequestDeadline.ERROR_CAUSE)
         } catch (HystrixRuntimeException e) {
             if (e?.fallbackException?.cause instanceof ClientException) {
                 ClientException ex = e.fallbackException.cause as ClientException
@@ -209,6 +216,12 @@ class ZuulNFRequest extends ZuulFilter {
             headers.putSingle((String) it, (String) zuulRequestHeaders[it])
         }
 
+        String budget = RequestDeadline.getHeaderValue()
+        if (budget != null) {
+            headers.keySet().removeAll(headers.keySet().findAll { it.equalsIgnoreCase(RequestDeadline.getHeaderName()) })
+            headers.putSingle(RequestDeadline.getHeaderName(), budget)
+        }
+
         headers.putSingle("accept-encoding", "deflate, gzip")
 
         if (headers.containsKey("transfer-encoding"))
@@ -25,37 +25,55 @@ import static com.netflix.zuul.constants.ZuulConstants.ZUUL_NIWS_DEFAULTCLIENT;
 import static com.netflix.zuul.constants.ZuulConstants.ZUUL_RIBBON_NAMESPACE;
 
 import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.ServletContextEvent;
 
 import org.apache.commons.configuration.AbstractConfiguration;
+import org.apache.http.conn.ClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Throwables;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
 import com.netflix.appinfo.ApplicationInfoManager;
 import com.netflix.appinfo.InstanceInfo;
 import com.netflix.astyanax.Keyspace;
 import com.netflix.client.ClientException;
 import com.netflix.client.ClientFactory;
+import com.netflix.client.IClient;
+import com.netflix.client.config.CommonClientConfigKey;
 import com.netflix.client.config.DefaultClientConfigImpl;
+import com.netflix.client.config.IClientConfig;
 import com.netflix.config.ConfigurationManager;
 import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicPropertyFactory;
 import com.netflix.config.DynamicStringProperty;
 import com.netflix.karyon.server.KaryonServer;
 import com.netflix.karyon.spi.Application;
+import com.netflix.loadbalancer.Server;
+import com.netflix.niws.client.http.RestClient;
 import com.netflix.servo.util.ThreadCpuStats;
+import com.netflix.zuul.cache.RequestCoalescingFilter;
+import com.netflix.zuul.cache.RequestCoalescingPublishFilter;
+import com.netflix.zuul.cache.ResponseCacheLookupFilter;
+import com.netflix.zuul.cache.ResponseCacheStoreFilter;
 import com.netflix.zuul.context.NFRequestContext;
 import com.netflix.zuul.context.RequestContext;
 import com.netflix.zuul.dependency.cassandra.CassandraHelper;
+import com.netflix.zuul.dependency.httpclient.ClientConnectionPrewarmer;
 import com.netflix.zuul.dependency.ribbon.RibbonConfig;
+import com.netflix.zuul.filters.FilterRegistry;
 import com.netflix.zuul.groovy.GroovyCompiler;
 import com.netflix.zuul.groovy.GroovyFileFilter;
 import com.netflix.zuul.monitoring.CounterFactory;
 import com.netflix.zuul.monitoring.TracerFactory;
+import com.netflix.zuul.origin.ConnectionPrewarmer;
 import com.netflix.zuul.plugins.Counter;
 import com.netflix.zuul.plugins.MetricPoller;
 import com.netflix.zuul.plugins.ServoMonitor;
@@ -130,6 +148,7 @@ public class StartServer extends GuiceServletContextListener {
         initZuul();
         initCassandra();
         initNIWS();
+        prewarmConnections();
 
         ApplicationInfoManager.getInstance().setInstanceStatus(InstanceInfo.InstanceStatus.UP);
     }
@@ -176,6 +195,35 @@ public class StartServer extends GuiceServletContextListener {
         }
     }
 
+    /**
+     * opens connections to the servers of each Ribbon client in zuul.niws.clientlist, so that they are warm by the time
+     * the instance reports UP. The ZuulHostRequest filter prewarms zuul.prewarm.hosts itself as it loads.
+     */
+    private void prewarmConnections() {
+        if (!ConnectionPrewarmer.isEnabled()) return;
+        String clientPropertyList = DynamicPropertyFactory.getInstance().getStringProperty(ZUUL_NIWS_CLIENTLIST, "").get();
+        for (String client : clientPropertyList.split("\\|")) {
+            if (client.trim().isEmpty()) continue;
+            try {
+                IClient restClient = ClientFactory.getNamedClient(client);
+                if (!(restClient instanceof RestClient)) continue;
+                Client jerseyClient = ((RestClient) restClient).getJerseyClient();
+                if (!(jerseyClient instanceof ApacheHttpClient4)) continue;
+                ClientConnectionManager cm = ((ApacheHttpClient4) jerseyClient).getClientHandler().getHttpClient().getConnectionManager();
+
+                IClientConfig config = ClientFactory.getNamedConfig(client);
+                String scheme = config.getPropertyAsBoolean(CommonClientConfigKey.IsSecure, false) ? "https" : "http";
+                List<URL> servers = new ArrayList<URL>();
+                for (Server server : ClientFactory.getNamedLoadBalancer(client).getServerList(true)) {
+                    servers.add(new URL(scheme, server.getHost(), server.getPort(), ""));
+                }
+                new ClientConnectionPrewarmer(cm).prewarm(servers);
+            } catch (Exception e) {
+                LOG.warn("could not prewarm connections for client " + client, e);
+            }
+        }
+    }
+
     void initZuul() throws Exception, IllegalAccessException, InstantiationException {
 
         RequestContext.setContextClass(NFRequestContext.class);
@@ -199,6 +247,12 @@ public class StartServer extends GuiceServletContextListener {
             FilterFileManager.init(5, preFiltersPath, postFiltersPath, routingFiltersPath, customPath);
         }
         LOG.info("Groovy Filter file manager started");
+
+        // response cache filters; they only run when zuul.cache.enabled is true
+        FilterRegistry.instance().put("responseCacheLookup", new ResponseCacheLookupFilter());
+        FilterRegistry.instance().put("responseCacheStore", new ResponseCacheStoreFilter());
+        FilterRegistry.instance().put("requestCoalescing", new RequestCoalescingFilter());
+        FilterRegistry.instance().put("requestCoalescingPublish", new RequestCoalescingPublishFilter());
     }
 
     void initCassandra() throws Exception {
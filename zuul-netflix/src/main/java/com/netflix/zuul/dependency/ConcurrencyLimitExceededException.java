@@ -0,0 +1,29 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.dependency;
+
+import com.netflix.hystrix.exception.HystrixBadRequestException;
+
+/**
+ * Thrown by a command when its ConcurrencyLimiter turns a request away. It is a HystrixBadRequestException so that
+ * the rejection is neither counted against the origin's circuit breaker nor sent to a fallback.
+ */
+public class ConcurrencyLimitExceededException extends HystrixBadRequestException {
+
+    public ConcurrencyLimitExceededException(String origin) {
+        super("concurrency limit exceeded for " + origin);
+    }
+}
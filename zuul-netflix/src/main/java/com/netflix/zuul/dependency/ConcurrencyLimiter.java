@@ -0,0 +1,314 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.dependency;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.annotations.Monitor;
+import com.netflix.servo.annotations.MonitorTags;
+import com.netflix.servo.monitor.Monitors;
+import com.netflix.servo.tag.BasicTag;
+import com.netflix.servo.tag.BasicTagList;
+import com.netflix.servo.tag.TagList;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Limits the requests in flight to an origin to a limit that follows the origin's measured round trip time, in place
+ * of a fixed Hystrix semaphore.
+ * <p/>
+ * Samples are collected in windows of at least 10 requests and 100ms. At the end of a window, the average round trip
+ * time of the window is compared with a slowly moving average of past windows: while the two agree the limit grows by
+ * a fifth of its square root, and when the window gets slower the limit shrinks in proportion, by up to a tenth per
+ * window. A window with a failed or overloaded (429, 503) request cuts the limit by 10%. The limit only grows while
+ * the requests in flight come close to it, and stays within zuul.limiter.min-limit and zuul.limiter.max-limit.
+ * <p/>
+ * Off unless zuul.limiter.enabled is true. The limit, requests in flight and rejections are published as servo metrics
+ * tagged with the limiter's key.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    private static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_LIMITER_ENABLED, false);
+    private static final DynamicIntProperty INITIAL_LIMIT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_LIMITER_INITIAL_LIMIT, 100);
+    private static final DynamicIntProperty MIN_LIMIT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_LIMITER_MIN_LIMIT, 10);
+    private static final DynamicIntProperty MAX_LIMIT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_LIMITER_MAX_LIMIT, 1000);
+
+    static final int MIN_WINDOW_SAMPLES = 10;
+    static final long MIN_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+    private static final double LONG_RTT_WEIGHT = 0.05;
+
+    private static final ConcurrentHashMap<String, ConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+    @MonitorTags
+    final TagList tags;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejections = new AtomicLong();
+    private volatile double limit;
+
+    // the current window, counted without a lock; only rolling it over takes the lock
+    private volatile long windowStart;
+    private final AtomicInteger windowSamples = new AtomicInteger();
+    private final AtomicLong windowRttNanos = new AtomicLong();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+    private final AtomicBoolean windowDropped = new AtomicBoolean();
+    // guarded by this
+    private double longRttNanos;
+
+    ConcurrencyLimiter(String key, int initialLimit) {
+        this.tags = BasicTagList.of(new BasicTag("key", key));
+        this.limit = initialLimit;
+        this.windowStart = System.nanoTime();
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED.get();
+    }
+
+    /**
+     * @return the limiter for a key, created with zuul.limiter.initial-limit on first use
+     */
+    public static ConcurrencyLimiter forKey(String key) {
+        ConcurrencyLimiter limiter = LIMITERS.get(key);
+        if (limiter != null) return limiter;
+        limiter = new ConcurrencyLimiter(key, INITIAL_LIMIT.get());
+        ConcurrencyLimiter existing = LIMITERS.putIfAbsent(key, limiter);
+        if (existing != null) return existing;
+        try {
+            Monitors.registerObject("zuul.concurrencyLimiter." + key, limiter);
+        } catch (Throwable t) {
+            LOG.warn("unable to register limiter monitors for " + key, t);
+        }
+        return limiter;
+    }
+
+    /**
+     * @return the Hystrix semaphore size to use with this limiter: the configured one when limiting is off, and one
+     *         that never gets in the way of the limiter when it is on
+     */
+    public static int semaphoreSize(int configured) {
+        return isEnabled() ? Math.max(configured, MAX_LIMIT.get()) : configured;
+    }
+
+    /**
+     * @return true for the statuses an origin answers with when it sheds load
+     */
+    public static boolean isOverloaded(int status) {
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * @return true if the request may go to the origin, in which case release() must be called once it is done
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejections.incrementAndGet();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                int max = windowMaxInFlight.get();
+                while (max < current + 1 && !windowMaxInFlight.compareAndSet(max, current + 1)) max = windowMaxInFlight.get();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param rttNanos how long the origin took to respond
+     * @param dropped  true if the request failed or the origin reported it was overloaded
+     */
+    public void release(long rttNanos, boolean dropped) {
+        release(rttNanos, dropped, System.nanoTime());
+    }
+
+    void release(long rttNanos, boolean dropped, long now) {
+        inFlight.decrementAndGet();
+        windowRttNanos.addAndGet(rttNanos);
+        if (dropped) windowDropped.set(true);
+        if (windowSamples.incrementAndGet() >= MIN_WINDOW_SAMPLES && now - windowStart >= MIN_WINDOW_NANOS) {
+            rollOver(now);
+        }
+    }
+
+    /**
+     * ends the current window and adjusts the limit from it, unless another release just did
+     */
+    private synchronized void rollOver(long now) {
+        if (windowSamples.get() < MIN_WINDOW_SAMPLES || now - windowStart < MIN_WINDOW_NANOS) return;
+        // a release racing with this may count its time into one window and its sample into the next
+        long rttNanos = windowRttNanos.getAndSet(0);
+        int samples = windowSamples.getAndSet(0);
+        int maxInFlight = windowMaxInFlight.getAndSet(inFlight.get());
+        boolean dropped = windowDropped.getAndSet(false);
+        limit = nextLimit(limit, (double) rttNanos / samples, maxInFlight, dropped);
+        windowStart = now;
+    }
+
+    private double nextLimit(double limit, double shortRttNanos, int maxInFlight, boolean dropped) {
+        longRttNanos = (longRttNanos == 0) ? shortRttNanos : longRttNanos * (1 - LONG_RTT_WEIGHT) + shortRttNanos * LONG_RTT_WEIGHT;
+        double next;
+        if (dropped) {
+            next = limit * BACKOFF;
+        } else if (maxInFlight < limit / 2) {
+            // not using the limit, so the samples say nothing about whether it could be higher
+            return limit;
+        } else {
+            double gradient = Math.max(0.5, Math.min(1.0, longRttNanos / shortRttNanos));
+            next = limit * (1 - SMOOTHING) + (limit * gradient + Math.sqrt(limit)) * SMOOTHING;
+        }
+        return Math.max(MIN_LIMIT.get(), Math.min(MAX_LIMIT.get(), next));
+    }
+
+    @Monitor(name = "limit", type = DataSourceType.GAUGE)
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    @Monitor(name = "inFlight", type = DataSourceType.GAUGE)
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Monitor(name = "rejections", type = DataSourceType.COUNTER)
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public static class UnitTest {
+
+        private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        /**
+         * runs a window of requests keeping the limiter full, each taking rttMillis
+         *
+         * @return the time at the end of the window
+         */
+        private static long window(ConcurrencyLimiter limiter, long now, long rttMillis, boolean dropped) {
+            int n = Math.max(MIN_WINDOW_SAMPLES, limiter.getLimit());
+            int acquired = 0;
+            while (acquired < n && limiter.tryAcquire()) acquired++;
+            now += MIN_WINDOW_NANOS;
+            for (int i = 0; i < acquired; i++) {
+                limiter.release(rttMillis * MS, dropped && i == 0, now);
+            }
+            return now;
+        }
+
+        @Test
+        public void enforcesTheLimit() {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 20);
+            for (int i = 0; i < 20; i++) assertTrue(limiter.tryAcquire());
+            assertFalse(limiter.tryAcquire());
+            assertEquals(1, limiter.getRejections());
+            assertEquals(20, limiter.getInFlight());
+            limiter.release(MS, false);
+            assertTrue(limiter.tryAcquire());
+        }
+
+        @Test
+        public void growsWhileLatencyHolds() {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 20);
+            long now = System.nanoTime();
+            for (int i = 0; i < 20; i++) now = window(limiter, now, 10, false);
+            assertTrue(limiter.getLimit() > 30);
+        }
+
+        @Test
+        public void shrinksWhenLatencyRises() {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 100);
+            long now = System.nanoTime();
+            for (int i = 0; i < 5; i++) now = window(limiter, now, 10, false);
+            int before = limiter.getLimit();
+            for (int i = 0; i < 5; i++) now = window(limiter, now, 40, false);
+            assertTrue(limiter.getLimit() < before * 0.8);
+        }
+
+        @Test
+        public void backsOffOnDrops() {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 100);
+            long now = System.nanoTime();
+            window(limiter, now, 10, true);
+            assertEquals(90, limiter.getLimit());
+        }
+
+        @Test
+        public void staysWithinBounds() {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 20);
+            long now = System.nanoTime();
+            for (int i = 0; i < 100; i++) now = window(limiter, now, 10, true);
+            assertEquals(MIN_LIMIT.get(), limiter.getLimit());
+        }
+
+        @Test
+        public void holdsWhenNotUsingTheLimit() {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 100);
+            long now = System.nanoTime();
+            for (int w = 0; w < 10; w++) {
+                now += MIN_WINDOW_NANOS;
+                for (int i = 0; i < 20; i++) {
+                    assertTrue(limiter.tryAcquire());
+                    limiter.release(10 * MS, false, now);
+                }
+            }
+            assertEquals(100, limiter.getLimit());
+        }
+
+        @Test
+        public void keepsCountFromManyThreads() throws InterruptedException {
+            final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", MAX_LIMIT.get());
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 10000; i++) {
+                            if (limiter.tryAcquire()) limiter.release(MS, false);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) thread.join();
+            assertEquals(0, limiter.getInFlight());
+            assertEquals(0, limiter.getRejections());
+            assertTrue(limiter.getLimit() >= MIN_LIMIT.get() && limiter.getLimit() <= MAX_LIMIT.get());
+        }
+    }
+}
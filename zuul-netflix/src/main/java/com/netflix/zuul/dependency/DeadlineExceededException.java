@@ -0,0 +1,29 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.dependency;
+
+import com.netflix.hystrix.exception.HystrixBadRequestException;
+
+/**
+ * Thrown by a command instead of calling the origin once the request's deadline has passed. It is a
+ * HystrixBadRequestException so that the origin's circuit breaker isn't charged for a request it never saw.
+ */
+public class DeadlineExceededException extends HystrixBadRequestException {
+
+    public DeadlineExceededException(String origin) {
+        super("request deadline exceeded before calling " + origin);
+    }
+}
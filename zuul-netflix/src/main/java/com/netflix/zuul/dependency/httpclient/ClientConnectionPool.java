@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.dependency.httpclient;
+
+import com.netflix.zuul.origin.ConnectionPoolMaintenance;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * An HttpClient 4.2 connection manager as maintained by ConnectionPoolMaintenance.
+ */
+public class ClientConnectionPool extends ConnectionPoolMaintenance.Pool {
+
+    private final PoolingClientConnectionManager connectionManager;
+
+    public ClientConnectionPool(PoolingClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    protected void closeExpired() {
+        connectionManager.closeExpiredConnections();
+    }
+
+    @Override
+    protected void closeIdle(long idleMillis) {
+        connectionManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getLeased() {
+        return connectionManager.getTotalStats().getLeased();
+    }
+
+    @Override
+    public int getAvailable() {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+
+    @Override
+    public int getPending() {
+        return connectionManager.getTotalStats().getPending();
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void closesIdleConnections() throws Exception {
+            ServerSocket server = new ServerSocket(0, 10);
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+            PoolingClientConnectionManager cm = new PoolingClientConnectionManager(schemeRegistry);
+            try {
+                URL origin = new URL("http://localhost:" + server.getLocalPort());
+                assertEquals(2, new ClientConnectionPrewarmer(cm).prewarm(Collections.singletonList(origin), 2, 5000));
+                ClientConnectionPool pool = new ClientConnectionPool(cm);
+                assertEquals(2, pool.getAvailable());
+
+                Thread.sleep(20);
+                pool.closeIdle(10);
+                assertEquals(0, pool.getAvailable());
+            } finally {
+                cm.shutdown();
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.dependency.httpclient;
+
+import com.netflix.zuul.origin.ConnectionPrewarmer;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Prewarms the connections of an HttpClient 4.2 connection manager, as used by the Ribbon rest clients and the host
+ * routing filter. Each connection is leased for the origin's route, opened, and released into the pool as reusable.
+ */
+public class ClientConnectionPrewarmer extends ConnectionPrewarmer<ManagedClientConnection> {
+
+    private final ClientConnectionManager connectionManager;
+
+    public ClientConnectionPrewarmer(ClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    static HttpRoute routeFor(URL origin) {
+        int port = (origin.getPort() > 0) ? origin.getPort() : origin.getDefaultPort();
+        HttpHost host = new HttpHost(origin.getHost(), port, origin.getProtocol());
+        return new HttpRoute(host, null, "https".equalsIgnoreCase(origin.getProtocol()));
+    }
+
+    @Override
+    protected ManagedClientConnection open(URL origin, long timeoutMillis) throws Exception {
+        long start = System.currentTimeMillis();
+        HttpRoute route = routeFor(origin);
+        ManagedClientConnection connection = connectionManager.requestConnection(route, null)
+                .getConnection(timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            if (!connection.isOpen()) {
+                HttpParams params = new BasicHttpParams();
+                HttpConnectionParams.setConnectionTimeout(params, (int) Math.max(1, timeoutMillis - (System.currentTimeMillis() - start)));
+                connection.open(route, new BasicHttpContext(), params);
+            }
+            connection.markReusable();
+            return connection;
+        } catch (IOException e) {
+            connectionManager.releaseConnection(connection, 0, TimeUnit.MILLISECONDS);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void release(ManagedClientConnection connection) {
+        connectionManager.releaseConnection(connection, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void leavesIdleConnectionsInThePool() throws Exception {
+            final ServerSocket server = new ServerSocket(0, 10);
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+            ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry);
+            try {
+                URL origin = new URL("http://localhost:" + server.getLocalPort());
+
+                assertEquals(2, new ClientConnectionPrewarmer(cm).prewarm(Collections.singletonList(origin), 2, 5000));
+                assertEquals(2, cm.getConnectionsInPool(routeFor(origin)));
+                assertEquals(2, cm.getConnectionsInPool());
+            } finally {
+                cm.shutdown();
+                server.close();
+            }
+        }
+    }
+}
@@ -7,6 +7,11 @@ import com.netflix.hystrix.HystrixCommandKey;
 import com.netflix.hystrix.HystrixCommandProperties;
 import com.netflix.hystrix.HystrixCommand.Setter;
 import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.dependency.ConcurrencyLimitExceededException;
+import com.netflix.zuul.dependency.ConcurrencyLimiter;
+import com.netflix.zuul.dependency.DeadlineExceededException;
+import com.netflix.zuul.origin.HostGroups;
+import com.netflix.zuul.origin.OutlierDetector;
 import com.netflix.zuul.context.NFRequestContext;
 import com.netflix.zuul.context.RequestContext;
 
@@ -14,14 +19,17 @@ import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import static org.junit.Assert.assertNotNull;
 
 import java.io.IOException;
+import java.net.ConnectException;
 
 /**
  * Hystrix wrapper around apache http client
@@ -53,8 +61,8 @@ public class HostCommand extends HystrixCommand<HttpResponse> {
                 // 2 others commands that are already thread isolated
                 HystrixCommandProperties.Setter()
                         .withExecutionIsolationStrategy(HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE)
-                        .withExecutionIsolationSemaphoreMaxConcurrentRequests(DynamicPropertyFactory.getInstance().
-                                getIntProperty(ZuulConstants.ZUUL_HTTPCLIENT + commandKey + ".semaphore.maxSemaphores", 100).get())));
+                        .withExecutionIsolationSemaphoreMaxConcurrentRequests(ConcurrencyLimiter.semaphoreSize(DynamicPropertyFactory.getInstance().
+                                getIntProperty(ZuulConstants.ZUUL_HTTPCLIENT + commandKey + ".semaphore.maxSemaphores", 100).get()))));
 
         this.httpclient = httpclient;
         this.httpHost = httpHost;
@@ -71,7 +79,51 @@ public class HostCommand extends HystrixCommand<HttpResponse> {
     }
 
     HttpResponse forward() throws IOException {
-        return httpclient.execute(httpHost, httpRequest);
+        if (RequestContext.getCurrentContext().isDeadlineExceeded()) throw new DeadlineExceededException(httpHost.toHostString());
+        if (!ConcurrencyLimiter.isEnabled()) return send();
+
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(getCommandKey().name() + "." + httpHost.toHostString());
+        if (!limiter.tryAcquire()) throw new ConcurrencyLimitExceededException(httpHost.toHostString());
+        long start = System.nanoTime();
+        boolean dropped = true;
+        try {
+            HttpResponse response = send();
+            dropped = ConcurrencyLimiter.isOverloaded(response.getStatusLine().getStatusCode());
+            return response;
+        } finally {
+            limiter.release(System.nanoTime() - start, dropped);
+        }
+    }
+
+    /**
+     * sends the request, reporting the outcome to the outlier detector of host routes, and a failed connect to the host
+     * groups so that no other request waits on the host
+     */
+    private HttpResponse send() throws IOException {
+        try {
+            return sendAndRecord();
+        } catch (ConnectException e) {
+            HostGroups.getInstance().markDown(httpHost.getSchemeName(), httpHost.getHostName(), httpHost.getPort());
+            throw e;
+        } catch (ConnectTimeoutException e) {
+            HostGroups.getInstance().markDown(httpHost.getSchemeName(), httpHost.getHostName(), httpHost.getPort());
+            throw e;
+        }
+    }
+
+    private HttpResponse sendAndRecord() throws IOException {
+        if (!OutlierDetector.isEnabled()) return httpclient.execute(httpHost, httpRequest);
+        long start = System.currentTimeMillis();
+        HttpResponse response = null;
+        try {
+            response = httpclient.execute(httpHost, httpRequest);
+            return response;
+        } finally {
+            OutlierDetector.forHost(httpHost.getSchemeName(), httpHost.getHostName(), httpHost.getPort())
+                    .record(httpHost.toHostString(),
+                            response == null || OutlierDetector.isFailure(response.getStatusLine().getStatusCode()),
+                            System.currentTimeMillis() - start);
+        }
     }
     
     public static class UnitTest {
@@ -96,5 +148,24 @@ public class HostCommand extends HystrixCommand<HttpResponse> {
             Assert.assertEquals("myGroup", hc.getCommandGroup().name());
             Assert.assertEquals("myCommand", hc.getCommandKey().name());
         }
+
+        @Test
+        public void doesNotCallTheOriginPastTheDeadline() throws Exception {
+            HttpClient httpclient = Mockito.mock(HttpClient.class);
+            RequestContext context = new RequestContext();
+            RequestContext.testSetCurrentContext(context);
+            try {
+                context.setDeadlineNanos(System.nanoTime() - 1);
+                HostCommand hc = new HostCommand(httpclient, new HttpHost("localhost", 80), null);
+                try {
+                    hc.forward();
+                    Assert.fail();
+                } catch (DeadlineExceededException expected) {
+                }
+                Mockito.verifyZeroInteractions(httpclient);
+            } finally {
+                RequestContext.testSetCurrentContext(null);
+            }
+        }
     }
 }
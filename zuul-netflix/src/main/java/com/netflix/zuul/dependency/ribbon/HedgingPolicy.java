@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.dependency.ribbon;
+
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-route state for hedged requests: when to send a second attempt, and whether the route can afford one.
+ * <p/>
+ * The hedge delay is the zuul.ribbon.hedge.percentile latency of the route's recent attempts, and no less than
+ * zuul.ribbon.hedge.min-delay-millis; until enough attempts were seen there is no delay and nothing is hedged.
+ * <p/>
+ * Hedges are paid for from a token bucket: every request adds zuul.ribbon.hedge.budget-percent of a token and every hedge
+ * takes one, so hedges never exceed that share of the route's requests beyond a small burst. The budget is capped at
+ * 100%, so hedging never more than doubles the load on a route.
+ */
+public class HedgingPolicy {
+
+    private static final DynamicBooleanProperty ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_RIBBON_HEDGE_ENABLED, false);
+    private static final DynamicIntProperty PERCENTILE =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RIBBON_HEDGE_PERCENTILE, 95);
+    private static final DynamicIntProperty MIN_DELAY_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RIBBON_HEDGE_MIN_DELAY_MILLIS, 10);
+    private static final DynamicIntProperty BUDGET_PERCENT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RIBBON_HEDGE_BUDGET_PERCENT, 10);
+
+    static final int WINDOW = 1024;
+    static final int MIN_SAMPLES = 100;
+    static final double MAX_TOKENS = 10;
+    private static final long RECOMPUTE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ConcurrentHashMap<String, HedgingPolicy> POLICIES = new ConcurrentHashMap<String, HedgingPolicy>();
+
+    private final AtomicIntegerArray latencies = new AtomicIntegerArray(WINDOW);
+    private final AtomicLong samples = new AtomicLong();
+    private volatile long delayMillis = -1;
+    private volatile long computedAt;
+    private volatile long computedSamples;
+    private volatile int computedPercentile;
+    private double tokens;
+
+    public static boolean isEnabled() {
+        return ENABLED.get();
+    }
+
+    /**
+     * @return the policy of a route, created on first use
+     */
+    public static HedgingPolicy forRoute(String route) {
+        HedgingPolicy policy = POLICIES.get(route);
+        if (policy == null) {
+            POLICIES.putIfAbsent(route, new HedgingPolicy());
+            policy = POLICIES.get(route);
+        }
+        return policy;
+    }
+
+    /**
+     * records how long an attempt took to get a response
+     */
+    public void record(long millis) {
+        int slot = (int) (samples.getAndIncrement() % WINDOW);
+        latencies.set(slot, (int) Math.min(Integer.MAX_VALUE, Math.max(0, millis)));
+    }
+
+    /**
+     * @return how long to wait for the first attempt before hedging, or -1 while there are too few samples
+     */
+    public long getDelayMillis() {
+        return getDelayMillis(PERCENTILE.get(), MIN_DELAY_MILLIS.get());
+    }
+
+    long getDelayMillis(int percentile, long minDelayMillis) {
+        long n = samples.get();
+        if (n < MIN_SAMPLES) return -1;
+        long now = System.nanoTime();
+        if (delayMillis < 0 || percentile != computedPercentile || now - computedAt > RECOMPUTE_NANOS
+                || n - computedSamples >= WINDOW) {
+            int count = (int) Math.min(n, WINDOW);
+            int[] sorted = new int[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * count) - 1;
+            delayMillis = sorted[Math.max(0, index)];
+            computedAt = now;
+            computedSamples = n;
+            computedPercentile = percentile;
+        }
+        return Math.max(minDelayMillis, delayMillis);
+    }
+
+    /**
+     * credits the hedge budget for a request on the route
+     */
+    public void onRequest() {
+        onRequest(BUDGET_PERCENT.get());
+    }
+
+    synchronized void onRequest(int budgetPercent) {
+        double share = Math.min(100, Math.max(0, budgetPercent)) / 100.0;
+        tokens = Math.min(MAX_TOKENS, tokens + share);
+    }
+
+    /**
+     * @return true if the budget allows one more hedge, which is then charged to it
+     */
+    public synchronized boolean tryAcquireHedge() {
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * gives back the token of a hedge that was charged but could not be sent
+     */
+    public synchronized void refundHedge() {
+        tokens = Math.min(MAX_TOKENS, tokens + 1);
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void noDelayUntilEnoughSamples() {
+            HedgingPolicy policy = new HedgingPolicy();
+            for (int i = 0; i < MIN_SAMPLES - 1; i++) policy.record(5);
+            assertEquals(-1, policy.getDelayMillis(95, 1));
+            policy.record(5);
+            assertEquals(5, policy.getDelayMillis(95, 1));
+        }
+
+        @Test
+        public void delayIsThePercentileOfRecentAttempts() {
+            HedgingPolicy policy = new HedgingPolicy();
+            for (int i = 1; i <= 200; i++) policy.record(i);
+            assertEquals(190, policy.getDelayMillis(95, 1));
+            assertEquals(100, policy.getDelayMillis(50, 1));
+            assertEquals(500, policy.getDelayMillis(95, 500));
+        }
+
+        @Test
+        public void budgetLimitsHedgesToAShareOfRequests() {
+            HedgingPolicy policy = new HedgingPolicy();
+            int hedges = 0;
+            for (int i = 0; i < 1000; i++) {
+                policy.onRequest(10);
+                if (policy.tryAcquireHedge()) hedges++;
+            }
+            assertEquals(100, hedges, 1);
+        }
+
+        @Test
+        public void budgetNeverMoreThanDoublesLoad() {
+            HedgingPolicy policy = new HedgingPolicy();
+            int hedges = 0;
+            for (int i = 0; i < 1000; i++) {
+                policy.onRequest(300);
+                if (policy.tryAcquireHedge()) hedges++;
+                if (policy.tryAcquireHedge()) hedges++;
+            }
+            assertTrue(hedges <= 1000);
+        }
+
+        @Test
+        public void budgetBurstIsCapped() {
+            HedgingPolicy policy = new HedgingPolicy();
+            for (int i = 0; i < 1000; i++) policy.onRequest(100);
+            int hedges = 0;
+            while (policy.tryAcquireHedge()) hedges++;
+            assertEquals((int) MAX_TOKENS, hedges);
+            assertFalse(policy.tryAcquireHedge());
+        }
+
+        @Test
+        public void refundedHedgeCanBeSentLater() {
+            HedgingPolicy policy = new HedgingPolicy();
+            policy.onRequest(100);
+            assertTrue(policy.tryAcquireHedge());
+            policy.refundHedge();
+            assertTrue(policy.tryAcquireHedge());
+            assertFalse(policy.tryAcquireHedge());
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.dependency.ribbon;
+
+import com.netflix.client.config.IClientConfig;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.loadbalancer.AbstractLoadBalancer;
+import com.netflix.loadbalancer.AbstractLoadBalancerRule;
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.loadbalancer.ILoadBalancer;
+import com.netflix.loadbalancer.LoadBalancerStats;
+import com.netflix.loadbalancer.RoundRobinRule;
+import com.netflix.loadbalancer.Server;
+import com.netflix.loadbalancer.ServerStats;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ribbon rule that picks the cheaper of two random servers, where a server costs its average response time times its
+ * requests in flight plus one ("power of two choices"). Slow or busy servers get less traffic without any one server
+ * taking all of it, as a strict least-cost rule would.
+ * <p/>
+ * Response times are an exponentially weighted average of the server's recent responses, fed by record(). A server
+ * without responses is costed at the average of all servers, and the average of a server that hasn't responded in a
+ * while drifts back to that of all servers over zuul.ribbon.lb.decay-millis, so a server that was slow once gets
+ * tried again. Requests in flight come from the load balancer's server stats.
+ * <p/>
+ * Servers that join the list are ramped up over zuul.ribbon.lb.slow-start-millis: their cost is divided by the share
+ * of the ramp that has passed, from a tenth up, so a fresh instance with cold caches isn't given a full share at once.
+ * <p/>
+ * Used for a Ribbon client with e.g. origin.zuul.client.NFLoadBalancerRuleClassName=com.netflix.zuul.dependency.ribbon.LatencyAwareRule
+ */
+public class LatencyAwareRule extends AbstractLoadBalancerRule {
+
+    private static final DynamicIntProperty DECAY_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RIBBON_LB_DECAY_MILLIS, 10000);
+    private static final DynamicIntProperty SLOW_START_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_RIBBON_LB_SLOW_START_MILLIS, 30000);
+
+    static final double WEIGHT = 0.1;
+    static final double MIN_SLOW_START_SHARE = 0.1;
+
+    private final ConcurrentHashMap<String, ServerLatency> servers = new ConcurrentHashMap<String, ServerLatency>();
+    private final long createdAt = System.nanoTime();
+    private volatile double averageMillis = -1;
+
+    public LatencyAwareRule() {
+    }
+
+    public LatencyAwareRule(ILoadBalancer loadBalancer) {
+        setLoadBalancer(loadBalancer);
+    }
+
+    @Override
+    public void initWithNiwsConfig(IClientConfig clientConfig) {
+    }
+
+    /**
+     * records a response time of a server of a load balancer, if the load balancer uses this rule
+     *
+     * @param requestedUri the URI the request was sent to, from which the server is taken
+     */
+    public static void record(ILoadBalancer loadBalancer, URI requestedUri, long millis) {
+        if (requestedUri == null || requestedUri.getHost() == null) return;
+        LatencyAwareRule rule = ruleOf(loadBalancer);
+        if (rule == null) return;
+        int port = requestedUri.getPort();
+        if (port < 0) port = "https".equalsIgnoreCase(requestedUri.getScheme()) ? 443 : 80;
+        rule.record(requestedUri.getHost() + ":" + port, millis, System.nanoTime());
+    }
+
+    /**
+     * records a response time of a server of a load balancer, if the load balancer uses this rule
+     */
+    public static void record(ILoadBalancer loadBalancer, Server server, long millis) {
+        LatencyAwareRule rule = ruleOf(loadBalancer);
+        if (rule != null && server != null) rule.record(server.getHostPort(), millis, System.nanoTime());
+    }
+
+    private static LatencyAwareRule ruleOf(ILoadBalancer loadBalancer) {
+        if (!(loadBalancer instanceof BaseLoadBalancer)) return null;
+        Object rule = ((BaseLoadBalancer) loadBalancer).getRule();
+        return (rule instanceof LatencyAwareRule) ? (LatencyAwareRule) rule : null;
+    }
+
+    void record(String hostPort, long millis, long now) {
+        double sample = Math.max(0, millis);
+        double average = averageMillis;
+        averageMillis = (average < 0) ? sample : average * (1 - WEIGHT) + sample * WEIGHT;
+        latencyOf(hostPort, now).record(sample, now);
+    }
+
+    private ServerLatency latencyOf(String hostPort, long now) {
+        ServerLatency latency = servers.get(hostPort);
+        if (latency == null) {
+            // the servers there when the rule starts out ramp up together
+            long firstSeen = (now - createdAt < TimeUnit.MILLISECONDS.toNanos(SLOW_START_MILLIS.get())) ? createdAt : now;
+            servers.putIfAbsent(hostPort, new ServerLatency(firstSeen));
+            latency = servers.get(hostPort);
+        }
+        return latency;
+    }
+
+    @Override
+    public Server choose(Object key) {
+        ILoadBalancer loadBalancer = getLoadBalancer();
+        if (loadBalancer == null) return null;
+        return choose(loadBalancer.getServerList(true), System.nanoTime());
+    }
+
+    Server choose(List<Server> candidates, long now) {
+        int n = candidates.size();
+        if (n == 0) return null;
+        if (servers.size() > 2 * n) forgetServersNotIn(candidates);
+        if (n == 1) return candidates.get(0);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(n);
+        int j = random.nextInt(n - 1);
+        if (j >= i) j++;
+        Server a = candidates.get(i);
+        Server b = candidates.get(j);
+        return (cost(b, now) < cost(a, now)) ? b : a;
+    }
+
+    double cost(Server server, long now) {
+        ServerLatency latency = latencyOf(server.getHostPort(), now);
+        double average = Math.max(0, averageMillis);
+        double share = slowStartShare(latency.firstSeen, now);
+        return latency.millis(average, now) * (inFlight(server) + 1) / share;
+    }
+
+    private double slowStartShare(long firstSeen, long now) {
+        long ramp = TimeUnit.MILLISECONDS.toNanos(SLOW_START_MILLIS.get());
+        if (ramp <= 0) return 1;
+        return Math.max(MIN_SLOW_START_SHARE, Math.min(1.0, (double) (now - firstSeen) / ramp));
+    }
+
+    private int inFlight(Server server) {
+        ILoadBalancer loadBalancer = getLoadBalancer();
+        if (!(loadBalancer instanceof AbstractLoadBalancer)) return 0;
+        LoadBalancerStats stats = ((AbstractLoadBalancer) loadBalancer).getLoadBalancerStats();
+        if (stats == null) return 0;
+        ServerStats serverStats = stats.getSingleServerStat(server);
+        return (serverStats == null) ? 0 : Math.max(0, serverStats.getActiveRequestsCount());
+    }
+
+    private void forgetServersNotIn(List<Server> candidates) {
+        Set<String> current = new HashSet<String>();
+        for (Server server : candidates) current.add(server.getHostPort());
+        servers.keySet().retainAll(current);
+    }
+
+    /**
+     * the response time average of one server
+     */
+    static class ServerLatency {
+        final long firstSeen;
+        private double millis = -1;
+        private long updatedAt;
+
+        ServerLatency(long firstSeen) {
+            this.firstSeen = firstSeen;
+        }
+
+        synchronized void record(double sample, long now) {
+            millis = (millis < 0) ? sample : millis * (1 - WEIGHT) + sample * WEIGHT;
+            updatedAt = now;
+        }
+
+        /**
+         * @param average the average of all servers, which this one's returns to while it has no responses
+         */
+        synchronized double millis(double average, long now) {
+            if (millis < 0) return average;
+            long decay = TimeUnit.MILLISECONDS.toNanos(DECAY_MILLIS.get());
+            if (decay <= 0) return millis;
+            double kept = Math.exp(-(double) (now - updatedAt) / decay);
+            return average + (millis - average) * kept;
+        }
+    }
+
+    public static class UnitTest {
+
+        private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        // the tail latency comparison is timing dependent, so it only runs with -Dzuul.stats.benchmark=true
+        private static final String BENCHMARK_PROPERTY = "zuul.stats.benchmark";
+
+        private static Server server(int port) {
+            return new Server("localhost", port);
+        }
+
+        private static int countChosen(LatencyAwareRule rule, List<Server> servers, Server server, long now, int times) {
+            int chosen = 0;
+            for (int i = 0; i < times; i++) {
+                if (rule.choose(servers, now).equals(server)) chosen++;
+            }
+            return chosen;
+        }
+
+        @Test
+        public void prefersTheFasterServer() {
+            LatencyAwareRule rule = new LatencyAwareRule();
+            Server fast = server(1);
+            Server slow = server(2);
+            long now = System.nanoTime();
+            for (int i = 0; i < 20; i++) {
+                rule.record(fast.getHostPort(), 5, now);
+                rule.record(slow.getHostPort(), 50, now);
+            }
+            assertEquals(100, countChosen(rule, Arrays.asList(fast, slow), fast, now, 100));
+        }
+
+        @Test
+        public void neverStarvesAServerOfTwoChoices() {
+            LatencyAwareRule rule = new LatencyAwareRule();
+            List<Server> list = Arrays.asList(server(1), server(2), server(3));
+            long now = System.nanoTime();
+            for (int i = 0; i < 20; i++) {
+                rule.record(list.get(0).getHostPort(), 50, now);
+                rule.record(list.get(1).getHostPort(), 5, now);
+                rule.record(list.get(2).getHostPort(), 50, now);
+            }
+            // the fast server is one of the two choices two times out of three
+            assertEquals(2000, countChosen(rule, list, list.get(1), now, 3000), 150);
+        }
+
+        @Test
+        public void accountsForRequestsInFlight() {
+            BaseLoadBalancer loadBalancer = new BaseLoadBalancer();
+            LatencyAwareRule rule = new LatencyAwareRule();
+            loadBalancer.setRule(rule);
+            Server busy = server(1);
+            Server idle = server(2);
+            loadBalancer.addServers(Arrays.asList(busy, idle));
+            long now = System.nanoTime();
+            for (int i = 0; i < 20; i++) {
+                rule.record(busy.getHostPort(), 5, now);
+                rule.record(idle.getHostPort(), 10, now);
+            }
+            for (int i = 0; i < 5; i++) loadBalancer.getLoadBalancerStats().incrementActiveRequestsCount(busy);
+            assertEquals(100, countChosen(rule, Arrays.asList(busy, idle), idle, now, 100));
+        }
+
+        @Test
+        public void recordsByRequestedUri() throws Exception {
+            BaseLoadBalancer loadBalancer = new BaseLoadBalancer();
+            LatencyAwareRule rule = new LatencyAwareRule(loadBalancer);
+            loadBalancer.setRule(rule);
+            Server fast = new Server("a.example.com", 80);
+            Server slow = new Server("b.example.com", 7001);
+            for (int i = 0; i < 20; i++) {
+                record(loadBalancer, new URI("http://a.example.com/path"), 5);
+                record(loadBalancer, new URI("http://b.example.com:7001/path?q=1"), 50);
+            }
+            assertTrue(rule.cost(fast, System.nanoTime()) < rule.cost(slow, System.nanoTime()));
+        }
+
+        @Test
+        public void slowResponsesAreForgottenOverTime() {
+            LatencyAwareRule rule = new LatencyAwareRule();
+            Server fast = server(1);
+            Server slow = server(2);
+            long now = System.nanoTime();
+            for (int i = 0; i < 20; i++) rule.record(slow.getHostPort(), 500, now);
+            for (int i = 0; i < 200; i++) rule.record(fast.getHostPort(), 5, now);
+            double before = rule.cost(slow, now);
+            double after = rule.cost(slow, now + 5 * TimeUnit.MILLISECONDS.toNanos(DECAY_MILLIS.get()));
+            assertTrue(before > 400);
+            assertTrue(after < 10);
+        }
+
+        @Test
+        public void rampsUpNewServers() {
+            LatencyAwareRule rule = new LatencyAwareRule();
+            Server a = server(1);
+            Server b = server(2);
+            long start = System.nanoTime();
+            for (int i = 0; i < 20; i++) {
+                rule.record(a.getHostPort(), 10, start);
+                rule.record(b.getHostPort(), 10, start);
+            }
+            Server added = server(3);
+            List<Server> list = Arrays.asList(a, b, added);
+            long slowStart = TimeUnit.MILLISECONDS.toNanos(SLOW_START_MILLIS.get());
+            long now = start + 2 * slowStart;
+            rule.cost(added, now);
+            now += 10 * MS;
+
+            int justAdded = countChosen(rule, list, added, now, 3000);
+            int halfway = countChosen(rule, list, added, now + slowStart / 2, 3000);
+            int rampedUp = countChosen(rule, list, added, now + slowStart, 3000);
+            assertEquals(0, justAdded);
+            assertEquals(0, halfway);
+            // fully ramped, it is as likely to be chosen as the others
+            assertEquals(1000, rampedUp, 150);
+        }
+
+        /**
+         * a local server that answers 200 after a fixed service time, handling one request at a time per worker
+         */
+        static class StubServer {
+            final HttpServer server;
+
+            StubServer(final long serviceMillis, int workers) throws IOException {
+                server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+                server.setExecutor(Executors.newFixedThreadPool(workers));
+                server.createContext("/", new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange) throws IOException {
+                        try {
+                            Thread.sleep(serviceMillis);
+                        } catch (InterruptedException ignored) {
+                        }
+                        // no body, so the response goes out in one write and isn't held back by Nagle's algorithm
+                        exchange.sendResponseHeaders(200, -1);
+                        exchange.close();
+                    }
+                });
+                server.start();
+            }
+
+            Server asServer() {
+                return new Server("localhost", server.getAddress().getPort());
+            }
+        }
+
+        /**
+         * sends requests from concurrent callers through the load balancer, the way RibbonCommand does
+         *
+         * @return the latencies of all requests, in ms
+         */
+        private static long[] run(final BaseLoadBalancer loadBalancer, int callers, final int requestsPerCaller) throws Exception {
+            final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+            final CountDownLatch done = new CountDownLatch(callers);
+            for (int c = 0; c < callers; c++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < requestsPerCaller; i++) {
+                                Server server = loadBalancer.chooseServer(null);
+                                ServerStats stats = loadBalancer.getLoadBalancerStats().getSingleServerStat(server);
+                                stats.incrementActiveRequestsCount();
+                                long start = System.nanoTime();
+                                try {
+                                    get(server);
+                                } finally {
+                                    stats.decrementActiveRequestsCount();
+                                }
+                                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                                LatencyAwareRule.record(loadBalancer, server, millis);
+                                latencies.add(millis);
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            done.await(60, TimeUnit.SECONDS);
+            long[] result = new long[latencies.size()];
+            for (int i = 0; i < result.length; i++) result[i] = latencies.get(i);
+            Arrays.sort(result);
+            return result;
+        }
+
+        private static void get(Server server) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://" + server.getHostPort() + "/").openConnection();
+            InputStream in = connection.getInputStream();
+            try {
+                while (in.read() >= 0) ;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted[(int) Math.ceil(p * sorted.length) - 1];
+        }
+
+        /**
+         * Benchmark against four local instances, one of which takes ten times as long as the others. Round robin sends
+         * a quarter of the requests to the slow one, which sets the p99; the latency-aware rule mostly avoids it.
+         */
+        @Test
+        public void beatsRoundRobinOnTailLatency() throws Exception {
+            Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+            List<StubServer> stubs = new ArrayList<StubServer>();
+            List<Server> list = new ArrayList<Server>();
+            for (long serviceMillis : new long[]{5, 5, 5, 50}) {
+                StubServer stub = new StubServer(serviceMillis, 8);
+                stubs.add(stub);
+                list.add(stub.asServer());
+            }
+            try {
+                BaseLoadBalancer roundRobin = new BaseLoadBalancer();
+                roundRobin.setRule(new RoundRobinRule());
+                roundRobin.addServers(list);
+                run(roundRobin, 8, 20);
+                long[] plain = run(roundRobin, 8, 100);
+
+                BaseLoadBalancer latencyAware = new BaseLoadBalancer();
+                latencyAware.setRule(new LatencyAwareRule());
+                latencyAware.addServers(list);
+                run(latencyAware, 8, 20);
+                long[] aware = run(latencyAware, 8, 100);
+
+                assertEquals(800, plain.length);
+                assertEquals(800, aware.length);
+                long plainP99 = percentile(plain, 0.99);
+                long awareP99 = percentile(aware, 0.99);
+                assertTrue("p99 with round robin " + plainP99, plainP99 >= 50);
+                assertTrue("p99 latency aware " + awareP99 + ", with round robin " + plainP99, awareP99 < plainP99 / 2);
+            } finally {
+                for (StubServer stub : stubs) stub.server.stop(0);
+            }
+        }
+    }
+}
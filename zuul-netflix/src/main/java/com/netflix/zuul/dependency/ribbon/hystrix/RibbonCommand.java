@@ -9,18 +9,73 @@ import com.netflix.hystrix.HystrixCommandGroupKey;
 import com.netflix.hystrix.HystrixCommandProperties;
 import com.netflix.client.AbstractLoadBalancerAwareClient;
 import com.netflix.client.ClientException;
+import com.netflix.loadbalancer.ILoadBalancer;
+import com.netflix.loadbalancer.Server;
+import com.netflix.loadbalancer.ServerStats;
 import com.netflix.zuul.constants.ZuulConstants;
 import com.netflix.zuul.context.NFRequestContext;
+import com.netflix.zuul.dependency.ConcurrencyLimitExceededException;
+import com.netflix.zuul.dependency.ConcurrencyLimiter;
+import com.netflix.zuul.dependency.DeadlineExceededException;
+import com.netflix.zuul.dependency.ribbon.HedgingPolicy;
+import com.netflix.zuul.dependency.ribbon.LatencyAwareRule;
+import com.netflix.zuul.monitoring.CounterFactory;
+import com.netflix.zuul.origin.OutlierDetector;
+import com.netflix.zuul.origin.ReplayableBody;
+import com.netflix.zuul.origin.RetryPolicy;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.protocol.HttpContext;
 
 import javax.ws.rs.core.MultivaluedMap;
 
+import com.netflix.client.config.DefaultClientConfigImpl;
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.niws.client.http.RestClient;
+import com.netflix.zuul.monitoring.MonitoringHelper;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.netflix.client.http.HttpRequest.Verb;
 
@@ -33,6 +88,26 @@ import static com.netflix.client.http.HttpRequest.Verb;
  */
 public class RibbonCommand<T extends AbstractLoadBalancerAwareClient<HttpRequest, HttpResponse>> extends HystrixCommand<HttpResponse> {
 
+    // hedges are sent from a few threads of their own; a hedge that finds them all busy is not sent
+    static final int MAX_HEDGE_THREADS = 16;
+    static final ThreadPoolExecutor HEDGE_EXECUTOR = newHedgeExecutor();
+    private static final ScheduledThreadPoolExecutor HEDGE_TIMER = newHedgeTimer();
+
+    // the hedged attempt the current thread is sending, if any
+    private static final ThreadLocal<Attempt> CURRENT_ATTEMPT = new ThreadLocal<Attempt>();
+    private static final Set<HttpClient> CAPTURING_CLIENTS = Collections.newSetFromMap(new ConcurrentHashMap<HttpClient, Boolean>());
+
+    // captures the HTTP request of a hedged attempt as it is sent, so that the attempt can be aborted from another thread
+    private static final HttpRequestInterceptor ATTEMPT_CAPTURE = new HttpRequestInterceptor() {
+        @Override
+        public void process(org.apache.http.HttpRequest request, HttpContext context) {
+            Attempt attempt = CURRENT_ATTEMPT.get();
+            if (attempt == null) return;
+            if (request instanceof RequestWrapper) request = ((RequestWrapper) request).getOriginal();
+            if (request instanceof AbortableHttpRequest) attempt.capture((AbortableHttpRequest) request);
+        }
+    };
+
     private final T restClient;
     private final Verb verb;
     private final URI uri;
@@ -77,8 +152,8 @@ public class RibbonCommand<T extends AbstractLoadBalancerAwareClient<HttpRequest
            // we want to default to semaphore-isolation since this wraps
            // 2 others commands that are already thread isolated
            HystrixCommandProperties.Setter().withExecutionIsolationStrategy(HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE)
-                   .withExecutionIsolationSemaphoreMaxConcurrentRequests(DynamicPropertyFactory.getInstance().
-                           getIntProperty(ZuulConstants.ZUUL_EUREKA + commandKey + ".semaphore.maxSemaphores", 100).get())));
+                   .withExecutionIsolationSemaphoreMaxConcurrentRequests(ConcurrencyLimiter.semaphoreSize(DynamicPropertyFactory.getInstance().
+                           getIntProperty(ZuulConstants.ZUUL_EUREKA + commandKey + ".semaphore.maxSemaphores", 100).get()))));
         
         this.restClient = restClient;
         this.verb = verb;
@@ -124,7 +199,8 @@ public class RibbonCommand<T extends AbstractLoadBalancerAwareClient<HttpRequest
     HttpResponse forward() throws Exception {
 
         NFRequestContext context = NFRequestContext.getCurrentContext();
-
+        // Ribbon has no per request read timeout, so the budget can only be checked before the request is sent
+        if (context.isDeadlineExceeded()) throw new DeadlineExceededException(restClient.getClientName());
 
         HttpRequest.Builder builder = HttpRequest.newBuilder().
                 verb(verb).
@@ -147,7 +223,7 @@ public class RibbonCommand<T extends AbstractLoadBalancerAwareClient<HttpRequest
 
         HttpRequest httpClientRequest = builder.build();
 
-        HttpResponse response = execute(httpClientRequest);
+        HttpResponse response = executeWithinLimit(httpClientRequest);
         context.setZuulResponse(response);
 
         // Here we want to handle the case where this hystrix command timed-out before the
@@ -161,13 +237,452 @@ public class RibbonCommand<T extends AbstractLoadBalancerAwareClient<HttpRequest
         return response;
     }
     
+    private HttpResponse executeWithinLimit(HttpRequest httpClientRequest) throws ClientException {
+        if (!ConcurrencyLimiter.isEnabled()) return execute(httpClientRequest);
+
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(getCommandKey().name() + "." + restClient.getClientName());
+        if (!limiter.tryAcquire()) throw new ConcurrencyLimitExceededException(restClient.getClientName());
+        long start = System.nanoTime();
+        boolean dropped = true;
+        try {
+            HttpResponse response = execute(httpClientRequest);
+            dropped = ConcurrencyLimiter.isOverloaded(response.getStatus());
+            return response;
+        } finally {
+            limiter.release(System.nanoTime() - start, dropped);
+        }
+    }
+
     protected HttpResponse execute(HttpRequest httpClientRequest) throws ClientException {
-        return restClient.executeWithLoadBalancer(httpClientRequest);
+        boolean balanced = restClient.getLoadBalancer() != null;
+        RetryPolicy retryPolicy = (RetryPolicy.isEnabled() && balanced) ? RetryPolicy.forRoute(restClient.getClientName()) : null;
+        if (HedgingPolicy.isEnabled() && (verb == Verb.GET || verb == Verb.HEAD) && balanced) {
+            return executeHedged(httpClientRequest, HedgingPolicy.forRoute(restClient.getClientName()), retryPolicy);
+        }
+        if ((retryPolicy != null || OutlierDetector.isEnabled()) && balanced) {
+            return executeWithRetries(httpClientRequest, retryPolicy);
+        }
+        long start = System.currentTimeMillis();
+        HttpResponse response = restClient.executeWithLoadBalancer(httpClientRequest);
+        LatencyAwareRule.record(restClient.getLoadBalancer(), response.getRequestedURI(), System.currentTimeMillis() - start);
+        return response;
     }
-    
+
+    /**
+     * Sends the request to one server from the calling thread and, if it hasn't answered within the route's hedge delay
+     * and the hedge budget allows, to a second one from the hedge executor. The first response wins and the other
+     * attempt is aborted; its response is closed if it still arrives. Only the attempt that fails last is reported as
+     * an error. Without a delay yet, or with a client whose attempts can't be aborted, the request is sent once.
+     * <p/>
+     * If both attempts fail, or the winner answers with an overloaded status, the request is retried on the servers
+     * not tried yet as the retry policy allows, as executeWithRetries does.
+     *
+     * @param retryPolicy the route's retry policy, or null to make no retries
+     */
+    HttpResponse executeHedged(HttpRequest httpClientRequest, HedgingPolicy policy, RetryPolicy retryPolicy) throws ClientException {
+        policy.onRequest();
+        long delay = policy.getDelayMillis();
+        if (delay < 0 || !captureAttempts(restClient)) {
+            // not enough samples for a delay yet, or no way to abort an attempt; route as usual and learn from it
+            long start = System.currentTimeMillis();
+            HttpResponse response;
+            if (retryPolicy != null) {
+                response = executeWithRetries(httpClientRequest, retryPolicy);
+            } else {
+                response = restClient.executeWithLoadBalancer(httpClientRequest);
+                LatencyAwareRule.record(restClient.getLoadBalancer(), response.getRequestedURI(), System.currentTimeMillis() - start);
+            }
+            policy.record(System.currentTimeMillis() - start);
+            return response;
+        }
+
+        if (retryPolicy != null) retryPolicy.onRequest();
+        Server first = chooseServer(Collections.<Server>emptyList());
+        if (first == null) return restClient.executeWithLoadBalancer(httpClientRequest);
+
+        Hedge hedge = new Hedge(httpClientRequest, policy, new Attempt(first));
+        ScheduledFuture<?> trigger = HEDGE_TIMER.schedule(hedge, delay, TimeUnit.MILLISECONDS);
+        HttpResponse response = null;
+        Exception exception = null;
+        try {
+            response = hedge.send(hedge.primary);
+        } catch (Exception e) {
+            exception = e;
+        } finally {
+            trigger.cancel(false);
+        }
+
+        String verbName = httpClientRequest.getVerb().verb();
+        ClientException failure = null;
+        try {
+            response = hedge.settle(response, exception);
+        } catch (ClientException e) {
+            failure = e;
+        }
+        List<Server> tried = hedge.tried();
+        Server next;
+        if (failure != null) {
+            next = RetryPolicy.isRetriableFailure(verbName, reachedOrigin(failure)) ? nextServer(retryPolicy, tried, null) : null;
+            if (next == null) throw failure;
+        } else {
+            next = RetryPolicy.isRetriableStatus(verbName, response.getStatus()) ? nextServer(retryPolicy, tried, null) : null;
+            if (next == null) return response;
+            response.close();
+        }
+        CounterFactory.instance().increment("ZUUL::RETRY:SENT");
+        return sendWithRetries(httpClientRequest, retryPolicy, next, tried, null);
+    }
+
+    /**
+     * Sends the request to one server after the other until one answers, the request can't be retried, or the retry
+     * budget or the servers run out; no server is tried twice. The body is replayed from a bounded buffer. This takes
+     * the place of Ribbon's own retries, which can't replay a body nor tell whether a retry is affordable.
+     *
+     * @param policy the route's retry policy, or null to make a single attempt
+     */
+    HttpResponse executeWithRetries(HttpRequest httpClientRequest, RetryPolicy policy) throws ClientException {
+        if (policy != null) policy.onRequest();
+        Server server = chooseServer(Collections.<Server>emptyList());
+        if (server == null) return restClient.executeWithLoadBalancer(httpClientRequest);
+
+        // without a policy the body is never replayed, so it is sent as is rather than through the replay buffer
+        Object entity = httpClientRequest.getEntity();
+        ReplayableBody body = (policy != null && entity instanceof InputStream) ? RetryPolicy.replayable((InputStream) entity) : null;
+        return sendWithRetries(httpClientRequest, policy, server, new ArrayList<Server>(), body);
+    }
+
+    /**
+     * sends the request to the given server, then to the next ones as executeWithRetries does
+     *
+     * @param tried the servers already tried, added to as more are
+     */
+    private HttpResponse sendWithRetries(HttpRequest httpClientRequest, RetryPolicy policy, Server server,
+                                         List<Server> tried, ReplayableBody body) throws ClientException {
+        String verbName = httpClientRequest.getVerb().verb();
+        while (true) {
+            tried.add(server);
+            HttpResponse response;
+            try {
+                response = executeOn(server, (body == null) ? httpClientRequest : withEntity(httpClientRequest, body.newStream()));
+            } catch (Exception e) {
+                server = RetryPolicy.isRetriableFailure(verbName, reachedOrigin(e)) ? nextServer(policy, tried, body) : null;
+                if (server == null) throw asClientException(e);
+                CounterFactory.instance().increment("ZUUL::RETRY:SENT");
+                continue;
+            }
+            server = RetryPolicy.isRetriableStatus(verbName, response.getStatus()) ? nextServer(policy, tried, body) : null;
+            if (server == null) return response;
+            response.close();
+            CounterFactory.instance().increment("ZUUL::RETRY:SENT");
+        }
+    }
+
+    /**
+     * @return a server not tried yet if the policy allows another attempt, or null
+     */
+    private Server nextServer(RetryPolicy policy, List<Server> tried, ReplayableBody body) {
+        if (policy == null) return null;
+        Server server = chooseServer(tried);
+        if (server == null || !policy.canRetry(tried.size(), body)) return null;
+        return server;
+    }
+
+    /**
+     * @return the load balancer's choice, or else another server, that was not tried yet and is not ejected as an
+     *         outlier; for a first attempt, the load balancer's choice if all servers are ejected
+     */
+    Server chooseServer(List<Server> tried) {
+        ILoadBalancer loadBalancer = restClient.getLoadBalancer();
+        OutlierDetector outliers = OutlierDetector.isEnabled() ? OutlierDetector.forPool(restClient.getClientName()) : null;
+        Server chosen = loadBalancer.chooseServer(null);
+        if (chosen != null && !tried.contains(chosen) && (outliers == null || !outliers.isEjected(chosen.getHostPort()))) {
+            return chosen;
+        }
+        List<Server> servers = loadBalancer.getServerList(true);
+        int offset = servers.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(servers.size());
+        for (int i = 0; i < servers.size(); i++) {
+            Server candidate = servers.get((offset + i) % servers.size());
+            if (!tried.contains(candidate) && (outliers == null || !outliers.isEjected(candidate.getHostPort()))) {
+                return candidate;
+            }
+        }
+        return tried.isEmpty() ? chosen : null;
+    }
+
+    /**
+     * @return false if the failure shows the request never got to the origin
+     */
+    static boolean reachedOrigin(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof ConnectTimeoutException || t instanceof UnknownHostException) return false;
+            if (t instanceof ClientException) {
+                ClientException.ErrorType type = ((ClientException) t).getErrorType();
+                if (type == ClientException.ErrorType.CONNECT_EXCEPTION || type == ClientException.ErrorType.UNKNOWN_HOST_EXCEPTION
+                        || type == ClientException.ErrorType.NO_ROUTE_TO_HOST_EXCEPTION) return false;
+            }
+        }
+        return true;
+    }
+
+    private static ClientException asClientException(Exception e) {
+        return (e instanceof ClientException) ? (ClientException) e :
+                new ClientException(ClientException.ErrorType.GENERAL, e.getMessage(), e);
+    }
+
+    /**
+     * @return a copy of the request with another entity
+     */
+    static HttpRequest withEntity(HttpRequest request, Object entity) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder().
+                verb(request.getVerb()).
+                uri(request.getUri()).
+                entity(entity);
+        for (Map.Entry<String, Collection<String>> header : request.getHeaders().entrySet()) {
+            for (String value : header.getValue()) {
+                builder.header(header.getKey(), value);
+            }
+        }
+        for (Map.Entry<String, Collection<String>> param : request.getQueryParams().entrySet()) {
+            for (String value : param.getValue()) {
+                builder.queryParams(param.getKey(), value);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * sends the request to a given server, keeping its server stats as Ribbon's load balanced calls do, and reporting
+     * the outcome to the outlier detector of the client
+     */
+    HttpResponse executeOn(Server server, HttpRequest request) throws Exception {
+        ServerStats stats = restClient.getServerStats(server);
+        if (stats != null) {
+            stats.incrementActiveRequestsCount();
+            stats.incrementNumRequests();
+        }
+        long start = System.currentTimeMillis();
+        HttpResponse response = null;
+        try {
+            response = restClient.execute(request.replaceUri(uriOn(server, request.getUri())));
+            return response;
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            Attempt attempt = CURRENT_ATTEMPT.get();
+            boolean lost = attempt != null && attempt.isAborted();
+            if (stats != null) {
+                stats.decrementActiveRequestsCount();
+                stats.noteResponseTime(elapsed);
+                if (response == null && !lost) stats.addToFailureCount();
+            }
+            if (response != null) LatencyAwareRule.record(restClient.getLoadBalancer(), server, elapsed);
+            // an attempt aborted because the other attempt of its hedged request won says nothing of its server
+            if (OutlierDetector.isEnabled() && !lost) {
+                OutlierDetector.forPool(restClient.getClientName()).record(server.getHostPort(),
+                        response == null || OutlierDetector.isFailure(response.getStatus()), elapsed);
+            }
+        }
+    }
+
+    static URI uriOn(Server server, URI uri) throws URISyntaxException {
+        String scheme = (uri.getScheme() != null) ? uri.getScheme() : "http";
+        String path = (uri.getRawPath() != null) ? uri.getRawPath() : "";
+        String query = (uri.getRawQuery() != null) ? "?" + uri.getRawQuery() : "";
+        return new URI(scheme + "://" + server.getHost() + ":" + server.getPort() + path + query);
+    }
+
+    /**
+     * @return true if the requests the client sends can be aborted, installing the interceptor that captures them
+     */
+    static boolean captureAttempts(Object client) {
+        if (!(client instanceof RestClient)) return false;
+        Client jerseyClient = ((RestClient) client).getJerseyClient();
+        if (!(jerseyClient instanceof ApacheHttpClient4)) return false;
+        HttpClient httpClient = ((ApacheHttpClient4) jerseyClient).getClientHandler().getHttpClient();
+        if (!(httpClient instanceof AbstractHttpClient)) return false;
+        if (CAPTURING_CLIENTS.add(httpClient)) ((AbstractHttpClient) httpClient).addRequestInterceptor(ATTEMPT_CAPTURE);
+        return true;
+    }
+
+    private static ThreadPoolExecutor newHedgeExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_HEDGE_THREADS, MAX_HEDGE_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), daemonThreads("RibbonCommandHedge-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ScheduledThreadPoolExecutor newHedgeTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonThreads("RibbonCommandHedgeTimer-"));
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * one attempt of a hedged request, sent to a given server; its HTTP request is captured as it is sent, so that
+     * another thread can abort it
+     */
+    static class Attempt {
+        private final Server server;
+        private AbortableHttpRequest sent;
+        private boolean aborted;
+
+        Attempt(Server server) {
+            this.server = server;
+        }
+
+        synchronized void capture(AbortableHttpRequest request) {
+            sent = request;
+            if (aborted) request.abort();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            if (sent != null) sent.abort();
+        }
+
+        synchronized boolean isAborted() {
+            return aborted;
+        }
+    }
+
+    /**
+     * a hedged request: the primary attempt is sent by the calling thread, and the hedge, if the timer fires before the
+     * primary is over, by the hedge executor
+     */
+    private class Hedge implements Runnable {
+        private final HttpRequest request;
+        private final HedgingPolicy policy;
+        private final Attempt primary;
+        private Attempt hedge;
+        private HttpResponse hedgeResponse;
+        private Exception hedgeException;
+        private boolean hedgeDone;
+        private boolean primaryDone;
+        private boolean settled;
+
+        Hedge(HttpRequest request, HedgingPolicy policy, Attempt primary) {
+            this.request = request;
+            this.policy = policy;
+            this.primary = primary;
+        }
+
+        /**
+         * @return the servers the attempts were sent to
+         */
+        synchronized List<Server> tried() {
+            List<Server> tried = new ArrayList<Server>();
+            tried.add(primary.server);
+            if (hedge != null) tried.add(hedge.server);
+            return tried;
+        }
+
+        HttpResponse send(Attempt attempt) throws Exception {
+            CURRENT_ATTEMPT.set(attempt);
+            long start = System.currentTimeMillis();
+            try {
+                HttpResponse response = executeOn(attempt.server, request);
+                policy.record(System.currentTimeMillis() - start);
+                return response;
+            } finally {
+                CURRENT_ATTEMPT.remove();
+            }
+        }
+
+        /**
+         * run by the timer once the delay is over: sends the hedge unless the primary is over
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (primaryDone) return;
+                Server second = chooseServer(Collections.singletonList(primary.server));
+                if (second == null || !policy.tryAcquireHedge()) return;
+                final Attempt attempt = new Attempt(second);
+                try {
+                    HEDGE_EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendHedge(attempt);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // every hedge thread is busy; the primary carries on alone
+                    policy.refundHedge();
+                    CounterFactory.instance().increment("ZUUL::HEDGE:REJECTED");
+                    return;
+                }
+                hedge = attempt;
+            }
+            CounterFactory.instance().increment("ZUUL::HEDGE:SENT");
+        }
+
+        private void sendHedge(Attempt attempt) {
+            HttpResponse response = null;
+            Exception exception = null;
+            try {
+                response = send(attempt);
+            } catch (Exception e) {
+                exception = e;
+            }
+            synchronized (this) {
+                hedgeDone = true;
+                if (settled) {
+                    if (response != null) response.close();
+                    return;
+                }
+                hedgeResponse = response;
+                hedgeException = exception;
+                if (response != null && !primaryDone) primary.abort();
+                notifyAll();
+            }
+        }
+
+        /**
+         * called by the calling thread once the primary is over; waits for a hedge still out if the primary failed
+         *
+         * @return the response that won
+         */
+        synchronized HttpResponse settle(HttpResponse response, Exception exception) throws ClientException {
+            primaryDone = true;
+            if (response != null && hedgeResponse == null) {
+                settled = true;
+                if (hedge != null) hedge.abort();
+                return response;
+            }
+            if (response != null) response.close();
+            try {
+                while (hedge != null && !hedgeDone) wait();
+            } catch (InterruptedException e) {
+                settled = true;
+                hedge.abort();
+                Thread.currentThread().interrupt();
+                throw new ClientException(ClientException.ErrorType.GENERAL, "interrupted waiting for a response", e);
+            }
+            settled = true;
+            if (hedgeResponse == null) throw asClientException((hedge != null) ? hedgeException : exception);
+            CounterFactory.instance().increment("ZUUL::HEDGE:WON");
+            return hedgeResponse;
+        }
+    }
+
     public static class UnitTest {
         
         private static final String localhost = "http://localhost";
+
+        // the tail latency comparison is timing dependent, so it only runs with -Dzuul.stats.benchmark=true
+        private static final String BENCHMARK_PROPERTY = "zuul.stats.benchmark";
         
         @Test
         public void testConstruction() throws URISyntaxException {
@@ -192,5 +707,385 @@ public class RibbonCommand<T extends AbstractLoadBalancerAwareClient<HttpRequest
             Assert.assertEquals("myGroup", rc.getCommandGroup().name());
             Assert.assertEquals("myCommand", rc.getCommandKey().name());
         }
+
+        /**
+         * a local origin instance answering "ok", where a share of the requests straggle
+         */
+        static class StubOrigin {
+            final HttpServer server;
+            final AtomicInteger requests = new AtomicInteger();
+            volatile int status = 200;
+
+            StubOrigin(final double straggleRate, final long straggleMillis, long seed) throws IOException {
+                final Random random = new Random(seed);
+                server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+                server.setExecutor(Executors.newCachedThreadPool());
+                server.createContext("/", new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange) throws IOException {
+                        requests.incrementAndGet();
+                        boolean straggle;
+                        synchronized (random) {
+                            straggle = random.nextDouble() < straggleRate;
+                        }
+                        if (straggle) {
+                            try {
+                                Thread.sleep(straggleMillis);
+                            } catch (InterruptedException ignored) {
+                            }
+                        }
+                        byte[] body = "ok".getBytes();
+                        exchange.sendResponseHeaders(status, body.length);
+                        exchange.getResponseBody().write(body);
+                        exchange.close();
+                    }
+                });
+                server.start();
+            }
+
+            Server asServer() {
+                return new Server("localhost", server.getAddress().getPort());
+            }
+        }
+
+        private static RestClient newClient(String name, ILoadBalancer loadBalancer) {
+            RestClient client = new RestClient(DefaultClientConfigImpl.getClientConfigWithDefaultValues(name));
+            client.setLoadBalancer(loadBalancer);
+            return client;
+        }
+
+        private static RibbonCommand<RestClient> newCommand(RestClient client) throws URISyntaxException {
+            return new RibbonCommand<RestClient>(client, Verb.GET, "/", new MultivaluedMapImpl(), new MultivaluedMapImpl(), null);
+        }
+
+        private static long p99(long[] latencies) {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(0.99 * sorted.length) - 1];
+        }
+
+        @Test
+        public void hedgeGoesToAnotherServer() throws Exception {
+            MonitoringHelper.initMocks();
+            final StubOrigin slow = new StubOrigin(1.0, 1000, 1);
+            StubOrigin fast = new StubOrigin(0, 0, 2);
+            try {
+                BaseLoadBalancer loadBalancer = new BaseLoadBalancer() {
+                    @Override
+                    public Server chooseServer(Object key) {
+                        return slow.asServer();
+                    }
+                };
+                loadBalancer.addServers(Arrays.asList(slow.asServer(), fast.asServer()));
+                RibbonCommand<RestClient> command = newCommand(newClient("hedgeTest", loadBalancer));
+                HedgingPolicy policy = new HedgingPolicy();
+                for (int i = 0; i < 100; i++) policy.record(5);
+                for (int i = 0; i < 10; i++) policy.onRequest();
+
+                long start = System.currentTimeMillis();
+                HttpResponse response = command.executeHedged(HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build(), policy, null);
+                long elapsed = System.currentTimeMillis() - start;
+                response.close();
+
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertTrue(elapsed < 500);
+                Assert.assertEquals(1, slow.requests.get());
+                Assert.assertEquals(1, fast.requests.get());
+            } finally {
+                slow.server.stop(0);
+                fast.server.stop(0);
+            }
+        }
+
+        @Test
+        public void primaryIsSentFromTheCallingThread() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin origin = new StubOrigin(0, 0, 1);
+            try {
+                RibbonCommand<RestClient> command = newCommand(newClient("hedgeCallerTest",
+                        choosingFirst(origin.asServer(), origin.asServer())));
+                HedgingPolicy policy = new HedgingPolicy();
+                for (int i = 0; i < 100; i++) policy.record(5000);
+                for (int i = 0; i < 10; i++) policy.onRequest();
+                long tasks = HEDGE_EXECUTOR.getTaskCount();
+
+                HttpResponse response = command.executeHedged(HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build(), policy, null);
+                response.close();
+
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals(tasks, HEDGE_EXECUTOR.getTaskCount());
+            } finally {
+                origin.server.stop(0);
+            }
+        }
+
+        @Test
+        public void hedgeIsNotSentWhenTheHedgeThreadsAreBusy() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin slow = new StubOrigin(1.0, 200, 1);
+            StubOrigin fast = new StubOrigin(0, 0, 2);
+            final CountDownLatch release = new CountDownLatch(1);
+            try {
+                RibbonCommand<RestClient> command = newCommand(newClient("hedgeRejectedTest",
+                        choosingFirst(slow.asServer(), slow.asServer(), fast.asServer())));
+                HedgingPolicy policy = new HedgingPolicy();
+                for (int i = 0; i < 100; i++) policy.record(5);
+                for (int i = 0; i < 10; i++) policy.onRequest();
+                for (int i = 0; i <= MAX_HEDGE_THREADS; i++) {
+                    try {
+                        HEDGE_EXECUTOR.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    release.await();
+                                } catch (InterruptedException ignored) {
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        break;
+                    }
+                }
+
+                HttpResponse response = command.executeHedged(HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build(), policy, null);
+                response.close();
+
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals(1, slow.requests.get());
+                Assert.assertEquals(0, fast.requests.get());
+                // the hedge that wasn't sent was refunded
+                Assert.assertTrue(policy.tryAcquireHedge());
+            } finally {
+                release.countDown();
+                slow.server.stop(0);
+                fast.server.stop(0);
+            }
+        }
+
+        private static HedgingPolicy hedgingPolicyWithDelay(long delayMillis) {
+            HedgingPolicy policy = new HedgingPolicy();
+            for (int i = 0; i < 100; i++) policy.record(delayMillis);
+            for (int i = 0; i < 10; i++) policy.onRequest();
+            return policy;
+        }
+
+        @Test
+        public void hedgedGetIsRetriedAfterAnOverloadedAnswer() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin overloaded = new StubOrigin(0, 0, 1);
+            overloaded.status = 503;
+            StubOrigin live = new StubOrigin(0, 0, 2);
+            try {
+                RibbonCommand<RestClient> command = newCommand(newClient("hedgeRetryTest",
+                        choosingFirst(overloaded.asServer(), overloaded.asServer(), live.asServer())));
+                HttpRequest request = HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build();
+
+                HttpResponse response = command.executeHedged(request, hedgingPolicyWithDelay(5000), fundedRetryPolicy());
+                response.close();
+
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals(1, overloaded.requests.get());
+                Assert.assertEquals(1, live.requests.get());
+            } finally {
+                overloaded.server.stop(0);
+                live.server.stop(0);
+            }
+        }
+
+        @Test
+        public void hedgedGetIsRetriedWhenThePrimaryFailsBeforeTheDelay() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin live = new StubOrigin(0, 0, 1);
+            try {
+                Server dead = deadServer();
+                RibbonCommand<RestClient> command = newCommand(newClient("hedgeRetryDeadTest", choosingFirst(dead, dead, live.asServer())));
+                HttpRequest request = HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build();
+
+                HttpResponse response = command.executeHedged(request, hedgingPolicyWithDelay(5000), fundedRetryPolicy());
+                response.close();
+                Assert.assertEquals(200, response.getStatus());
+
+                // without a retry policy the failure stands
+                try {
+                    command.executeHedged(request, hedgingPolicyWithDelay(5000), null);
+                    Assert.fail();
+                } catch (ClientException e) {
+                    Assert.assertFalse(reachedOrigin(e));
+                }
+                Assert.assertEquals(1, live.requests.get());
+            } finally {
+                live.server.stop(0);
+            }
+        }
+
+        @Test
+        public void noHedgeWithoutBudget() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin slow = new StubOrigin(1.0, 100, 1);
+            StubOrigin fast = new StubOrigin(0, 0, 2);
+            try {
+                RibbonCommand<RestClient> command = newCommand(newClient("hedgeBudgetTest",
+                        choosingFirst(slow.asServer(), slow.asServer(), fast.asServer())));
+                HedgingPolicy policy = new HedgingPolicy();
+                for (int i = 0; i < 100; i++) policy.record(5);
+
+                HttpResponse response = command.executeHedged(HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build(), policy, null);
+                response.close();
+
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals(1, slow.requests.get());
+                Assert.assertEquals(0, fast.requests.get());
+            } finally {
+                slow.server.stop(0);
+                fast.server.stop(0);
+            }
+        }
+
+        private static Server deadServer() throws IOException {
+            ServerSocket socket = new ServerSocket(0);
+            int port = socket.getLocalPort();
+            socket.close();
+            return new Server("localhost", port);
+        }
+
+        private static RetryPolicy fundedRetryPolicy() {
+            RetryPolicy policy = new RetryPolicy();
+            for (int i = 0; i < 100; i++) policy.onRequest();
+            return policy;
+        }
+
+        private static BaseLoadBalancer choosingFirst(final Server first, Server... servers) {
+            BaseLoadBalancer loadBalancer = new BaseLoadBalancer() {
+                @Override
+                public Server chooseServer(Object key) {
+                    return first;
+                }
+            };
+            loadBalancer.addServers(Arrays.asList(servers));
+            return loadBalancer;
+        }
+
+        @Test
+        public void retriesAnUnsentPostOnAnotherServer() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin live = new StubOrigin(0, 0, 1);
+            try {
+                Server dead = deadServer();
+                RibbonCommand<RestClient> command = newCommand(newClient("retryTest", choosingFirst(dead, dead, live.asServer())));
+                HttpRequest request = HttpRequest.newBuilder().verb(Verb.POST).uri(new URI("/"))
+                        .entity(new ByteArrayInputStream("body".getBytes())).build();
+
+                HttpResponse response = command.executeWithRetries(request, fundedRetryPolicy());
+                response.close();
+
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertEquals(1, live.requests.get());
+            } finally {
+                live.server.stop(0);
+            }
+        }
+
+        @Test
+        public void retriesAnOverloadedGetOnAnotherServer() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin overloaded = new StubOrigin(0, 0, 1);
+            overloaded.status = 503;
+            StubOrigin live = new StubOrigin(0, 0, 2);
+            try {
+                RibbonCommand<RestClient> command = newCommand(newClient("retryStatusTest",
+                        choosingFirst(overloaded.asServer(), overloaded.asServer(), live.asServer())));
+                HttpRequest request = HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build();
+
+                HttpResponse response = command.executeWithRetries(request, fundedRetryPolicy());
+                response.close();
+                Assert.assertEquals(200, response.getStatus());
+
+                // without a budget the first answer stands; RestClient reports a 503 as throttling
+                try {
+                    command.executeWithRetries(request, new RetryPolicy());
+                    Assert.fail();
+                } catch (ClientException e) {
+                    Assert.assertEquals(ClientException.ErrorType.SERVER_THROTTLED, e.getErrorType());
+                }
+                Assert.assertEquals(2, overloaded.requests.get());
+                Assert.assertEquals(1, live.requests.get());
+            } finally {
+                overloaded.server.stop(0);
+                live.server.stop(0);
+            }
+        }
+
+        @Test
+        public void doesNotRetryAPostTheOriginGot() throws Exception {
+            MonitoringHelper.initMocks();
+            StubOrigin overloaded = new StubOrigin(0, 0, 1);
+            overloaded.status = 503;
+            StubOrigin live = new StubOrigin(0, 0, 2);
+            try {
+                RibbonCommand<RestClient> command = newCommand(newClient("retryPostTest",
+                        choosingFirst(overloaded.asServer(), overloaded.asServer(), live.asServer())));
+                HttpRequest request = HttpRequest.newBuilder().verb(Verb.POST).uri(new URI("/"))
+                        .entity(new ByteArrayInputStream("body".getBytes())).build();
+
+                try {
+                    command.executeWithRetries(request, fundedRetryPolicy());
+                    Assert.fail();
+                } catch (ClientException e) {
+                    Assert.assertEquals(ClientException.ErrorType.SERVER_THROTTLED, e.getErrorType());
+                }
+                Assert.assertEquals(1, overloaded.requests.get());
+                Assert.assertEquals(0, live.requests.get());
+            } finally {
+                overloaded.server.stop(0);
+                live.server.stop(0);
+            }
+        }
+
+        /**
+         * Benchmark against four local instances, each straggling on 3% of the requests. Without hedging those
+         * stragglers set the p99; with hedging it drops to about the hedge delay.
+         */
+        @Test
+        public void hedgingCutsTheTailOfStragglers() throws Exception {
+            Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+            MonitoringHelper.initMocks();
+            List<StubOrigin> origins = new ArrayList<StubOrigin>();
+            List<Server> servers = new ArrayList<Server>();
+            for (int i = 0; i < 4; i++) {
+                StubOrigin origin = new StubOrigin(0.03, 200, i);
+                origins.add(origin);
+                servers.add(origin.asServer());
+            }
+            try {
+                BaseLoadBalancer loadBalancer = new BaseLoadBalancer();
+                loadBalancer.addServers(servers);
+                RestClient client = newClient("hedgeBenchmark", loadBalancer);
+                RibbonCommand<RestClient> command = newCommand(client);
+                HttpRequest request = HttpRequest.newBuilder().verb(Verb.GET).uri(new URI("/")).build();
+
+                long[] plain = new long[500];
+                for (int i = 0; i < plain.length; i++) {
+                    long start = System.nanoTime();
+                    client.executeWithLoadBalancer(request).close();
+                    plain[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+
+                HedgingPolicy policy = new HedgingPolicy();
+                for (int i = 0; i < 150; i++) {
+                    command.executeHedged(request, policy, null).close();
+                }
+                long[] hedged = new long[500];
+                for (int i = 0; i < hedged.length; i++) {
+                    long start = System.nanoTime();
+                    command.executeHedged(request, policy, null).close();
+                    hedged[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+
+                Assert.assertTrue("p99 without hedging " + p99(plain), p99(plain) >= 200);
+                Assert.assertTrue("p99 with hedging " + p99(hedged), p99(hedged) < 100);
+            } finally {
+                for (StubOrigin origin : origins) origin.server.stop(0);
+            }
+        }
     }
-}
+}
\ No newline at end of file
@@ -30,4 +30,9 @@ public class ServoMonitor implements Monitor {
     public void register(NamedCount monitorObj) {
         Monitors.registerObject(monitorObj);
     }
+
+    @Override
+    public void unregister(NamedCount monitorObj) {
+        Monitors.unregisterObject(monitorObj);
+    }
 }
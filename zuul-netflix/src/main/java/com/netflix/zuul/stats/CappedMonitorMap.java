@@ -0,0 +1,357 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.stats;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.stats.monitoring.MonitorRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The monitors of one stats dimension, such as the host header or the route, by key, with a cap on how many keys are
+ * held, so that clients sending made up hosts or paths can't grow the heap and the monitor registry without bound.
+ * <p/>
+ * Once the cap is reached, unseen keys are counted under the dimension's OTHER key, and each such count as dropped.
+ * Keys that haven't been counted for zuul.stats.key-idle-millis are aged out and unregistered, making room for new
+ * ones; if keys were dropped while none was idle, the least recently used eighth is aged out regardless. Aging out runs
+ * as unseen keys arrive, at most every few seconds. The dropped counts and aged out keys are published as
+ * stats_dropped_keys_&lt;dimension&gt; and stats_evicted_keys_&lt;dimension&gt;.
+ */
+public abstract class CappedMonitorMap<V> {
+
+    private static final DynamicIntProperty KEY_IDLE_MILLIS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_STATS_KEY_IDLE_MILLIS, 900000);
+
+    static final long SWEEP_INTERVAL_MILLIS = 5000;
+
+    private final String otherKey;
+    private final DynamicIntProperty cap;
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+    private final NamedCountingMonitor dropped;
+    private final NamedCountingMonitor evicted;
+    private final AtomicLong nextSweep = new AtomicLong();
+    private volatile boolean overflowed;
+
+    /**
+     * @param dimension the name the dropped and evicted counts are published under, e.g. "host"
+     * @param otherKey  the key the keys past the cap are counted under, e.g. "host_OTHER"
+     * @param cap       the number of keys to hold, the other key included
+     */
+    public CappedMonitorMap(String dimension, String otherKey, DynamicIntProperty cap) {
+        this.otherKey = otherKey;
+        this.cap = cap;
+        this.dropped = new NamedCountingMonitor("stats_dropped_keys_" + dimension).register();
+        this.evicted = new NamedCountingMonitor("stats_evicted_keys_" + dimension).register();
+    }
+
+    /**
+     * @return a map of counters, named by their keys, registered as they are added and unregistered as they age out
+     */
+    public static CappedMonitorMap<NamedCountingMonitor> ofCounters(String dimension, String otherKey, DynamicIntProperty cap) {
+        return new CappedMonitorMap<NamedCountingMonitor>(dimension, otherKey, cap) {
+            @Override
+            protected NamedCountingMonitor create(String key) {
+                return new NamedCountingMonitor(key);
+            }
+
+            @Override
+            protected void register(NamedCountingMonitor monitor) {
+                MonitorRegistry.getInstance().registerObject(monitor);
+            }
+
+            @Override
+            protected void unregister(NamedCountingMonitor monitor) {
+                MonitorRegistry.getInstance().unregisterObject(monitor);
+            }
+        };
+    }
+
+    /**
+     * @return a new value for a key; it is only registered if it makes it into the map
+     */
+    protected abstract V create(String key);
+
+    /**
+     * registers a value added to the map; nothing by default
+     */
+    protected void register(V value) {
+    }
+
+    /**
+     * unregisters a value aged out of the map; nothing by default
+     */
+    protected void unregister(V value) {
+    }
+
+    /**
+     * @return the value of a key, or of the other key if the key is unseen and the map is full, marked as used now
+     */
+    public V get(String key) {
+        return entry(key).use();
+    }
+
+    /**
+     * @return the entry of a key, or of the other key if the key is unseen and the map is full; use() its value
+     */
+    public Entry<V> entry(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) return entry;
+
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+        if (now >= next && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL_MILLIS)) sweep(now, KEY_IDLE_MILLIS.get());
+
+        if (!key.equals(otherKey) && entries.size() >= cap.get()) {
+            dropped.increment();
+            overflowed = true;
+            key = otherKey;
+            entry = entries.get(key);
+            if (entry != null) return entry;
+        }
+        entry = new Entry<V>(key, create(key), now);
+        Entry<V> existing = entries.putIfAbsent(key, entry);
+        if (existing != null) return existing;
+        register(entry.value);
+        return entry;
+    }
+
+    /**
+     * @return the value of a key, or null, without marking it as used
+     */
+    public V peek(String key) {
+        Entry<V> entry = entries.get(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getDropped() {
+        return dropped.getCount();
+    }
+
+    public long getEvicted() {
+        return evicted.getCount();
+    }
+
+    /**
+     * ages out the keys idle for longer than idleMillis and, if keys were dropped since the last sweep and the map is
+     * still full, the least recently used eighth of it
+     */
+    void sweep(long now, long idleMillis) {
+        long idleBefore = now - idleMillis;
+        for (Entry<V> entry : entries.values()) {
+            if (entry.lastUsed < idleBefore) evict(entry);
+        }
+        if (!overflowed) return;
+        overflowed = false;
+        int cap = this.cap.get();
+        if (entries.size() < cap) return;
+
+        // last uses are copied before sorting, as they change while it runs
+        List<Entry<V>> candidates = new ArrayList<Entry<V>>(entries.values());
+        long[] lastUsed = new long[candidates.size()];
+        for (int i = 0; i < lastUsed.length; i++) lastUsed[i] = candidates.get(i).lastUsed;
+        long[] sorted = lastUsed.clone();
+        Arrays.sort(sorted);
+        long oldest = sorted[Math.min(sorted.length, Math.max(1, cap / 8)) - 1];
+        for (int i = 0; i < lastUsed.length; i++) {
+            if (lastUsed[i] <= oldest) evict(candidates.get(i));
+        }
+    }
+
+    private void evict(Entry<V> entry) {
+        if (entry.key.equals(otherKey)) return;
+        if (!entries.remove(entry.key, entry)) return;
+        // a request that looked the entry up just before counts into the unregistered value
+        entry.evicted = true;
+        evicted.increment();
+        unregister(entry.value);
+    }
+
+    /**
+     * a value of the map with the time it was last used
+     */
+    public static class Entry<V> {
+        final String key;
+        final V value;
+        volatile long lastUsed;
+        volatile boolean evicted;
+
+        Entry(String key, V value, long now) {
+            this.key = key;
+            this.value = value;
+            this.lastUsed = now;
+        }
+
+        /**
+         * @return the value, marked as used now
+         */
+        public V use() {
+            long now = System.currentTimeMillis();
+            // written only once a millisecond, so that threads counting the same key mostly just read it
+            if (lastUsed != now) lastUsed = now;
+            return value;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return true once the entry was aged out of its map
+         */
+        public boolean isEvicted() {
+            return evicted;
+        }
+    }
+
+    public static class UnitTest {
+
+        static class TestMap extends CappedMonitorMap<NamedCountingMonitor> {
+            final List<String> registered = new ArrayList<String>();
+            final List<String> unregistered = new ArrayList<String>();
+
+            TestMap(int cap) {
+                super("test", "test_OTHER", DynamicPropertyFactory.getInstance().getIntProperty("zuul.stats.test.max-keys", cap));
+            }
+
+            @Override
+            protected NamedCountingMonitor create(String key) {
+                return new NamedCountingMonitor(key);
+            }
+
+            @Override
+            protected synchronized void register(NamedCountingMonitor monitor) {
+                registered.add(monitor.getName());
+            }
+
+            @Override
+            protected synchronized void unregister(NamedCountingMonitor monitor) {
+                unregistered.add(monitor.getName());
+            }
+        }
+
+        @Test
+        public void countsKeysPastTheCapUnderOther() {
+            TestMap map = new TestMap(3);
+            map.get("a").increment();
+            map.get("b").increment();
+            map.get("c").increment();
+            map.get("a").increment();
+
+            assertSame(map.get("test_OTHER"), map.get("d"));
+            assertEquals("test_OTHER", map.get("e").getName());
+            assertEquals(2, map.peek("a").getCount());
+            assertNull(map.peek("d"));
+            assertEquals(4, map.size());
+            // the other key itself isn't dropped
+            assertEquals(2, map.getDropped());
+            assertEquals(Arrays.asList("a", "b", "c", "test_OTHER"), map.registered);
+        }
+
+        @Test
+        public void agesOutIdleKeys() {
+            TestMap map = new TestMap(10);
+            map.get("a");
+            map.get("b");
+            map.entry("a").lastUsed -= 60000;
+
+            map.sweep(System.currentTimeMillis(), 30000);
+            assertNull(map.peek("a"));
+            assertNotNull(map.peek("b"));
+            assertEquals(1, map.getEvicted());
+            assertEquals(Arrays.asList("a"), map.unregistered);
+        }
+
+        @Test
+        public void agesOutTheLeastRecentlyUsedWhenKeysAreDropped() {
+            TestMap map = new TestMap(16);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 16; i++) {
+                map.get("k" + i);
+                map.entry("k" + i).lastUsed = now - 1000 + i;
+            }
+            // full, but nothing idle: only dropping keys makes room
+            map.sweep(now, 30000);
+            assertEquals(16, map.size());
+
+            map.get("new");
+            assertNull(map.peek("new"));
+            map.sweep(now, 30000);
+            assertNull(map.peek("k0"));
+            assertNull(map.peek("k1"));
+            assertNotNull(map.peek("k2"));
+            assertFalse(map.unregistered.contains("test_OTHER"));
+
+            map.get("new");
+            assertNotNull(map.peek("new"));
+            Entry<NamedCountingMonitor> entry = map.entry("k2");
+            map.sweep(now + 60000, 30000);
+            assertTrue(entry.isEvicted());
+            // the other key is never aged out
+            assertNotNull(map.peek("test_OTHER"));
+        }
+
+        @Test
+        public void keepsKeysInUse() {
+            TestMap map = new TestMap(10);
+            map.get("a");
+            Entry<NamedCountingMonitor> entry = map.entry("a");
+            entry.lastUsed -= 60000;
+            entry.use();
+            map.sweep(System.currentTimeMillis(), 30000);
+            assertSame(entry, map.entry("a"));
+            assertFalse(entry.isEvicted());
+        }
+
+        @Test
+        public void countsCorrectlyBelowTheCap() throws InterruptedException {
+            final TestMap map = new TestMap(1000);
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 10000; i++) map.get("k" + (i % 50)).increment();
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) thread.join();
+            long total = 0;
+            for (int i = 0; i < 50; i++) total += map.peek("k" + i).getCount();
+            assertEquals(40000, total);
+            assertEquals(50, map.registered.size());
+            assertEquals(0, map.getDropped());
+        }
+    }
+}
@@ -29,7 +29,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -53,8 +53,7 @@ public class ErrorStatsData implements NamedCount
 
     String error_cause;
 
-    @Monitor(name = "count", type = DataSourceType.COUNTER)
-    AtomicLong count = new AtomicLong();
+    final LongAdder count = new LongAdder();
 
     /**
      * create a counter by route and cause of error
@@ -94,7 +93,7 @@ public class ErrorStatsData implements NamedCount
      * increments the counter
      */
     public void update() {
-        count.incrementAndGet();
+        count.increment();
     }
 
     @Override
@@ -103,8 +102,9 @@ public class ErrorStatsData implements NamedCount
     }
 
     @Override
-    public long  getCount() {
-        return count.get();
+    @Monitor(name = "count", type = DataSourceType.COUNTER)
+    public long getCount() {
+        return count.sum();
     }
 
     @RunWith(MockitoJUnitRunner.class)
@@ -115,9 +115,9 @@ public class ErrorStatsData implements NamedCount
             ErrorStatsData sd = new ErrorStatsData("route", "test");
             assertEquals(sd.error_cause, "test");
             sd.update();
-            assertEquals(sd.count.get(), 1);
+            assertEquals(sd.getCount(), 1);
             sd.update();
-            assertEquals(sd.count.get(), 2);
+            assertEquals(sd.getCount(), 2);
         }
 
 
@@ -15,6 +15,9 @@
  */
 package com.netflix.zuul.stats;
 
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
 import com.netflix.zuul.context.RequestContext;
 
 import com.netflix.zuul.stats.monitoring.MonitorRegistry;
@@ -27,15 +30,31 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 /**
- * Manager to handle Error Statistics
+ * Manager to handle Error Statistics. Routes, which default to the request URI, are capped at zuul.stats.max-error-routes,
+ * with the routes past it counted as OTHER.
  * @author Mikey Cohen
  * Date: 2/23/12
  * Time: 4:16 PM
  */
 public class ErrorStatsManager {
-    ConcurrentHashMap<String, ConcurrentHashMap<String, ErrorStatsData>> routeMap = new ConcurrentHashMap<String, ConcurrentHashMap<String, ErrorStatsData>>();
+    private static final DynamicIntProperty MAX_ROUTES =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_STATS_MAX_ERROR_ROUTES, 1000);
+
+    final CappedMonitorMap<ConcurrentHashMap<String, ErrorStatsData>> routeMap =
+            new CappedMonitorMap<ConcurrentHashMap<String, ErrorStatsData>>("error_route", "OTHER", MAX_ROUTES) {
+                @Override
+                protected ConcurrentHashMap<String, ErrorStatsData> create(String route) {
+                    return new ConcurrentHashMap<String, ErrorStatsData>();
+                }
+
+                @Override
+                protected void unregister(ConcurrentHashMap<String, ErrorStatsData> statsMap) {
+                    for (ErrorStatsData sd : statsMap.values()) MonitorRegistry.getInstance().unregisterObject(sd);
+                }
+            };
     final static ErrorStatsManager INSTANCE = new ErrorStatsManager();
 
     /**
@@ -54,7 +73,7 @@ public class ErrorStatsManager {
      * @return data structure for holding count information for a route and cause
      */
     public ErrorStatsData getStats(String route, String cause) {
-        Map<String, ErrorStatsData> map = routeMap.get(route);
+        Map<String, ErrorStatsData> map = routeMap.peek(route);
         if (map == null) return null;
         return map.get(cause);
     }
@@ -68,14 +87,11 @@ public class ErrorStatsManager {
         if (route == null) route = RequestContext.getCurrentContext().getRequest().getRequestURI();
         if (route == null) route = "UNKNOWN_ROUTE";
         route = route.replace("/", "_");
-        ConcurrentHashMap<String, ErrorStatsData> statsMap = routeMap.get(route);
-        if (statsMap == null) {
-            statsMap = new ConcurrentHashMap<String, ErrorStatsData>();
-            routeMap.putIfAbsent(route, statsMap);
-        }
+        CappedMonitorMap.Entry<ConcurrentHashMap<String, ErrorStatsData>> entry = routeMap.entry(route);
+        ConcurrentHashMap<String, ErrorStatsData> statsMap = entry.use();
         ErrorStatsData sd = statsMap.get(cause);
         if (sd == null) {
-            sd = new ErrorStatsData(route, cause);
+            sd = new ErrorStatsData(entry.getKey(), cause);
             ErrorStatsData sd1 = statsMap.putIfAbsent(cause, sd);
             if (sd1 != null) {
                 sd = sd1;
@@ -95,12 +111,12 @@ public class ErrorStatsManager {
             ErrorStatsManager sm = new ErrorStatsManager();
             assertNotNull(sm);
             sm.putStats("test", "cause");
-            assertNotNull(sm.routeMap.get("test"));
-            ConcurrentHashMap<String, ErrorStatsData> map = sm.routeMap.get("test");
+            assertNotNull(sm.routeMap.peek("test"));
+            ConcurrentHashMap<String, ErrorStatsData> map = sm.routeMap.peek("test");
             ErrorStatsData sd = map.get("cause");
-            assertEquals(sd.count.get(), 1);
+            assertEquals(sd.getCount(), 1);
             sm.putStats("test", "cause");
-            assertEquals(sd.count.get(), 2);
+            assertEquals(sd.getCount(), 2);
         }
 
 
@@ -112,6 +128,19 @@ public class ErrorStatsManager {
             assertNotNull(sm.getStats("test", "cause"));
         }
 
+        @Test
+        public void countsRoutesPastTheCapAsOther() {
+            ErrorStatsManager sm = new ErrorStatsManager();
+            int max = MAX_ROUTES.get();
+            for (int i = 0; i < max + 10; i++) sm.putStats("/scan/" + i, "cause");
+
+            assertNull(sm.getStats("_scan_" + (max + 5), "cause"));
+            ErrorStatsData other = sm.getStats("OTHER", "cause");
+            assertEquals(10, other.getCount());
+            assertEquals("OTHER_cause", other.getName());
+            assertEquals(10, sm.routeMap.getDropped());
+        }
+
     }
 
 
@@ -24,10 +24,21 @@ import com.netflix.servo.tag.Tag;
 import com.netflix.servo.tag.TagList;
 import com.netflix.zuul.stats.monitoring.MonitorRegistry;
 import com.netflix.zuul.stats.monitoring.NamedCount;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Simple Epic counter with a name and a count.
@@ -42,8 +53,8 @@ public class NamedCountingMonitor implements NamedCount{
     @MonitorTags
     TagList tagList;
 
-    @Monitor(name = "count", type = DataSourceType.COUNTER)
-    private final AtomicLong count = new AtomicLong();
+    // striped, so that request threads counting the same status or protocol don't contend on one cache line
+    private final LongAdder count = new LongAdder();
 
     public NamedCountingMonitor(String name) {
         this.name = name;
@@ -61,10 +72,9 @@ public class NamedCountingMonitor implements NamedCount{
 
     /**
      * increments the counter
-     * @return
      */
-    public long increment() {
-        return this.count.incrementAndGet();
+    public void increment() {
+        this.count.increment();
     }
 
     @Override
@@ -74,10 +84,109 @@ public class NamedCountingMonitor implements NamedCount{
 
     /**
      *
-     * @return the current count
+     * @return the current count, summed over the stripes; increments made while it is read may or may not be in it
      */
+    @Monitor(name = "count", type = DataSourceType.COUNTER)
     public long getCount() {
-        return this.count.get();
+        return this.count.sum();
+    }
+
+    public static class UnitTest {
+
+        private static final Logger LOG = LoggerFactory.getLogger(UnitTest.class);
+
+        // the throughput comparison is timing dependent, so it only runs with -Dzuul.stats.benchmark=true
+        private static final String BENCHMARK_PROPERTY = "zuul.stats.benchmark";
+
+        private static final long RUN_MILLIS = 200;
+
+        /**
+         * increments counter from each of threads for RUN_MILLIS
+         *
+         * @return increments per millisecond
+         */
+        private static double run(final Runnable counter, int threads, final AtomicLong total) throws InterruptedException {
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicBoolean stop = new AtomicBoolean();
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int i = 0; i < threads; i++) {
+                Thread t = new Thread() {
+                    @Override
+                    public void run() {
+                        long n = 0;
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        while (!stop.get()) {
+                            for (int j = 0; j < 1000; j++) counter.run();
+                            n += 1000;
+                        }
+                        total.addAndGet(n);
+                    }
+                };
+                t.start();
+                workers.add(t);
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            Thread.sleep(RUN_MILLIS);
+            stop.set(true);
+            for (Thread t : workers) t.join();
+            return total.get() / (TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin) / 1000.0);
+        }
+
+        @Test
+        public void countsExactlyFromManyThreads() throws Exception {
+            int threads = 2 * Runtime.getRuntime().availableProcessors();
+            final NamedCountingMonitor striped = new NamedCountingMonitor("status_200");
+            AtomicLong increments = new AtomicLong();
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    striped.increment();
+                }
+            }, threads, increments);
+            assertEquals(increments.get(), striped.getCount());
+        }
+
+        /**
+         * Benchmark of the counter against an AtomicLong, every thread incrementing the same counter as the hottest
+         * monitors are, from one thread to twice the processors. The AtomicLong stops scaling as soon as two cores share
+         * its cache line; the striped counter keeps scaling with the cores.
+         */
+        @Test
+        public void scalesWithThreadsWhereAtomicLongDoesNot() throws Exception {
+            Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+            int cores = Runtime.getRuntime().availableProcessors();
+            double atomicThroughput = 0;
+            double stripedThroughput = 0;
+            for (int threads : new int[]{1, Math.max(2, cores), 2 * cores}) {
+                final AtomicLong atomic = new AtomicLong();
+                atomicThroughput = run(new Runnable() {
+                    @Override
+                    public void run() {
+                        atomic.incrementAndGet();
+                    }
+                }, threads, new AtomicLong());
+
+                final NamedCountingMonitor striped = new NamedCountingMonitor("status_200");
+                stripedThroughput = run(new Runnable() {
+                    @Override
+                    public void run() {
+                        striped.increment();
+                    }
+                }, threads, new AtomicLong());
+
+                LOG.debug(String.format("%d threads: AtomicLong %.0f/ms, NamedCountingMonitor %.0f/ms",
+                        threads, atomicThroughput, stripedThroughput));
+            }
+            if (cores >= 4) {
+                assertTrue("striped " + stripedThroughput + "/ms, atomic " + atomicThroughput + "/ms",
+                        stripedThroughput > atomicThroughput);
+            }
+        }
     }
 
 }
@@ -29,7 +29,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 import static org.junit.Assert.*;
@@ -52,8 +52,7 @@ public class RouteStatusCodeMonitor implements NamedCount {
     String route;
     int status_code;
 
-    @Monitor(name = "count", type = DataSourceType.COUNTER)
-    private final AtomicLong count = new AtomicLong();
+    private final LongAdder count = new LongAdder();
 
 
     public RouteStatusCodeMonitor(String route, int status_code) {
@@ -90,15 +89,16 @@ public class RouteStatusCodeMonitor implements NamedCount {
         return route_code;
     }
 
+    @Monitor(name = "count", type = DataSourceType.COUNTER)
     public long getCount() {
-        return count.get();
+        return count.sum();
     }
 
     /**
      * increment the count
      */
     public void update() {
-        count.incrementAndGet();
+        count.increment();
     }
 
     @RunWith(MockitoJUnitRunner.class)
@@ -109,9 +109,9 @@ public class RouteStatusCodeMonitor implements NamedCount {
             RouteStatusCodeMonitor sd = new RouteStatusCodeMonitor("test", 200);
             assertEquals(sd.route, "test");
             sd.update();
-            assertEquals(sd.count.get(), 1);
+            assertEquals(sd.getCount(), 1);
             sd.update();
-            assertEquals(sd.count.get(), 2);
+            assertEquals(sd.getCount(), 2);
         }
 
 
@@ -15,6 +15,9 @@
  */
 package com.netflix.zuul.stats;
 
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
 import com.netflix.zuul.stats.monitoring.MonitorRegistry;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -24,10 +27,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.Map;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Matcher;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.*;
@@ -49,10 +53,12 @@ public class StatsManager {
 
     protected static final Pattern HEX_PATTERN = Pattern.compile("[0-9a-fA-F]+");
 
-    // should match *.amazonaws.com, *.nflxvideo.net, or raw IP addresses.
-    private static final Pattern HOST_PATTERN =
-            Pattern.compile("(?:(.+)\\.amazonaws\\.com)|((?:\\d{1,3}\\.?){4})|(ip-\\d+-\\d+-\\d+-\\d+)|" +
-                    "(?:(.+)\\.nflxvideo\\.net)|(?:(.+)\\.llnwd\\.net)|(?:(.+)\\.nflximg\\.com)");
+    // host keys are memoized up to this many hosts; the host header is the client's, so past it they are computed
+    static final int MAX_HOST_KEYS = 10000;
+
+    // host names ending in these are counted as <class>.<suffix>, e.g. host_EC2.amazonaws.com
+    private static final String[][] HOST_SUFFIXES = {
+            {".amazonaws.com", "EC2"}, {".nflxvideo.net", "CDN"}, {".llnwd.net", "CDN"}, {".nflximg.com", "CDN"}};
 
     private static final String HOST_HEADER = "host";
 
@@ -60,17 +66,54 @@ public class StatsManager {
 
     private static final String X_FORWARDED_PROTO_HEADER = "x-forwarded-proto";
 
-    private final ConcurrentMap<String, ConcurrentHashMap<Integer, RouteStatusCodeMonitor>> routeStatusMap =
-            new ConcurrentHashMap<String, ConcurrentHashMap<Integer, RouteStatusCodeMonitor>>();
+    private static final DynamicIntProperty MAX_HOSTS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_STATS_MAX_HOSTS, 1000);
+    private static final DynamicIntProperty MAX_PROTOCOLS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_STATS_MAX_PROTOCOLS, 16);
+    private static final DynamicIntProperty MAX_ROUTES =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_STATS_MAX_ROUTES, 1000);
+
+    // the route the routes past zuul.stats.max-routes are counted under
+    static final String OTHER_ROUTE = "OTHER";
+
+    // status codes and classes in these bounds are counted in tables indexed by code, the others by name
+    static final int MIN_STATUS = 100;
+    static final int MAX_STATUS = 599;
+
+    // status_100 to status_599 by status code, and status_1xx to status_5xx by status class
+    private final AtomicReferenceArray<NamedCountingMonitor> statusMonitors =
+            new AtomicReferenceArray<NamedCountingMonitor>(MAX_STATUS + 1);
+    private final AtomicReferenceArray<NamedCountingMonitor> statusClassMonitors =
+            new AtomicReferenceArray<NamedCountingMonitor>(MAX_STATUS / 100 + 1);
+
+    // route status tables by the route as collected, and by the route name they are published under; a table aged out
+    // of the latter is dropped from the former too
+    private final ConcurrentMap<String, CappedMonitorMap.Entry<RouteStatusTable>> routeTables =
+            new ConcurrentHashMap<String, CappedMonitorMap.Entry<RouteStatusTable>>();
+    private final CappedMonitorMap<RouteStatusTable> routeStatusMap =
+            new CappedMonitorMap<RouteStatusTable>("route", OTHER_ROUTE, MAX_ROUTES) {
+                @Override
+                protected RouteStatusTable create(String route) {
+                    return new RouteStatusTable(route);
+                }
+
+                @Override
+                protected void unregister(RouteStatusTable table) {
+                    for (Iterator<CappedMonitorMap.Entry<RouteStatusTable>> it = routeTables.values().iterator(); it.hasNext(); ) {
+                        if (it.next().value == table) it.remove();
+                    }
+                    table.unregister();
+                }
+            };
 
     private final ConcurrentMap<String, NamedCountingMonitor> namedStatusMap =
             new ConcurrentHashMap<String, NamedCountingMonitor>();
 
-    private final ConcurrentMap<String, NamedCountingMonitor> hostCounterMap =
-            new ConcurrentHashMap<String, NamedCountingMonitor>();
+    private final CappedMonitorMap<NamedCountingMonitor> hostCounterMap =
+            CappedMonitorMap.ofCounters("host", "host_OTHER", MAX_HOSTS);
 
-    private final ConcurrentMap<String, NamedCountingMonitor> protocolCounterMap =
-            new ConcurrentHashMap<String, NamedCountingMonitor>();
+    private final CappedMonitorMap<NamedCountingMonitor> protocolCounterMap =
+            CappedMonitorMap.ofCounters("protocol", "protocol_OTHER", MAX_PROTOCOLS);
 
     private final ConcurrentMap<String, NamedCountingMonitor> ipVersionCounterMap =
             new ConcurrentHashMap<String, NamedCountingMonitor>();
@@ -88,43 +131,97 @@ public class StatsManager {
      * @return the RouteStatusCodeMonitor for the given route and status code
      */
     public RouteStatusCodeMonitor getRouteStatusCodeMonitor(String route, int statusCode) {
-        Map<Integer, RouteStatusCodeMonitor> map = routeStatusMap.get(route);
-        if (map == null) return null;
-        return map.get(statusCode);
+        RouteStatusTable table = routeStatusMap.peek(route);
+        if (table == null) return null;
+        return table.get(statusCode);
     }
 
 
     private NamedCountingMonitor getHostMonitor(String host) {
-        return this.hostCounterMap.get(hostKey(host));
+        return this.hostCounterMap.peek(hostKey(host));
     }
 
     private NamedCountingMonitor getProtocolMonitor(String proto) {
-        return this.protocolCounterMap.get(protocolKey(proto));
+        return this.protocolCounterMap.peek(protocolKey(proto));
     }
 
+    private static final ConcurrentHashMap<String, String> HOST_KEYS = new ConcurrentHashMap<String, String>();
+
+    /**
+     * @return the key host is counted under, with EC2 and CDN names and raw IP addresses collapsed into one per class
+     */
     private static final String hostKey(String host) {
-        try {
-            final Matcher m = HOST_PATTERN.matcher(host);
-
-            // I know which type of host matched by the number of the group that is non-null
-            // I use a different replacement string per host type to make the Epic stats more clear
-            if (m.matches()) {
-                if (m.group(1) != null) host = host.replace(m.group(1), "EC2");
-                else if (m.group(2) != null) host = host.replace(m.group(2), "IP");
-                else if (m.group(3) != null) host = host.replace(m.group(3), "IP");
-                else if (m.group(4) != null) host = host.replace(m.group(4), "CDN");
-                else if (m.group(5) != null) host = host.replace(m.group(5), "CDN");
-                else if (m.group(6) != null) host = host.replace(m.group(6), "CDN");
+        String key = HOST_KEYS.get(host);
+        if (key != null) return key;
+        key = "host_" + classifyHost(host);
+        if (HOST_KEYS.size() < MAX_HOST_KEYS) HOST_KEYS.putIfAbsent(host, key);
+        return key;
+    }
+
+    /**
+     * collapses *.amazonaws.com into EC2.amazonaws.com, *.nflxvideo.net, *.llnwd.net and *.nflximg.com into
+     * CDN.&lt;suffix&gt;, and IPv4 addresses and ip-a-b-c-d EC2 names into IP
+     */
+    static String classifyHost(String host) {
+        for (String[] suffix : HOST_SUFFIXES) {
+            if (host.length() > suffix[0].length() && host.endsWith(suffix[0])) return suffix[1] + suffix[0];
+        }
+        if (isIPv4Like(host) || isEc2IpName(host)) return "IP";
+        return host;
+    }
+
+    /**
+     * @return true for four groups of up to three digits, each optionally followed by a dot, e.g. 10.2.233.134
+     */
+    static boolean isIPv4Like(String host) {
+        int minGroups = 0;
+        int maxGroups = 0;
+        int run = 0;
+        int n = host.length();
+        for (int i = 0; i < n; i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                run++;
+            } else if (c == '.' && run > 0) {
+                // a run of digits splits into groups of one to three digits
+                minGroups += (run + 2) / 3;
+                maxGroups += run;
+                run = 0;
+            } else {
+                return false;
             }
-        } catch (Exception e) {
-            LOG.error(e.getMessage(), e);
-        } finally {
-            return String.format("host_%s", host);
         }
+        minGroups += (run + 2) / 3;
+        maxGroups += run;
+        return minGroups <= 4 && maxGroups >= 4;
+    }
+
+    /**
+     * @return true for EC2 host names of the form ip-10-86-83-168
+     */
+    static boolean isEc2IpName(String host) {
+        if (!host.startsWith("ip-")) return false;
+        int groups = 0;
+        int run = 0;
+        int n = host.length();
+        for (int i = 3; i < n; i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                run++;
+            } else if (c == '-' && run > 0 && groups < 3) {
+                groups++;
+                run = 0;
+            } else {
+                return false;
+            }
+        }
+        return groups == 3 && run > 0;
     }
 
     private static final String protocolKey(String proto) {
-        return String.format("protocol_%s", proto);
+        if ("https".equals(proto)) return "protocol_https";
+        if ("http".equals(proto)) return "protocol_http";
+        return "protocol_" + proto;
     }
 
 
@@ -161,23 +258,28 @@ public class StatsManager {
                 colonIdx = host.indexOf(":");
             }
             if (colonIdx > -1) host = host.substring(0, colonIdx);
-            incrementNamedCountingMonitor(hostKey(host), this.hostCounterMap);
+            this.hostCounterMap.get(hostKey(host)).increment();
         }
 
         // http vs. https
         String protocol = req.getHeader(X_FORWARDED_PROTO_HEADER);
         if (protocol == null) protocol = req.getScheme();
-        incrementNamedCountingMonitor(protocolKey(protocol), this.protocolCounterMap);
+        this.protocolCounterMap.get(protocolKey(protocol)).increment();
 
 
     }
 
+    /**
+     * @return true if ip has more than one colon, which no IPv4 address, even with a port, has
+     */
     private static final boolean isIPv6(String ip) {
-        return ip.split(":").length == 8;
+        int first = ip.indexOf(':');
+        return first > -1 && ip.indexOf(':', first + 1) > -1;
     }
 
     private static final String extractClientIpFromXForwardedFor(String xForwardedFor) {
-        return xForwardedFor.split(",")[0];
+        int comma = xForwardedFor.indexOf(',');
+        return (comma > -1) ? xForwardedFor.substring(0, comma) : xForwardedFor;
     }
 
     /**
@@ -196,60 +298,105 @@ public class StatsManager {
 
     /**
      * collects and increments counts of status code, route/status code and statuc_code bucket, eg 2xx 3xx 4xx 5xx
+     * <p/>
+     * Counters are looked up by index in tables allocated up front, and the route's table by the route string, so
+     * counting a status seen before allocates nothing. Routes past zuul.stats.max-routes are counted as the OTHER route.
      *
      * @param route
      * @param statusCode
      */
     public void collectRouteStats(String route, int statusCode) {
-
-        // increments 200, 301, 401, 503, etc. status counters
-        final String preciseStatusString = String.format("status_%d", statusCode);
-        NamedCountingMonitor preciseStatus = namedStatusMap.get(preciseStatusString);
-        if (preciseStatus == null) {
-            preciseStatus = new NamedCountingMonitor(preciseStatusString);
-            NamedCountingMonitor found = namedStatusMap.putIfAbsent(preciseStatusString, preciseStatus);
-            if (found != null) preciseStatus = found;
-            else MonitorRegistry.getInstance().registerObject(preciseStatus);
-        }
-        preciseStatus.increment();
-
-        // increments 2xx, 3xx, 4xx, 5xx status counters
-        final String summaryStatusString = String.format("status_%dxx", statusCode / 100);
-        NamedCountingMonitor summaryStatus = namedStatusMap.get(summaryStatusString);
-        if (summaryStatus == null) {
-            summaryStatus = new NamedCountingMonitor(summaryStatusString);
-            NamedCountingMonitor found = namedStatusMap.putIfAbsent(summaryStatusString, summaryStatus);
-            if (found != null) summaryStatus = found;
-            else MonitorRegistry.getInstance().registerObject(summaryStatus);
+        if (statusCode >= MIN_STATUS && statusCode <= MAX_STATUS) {
+            // increments 200, 301, 401, 503, etc. status counters
+            NamedCountingMonitor preciseStatus = statusMonitors.get(statusCode);
+            if (preciseStatus == null) preciseStatus = createStatusMonitor(statusMonitors, statusCode, "status_" + statusCode);
+            preciseStatus.increment();
+
+            // increments 2xx, 3xx, 4xx, 5xx status counters
+            int statusClass = statusCode / 100;
+            NamedCountingMonitor summaryStatus = statusClassMonitors.get(statusClass);
+            if (summaryStatus == null) summaryStatus = createStatusMonitor(statusClassMonitors, statusClass, "status_" + statusClass + "xx");
+            summaryStatus.increment();
+        } else {
+            incrementNamedCountingMonitor(String.format("status_%d", statusCode), namedStatusMap);
+            incrementNamedCountingMonitor(String.format("status_%dxx", statusCode / 100), namedStatusMap);
         }
-        summaryStatus.increment();
 
         // increments route and status counter
         if (route == null) route = "ROUTE_NOT_FOUND";
-        route = route.replace("/", "_");
-        ConcurrentHashMap<Integer, RouteStatusCodeMonitor> statsMap = routeStatusMap.get(route);
-        if (statsMap == null) {
-            statsMap = new ConcurrentHashMap<Integer, RouteStatusCodeMonitor>();
-            routeStatusMap.putIfAbsent(route, statsMap);
-        }
-        RouteStatusCodeMonitor sd = statsMap.get(statusCode);
-        if (sd == null) {
+        CappedMonitorMap.Entry<RouteStatusTable> entry = routeTables.get(route);
+        if (entry == null) {
             //don't register only 404 status codes (these are garbage endpoints)
-            if (statusCode == 404) {
-                if (statsMap.size() == 0) {
-                    return;
-                }
-            }
+            if (statusCode == 404) return;
+            entry = createRouteTable(route);
+        }
+        RouteStatusTable table = entry.use();
+        RouteStatusCodeMonitor sd = table.get(statusCode);
+        if (sd == null) sd = table.create(statusCode);
+        sd.update();
+    }
+
+    private NamedCountingMonitor createStatusMonitor(AtomicReferenceArray<NamedCountingMonitor> table, int index, String name) {
+        NamedCountingMonitor monitor = new NamedCountingMonitor(name);
+        if (table.compareAndSet(index, null, monitor)) {
+            MonitorRegistry.getInstance().registerObject(monitor);
+            return monitor;
+        }
+        return table.get(index);
+    }
+
+    private CappedMonitorMap.Entry<RouteStatusTable> createRouteTable(String route) {
+        String name = route.replace("/", "_");
+        // routes that differ only in slashes and underscores are published, and counted, as one
+        CappedMonitorMap.Entry<RouteStatusTable> entry = routeStatusMap.entry(name);
+        // the routes counted as OTHER aren't remembered, so that they can't grow the map
+        if (!entry.getKey().equals(name)) return entry;
+        CappedMonitorMap.Entry<RouteStatusTable> existing = routeTables.putIfAbsent(route, entry);
+        if (existing != null) return existing;
+        // aged out between the two lookups, after its aliases were dropped
+        if (entry.isEvicted()) routeTables.remove(route, entry);
+        return entry;
+    }
 
-            sd = new RouteStatusCodeMonitor(route, statusCode);
-            RouteStatusCodeMonitor sd1 = statsMap.putIfAbsent(statusCode, sd);
-            if (sd1 != null) {
-                sd = sd1;
+    /**
+     * the status counters of one route, indexed by status code
+     */
+    static class RouteStatusTable {
+        final String route;
+        private final AtomicReferenceArray<RouteStatusCodeMonitor> monitors =
+                new AtomicReferenceArray<RouteStatusCodeMonitor>(MAX_STATUS + 1);
+        private final ConcurrentHashMap<Integer, RouteStatusCodeMonitor> others =
+                new ConcurrentHashMap<Integer, RouteStatusCodeMonitor>();
+
+        RouteStatusTable(String route) {
+            this.route = route;
+        }
+
+        RouteStatusCodeMonitor get(int statusCode) {
+            if (statusCode >= MIN_STATUS && statusCode <= MAX_STATUS) return monitors.get(statusCode);
+            return others.get(statusCode);
+        }
+
+        RouteStatusCodeMonitor create(int statusCode) {
+            RouteStatusCodeMonitor monitor = new RouteStatusCodeMonitor(route, statusCode);
+            RouteStatusCodeMonitor existing;
+            if (statusCode >= MIN_STATUS && statusCode <= MAX_STATUS) {
+                existing = monitors.compareAndSet(statusCode, null, monitor) ? null : monitors.get(statusCode);
             } else {
-                MonitorRegistry.getInstance().registerObject(sd);
+                existing = others.putIfAbsent(statusCode, monitor);
             }
+            if (existing != null) return existing;
+            MonitorRegistry.getInstance().registerObject(monitor);
+            return monitor;
+        }
+
+        void unregister() {
+            for (int i = MIN_STATUS; i <= MAX_STATUS; i++) {
+                RouteStatusCodeMonitor monitor = monitors.get(i);
+                if (monitor != null) MonitorRegistry.getInstance().unregisterObject(monitor);
+            }
+            for (RouteStatusCodeMonitor monitor : others.values()) MonitorRegistry.getInstance().unregisterObject(monitor);
         }
-        sd.update();
     }
 
 
@@ -267,7 +414,7 @@ public class StatsManager {
             // 1st request
             sm.collectRouteStats(route, status);
 
-            ConcurrentHashMap<Integer, RouteStatusCodeMonitor> routeStatusMap = sm.routeStatusMap.get("test");
+            RouteStatusTable routeStatusMap = sm.routeStatusMap.peek("test");
             assertNotNull(routeStatusMap);
 
 
@@ -279,6 +426,104 @@ public class StatsManager {
 
         }
 
+        @Test
+        public void countsStatusesAndClassesByIndex() {
+            StatsManager sm = new StatsManager();
+            sm.collectRouteStats("api/v1", 200);
+            sm.collectRouteStats("api/v1", 204);
+            sm.collectRouteStats("api/v1", 200);
+
+            assertEquals(2, sm.statusMonitors.get(200).getCount());
+            assertEquals("status_200", sm.statusMonitors.get(200).getName());
+            assertEquals(3, sm.statusClassMonitors.get(2).getCount());
+            assertEquals("status_2xx", sm.statusClassMonitors.get(2).getName());
+            assertEquals(2, sm.getRouteStatusCodeMonitor("api_v1", 200).getCount());
+            assertEquals("api_v1_204", sm.getRouteStatusCodeMonitor("api_v1", 204).getName());
+        }
+
+        @Test
+        public void countsStatusesOutsideTheTableByName() {
+            StatsManager sm = new StatsManager();
+            sm.collectRouteStats("test", 999);
+            sm.collectRouteStats(null, 42);
+
+            assertEquals(1, sm.namedStatusMap.get("status_999").getCount());
+            assertEquals(1, sm.namedStatusMap.get("status_9xx").getCount());
+            assertEquals(1, sm.namedStatusMap.get("status_0xx").getCount());
+            assertEquals(1, sm.getRouteStatusCodeMonitor("test", 999).getCount());
+            assertEquals(1, sm.getRouteStatusCodeMonitor("ROUTE_NOT_FOUND", 42).getCount());
+        }
+
+        @Test
+        public void doesNotTrackRoutesThatOnlyGot404s() {
+            StatsManager sm = new StatsManager();
+            sm.collectRouteStats("garbage", 404);
+            assertNull(sm.routeStatusMap.peek("garbage"));
+            assertEquals(1, sm.statusMonitors.get(404).getCount());
+
+            sm.collectRouteStats("garbage", 200);
+            sm.collectRouteStats("garbage", 404);
+            assertEquals(1, sm.getRouteStatusCodeMonitor("garbage", 404).getCount());
+        }
+
+        @Test
+        public void countingAKnownStatusAllocatesNothing() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) return;
+
+            StatsManager sm = new StatsManager();
+            for (int i = 0; i < 20000; i++) sm.collectRouteStats("api", 200 + i % 2);
+            long id = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < 10000; i++) sm.collectRouteStats("api", 200 + i % 2);
+            long allocated = threads.getThreadAllocatedBytes(id) - before;
+            // the old per request formatting took hundreds of bytes a call
+            assertTrue(allocated + " bytes", allocated < 10000);
+        }
+
+        @Test
+        public void countsRoutesPastTheCapAsOther() {
+            StatsManager sm = new StatsManager();
+            int max = MAX_ROUTES.get();
+            for (int i = 0; i < max + 10; i++) sm.collectRouteStats("route" + i, 200);
+
+            assertNull(sm.getRouteStatusCodeMonitor("route" + (max + 5), 200));
+            assertEquals(10, sm.getRouteStatusCodeMonitor(OTHER_ROUTE, 200).getCount());
+            assertEquals(10, sm.routeStatusMap.getDropped());
+            assertEquals(max, sm.routeTables.size());
+        }
+
+        @Test
+        public void agingOutARouteForgetsItsTable() {
+            StatsManager sm = new StatsManager();
+            sm.collectRouteStats("api/v1", 200);
+            sm.collectRouteStats("api_v1", 200);
+            assertEquals(2, sm.routeTables.size());
+
+            sm.routeStatusMap.sweep(System.currentTimeMillis() + 1000, 0);
+            assertNull(sm.getRouteStatusCodeMonitor("api_v1", 200));
+            assertTrue(sm.routeTables.isEmpty());
+            sm.collectRouteStats("api/v1", 200);
+            assertEquals(1, sm.getRouteStatusCodeMonitor("api_v1", 200).getCount());
+        }
+
+        @Test
+        public void countsHostsPastTheCapAsOther() {
+            StatsManager sm = new StatsManager();
+            HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+            when(req.getRemoteAddr()).thenReturn("127.0.0.1");
+            int max = MAX_HOSTS.get();
+            for (int i = 0; i < max + 10; i++) {
+                when(req.getHeader(HOST_HEADER)).thenReturn("scan-" + i + ".example.com");
+                sm.collectRequestStats(req);
+            }
+            assertEquals(max + 1, sm.hostCounterMap.size());
+            assertEquals(10, sm.hostCounterMap.peek("host_OTHER").getCount());
+            assertEquals(10, sm.hostCounterMap.getDropped());
+        }
+
         @Test
         public void testGetRouteStatusCodeMonitor() {
             StatsManager sm = StatsManager.getManager();
@@ -321,6 +566,41 @@ public class StatsManager {
             assertEquals("host_CDN.nflximg.com", StatsManager.hostKey("cdn-0.nflximg.com"));
         }
 
+        @Test
+        public void classifiesHostsAsTheRegexDid() {
+            // the pattern hostKey used to match, with the group numbers its replacements went by
+            Pattern regex = Pattern.compile("(?:(.+)\\.amazonaws\\.com)|((?:\\d{1,3}\\.?){4})|(ip-\\d+-\\d+-\\d+-\\d+)|" +
+                    "(?:(.+)\\.nflxvideo\\.net)|(?:(.+)\\.llnwd\\.net)|(?:(.+)\\.nflximg\\.com)");
+            String[] classes = {null, "EC2", "IP", "IP", "CDN", "CDN", "CDN"};
+            String[] hosts = {"ec2-174-129-179-89.compute-1.amazonaws.com", "12.345.6.789", "10.2.233.134", "1.2.3.4.",
+                    "1234", "123456789012", "1234567890123", "1.2.3", "1..2.3.4", ".1.2.3.4", "1.2.3.4.5", "ip-10-86-83-168",
+                    "ip-1-2-3", "ip-1-2-3-4-5", "ip-1--2-3-4", "ip-1-2-3-4.nflxvideo.net", "002.ie.llnw.nflxvideo.net",
+                    "netflix-635.vo.llnwd.net", "cdn-0.nflximg.com", ".amazonaws.com", "api.netflix.com", "localhost",
+                    "2607:fb10:2:232:72f3:95ff:fe03:a6e7", ""};
+            for (String host : hosts) {
+                java.util.regex.Matcher m = regex.matcher(host);
+                String expected = host;
+                if (m.matches()) {
+                    for (int group = 1; group <= 6; group++) {
+                        if (m.group(group) == null) continue;
+                        // the old replace() of the match stood for swapping the host's name part for its class
+                        expected = (group == 2 || group == 3) ? classes[group] : classes[group] + host.substring(m.group(group).length());
+                        break;
+                    }
+                }
+                assertEquals(host, expected, classifyHost(host));
+            }
+        }
+
+        @Test
+        public void memoizesBoundedHostKeys() {
+            assertEquals("host_EC2.amazonaws.com", hostKey("i-1.compute-1.amazonaws.com"));
+            assertTrue(HOST_KEYS.containsKey("i-1.compute-1.amazonaws.com"));
+            for (int i = 0; i < MAX_HOST_KEYS + 10; i++) hostKey("host-" + i + ".example.com");
+            assertTrue(HOST_KEYS.size() <= MAX_HOST_KEYS);
+            assertEquals("host_other.example.com", hostKey("other.example.com"));
+        }
+
         @Test
         public void extractsClientIpFromXForwardedFor() {
             final String ip1 = "hi";
@@ -336,6 +616,8 @@ public class StatsManager {
             assertTrue(StatsManager.isIPv6("2607:fb10:2:232:72f3:95ff:fe03:a6e7"));
             assertFalse(StatsManager.isIPv6("127.0.0.1"));
             assertFalse(StatsManager.isIPv6("10.2.233.134"));
+            assertTrue(StatsManager.isIPv6("::1"));
+            assertFalse(StatsManager.isIPv6("10.2.233.134:8080"));
         }
 
     }
@@ -27,4 +27,11 @@ public interface Monitor {
      * @param monitorObj
      */
     void register(NamedCount monitorObj);
+
+    /**
+     * Implement this to remove a Counter added with register() from the Registry; does nothing by default
+     * @param monitorObj
+     */
+    default void unregister(NamedCount monitorObj) {
+    }
 }
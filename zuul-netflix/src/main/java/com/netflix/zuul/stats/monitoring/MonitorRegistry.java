@@ -46,4 +46,8 @@ public class MonitorRegistry {
     public void registerObject(NamedCount monitorObj) {
       if(publisher != null) publisher.register(monitorObj);
     }
+
+    public void unregisterObject(NamedCount monitorObj) {
+      if(publisher != null) publisher.unregister(monitorObj);
+    }
 }
@@ -16,7 +16,6 @@
 package filters.post
 
 import com.netflix.config.DynamicBooleanProperty
-import com.netflix.config.DynamicIntProperty
 import com.netflix.config.DynamicPropertyFactory
 import com.netflix.util.Pair
 import com.netflix.zuul.ZuulFilter
@@ -24,13 +23,15 @@ import com.netflix.zuul.constants.ZuulConstants
 import com.netflix.zuul.constants.ZuulHeaders
 import com.netflix.zuul.context.Debug
 import com.netflix.zuul.context.RequestContext
+import com.netflix.zuul.stream.ContentEncoder
+import com.netflix.zuul.stream.FlushPolicy
+import com.netflix.zuul.stream.PooledGzipOutputStream
+import com.netflix.zuul.stream.ResponseStreamWriter
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 import javax.servlet.http.HttpServletResponse
 import java.nio.charset.Charset
-import java.util.zip.GZIPInputStream
-import java.util.zip.ZipException
 
 class SendResponseFilter extends ZuulFilter {
     private static final Logger LOG = LoggerFactory.getLogger(SendResponseFilter.class);
@@ -38,9 +39,6 @@ class SendResponseFilter extends ZuulFilter {
     static DynamicBooleanProperty INCLUDE_DEBUG_HEADER =
             DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_INCLUDE_DEBUG_HEADER, false);
 
-    static DynamicIntProperty INITIAL_STREAM_BUFFER_SIZE =
-            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_INITIAL_STREAM_BUFFER_SIZE, 1024);
-
     static DynamicBooleanProperty SET_CONTENT_LENGTH = DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_SET_CONTENT_LENGTH, false);
 
     @Override
@@ -76,38 +74,48 @@ class SendResponseFilter extends ZuulFilter {
 
         OutputStream outStream = servletResponse.getOutputStream();
         InputStream is = null
+        InputStream inputStream = null
+        PooledGzipOutputStream encoder = null
         try {
             if (RequestContext.getCurrentContext().responseBody != null) {
                 String body = RequestContext.getCurrentContext().responseBody
-                writeResponse(new ByteArrayInputStream(body.getBytes(Charset.forName("UTF-8"))), outStream)
+                byte[] bytes = body.getBytes(Charset.forName("UTF-8"))
+                writeResponse(new ByteArrayInputStream(bytes), outStream, (long) bytes.length)
                 return;
             }
 
-            boolean isGzipRequested = false
-            final String requestEncoding = context.getRequest().getHeader(ZuulHeaders.ACCEPT_ENCODING)
-            if (requestEncoding != null && requestEncoding.equals("gzip"))
-                isGzipRequested = true;
-
             is = context.getResponseDataStream();
-            InputStream inputStream = is
             if (is != null) {
                 if (context.sendZuulResponse()) {
-                    if (context.getResponseGZipped() && !isGzipRequested)
-                        try {
-                            inputStream = new GZIPInputStream(is);
-                        } catch (ZipException e) {
-                            LOG.error("gzip expected but not received assuming unencoded response" + RequestContext.getCurrentContext().getRequest().getRequestURL().toString())
+                    Long contentLength = context.getOriginContentLength()
+                    switch (contentEncodingAction()) {
+                        // origin response is gzipped and client has not requested gzip, decompress stream before sending to client
+                        case ContentEncoder.Action.DECOMPRESS:
+                            inputStream = ContentEncoder.decode(is)
+                            if (ContentEncoder.isDecoding(inputStream)) {
+                                contentLength = null
+                            } else {
+                                LOG.error("gzip expected but not received assuming unencoded response" + context.getRequest().getRequestURL().toString())
+                            }
+                            break
+                        // client accepts gzip and origin response is uncompressed but compressible
+                        case ContentEncoder.Action.COMPRESS:
+                            servletResponse.setHeader(ZuulHeaders.CONTENT_ENCODING, "gzip")
+                            encoder = ContentEncoder.encode(outStream)
+                            inputStream = is
+                            break
+                        default:
+                            if (context.getResponseGZipped()) servletResponse.setHeader(ZuulHeaders.CONTENT_ENCODING, "gzip")
                             inputStream = is
-                        }
-                    else if (context.getResponseGZipped() && isGzipRequested) {
-                        servletResponse.setHeader(ZuulHeaders.CONTENT_ENCODING, "gzip")
                     }
-                    writeResponse(inputStream, outStream)
+                    writeResponse(inputStream, encoder ?: outStream, contentLength)
                 }
             }
 
         } finally {
             try {
+                encoder?.finish()
+                inputStream?.close();
                 is?.close();
                 outStream.flush()
                 outStream.close()
@@ -116,22 +124,15 @@ class SendResponseFilter extends ZuulFilter {
         }
     }
 
-    def writeResponse(InputStream zin, OutputStream out) {
-        byte[] bytes = new byte[INITIAL_STREAM_BUFFER_SIZE.get()];
-        int bytesRead = -1;
-        while ((bytesRead = zin.read(bytes)) != -1) {
-
-            try {
-                out.write(bytes, 0, bytesRead);
-                out.flush();
-            } catch (IOException e) {
-                e.printStackTrace()
-            }
+    def writeResponse(InputStream zin, OutputStream out, Long contentLength) {
+        RequestContext context = RequestContext.getCurrentContext()
+        FlushPolicy policy = context.getResponseFlushPolicy()
+        if (policy == null) policy = FlushPolicy.forResponse(context.getResponse()?.getContentType())
 
-            // doubles buffer size if previous read filled it
-            if (bytesRead == bytes.length) {
-                bytes = new byte[bytes.length * 2]
-            }
+        try {
+            ResponseStreamWriter.getInstance().write(zin, out, contentLength, policy)
+        } catch (IOException e) {
+            LOG.warn("error writing response to client", e)
         }
     }
 
@@ -162,13 +163,28 @@ class SendResponseFilter extends ZuulFilter {
         }
 
         RequestContext ctx = RequestContext.getCurrentContext()
-        Integer contentLength = ctx.getOriginContentLength()
+        Long contentLength = ctx.getOriginContentLength()
 
-        // only inserts Content-Length if origin provides it and origin response is not gzipped
+        // only inserts Content-Length if origin provides it and the body is sent as received, not gzipped or compressed here
         if (SET_CONTENT_LENGTH.get()) {
-            if (contentLength != null && !ctx.getResponseGZipped())
-                servletResponse.setContentLength(contentLength)
+            if (contentLength != null && !ctx.getResponseGZipped() && contentEncodingAction() != ContentEncoder.Action.COMPRESS)
+                servletResponse.setContentLength(contentLength.intValue())
+        }
+
+        // the body sent depends on the client's Accept-Encoding, so caches must key on it
+        if (ctx.getResponseDataStream() != null &&
+                ContentEncoder.variesByAcceptEncoding(ctx.getResponseGZipped(), servletResponse.getContentType(), contentLength)) {
+            boolean hasVary = zuulResponseHeaders?.any { Pair<String, String> it ->
+                it.first().equalsIgnoreCase("Vary") && it.second()?.toLowerCase()?.contains(ZuulHeaders.ACCEPT_ENCODING)
+            }
+            if (!hasVary) servletResponse.addHeader("Vary", "Accept-Encoding")
         }
     }
 
+    ContentEncoder.Action contentEncodingAction() {
+        RequestContext context = RequestContext.getCurrentContext()
+        return ContentEncoder.select(context.getResponseGZipped(), context.isGzipRequested(),
+                context.getResponse().getContentType(), context.getOriginContentLength())
+    }
+
 }
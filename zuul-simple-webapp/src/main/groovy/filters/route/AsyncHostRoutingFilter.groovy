@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package filters.route
+
+import com.netflix.zuul.async.AsyncOriginClient
+import com.netflix.zuul.context.RequestContext
+import org.apache.http.HttpEntity
+import org.apache.http.HttpEntityEnclosingRequest
+import org.apache.http.HttpHost
+import org.apache.http.HttpRequest
+import org.apache.http.HttpResponse
+import org.apache.http.client.HttpClient
+
+/**
+ * Routes to the route host like SimpleHostRoutingFilter, but through the non-blocking AsyncOriginClient. The request
+ * body is streamed to the origin and the response is handed to the "post" filters as soon as its head arrives, with
+ * the body streaming from the origin while the send filter writes it out.
+ *
+ * Used instead of SimpleHostRoutingFilter when zuul.host.async.enabled is true.
+ */
+class AsyncHostRoutingFilter extends SimpleHostRoutingFilter {
+
+    @Override
+    boolean shouldFilter() {
+        return ASYNC_ENABLED.get() && RequestContext.getCurrentContext().getRouteHost() != null && RequestContext.getCurrentContext().sendZuulResponse()
+    }
+
+    @Override
+    HttpResponse forwardRequest(HttpClient httpclient, HttpHost httpHost, HttpRequest httpRequest) {
+        InputStream body = null
+        long contentLength = -1
+        if (httpRequest instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) httpRequest).getEntity()
+            if (entity != null) {
+                body = entity.getContent()
+                contentLength = entity.getContentLength()
+            }
+        }
+        return AsyncOriginClient.getInstance().execute(httpHost, httpRequest, body, contentLength)
+    }
+}
@@ -15,21 +15,38 @@
  */
 package filters.route
 
+import com.netflix.config.DynamicBooleanProperty
 import com.netflix.config.DynamicIntProperty
 import com.netflix.config.DynamicPropertyFactory
 import com.netflix.zuul.ZuulFilter
 import com.netflix.zuul.constants.ZuulConstants
 import com.netflix.zuul.context.Debug
 import com.netflix.zuul.context.RequestContext
+import com.netflix.zuul.context.RequestDeadline
+import com.netflix.zuul.origin.ConnectionPoolMaintenance
+import com.netflix.zuul.origin.ConnectionPrewarmer
+import com.netflix.zuul.origin.DnsCache
+import com.netflix.zuul.origin.HostGroups
+import com.netflix.zuul.origin.OutlierDetector
+import com.netflix.zuul.origin.ReplayableBody
+import com.netflix.zuul.origin.RetryPolicy
+import com.netflix.zuul.origin.SpeculativeConnector
+import com.netflix.zuul.pool.AdaptiveConnectionManager
+import com.netflix.zuul.pool.HostConnectionPool
+import com.netflix.zuul.pool.HostConnectionPrewarmer
 import com.netflix.zuul.util.HTTPRequestUtils
 import org.apache.http.*
 import org.apache.http.client.HttpClient
 import org.apache.http.client.RedirectStrategy
+import org.apache.http.client.config.RequestConfig
 import org.apache.http.client.methods.HttpPost
 import org.apache.http.client.methods.HttpPut
 import org.apache.http.client.methods.HttpUriRequest
+import org.apache.http.client.protocol.HttpClientContext
 import org.apache.http.config.Registry
 import org.apache.http.config.RegistryBuilder
+import org.apache.http.conn.ConnectTimeoutException
+import org.apache.http.conn.DnsResolver
 import org.apache.http.conn.HttpClientConnectionManager
 import org.apache.http.conn.socket.ConnectionSocketFactory
 import org.apache.http.conn.socket.PlainConnectionSocketFactory
@@ -39,9 +56,9 @@ import org.apache.http.entity.InputStreamEntity
 import org.apache.http.impl.client.CloseableHttpClient
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler
 import org.apache.http.impl.client.HttpClientBuilder
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager
 import org.apache.http.message.BasicHeader
 import org.apache.http.message.BasicHttpRequest
+import org.apache.http.util.EntityUtils
 import org.apache.http.protocol.HttpContext
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
@@ -55,12 +72,6 @@ class SimpleHostRoutingFilter extends ZuulFilter {
     public static final String CONTENT_ENCODING = "Content-Encoding";
 
     private static final Logger LOG = LoggerFactory.getLogger(SimpleHostRoutingFilter.class);
-    private static final Runnable CLIENTLOADER = new Runnable() {
-        @Override
-        void run() {
-            loadClient();
-        }
-    }
 
     private static final DynamicIntProperty SOCKET_TIMEOUT =
             DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_SOCKET_TIMEOUT_MILLIS, 10000)
@@ -68,26 +79,36 @@ class SimpleHostRoutingFilter extends ZuulFilter {
     private static final DynamicIntProperty CONNECTION_TIMEOUT =
             DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_CONNECT_TIMEOUT_MILLIS, 2000)
 
-    private static final AtomicReference<CloseableHttpClient> CLIENT = new AtomicReference<CloseableHttpClient>(newClient());
+    private static final DynamicIntProperty MAX_CONNECTIONS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_MAX_CONNECTIONS,
+                    Integer.parseInt(System.getProperty("zuul.max.host.connections", "200")))
 
-    private static final Timer CONNECTION_MANAGER_TIMER = new Timer(true);
+    // when true, AsyncHostRoutingFilter routes instead
+    static final DynamicBooleanProperty ASYNC_ENABLED =
+            DynamicPropertyFactory.getInstance().getBooleanProperty(ZuulConstants.ZUUL_HOST_ASYNC_ENABLED, false)
+
+    private static final AtomicReference<AdaptiveConnectionManager> CONNECTION_MANAGER = new AtomicReference<AdaptiveConnectionManager>();
+
+    private static final AtomicReference<CloseableHttpClient> CLIENT = new AtomicReference<CloseableHttpClient>(newClient());
 
-    // cleans expired connections at an interval
     static {
-        SOCKET_TIMEOUT.addCallback(CLIENTLOADER)
-        CONNECTION_TIMEOUT.addCallback(CLIENTLOADER)
-        CONNECTION_MANAGER_TIMER.schedule(new TimerTask() {
+        // timeouts are read for every request; the pool limit is changed in place, keeping the pooled connections
+        MAX_CONNECTIONS.addCallback(new Runnable() {
             @Override
             void run() {
-                try {
-                    final HttpClient hc = CLIENT.get();
-                    if (hc == null) return;
-                    hc.getConnectionManager().closeExpiredConnections();
-                } catch (Throwable t) {
-                    LOG.error("error closing expired connections", t);
-                }
+                final AdaptiveConnectionManager cm = CONNECTION_MANAGER.get();
+                if (cm != null) cm.setMaxTotal(MAX_CONNECTIONS.get())
             }
-        }, 30000, 5000)
+        })
+        // expired and idle connections are closed, and the per-origin pools resized from the traffic they saw, on the
+        // scheduler shared by all pools
+        ConnectionPoolMaintenance.getInstance().register("host", new HostConnectionPool(CONNECTION_MANAGER.get()))
+        // the filter is first loaded while StartServer initializes, so the pool is warm before traffic arrives
+        if (ConnectionPrewarmer.isEnabled()) {
+            new HostConnectionPrewarmer(CONNECTION_MANAGER.get()).prewarm(ConnectionPrewarmer.getConfiguredHosts())
+        }
+        // pre filters setting the route host connect ahead through this pool when zuul.speculative-connect.enabled
+        SpeculativeConnector.setPrewarmer(new HostConnectionPrewarmer(CONNECTION_MANAGER.get()))
     }
 
     public SimpleHostRoutingFilter() {
@@ -102,9 +123,14 @@ class SimpleHostRoutingFilter extends ZuulFilter {
                 .register("https", new SSLConnectionSocketFactory(sslContext))
                 .build();
 
-        HttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
-        cm.setMaxTotal(Integer.parseInt(System.getProperty("zuul.max.host.connections", "200")));
-        cm.setDefaultMaxPerRoute(Integer.parseInt(System.getProperty("zuul.max.host.connections", "20")));
+        DnsResolver dnsResolver = new DnsResolver() {
+            @Override
+            InetAddress[] resolve(String host) throws UnknownHostException {
+                return DnsCache.getInstance().resolve(host)
+            }
+        }
+        AdaptiveConnectionManager cm = new AdaptiveConnectionManager(socketFactoryRegistry, dnsResolver, MAX_CONNECTIONS.get(), true);
+        CONNECTION_MANAGER.set(cm)
         return cm;
     }
 
@@ -119,25 +145,7 @@ class SimpleHostRoutingFilter extends ZuulFilter {
     }
 
     boolean shouldFilter() {
-        return RequestContext.getCurrentContext().getRouteHost() != null && RequestContext.getCurrentContext().sendZuulResponse()
-    }
-
-    private static final void loadClient() {
-        final CloseableHttpClient oldClient = CLIENT.get();
-        CLIENT.set(newClient())
-        if (oldClient != null) {
-            CONNECTION_MANAGER_TIMER.schedule(new TimerTask() {
-                @Override
-                void run() {
-                    try {
-                        oldClient.close()
-                    } catch (Throwable t) {
-                        LOG.error("error shutting down old connection manager", t);
-                    }
-                }
-            }, 30000);
-        }
-
+        return !ASYNC_ENABLED.get() && RequestContext.getCurrentContext().getRouteHost() != null && RequestContext.getCurrentContext().sendZuulResponse()
     }
 
     private static final CloseableHttpClient newClient() {
@@ -219,6 +227,53 @@ class SimpleHostRoutingFilter extends ZuulFilter {
 
         requestEntity = debug(verb, uri, request, headers, requestEntity)
         HttpHost httpHost = getHttpHost()
+        if (RetryPolicy.isEnabled()) {
+            return forwardWithRetries(httpclient, httpHost, verb, uri, request, headers, requestEntity)
+        }
+
+        try {
+            return send(httpclient, httpHost, newHttpRequest(verb, uri, request, headers, requestEntity))
+        } finally {
+            //httpclient.close();
+        }
+    }
+
+    /**
+     * sends the request again while it failed in a way RetryPolicy allows retrying, replaying its body from a bounded
+     * buffer; retries go to the same host over a new or other pooled connection, or to another member of its host group
+     * once the host was marked down
+     */
+    HttpResponse forwardWithRetries(HttpClient httpclient, HttpHost httpHost, String verb, String uri, HttpServletRequest request, Header[] headers, InputStream requestEntity) {
+        RetryPolicy policy = RetryPolicy.forRoute(httpHost.toHostString())
+        policy.onRequest()
+        ReplayableBody body = RetryPolicy.replayable(requestEntity)
+        int attempts = 0
+        while (true) {
+            if (attempts++ > 0) httpHost = getHttpHost()
+            HttpResponse response
+            try {
+                response = send(httpclient, httpHost, newHttpRequest(verb, uri, request, headers, body?.newStream()))
+            } catch (IOException e) {
+                if (!RetryPolicy.isRetriableFailure(verb, reachedOrigin(e)) || !policy.canRetry(attempts, body)) throw e
+                Debug.addRequestDebug("ZUUL :: retrying after ${e}")
+                continue
+            }
+            if (!RetryPolicy.isRetriableStatus(verb, response.getStatusLine().statusCode) || !policy.canRetry(attempts, body)) {
+                return response
+            }
+            Debug.addRequestDebug("ZUUL :: retrying after ${response.getStatusLine()}")
+            EntityUtils.consumeQuietly(response.entity)
+        }
+    }
+
+    /**
+     * @return false if the failure shows the request never got to the origin
+     */
+    static boolean reachedOrigin(IOException e) {
+        return !(e instanceof ConnectException || e instanceof ConnectTimeoutException || e instanceof UnknownHostException)
+    }
+
+    HttpRequest newHttpRequest(String verb, String uri, HttpServletRequest request, Header[] headers, InputStream requestEntity) {
         HttpRequest httpRequest;
 
         switch (verb) {
@@ -235,17 +290,52 @@ class SimpleHostRoutingFilter extends ZuulFilter {
             default:
                 httpRequest = new BasicHttpRequest(verb, uri + getQueryString())
         }
+        httpRequest.setHeaders(headers)
+        return httpRequest
+    }
 
+    /**
+     * sends the request, reporting the outcome to the outlier detector of host routes, and a failed connect to the host
+     * groups so that no other request waits on the host
+     */
+    HttpResponse send(HttpClient httpclient, HttpHost httpHost, HttpRequest httpRequest) {
         try {
-            httpRequest.setHeaders(headers)
-            return forwardRequest(httpclient, httpHost, httpRequest)
+            return sendAndRecord(httpclient, httpHost, httpRequest)
+        } catch (IOException e) {
+            if (!reachedOrigin(e)) HostGroups.getInstance().markDown(httpHost.schemeName, httpHost.hostName, httpHost.port)
+            throw e
+        }
+    }
+
+    private HttpResponse sendAndRecord(HttpClient httpclient, HttpHost httpHost, HttpRequest httpRequest) {
+        if (!OutlierDetector.isEnabled()) return forwardRequest(httpclient, httpHost, httpRequest)
+        long start = System.currentTimeMillis()
+        HttpResponse response = null
+        try {
+            response = forwardRequest(httpclient, httpHost, httpRequest)
+            return response
         } finally {
-            //httpclient.close();
+            OutlierDetector.forHost(httpHost.schemeName, httpHost.hostName, httpHost.port).record(httpHost.toHostString(),
+                    response == null || OutlierDetector.isFailure(response.getStatusLine().statusCode),
+                    System.currentTimeMillis() - start)
         }
     }
 
     HttpResponse forwardRequest(HttpClient httpclient, HttpHost httpHost, HttpRequest httpRequest) {
-        return httpclient.execute(httpHost, httpRequest);
+        return httpclient.execute(httpHost, httpRequest, newRequestContext());
+    }
+
+    /**
+     * builds the per request configuration from the current timeouts, so changes apply to pooled connections
+     * without rebuilding the client; the timeouts are cut to what is left of the request's deadline
+     */
+    static HttpClientContext newRequestContext() {
+        HttpClientContext context = HttpClientContext.create()
+        context.setRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(RequestDeadline.capTimeout(CONNECTION_TIMEOUT.get()))
+                .setSocketTimeout(RequestDeadline.capTimeout(SOCKET_TIMEOUT.get()))
+                .build())
+        return context
     }
 
     String getQueryString() {
@@ -277,9 +367,12 @@ class SimpleHostRoutingFilter extends ZuulFilter {
         return "?" + rebuiltQueryString
     }
 
+    /**
+     * @return the route host, or another member of its host group if it is down
+     */
     HttpHost getHttpHost() {
         HttpHost httpHost
-        URL host = RequestContext.getCurrentContext().getRouteHost()
+        URL host = HostGroups.getInstance().resolve(RequestContext.getCurrentContext().getRouteHost())
 
         httpHost = new HttpHost(host.getHost(), host.getPort(), host.getProtocol())
 
@@ -334,6 +427,12 @@ class SimpleHostRoutingFilter extends ZuulFilter {
             headers.add(new BasicHeader(it, zuulRequestHeaders[it]))
         }
 
+        String budget = RequestDeadline.getHeaderValue()
+        if (budget != null) {
+            headers.removeAll { BasicHeader he -> he.name.equalsIgnoreCase(RequestDeadline.getHeaderName()) }
+            headers.add(new BasicHeader(RequestDeadline.getHeaderName(), budget))
+        }
+
         if (RequestContext.getCurrentContext().responseGZipped) {
             headers.add(new BasicHeader("accept-encoding", "deflate, gzip"))
         }
@@ -16,6 +16,10 @@
 
 package com.netflix.zuul;
 
+import com.netflix.zuul.cache.RequestCoalescingFilter;
+import com.netflix.zuul.cache.RequestCoalescingPublishFilter;
+import com.netflix.zuul.cache.ResponseCacheLookupFilter;
+import com.netflix.zuul.cache.ResponseCacheStoreFilter;
 import com.netflix.zuul.context.RequestContext;
 import com.netflix.zuul.filters.FilterRegistry;
 import com.netflix.zuul.groovy.GroovyCompiler;
@@ -117,6 +121,12 @@ public class StartServer implements ServletContextListener {
                 return null;
             }
         });
+
+        // response cache filters; they only run when zuul.cache.enabled is true
+        r.put("responseCacheLookup", new ResponseCacheLookupFilter());
+        r.put("responseCacheStore", new ResponseCacheStoreFilter());
+        r.put("requestCoalescing", new RequestCoalescingFilter());
+        r.put("requestCoalescingPublish", new RequestCoalescingPublishFilter());
     }
 
 }
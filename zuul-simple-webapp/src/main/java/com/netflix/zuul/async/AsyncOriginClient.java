@@ -0,0 +1,410 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.async;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.zuul.constants.ZuulConstants;
+import com.netflix.zuul.context.RequestDeadline;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Non-blocking HTTP client for host routing. A fixed number of I/O reactor threads (zuul.host.async.io-threads) drive
+ * all origin connections, so the number of threads does not grow with the number of requests in flight.
+ * <p/>
+ * Request and response bodies stream through bounded buffers of zuul.host.async.buffer-size bytes with backpressure in
+ * both directions (see StreamingRequestProducer and StreamingResponseConsumer). A request completes in two steps: the
+ * response head, handed to the caller or a callback as soon as it arrives, and the body, read from the entity stream.
+ * <p/>
+ * The shared client follows changes of the timeouts (zuul.host.connect-timeout-millis, zuul.host.socket-timeout-millis)
+ * for the requests sent after them, and of the pool limits (zuul.host.max-connections in total,
+ * zuul.host.pool.max-connections-per-route per origin) in place. The I/O threads and buffer size are fixed at startup.
+ */
+public class AsyncOriginClient {
+
+    private static final DynamicIntProperty CONNECT_TIMEOUT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_CONNECT_TIMEOUT_MILLIS, 2000);
+    private static final DynamicIntProperty SOCKET_TIMEOUT =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_SOCKET_TIMEOUT_MILLIS, 10000);
+    private static final DynamicIntProperty MAX_CONNECTIONS =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_MAX_CONNECTIONS,
+                    Integer.parseInt(System.getProperty("zuul.max.host.connections", "200")));
+    private static final DynamicIntProperty MAX_CONNECTIONS_PER_ROUTE =
+            DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_POOL_MAX_PER_ROUTE, 20);
+
+    private static AsyncOriginClient INSTANCE;
+
+    private final CloseableHttpAsyncClient client;
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final int bufferSize;
+    private volatile RequestConfig requestConfig;
+
+    /**
+     * @param ioThreads           number of I/O reactor threads
+     * @param connectTimeout      in milliseconds
+     * @param socketTimeout       in milliseconds
+     * @param maxConnections      connections in total
+     * @param maxConnectionsPerRoute
+     * @param bufferSize          size of the body buffers in bytes
+     * @throws IOException if the I/O reactor can't be started
+     */
+    public AsyncOriginClient(int ioThreads, int connectTimeout, int socketTimeout, int maxConnections,
+                             int maxConnectionsPerRoute, int bufferSize) throws IOException {
+        this.bufferSize = bufferSize;
+        this.connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectTimeout)
+                .setSoTimeout(socketTimeout)
+                .build()));
+        setTimeouts(connectTimeout, socketTimeout);
+        setMaxConnections(maxConnections, maxConnectionsPerRoute);
+        this.client = HttpAsyncClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setRedirectStrategy(new RedirectStrategy() {
+                    @Override
+                    public boolean isRedirected(HttpRequest request, HttpResponse response, HttpContext context) throws ProtocolException {
+                        return false;
+                    }
+
+                    @Override
+                    public HttpUriRequest getRedirect(HttpRequest request, HttpResponse response, HttpContext context) throws ProtocolException {
+                        return null;
+                    }
+                })
+                .disableCookieManagement()
+                .build();
+        client.start();
+    }
+
+    /**
+     * @return the shared client, configured by the zuul.host properties
+     */
+    public static synchronized AsyncOriginClient getInstance() throws IOException {
+        if (INSTANCE == null) {
+            DynamicPropertyFactory properties = DynamicPropertyFactory.getInstance();
+            final AsyncOriginClient client = new AsyncOriginClient(
+                    properties.getIntProperty(ZuulConstants.ZUUL_HOST_ASYNC_IO_THREADS, Runtime.getRuntime().availableProcessors()).get(),
+                    CONNECT_TIMEOUT.get(),
+                    SOCKET_TIMEOUT.get(),
+                    MAX_CONNECTIONS.get(),
+                    MAX_CONNECTIONS_PER_ROUTE.get(),
+                    properties.getIntProperty(ZuulConstants.ZUUL_HOST_ASYNC_BUFFER_SIZE, 32 * 1024).get());
+            Runnable timeouts = new Runnable() {
+                @Override
+                public void run() {
+                    client.setTimeouts(CONNECT_TIMEOUT.get(), SOCKET_TIMEOUT.get());
+                }
+            };
+            CONNECT_TIMEOUT.addCallback(timeouts);
+            SOCKET_TIMEOUT.addCallback(timeouts);
+            Runnable limits = new Runnable() {
+                @Override
+                public void run() {
+                    client.setMaxConnections(MAX_CONNECTIONS.get(), MAX_CONNECTIONS_PER_ROUTE.get());
+                }
+            };
+            MAX_CONNECTIONS.addCallback(limits);
+            MAX_CONNECTIONS_PER_ROUTE.addCallback(limits);
+            INSTANCE = client;
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * sets the timeouts of the requests sent from now on, in milliseconds
+     */
+    public void setTimeouts(int connectTimeout, int socketTimeout) {
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+    }
+
+    /**
+     * resizes the connection pool in place, keeping the pooled connections
+     */
+    public void setMaxConnections(int maxConnections, int maxConnectionsPerRoute) {
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(Math.min(maxConnectionsPerRoute, maxConnections));
+    }
+
+    /**
+     * starts a request without a body
+     *
+     * @param onHead called on an I/O reactor thread once the response head has arrived, may be null
+     * @return completes with the response once its head has arrived
+     */
+    public Future<HttpResponse> send(HttpHost host, HttpRequest request, FutureCallback<HttpResponse> onHead) {
+        return send(HttpAsyncMethods.create(host, request), onHead);
+    }
+
+    private Future<HttpResponse> send(HttpAsyncRequestProducer producer, FutureCallback<HttpResponse> onHead) {
+        StreamingResponseConsumer consumer = new StreamingResponseConsumer(bufferSize, onHead);
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(requestConfig);
+        consumer.bind(client.execute(producer, consumer, context, null));
+        return consumer.head();
+    }
+
+    /**
+     * sends a request, streaming body to the origin if there is one, and waits for the response head. The calling
+     * thread is only used to copy the request body and to wait for the head; the response body streams from the
+     * returned response's entity.
+     *
+     * @param body          request body, or null
+     * @param contentLength length of body, or -1 if unknown
+     * @return the origin response
+     * @throws IOException if the request fails or no response head arrives within the connect and socket timeouts,
+     *                     or before the request's deadline
+     */
+    public HttpResponse execute(HttpHost host, HttpRequest request, InputStream body, long contentLength) throws IOException {
+        Future<HttpResponse> head;
+        if (body != null && request instanceof HttpEntityEnclosingRequest) {
+            StreamingRequestProducer producer = new StreamingRequestProducer(host, (HttpEntityEnclosingRequest) request, contentLength, bufferSize);
+            head = send(producer, null);
+            try {
+                producer.pump(body);
+            } catch (IOException e) {
+                // the origin may answer before it has read the whole body
+                if (!head.isDone()) {
+                    head.cancel(true);
+                    throw e;
+                }
+            }
+        } else {
+            head = send(host, request, null);
+        }
+
+        RequestConfig config = requestConfig;
+        long headTimeoutMillis = (long) config.getConnectTimeout() + config.getSocketTimeout();
+        long timeoutMillis = RequestDeadline.capTimeout((int) Math.min(Integer.MAX_VALUE, headTimeoutMillis));
+        try {
+            return head.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            head.cancel(true);
+            throw new SocketTimeoutException("no response from " + host + " within " + timeoutMillis + "ms");
+        } catch (InterruptedException e) {
+            head.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public void shutdown() throws IOException {
+        client.close();
+    }
+
+    public static class UnitTest {
+
+        /**
+         * origin answering every request after a fixed latency without holding a thread while it waits. GETs get a
+         * body of the size given in the query string, other requests get their body echoed back.
+         */
+        static class StubOrigin {
+            final HttpServer server;
+            final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+            StubOrigin(final long latencyMillis) throws IOException {
+                server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+                server.createContext("/", new HttpHandler() {
+                    @Override
+                    public void handle(final HttpExchange exchange) throws IOException {
+                        final byte[] body;
+                        if ("GET".equals(exchange.getRequestMethod())) {
+                            String query = exchange.getRequestURI().getQuery();
+                            body = new byte[(query == null) ? 2 : Integer.parseInt(query)];
+                            for (int i = 0; i < body.length; i++) body[i] = (byte) ('a' + i % 26);
+                        } else {
+                            body = readAll(exchange.getRequestBody());
+                        }
+                        scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    exchange.sendResponseHeaders(200, body.length);
+                                    OutputStream out = exchange.getResponseBody();
+                                    out.write(body);
+                                    out.close();
+                                } catch (IOException e) {
+                                    exchange.close();
+                                }
+                            }
+                        }, latencyMillis, TimeUnit.MILLISECONDS);
+                    }
+                });
+                server.start();
+            }
+
+            HttpHost host() {
+                return new HttpHost("127.0.0.1", server.getAddress().getPort(), "http");
+            }
+
+            void stop() {
+                server.stop(0);
+                scheduler.shutdownNow();
+            }
+        }
+
+        static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[1000];
+            int n;
+            while ((n = in.read(b)) != -1) out.write(b, 0, n);
+            in.close();
+            return out.toByteArray();
+        }
+
+        StubOrigin origin;
+        AsyncOriginClient client;
+
+        @Before
+        public void before() throws IOException {
+            origin = new StubOrigin(200);
+            client = new AsyncOriginClient(2, 1000, 5000, 1000, 1000, 4096);
+        }
+
+        @After
+        public void after() throws IOException {
+            client.shutdown();
+            origin.stop();
+        }
+
+        @Test
+        public void streamsLargeBodiesThroughSmallBuffers() throws IOException {
+            HttpResponse response = client.execute(origin.host(), new BasicHttpRequest("GET", "/?100000"), null, -1);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            byte[] body = readAll(response.getEntity().getContent());
+            assertEquals(100000, body.length);
+            assertEquals('a' + 99999 % 26, body[99999]);
+
+            byte[] sent = new byte[50000];
+            for (int i = 0; i < sent.length; i++) sent[i] = (byte) i;
+            response = client.execute(origin.host(), new BasicHttpEntityEnclosingRequest("POST", "/"), new ByteArrayInputStream(sent), -1);
+            assertArrayEquals(sent, readAll(response.getEntity().getContent()));
+        }
+
+        @Test
+        public void appliesNewTimeoutsToLaterRequests() throws IOException {
+            StubOrigin slow = new StubOrigin(4000);
+            try {
+                // the I/O reactor checks socket timeouts about once a second
+                client.setTimeouts(5000, 100);
+                long start = System.currentTimeMillis();
+                try {
+                    client.execute(slow.host(), new BasicHttpRequest("GET", "/"), null, -1);
+                    fail();
+                } catch (SocketTimeoutException expected) {
+                }
+                assertTrue(System.currentTimeMillis() - start < 3000);
+            } finally {
+                slow.stop();
+            }
+
+            client.setTimeouts(1000, 5000);
+            HttpResponse response = client.execute(origin.host(), new BasicHttpRequest("GET", "/"), null, -1);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            readAll(response.getEntity().getContent());
+        }
+
+        @Test
+        public void threadCountStaysFlatAsConcurrencyGrows() throws Exception {
+            // warm up so the I/O reactor and the stub's threads exist before measuring
+            readAll(client.execute(origin.host(), new BasicHttpRequest("GET", "/"), null, -1).getEntity().getContent());
+            int baseline = Thread.activeCount();
+
+            int peakAt10 = peakThreads(10);
+            int peakAt200 = peakThreads(200);
+            assertTrue("threads grew from " + peakAt10 + " to " + peakAt200, peakAt200 <= peakAt10 + 1);
+            assertTrue("threads grew from " + baseline + " to " + peakAt200, peakAt200 <= baseline + 2);
+        }
+
+        private int peakThreads(int concurrency) throws Exception {
+            final AtomicInteger heads = new AtomicInteger();
+            Future[] pending = new Future[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                pending[i] = client.send(origin.host(), new BasicHttpRequest("GET", "/"), new FutureCallback<HttpResponse>() {
+                    public void completed(HttpResponse result) {
+                        heads.incrementAndGet();
+                    }
+
+                    public void failed(Exception ex) {
+                    }
+
+                    public void cancelled() {
+                    }
+                });
+            }
+            int peak = 0;
+            while (heads.get() < concurrency) {
+                peak = Math.max(peak, Thread.activeCount());
+                Thread.sleep(5);
+            }
+            for (Future f : pending) {
+                readAll(((HttpResponse) f.get()).getEntity().getContent());
+            }
+            return peak;
+        }
+    }
+}
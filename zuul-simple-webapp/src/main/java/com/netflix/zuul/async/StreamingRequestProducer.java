@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.async;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedOutputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams a request body to the origin through a bounded buffer. The calling thread copies the body into the buffer
+ * with pump(), blocking while it is full; the I/O reactor writes it to the connection as the origin takes it and stops
+ * asking for output while the buffer is empty.
+ */
+public class StreamingRequestProducer implements HttpAsyncRequestProducer {
+
+    private final HttpHost target;
+    private final HttpEntityEnclosingRequest request;
+    private final SharedOutputBuffer buffer;
+    private final int bufferSize;
+
+    /**
+     * @param target
+     * @param request
+     * @param contentLength length of the body, or -1 to send it chunked
+     * @param bufferSize    capacity of the body buffer in bytes
+     */
+    public StreamingRequestProducer(HttpHost target, HttpEntityEnclosingRequest request, long contentLength, int bufferSize) {
+        this.target = target;
+        this.request = request;
+        this.bufferSize = bufferSize;
+        this.buffer = new SharedOutputBuffer(bufferSize, HeapByteBufferAllocator.INSTANCE);
+
+        // the entity only describes the body for the request interceptors; the bytes come from the buffer
+        BasicHttpEntity entity = new BasicHttpEntity();
+        if (contentLength >= 0) {
+            entity.setContentLength(contentLength);
+        } else {
+            entity.setChunked(true);
+        }
+        request.setEntity(entity);
+    }
+
+    /**
+     * copies the body into the buffer until the end of in
+     *
+     * @throws IOException if in fails, or the exchange was aborted
+     */
+    public void pump(InputStream in) throws IOException {
+        byte[] chunk = new byte[Math.min(bufferSize, 8192)];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, n);
+        }
+        buffer.writeCompleted();
+    }
+
+    @Override
+    public HttpHost getTarget() {
+        return target;
+    }
+
+    @Override
+    public HttpRequest generateRequest() {
+        return request;
+    }
+
+    @Override
+    public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+        buffer.produceContent(encoder, ioctrl);
+    }
+
+    @Override
+    public void requestCompleted(HttpContext context) {
+    }
+
+    @Override
+    public void failed(Exception ex) {
+        buffer.shutdown();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public void resetRequest() {
+        buffer.shutdown();
+    }
+
+    @Override
+    public void close() {
+        buffer.shutdown();
+    }
+}
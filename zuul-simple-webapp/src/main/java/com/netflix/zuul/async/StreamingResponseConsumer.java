@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.async;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Future;
+
+/**
+ * Hands the origin response over as soon as its head has arrived, and streams the body to whoever reads the entity.
+ * <p/>
+ * The I/O reactor fills a bounded buffer with the body. When the buffer is full, reading from the origin connection is
+ * suspended until the reader has taken bytes out, so a slow client slows down the origin instead of the body piling
+ * up in memory. Closing the entity stream before the end aborts the exchange rather than draining the body.
+ */
+public class StreamingResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+    private final SharedInputBuffer buffer;
+    private final BasicFuture<HttpResponse> head;
+    private volatile HttpResponse response;
+    private volatile Future<HttpResponse> exchange;
+    private volatile boolean completed;
+
+    /**
+     * @param bufferSize  capacity of the body buffer in bytes
+     * @param onHead      called on an I/O reactor thread once the response head has arrived, may be null
+     */
+    public StreamingResponseConsumer(int bufferSize, FutureCallback<HttpResponse> onHead) {
+        this.buffer = new SharedInputBuffer(bufferSize, HeapByteBufferAllocator.INSTANCE);
+        this.head = new BasicFuture<HttpResponse>(onHead);
+    }
+
+    /**
+     * @return completes with the response once its head has arrived; its entity streams the body
+     */
+    public Future<HttpResponse> head() {
+        return head;
+    }
+
+    /**
+     * @param exchange the future returned when the request was executed, cancelled if the body stream is closed early
+     */
+    void bind(Future<HttpResponse> exchange) {
+        this.exchange = exchange;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            BasicHttpEntity body = new BasicHttpEntity();
+            body.setContentLength(entity.getContentLength());
+            body.setContentType(entity.getContentType());
+            body.setContentEncoding(entity.getContentEncoding());
+            body.setChunked(entity.isChunked());
+            body.setContent(new BodyInputStream());
+            response.setEntity(body);
+        }
+        this.response = response;
+        head.completed(response);
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        buffer.consumeContent(decoder, ioctrl);
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) {
+        completed = true;
+        return response;
+    }
+
+    @Override
+    protected void releaseResources() {
+        if (!head.isDone()) {
+            Exception e = getException();
+            head.failed((e != null) ? e : new IOException("exchange aborted before a response was received"));
+        }
+        // wakes up a reader waiting for bytes that won't come; a completed body stays readable
+        if (!completed) buffer.shutdown();
+    }
+
+    private class BodyInputStream extends InputStream {
+
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            return buffer.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return buffer.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return buffer.available();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (!completed) {
+                buffer.shutdown();
+                Future<HttpResponse> exchange = StreamingResponseConsumer.this.exchange;
+                if (exchange != null) exchange.cancel(true);
+            }
+        }
+    }
+}
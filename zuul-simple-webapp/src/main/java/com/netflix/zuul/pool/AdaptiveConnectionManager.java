@@ -0,0 +1,376 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.pool;
+
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.annotations.Monitor;
+import com.netflix.servo.annotations.MonitorTags;
+import com.netflix.servo.monitor.Monitors;
+import com.netflix.servo.tag.BasicTag;
+import com.netflix.servo.tag.BasicTagList;
+import com.netflix.servo.tag.TagList;
+import com.netflix.zuul.constants.ZuulConstants;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Connection manager that sizes the pool of each origin to its traffic instead of one static per-route limit.
+ * <p/>
+ * For each route it records how often connections are leased, how long they are held, how long leases wait and, when
+ * they had to queue for a connection, how many were queued. adapt(), called periodically, applies Little's law: the connections an origin needs on average are its
+ * lease rate times the mean hold time. The limit is set to twice that to absorb bursts, grown by at least half when
+ * leases had to wait, and shrunk by at most a quarter per call. It stays within the route's bounds:
+ * zuul.host.pool.[host:port].min-connections and .max-connections, defaulting to
+ * zuul.host.pool.min-connections-per-route and zuul.host.pool.max-connections-per-route.
+ * <p/>
+ * Per-route lease wait, pending leases, saturation and limit are published as servo gauges tagged with the origin.
+ */
+public class AdaptiveConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveConnectionManager.class);
+
+    private static final double HEADROOM = 2.0;
+
+    // a lease taking longer than this waited for a connection to be released
+    private static final long QUEUED_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ConcurrentHashMap<HttpRoute, RouteStats> routes = new ConcurrentHashMap<HttpRoute, RouteStats>();
+    private final ConcurrentHashMap<HttpClientConnection, Lease> leases = new ConcurrentHashMap<HttpClientConnection, Lease>();
+    private final boolean publishMetrics;
+    private volatile long lastAdapted = System.nanoTime();
+
+    /**
+     * @param registry       socket factories by scheme
+     * @param maxTotal       connections across all origins
+     * @param publishMetrics true to register per-route servo gauges
+     */
+    public AdaptiveConnectionManager(Registry<ConnectionSocketFactory> registry, int maxTotal, boolean publishMetrics) {
+        this(registry, null, maxTotal, publishMetrics);
+    }
+
+    /**
+     * @param dnsResolver resolves origin host names, or null for the system resolver
+     */
+    public AdaptiveConnectionManager(Registry<ConnectionSocketFactory> registry, DnsResolver dnsResolver, int maxTotal,
+                                     boolean publishMetrics) {
+        super(registry, dnsResolver);
+        this.publishMetrics = publishMetrics;
+        setMaxTotal(maxTotal);
+        setDefaultMaxPerRoute(defaultMin());
+    }
+
+    /**
+     * lease statistics of one route over the current adapt() interval
+     */
+    public class RouteStats {
+        final HttpRoute route;
+
+        @MonitorTags
+        final TagList tags;
+
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger pendingPeak = new AtomicInteger();
+        final AtomicLong leaseCount = new AtomicLong();
+        final AtomicLong leaseWaitNanos = new AtomicLong();
+        final AtomicLong releaseCount = new AtomicLong();
+        final AtomicLong holdNanos = new AtomicLong();
+        volatile double lastLeaseWaitMillis;
+
+        RouteStats(HttpRoute route) {
+            this.route = route;
+            this.tags = BasicTagList.of(new BasicTag("origin", key(route.getTargetHost())));
+        }
+
+        void leaseStarted() {
+            pending.incrementAndGet();
+        }
+
+        void leaseEnded(long waitNanos, boolean leased) {
+            pending.decrementAndGet();
+            if (waitNanos >= QUEUED_NANOS) {
+                // a slow lease from a pool at its limit was queued; remember how many were queued with it
+                PoolStats stats = getStats(route);
+                if (stats.getLeased() >= stats.getMax()) {
+                    int queued = stats.getPending() + 1;
+                    int peak;
+                    while (queued > (peak = pendingPeak.get()) && !pendingPeak.compareAndSet(peak, queued)) ;
+                }
+            }
+            if (!leased) return;
+            leaseCount.incrementAndGet();
+            leaseWaitNanos.addAndGet(waitNanos);
+        }
+
+        void released(long heldNanos) {
+            releaseCount.incrementAndGet();
+            holdNanos.addAndGet(heldNanos);
+        }
+
+        @Monitor(name = "leaseWaitMillis", type = DataSourceType.GAUGE)
+        public double getLeaseWaitMillis() {
+            return lastLeaseWaitMillis;
+        }
+
+        @Monitor(name = "pendingLeases", type = DataSourceType.GAUGE)
+        public int getPendingLeases() {
+            return pending.get();
+        }
+
+        @Monitor(name = "saturation", type = DataSourceType.GAUGE)
+        public double getSaturation() {
+            int max = getMaxPerRoute(route);
+            return (max == 0) ? 0 : (double) getStats(route).getLeased() / max;
+        }
+
+        @Monitor(name = "maxConnections", type = DataSourceType.GAUGE)
+        public int getMaxConnections() {
+            return getMaxPerRoute(route);
+        }
+    }
+
+    private static final class Lease {
+        final RouteStats stats;
+        final long leasedAt;
+
+        Lease(RouteStats stats, long leasedAt) {
+            this.stats = stats;
+            this.leasedAt = leasedAt;
+        }
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final RouteStats stats = statsFor(route);
+        final ConnectionRequest request = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                stats.leaseStarted();
+                HttpClientConnection connection = null;
+                try {
+                    connection = request.get(timeout, unit);
+                    return connection;
+                } finally {
+                    long now = System.nanoTime();
+                    stats.leaseEnded(now - start, connection != null);
+                    if (connection != null) leases.put(connection, new Lease(stats, now));
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection connection, Object state, long keepalive, TimeUnit unit) {
+        Lease lease = leases.remove(connection);
+        if (lease != null) lease.stats.released(System.nanoTime() - lease.leasedAt);
+        super.releaseConnection(connection, state, keepalive, unit);
+    }
+
+    private RouteStats statsFor(HttpRoute route) {
+        RouteStats stats = routes.get(route);
+        if (stats != null) return stats;
+        stats = new RouteStats(route);
+        RouteStats existing = routes.putIfAbsent(route, stats);
+        if (existing != null) return existing;
+        setMaxPerRoute(route, clamp(getMaxPerRoute(route), minFor(route), maxFor(route)));
+        if (publishMetrics) {
+            try {
+                Monitors.registerObject("zuul.hostPool." + key(route.getTargetHost()), stats);
+            } catch (Throwable t) {
+                LOG.warn("unable to register pool monitors for " + route, t);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * resizes the pool of every route from the leases since the previous call
+     */
+    public void adapt() {
+        long now = System.nanoTime();
+        double intervalSeconds = Math.max(1e-3, (now - lastAdapted) / 1e9);
+        lastAdapted = now;
+
+        for (RouteStats stats : routes.values()) {
+            long leased = stats.leaseCount.getAndSet(0);
+            long waitNanos = stats.leaseWaitNanos.getAndSet(0);
+            long released = stats.releaseCount.getAndSet(0);
+            long heldNanos = stats.holdNanos.getAndSet(0);
+            int pendingPeak = stats.pendingPeak.getAndSet(0);
+
+            stats.lastLeaseWaitMillis = (leased == 0) ? 0 : waitNanos / 1e6 / leased;
+            double arrivalsPerSecond = leased / intervalSeconds;
+            double meanHoldSeconds = (released == 0) ? 0 : heldNanos / 1e9 / released;
+
+            int current = getMaxPerRoute(stats.route);
+            int target = targetSize(arrivalsPerSecond, meanHoldSeconds, pendingPeak, current,
+                    minFor(stats.route), maxFor(stats.route));
+            if (target != current) {
+                setMaxPerRoute(stats.route, target);
+                LOG.debug("resized pool of {} from {} to {}", stats.route, current, target);
+            }
+        }
+    }
+
+    /**
+     * @param arrivalsPerSecond leases per second
+     * @param meanHoldSeconds   mean time a connection is held
+     * @param pendingPeak       most leases queued at once, 0 if none had to wait
+     * @param current           current limit
+     * @return the new limit for a route
+     */
+    static int targetSize(double arrivalsPerSecond, double meanHoldSeconds, int pendingPeak, int current, int min, int max) {
+        int target = (int) Math.ceil(arrivalsPerSecond * meanHoldSeconds * HEADROOM);
+        if (pendingPeak > 0) {
+            target = Math.max(target, current + Math.max(pendingPeak, current / 2));
+        } else if (target < current) {
+            target = Math.max(target, current - Math.max(1, current / 4));
+        }
+        return clamp(target, min, max);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static String key(HttpHost host) {
+        return host.getHostName() + ":" + host.getPort();
+    }
+
+    private int minFor(HttpRoute route) {
+        return DynamicPropertyFactory.getInstance().getIntProperty(
+                "zuul.host.pool." + key(route.getTargetHost()) + ".min-connections", defaultMin()).get();
+    }
+
+    private int maxFor(HttpRoute route) {
+        int max = DynamicPropertyFactory.getInstance().getIntProperty(
+                "zuul.host.pool." + key(route.getTargetHost()) + ".max-connections",
+                DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_POOL_MAX_PER_ROUTE, getMaxTotal()).get()).get();
+        return Math.min(max, getMaxTotal());
+    }
+
+    private static int defaultMin() {
+        return DynamicPropertyFactory.getInstance().getIntProperty(ZuulConstants.ZUUL_HOST_POOL_MIN_PER_ROUTE,
+                Integer.parseInt(System.getProperty("zuul.max.host.connections", "20"))).get();
+    }
+
+    public RouteStats getRouteStats(HttpRoute route) {
+        return routes.get(route);
+    }
+
+    public static class UnitTest {
+
+        AdaptiveConnectionManager manager;
+        HttpRoute route = new HttpRoute(new HttpHost("origin", 80));
+
+        @Before
+        public void before() {
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.INSTANCE)
+                    .build();
+            manager = new AdaptiveConnectionManager(registry, 200, false);
+        }
+
+        @After
+        public void after() {
+            manager.shutdown();
+        }
+
+        @Test
+        public void sizesByLittlesLaw() {
+            // 500 req/s held 100ms each keep 50 connections busy on average
+            assertEquals(100, targetSize(500, 0.1, 0, 20, 4, 200));
+            assertEquals(200, targetSize(5000, 0.1, 0, 20, 4, 200));
+            assertEquals(4, targetSize(0, 0, 0, 4, 4, 200));
+        }
+
+        @Test
+        public void growsFastWhenSaturatedAndShrinksSlowly() {
+            assertEquals(30, targetSize(10, 0.1, 3, 20, 4, 200));
+            assertEquals(45, targetSize(10, 0.1, 30, 15, 4, 200));
+            assertEquals(75, targetSize(0, 0, 0, 100, 4, 200));
+        }
+
+        @Test
+        public void recordsQueuedLeases() throws Exception {
+            final HttpClientConnection held = manager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+            manager.setMaxPerRoute(route, 1);
+            new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ignored) {
+                    }
+                    manager.releaseConnection(held, null, 0, TimeUnit.MILLISECONDS);
+                }
+            }.start();
+            HttpClientConnection queued = manager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+            manager.releaseConnection(queued, null, 0, TimeUnit.MILLISECONDS);
+
+            assertEquals(1, manager.getRouteStats(route).pendingPeak.get());
+            manager.adapt();
+            assertEquals(20, manager.getMaxPerRoute(route));
+            assertEquals(0, manager.getRouteStats(route).pendingPeak.get());
+        }
+
+        @Test
+        public void recordsLeasesAndResizes() throws Exception {
+            for (int i = 0; i < 3; i++) {
+                HttpClientConnection connection = manager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+                manager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            }
+            RouteStats stats = manager.getRouteStats(route);
+            assertEquals(3, stats.leaseCount.get());
+            assertEquals(3, stats.releaseCount.get());
+            assertEquals(0, stats.getPendingLeases());
+
+            assertEquals(20, manager.getMaxPerRoute(route));
+            manager.adapt();
+            assertEquals(20, manager.getMaxPerRoute(route));
+            assertEquals(0, stats.leaseCount.get());
+        }
+    }
+}
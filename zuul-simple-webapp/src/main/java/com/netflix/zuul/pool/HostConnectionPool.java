@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.pool;
+
+import com.netflix.zuul.origin.ConnectionPoolMaintenance;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * An HttpClient connection manager as maintained by ConnectionPoolMaintenance. An AdaptiveConnectionManager is resized
+ * as part of its maintenance.
+ */
+public class HostConnectionPool extends ConnectionPoolMaintenance.Pool {
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    public HostConnectionPool(PoolingHttpClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    protected void closeExpired() {
+        connectionManager.closeExpiredConnections();
+    }
+
+    @Override
+    protected void closeIdle(long idleMillis) {
+        connectionManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void maintain() {
+        if (connectionManager instanceof AdaptiveConnectionManager) {
+            ((AdaptiveConnectionManager) connectionManager).adapt();
+        }
+    }
+
+    @Override
+    public int getLeased() {
+        return connectionManager.getTotalStats().getLeased();
+    }
+
+    @Override
+    public int getAvailable() {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+
+    @Override
+    public int getPending() {
+        return connectionManager.getTotalStats().getPending();
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void closesIdleConnections() throws Exception {
+            ServerSocket server = new ServerSocket(0);
+            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.INSTANCE).build());
+            try {
+                URL origin = new URL("http://localhost:" + server.getLocalPort());
+                assertEquals(2, new HostConnectionPrewarmer(cm).prewarm(Collections.singletonList(origin), 2, 5000));
+                HostConnectionPool pool = new HostConnectionPool(cm);
+                assertEquals(2, pool.getAvailable());
+                assertEquals(0, pool.getLeased());
+
+                pool.closeIdle(60000);
+                assertEquals(2, pool.getAvailable());
+                Thread.sleep(20);
+                pool.closeIdle(10);
+                assertEquals(0, pool.getAvailable());
+            } finally {
+                cm.shutdown();
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Netflix, Inc.
+ *
+ *      Licensed under the Apache License, Version 2.0 (the "License");
+ *      you may not use this file except in compliance with the License.
+ *      You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *      Unless required by applicable law or agreed to in writing, software
+ *      distributed under the License is distributed on an "AS IS" BASIS,
+ *      WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *      See the License for the specific language governing permissions and
+ *      limitations under the License.
+ */
+package com.netflix.zuul.pool;
+
+import com.netflix.zuul.origin.ConnectionPrewarmer;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prewarms the connections of an HttpClient connection manager. Each connection is leased for the origin's route,
+ * connected (including the TLS handshake for https origins), and released into the pool as a reusable idle connection.
+ */
+public class HostConnectionPrewarmer extends ConnectionPrewarmer<HttpClientConnection> {
+
+    private final HttpClientConnectionManager connectionManager;
+
+    public HostConnectionPrewarmer(HttpClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    static HttpRoute routeFor(URL origin) {
+        int port = (origin.getPort() > 0) ? origin.getPort() : origin.getDefaultPort();
+        HttpHost host = new HttpHost(origin.getHost(), port, origin.getProtocol());
+        return new HttpRoute(host, null, "https".equalsIgnoreCase(origin.getProtocol()));
+    }
+
+    @Override
+    protected boolean hasIdleConnection(URL origin) {
+        if (!(connectionManager instanceof PoolingHttpClientConnectionManager)) return false;
+        return ((PoolingHttpClientConnectionManager) connectionManager).getStats(routeFor(origin)).getAvailable() > 0;
+    }
+
+    @Override
+    protected HttpClientConnection open(URL origin, long timeoutMillis) throws Exception {
+        long start = System.currentTimeMillis();
+        HttpRoute route = routeFor(origin);
+        ConnectionRequest request = connectionManager.requestConnection(route, null);
+        HttpClientConnection connection = request.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (connection.isOpen()) return connection;
+        try {
+            int connectTimeout = (int) Math.max(1, timeoutMillis - (System.currentTimeMillis() - start));
+            HttpClientContext context = HttpClientContext.create();
+            connectionManager.connect(connection, route, connectTimeout, context);
+            connectionManager.routeComplete(connection, route, context);
+            return connection;
+        } catch (IOException e) {
+            connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void release(HttpClientConnection connection) {
+        // no expiry; closeExpiredConnections and the stale check take care of connections the origin closes
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public static class UnitTest {
+
+        @Test
+        public void leavesIdleConnectionsInThePool() throws Exception {
+            final ServerSocket server = new ServerSocket(0);
+            final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+            Thread acceptor = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) accepted.add(server.accept());
+                    } catch (IOException ignored) {
+                    }
+                }
+            };
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.INSTANCE).build());
+            cm.setDefaultMaxPerRoute(5);
+            try {
+                URL origin = new URL("http://localhost:" + server.getLocalPort());
+                HostConnectionPrewarmer prewarmer = new HostConnectionPrewarmer(cm);
+
+                assertEquals(3, prewarmer.prewarm(Collections.singletonList(origin), 3, 5000));
+
+                PoolStats stats = cm.getStats(routeFor(origin));
+                assertEquals(3, stats.getAvailable());
+                assertEquals(0, stats.getLeased());
+                for (int i = 0; i < 50 && accepted.size() < 3; i++) Thread.sleep(10);
+                assertEquals(3, accepted.size());
+            } finally {
+                cm.shutdown();
+                server.close();
+            }
+        }
+
+        @Test
+        public void connectsOnlyWhenNoConnectionIsIdle() throws Exception {
+            final ServerSocket server = new ServerSocket(0);
+            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.INSTANCE).build());
+            try {
+                URL origin = new URL("http://localhost:" + server.getLocalPort());
+                HostConnectionPrewarmer prewarmer = new HostConnectionPrewarmer(cm);
+
+                assertTrue(prewarmer.connect(origin, 2000));
+                assertEquals(1, cm.getStats(routeFor(origin)).getAvailable());
+                assertFalse(prewarmer.connect(origin, 2000));
+                assertEquals(1, cm.getStats(routeFor(origin)).getAvailable());
+            } finally {
+                cm.shutdown();
+                server.close();
+            }
+        }
+
+        @Test
+        public void returnsNothingForAnUnreachableOrigin() throws Exception {
+            ServerSocket closed = new ServerSocket(0);
+            int port = closed.getLocalPort();
+            closed.close();
+
+            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.INSTANCE).build());
+            try {
+                URL origin = new URL("http://localhost:" + port);
+                assertEquals(0, new HostConnectionPrewarmer(cm).prewarm(Collections.singletonList(origin), 2, 2000));
+                PoolStats stats = cm.getStats(routeFor(origin));
+                assertEquals(0, stats.getLeased());
+                assertEquals(0, stats.getAvailable());
+            } finally {
+                cm.shutdown();
+            }
+        }
+    }
+}